@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.benchmarks;
+
+import com.mongodb.BasicDBObject;
+import java.util.ArrayList;
+import java.util.List;
+import uk.ac.ncl.aries.entanglement.graph.EdgeDAO;
+import uk.ac.ncl.aries.entanglement.graph.GraphEntityDAO;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateEdge;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateNode;
+import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
+
+/**
+ * Generates deterministic graph content for benchmarks. Node UIDs and names
+ * are derived from a node index, so that edges can refer to nodes without 
+ * lookups.
+ * 
+ * @author Keith Flanagan
+ */
+public class BenchmarkData
+{
+  public static final String NODE_TYPE = "gene";
+  public static final String[] EDGE_TYPES = new String[] {
+    "interacts-with", "regulates", "similar-to"
+  };
+  
+  public static String nodeUid(int nodeIdx) {
+    return "node-"+nodeIdx;
+  }
+  
+  public static String nodeName(int nodeIdx) {
+    return "GENE"+nodeIdx;
+  }
+  
+  public static BasicDBObject createNode(int nodeIdx)
+  {
+    BasicDBObject node = new BasicDBObject();
+    node.put(GraphEntityDAO.FIELD_UID, nodeUid(nodeIdx));
+    node.put(GraphEntityDAO.FIELD_TYPE, NODE_TYPE);
+    node.put(GraphEntityDAO.FIELD_NAME, nodeName(nodeIdx));
+    node.put("length", 1000 + nodeIdx % 5000);
+    node.put("description", "Benchmark node number "+nodeIdx);
+    return node;
+  }
+  
+  public static BasicDBObject createEdge(int edgeIdx, int fromIdx, int toIdx)
+  {
+    BasicDBObject edge = new BasicDBObject();
+    edge.put(EdgeDAO.FIELD_UID, "edge-"+edgeIdx);
+    edge.put(EdgeDAO.FIELD_TYPE, EDGE_TYPES[edgeIdx % EDGE_TYPES.length]);
+    edge.put(EdgeDAO.FIELD_FROM_NODE_UID, nodeUid(fromIdx));
+    edge.put(EdgeDAO.FIELD_FROM_NODE_TYPE, NODE_TYPE);
+    edge.put(EdgeDAO.FIELD_FROM_NODE_NAME, nodeName(fromIdx));
+    edge.put(EdgeDAO.FIELD_TO_NODE_UID, nodeUid(toIdx));
+    edge.put(EdgeDAO.FIELD_TO_NODE_TYPE, NODE_TYPE);
+    edge.put(EdgeDAO.FIELD_TO_NODE_NAME, nodeName(toIdx));
+    return edge;
+  }
+  
+  /**
+   * Creates operations for <code>nodeCount</code> nodes, followed by 
+   * <code>edgesPerNode</code> outgoing edges for each node. Edge end points
+   * are spread evenly over the nodes.
+   */
+  public static List<GraphOperation> createGraphOps(int nodeCount, int edgesPerNode)
+  {
+    List<GraphOperation> ops = new ArrayList<>(nodeCount * (1 + edgesPerNode));
+    for (int i=0; i<nodeCount; i++) {
+      ops.add(new CreateNode(createNode(i)));
+    }
+    int edgeIdx = 0;
+    for (int i=0; i<nodeCount; i++) {
+      for (int e=1; e<=edgesPerNode; e++) {
+        ops.add(new CreateEdge(createEdge(edgeIdx++, i, (i + e * 7919) % nodeCount)));
+      }
+    }
+    return ops;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.benchmarks;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.ac.ncl.aries.entanglement.graph.EdgeDAO;
+import uk.ac.ncl.aries.entanglement.graph.GraphDAOFactory;
+import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
+
+/**
+ * Measures edge lookups on <code>EdgeDAOSeparateDocImpl</code> against a 
+ * pre-populated graph. Each invocation queries a different, randomly chosen
+ * node.
+ * 
+ * @author Keith Flanagan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EdgeLookupBenchmark
+{
+  private static final ClassLoader classLoader = EdgeLookupBenchmark.class.getClassLoader();
+  
+  @Param({"10000"})
+  public int nodeCount;
+  
+  @Param({"5"})
+  public int edgesPerNode;
+  
+  private EdgeDAO edgeDao;
+  private Random random;
+  
+  @Setup
+  public void setUp() throws Exception
+  {
+    InMemoryMongo mongo = new InMemoryMongo("edges-"+System.nanoTime());
+    DBCollection nodeCol = mongo.getDb().getCollection("benchmark_nodes");
+    DBCollection edgeCol = mongo.getDb().getCollection("benchmark_edges");
+    NodeDAO nodeDao = GraphDAOFactory.createDefaultNodeDAO(
+        classLoader, mongo.getMongo(), mongo.getDb(), nodeCol, edgeCol);
+    edgeDao = GraphDAOFactory.createDefaultEdgeDAO(
+        classLoader, mongo.getMongo(), mongo.getDb(), nodeCol, edgeCol);
+    
+    List<BasicDBObject> nodes = new ArrayList<>(nodeCount);
+    for (int i=0; i<nodeCount; i++) {
+      nodes.add(BenchmarkData.createNode(i));
+    }
+    nodeDao.storeAll(nodes);
+    
+    List<BasicDBObject> edges = new ArrayList<>(nodeCount * edgesPerNode);
+    int edgeIdx = 0;
+    for (int i=0; i<nodeCount; i++) {
+      for (int e=1; e<=edgesPerNode; e++) {
+        edges.add(BenchmarkData.createEdge(edgeIdx++, i, (i + e * 7919) % nodeCount));
+      }
+    }
+    edgeDao.storeAll(edges);
+    
+    // Fixed seed, so that every run queries the same sequence of nodes
+    random = new Random(42);
+  }
+  
+  private String randomNodeUid() {
+    return BenchmarkData.nodeUid(random.nextInt(nodeCount));
+  }
+  
+  @Benchmark
+  public void iterateEdgesFromNode(Blackhole bh) throws Exception
+  {
+    for (DBObject edge : edgeDao.iterateEdgesFromNode(randomNodeUid())) {
+      bh.consume(edge);
+    }
+  }
+  
+  @Benchmark
+  public void iterateEdgesToNode(Blackhole bh) throws Exception
+  {
+    for (DBObject edge : edgeDao.iterateEdgesToNode(randomNodeUid())) {
+      bh.consume(edge);
+    }
+  }
+  
+  @Benchmark
+  public boolean existsEdgeToNodeOfType() throws Exception
+  {
+    return edgeDao.existsEdgeToNodeOfType(randomNodeUid(), BenchmarkData.NODE_TYPE);
+  }
+  
+  @Benchmark
+  public Long countEdgesFromNode() throws Exception
+  {
+    return edgeDao.countEdgesFromNode(randomNodeUid());
+  }
+  
+  @Benchmark
+  public Map<String, Long> countEdgesByTypeFromNode() throws Exception
+  {
+    return edgeDao.countEdgesByTypeFromNode(randomNodeUid());
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.benchmarks;
+
+import com.mongodb.DBCollection;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.ncl.aries.entanglement.graph.GraphDAOFactory;
+import uk.ac.ncl.aries.entanglement.graph.InsertMode;
+import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
+
+/**
+ * Measures <code>AbstractGraphEntityDAO.store</code> in each 
+ * <code>InsertMode</code>.
+ * 
+ * @author Keith Flanagan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EntityStoreBenchmark
+{
+  private static final ClassLoader classLoader = EntityStoreBenchmark.class.getClassLoader();
+  
+  @Param({"INSERT_CONSISTENCY", "INSERT_PERFORMANCE"})
+  public InsertMode insertMode;
+  
+  private NodeDAO nodeDao;
+  private int nextNodeIdx;
+  
+  @Setup(Level.Iteration)
+  public void setUp()
+  {
+    InMemoryMongo mongo = new InMemoryMongo("store-"+System.nanoTime());
+    DBCollection nodeCol = mongo.getDb().getCollection("benchmark_nodes");
+    DBCollection edgeCol = mongo.getDb().getCollection("benchmark_edges");
+    nodeDao = GraphDAOFactory.createDefaultNodeDAO(
+        classLoader, mongo.getMongo(), mongo.getDb(), nodeCol, edgeCol);
+    nodeDao.setInsertModeHint(insertMode);
+    nextNodeIdx = 0;
+  }
+  
+  @Benchmark
+  public void store() throws Exception
+  {
+    nodeDao.store(BenchmarkData.createNode(nextNodeIdx++));
+  }
+}
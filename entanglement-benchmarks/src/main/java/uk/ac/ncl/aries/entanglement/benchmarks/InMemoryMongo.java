@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.benchmarks;
+
+import com.github.fakemongo.Fongo;
+import com.mongodb.DB;
+import com.mongodb.Mongo;
+import com.mongodb.WriteConcern;
+
+/**
+ * An in-memory stand-in for a MongoDB server, so that benchmarks can run 
+ * without a database. Each instance is independent of every other.
+ * 
+ * Absolute timings are not representative of a real server, since there is
+ * no network or disk I/O. Benchmarks built on this class are intended for 
+ * comparing revisions of Entanglement's own code.
+ * 
+ * @author Keith Flanagan
+ */
+public class InMemoryMongo
+{
+  private static final String DB_NAME = "entanglement-benchmark";
+  
+  private final Mongo mongo;
+  private final DB db;
+
+  public InMemoryMongo(String name)
+  {
+    Fongo fongo = new Fongo(name);
+    mongo = fongo.getMongo();
+    mongo.setWriteConcern(WriteConcern.SAFE);
+    db = mongo.getDB(DB_NAME);
+  }
+
+  public Mongo getMongo() {
+    return mongo;
+  }
+
+  public DB getDb() {
+    return db;
+  }
+}
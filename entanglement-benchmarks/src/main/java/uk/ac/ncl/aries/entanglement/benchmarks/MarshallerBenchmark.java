@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.benchmarks;
+
+import com.mongodb.DBObject;
+import com.torrenttamer.mongodb.dbobject.DbObjectMarshaller;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.ac.ncl.aries.entanglement.ObjectMarshallerFactory;
+import uk.ac.ncl.aries.entanglement.revlog.codec.CompactRevisionItemCodec;
+import uk.ac.ncl.aries.entanglement.revlog.codec.GraphOperationCodecs;
+import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItemContainer;
+
+/**
+ * Measures serialization and deserialization of a 
+ * <code>RevisionItemContainer</code> by the marshaller that the revision log
+ * uses, of its items by the generated operation codecs, and of its items by
+ * the compact binary codec. No database is involved.
+ * 
+ * @author Keith Flanagan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MarshallerBenchmark
+{
+  private static final ClassLoader classLoader = MarshallerBenchmark.class.getClassLoader();
+  
+  @Param({"1", "100", "1000"})
+  public int itemsPerContainer;
+  
+  private DbObjectMarshaller marshaller;
+  private RevisionItemContainer container;
+  private DBObject serialized;
+  private GraphOperationCodecs opCodecs;
+  private List<DBObject> itemDocs;
+  private CompactRevisionItemCodec codec;
+  private byte[] compact;
+  private byte[] compactDeflated;
+  
+  @Setup
+  public void setUp() throws Exception
+  {
+    marshaller = ObjectMarshallerFactory.create(classLoader);
+    container = new RevisionItemContainer();
+    container.setUniqueId("container-1");
+    container.setGraphUniqueId("benchmark-graph");
+    container.setGraphBranchId("trunk");
+    container.setTransactionUid("txn-1");
+    container.setTxnSubmitId(1);
+    container.setTimestamp(new Date());
+    
+    // Roughly one edge per two nodes, as in a typical import
+    int nodeCount = Math.max(1, (itemsPerContainer * 2) / 3);
+    int edgesPerNode = itemsPerContainer > 1 ? 1 : 0;
+    for (GraphOperation op : BenchmarkData.createGraphOps(nodeCount, edgesPerNode)) {
+      if (container.getItems().size() == itemsPerContainer) {
+        break;
+      }
+      RevisionItem item = new RevisionItem();
+      item.setOp(op);
+      item.setType(op.getClass().getSimpleName());
+      container.getItems().add(item);
+    }
+    serialized = marshaller.serialize(container);
+    opCodecs = new GraphOperationCodecs(classLoader, marshaller);
+    itemDocs = new ArrayList<>();
+    for (RevisionItem item : container.getItems()) {
+      itemDocs.add(opCodecs.serializeItem(item));
+    }
+    codec = new CompactRevisionItemCodec(
+        opCodecs, CompactRevisionItemCodec.DEFAULT_MIN_COMPRESS_BYTES);
+    compact = codec.encode(container.getItems(), false);
+    compactDeflated = codec.encode(container.getItems(), true);
+  }
+  
+  @Benchmark
+  public DBObject serialize() throws Exception
+  {
+    return marshaller.serialize(container);
+  }
+  
+  @Benchmark
+  public RevisionItemContainer deserialize() throws Exception
+  {
+    return marshaller.deserialize(serialized, RevisionItemContainer.class);
+  }
+  
+  @Benchmark
+  public void serializeItemsWithCodecs(Blackhole bh) throws Exception
+  {
+    for (RevisionItem item : container.getItems()) {
+      bh.consume(opCodecs.serializeItem(item));
+    }
+  }
+  
+  @Benchmark
+  public void deserializeItemsWithCodecs(Blackhole bh) throws Exception
+  {
+    for (DBObject itemDoc : itemDocs) {
+      bh.consume(opCodecs.deserializeItem(itemDoc).getOp());
+    }
+  }
+  
+  @Benchmark
+  public byte[] encodeCompact() throws Exception
+  {
+    return codec.encode(container.getItems(), false);
+  }
+  
+  @Benchmark
+  public byte[] encodeCompactDeflated() throws Exception
+  {
+    return codec.encode(container.getItems(), true);
+  }
+  
+  @Benchmark
+  public void decodeCompact(Blackhole bh) throws Exception
+  {
+    _consume(codec.decode(compact), bh);
+  }
+  
+  @Benchmark
+  public void decodeCompactDeflated(Blackhole bh) throws Exception
+  {
+    _consume(codec.decode(compactDeflated), bh);
+  }
+  
+  private static void _consume(List<RevisionItem> items, Blackhole bh)
+  {
+    for (RevisionItem item : items) {
+      bh.consume(item.getOp());
+    }
+  }
+}
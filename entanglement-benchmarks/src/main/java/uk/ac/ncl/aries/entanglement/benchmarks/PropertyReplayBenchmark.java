@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.benchmarks;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.ncl.aries.entanglement.ObjectMarshallerFactory;
+import uk.ac.ncl.aries.entanglement.graph.GraphDAOFactory;
+import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
+import uk.ac.ncl.aries.entanglement.player.PropertyUpdateCoalescer;
+import uk.ac.ncl.aries.entanglement.player.spi.LogItemPlayer;
+import uk.ac.ncl.aries.entanglement.player.spi.LogItemPlayerProvider;
+import uk.ac.ncl.aries.entanglement.revlog.commands.SetNodeProperty;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
+
+/**
+ * Measures the replay of a run of <code>SetNodeProperty</code> items, played
+ * one at a time by the (instrumented) player that replay uses, and merged by
+ * a <code>PropertyUpdateCoalescer</code>. 
+ * 
+ * After each invocation, checks that every item was handled as intended and
+ * that each node's version has advanced by one per item in both modes.
+ * 
+ * @author Keith Flanagan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PropertyReplayBenchmark
+{
+  private static final ClassLoader classLoader = PropertyReplayBenchmark.class.getClassLoader();
+  
+  @Param({"2000"})
+  public int nodeCount;
+  
+  @Param({"20"})
+  public int propertiesPerNode;
+  
+  @Param({"false", "true"})
+  public boolean coalesce;
+  
+  private LogItemPlayer player;
+  private List<RevisionItem> items;
+  private NodeDAO nodeDao;
+  private PropertyUpdateCoalescer coalescer;
+  
+  @Setup
+  public void createItems() throws Exception
+  {
+    LogItemPlayerProvider playerProvider = new LogItemPlayerProvider(
+        classLoader, ObjectMarshallerFactory.create(classLoader));
+    player = playerProvider.getPlayerFor(SetNodeProperty.class.getSimpleName());
+    
+    items = new ArrayList<>(nodeCount * propertiesPerNode);
+    for (int i=0; i<nodeCount; i++) {
+      for (int p=0; p<propertiesPerNode; p++) {
+        RevisionItem item = new RevisionItem();
+        item.setOp(new SetNodeProperty(BenchmarkData.nodeUid(i), "prop"+p, p));
+        item.setType(SetNodeProperty.class.getSimpleName());
+        items.add(item);
+      }
+    }
+  }
+  
+  /*
+   * Runs before every replay, since each replay needs nodes at version 1.
+   */
+  @Setup(Level.Invocation)
+  public void createNodes() throws Exception
+  {
+    InMemoryMongo mongo = new InMemoryMongo("properties-"+System.nanoTime());
+    DBCollection nodeCol = mongo.getDb().getCollection("benchmark_nodes");
+    DBCollection edgeCol = mongo.getDb().getCollection("benchmark_edges");
+    nodeDao = GraphDAOFactory.createDefaultNodeDAO(
+        classLoader, mongo.getMongo(), mongo.getDb(), nodeCol, edgeCol);
+    for (int i=0; i<nodeCount; i++) {
+      nodeDao.store(BenchmarkData.createNode(i));
+    }
+    coalescer = new PropertyUpdateCoalescer(nodeDao);
+  }
+  
+  @Benchmark
+  public void replayPropertyUpdates() throws Exception
+  {
+    for (RevisionItem item : items) {
+      if (!coalesce || !coalescer.add(item, player)) {
+        coalescer.flush();
+        player.playItem(nodeDao, null, item);
+      }
+    }
+    coalescer.flush();
+  }
+  
+  @TearDown(Level.Invocation)
+  public void checkReplay() throws Exception
+  {
+    long expectedCoalesced = coalesce ? items.size() : 0;
+    if (coalescer.getItemsCoalesced() != expectedCoalesced) {
+      throw new IllegalStateException("Expected "+expectedCoalesced
+          + " items to be coalesced, but "+coalescer.getItemsCoalesced()+" were");
+    }
+    DBObject versionField = new BasicDBObject(NodeDAO.FIELD_VERSION, 1);
+    long expectedVersion = 1 + propertiesPerNode;
+    for (int i=0; i<nodeCount; i++) {
+      DBObject node = nodeDao.getByUid(BenchmarkData.nodeUid(i), versionField);
+      long version = ((Number) node.get(NodeDAO.FIELD_VERSION)).longValue();
+      if (version != expectedVersion) {
+        throw new IllegalStateException("Node: "+BenchmarkData.nodeUid(i)
+            + " is at version: "+version+", expected: "+expectedVersion);
+      }
+    }
+  }
+}
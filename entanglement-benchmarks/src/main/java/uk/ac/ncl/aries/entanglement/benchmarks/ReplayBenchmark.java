@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.benchmarks;
+
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.Mongo;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.ncl.aries.entanglement.ObjectMarshallerFactory;
+import uk.ac.ncl.aries.entanglement.graph.EdgeDAO;
+import uk.ac.ncl.aries.entanglement.graph.GraphDAOFactory;
+import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
+import uk.ac.ncl.aries.entanglement.player.GraphCheckoutNamingScheme;
+import uk.ac.ncl.aries.entanglement.player.LogPlayerMongoDbImpl;
+import uk.ac.ncl.aries.entanglement.revlog.RevisionLog;
+import uk.ac.ncl.aries.entanglement.revlog.RevisionLogDirectToMongoDbImpl;
+import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
+import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionBegin;
+import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionCommit;
+
+/**
+ * Measures a full replay of a committed revision log into an empty working
+ * copy with <code>LogPlayerMongoDbImpl</code>, serially and in parallel. 
+ * Each invocation replays the whole log.
+ * 
+ * @author Keith Flanagan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReplayBenchmark
+{
+  private static final ClassLoader classLoader = ReplayBenchmark.class.getClassLoader();
+  private static final String GRAPH = "benchmark-graph";
+  private static final String BRANCH = "trunk";
+  private static final int OPS_PER_CONTAINER = 1000;
+  
+  @Param({"20000"})
+  public int nodeCount;
+  
+  @Param({"2"})
+  public int edgesPerNode;
+  
+  @Param({"1", "4"})
+  public int parallelism;
+  
+  private Mongo m;
+  private DB db;
+  private RevisionLog revLog;
+  private LogPlayerMongoDbImpl player;
+  
+  @Setup
+  public void writeRevisionLog() throws Exception
+  {
+    InMemoryMongo mongo = new InMemoryMongo("replay-"+System.nanoTime());
+    m = mongo.getMongo();
+    db = mongo.getDb();
+    revLog = new RevisionLogDirectToMongoDbImpl(classLoader, m, db);
+    
+    String txnId = "benchmark-txn";
+    int txnSubmitId = 0;
+    revLog.submitRevision(GRAPH, BRANCH, txnId, txnSubmitId++, new TransactionBegin(txnId));
+    List<GraphOperation> ops = BenchmarkData.createGraphOps(nodeCount, edgesPerNode);
+    for (int i=0; i<ops.size(); i=i+OPS_PER_CONTAINER) {
+      List<GraphOperation> container = ops.subList(i, Math.min(ops.size(), i + OPS_PER_CONTAINER));
+      revLog.submitRevisions(GRAPH, BRANCH, txnId, txnSubmitId++, container);
+    }
+    revLog.submitRevision(GRAPH, BRANCH, txnId, txnSubmitId++, new TransactionCommit(txnId));
+  }
+  
+  /*
+   * Runs before every replay, since each replay needs an empty working copy.
+   * A replay takes long enough that per-invocation setup does not distort 
+   * the measurement.
+   */
+  @Setup(Level.Invocation)
+  public void createEmptyWorkingCopy() throws Exception
+  {
+    if (player != null) {
+      player.deleteWorkingCopy();
+    }
+    GraphCheckoutNamingScheme naming = new GraphCheckoutNamingScheme(GRAPH, BRANCH);
+    DBCollection nodeCol = db.getCollection(naming.getNodeCollectionName());
+    DBCollection edgeCol = db.getCollection(naming.getEdgeCollectionName());
+    NodeDAO nodeDao = GraphDAOFactory.createDefaultNodeDAO(classLoader, m, db, nodeCol, edgeCol);
+    EdgeDAO edgeDao = GraphDAOFactory.createDefaultEdgeDAO(classLoader, m, db, nodeCol, edgeCol);
+    
+    player = new LogPlayerMongoDbImpl(classLoader, ObjectMarshallerFactory.create(classLoader),
+        GRAPH, BRANCH, revLog, nodeDao, edgeDao);
+    player.setParallelism(parallelism);
+  }
+  
+  @Benchmark
+  public void replayAllRevisions() throws Exception
+  {
+    player.replayAllRevisions();
+  }
+}
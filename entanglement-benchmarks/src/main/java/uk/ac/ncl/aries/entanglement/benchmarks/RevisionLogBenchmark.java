@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.ncl.aries.entanglement.revlog.RevisionLog;
+import uk.ac.ncl.aries.entanglement.revlog.RevisionLogDirectToMongoDbImpl;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateNode;
+import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
+
+/**
+ * Measures <code>RevisionLog.submitRevisions</code> for a range of batch 
+ * sizes. Scores are in batches per second; multiply by the batch size for 
+ * revisions per second.
+ * 
+ * @author Keith Flanagan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RevisionLogBenchmark
+{
+  private static final ClassLoader classLoader = RevisionLogBenchmark.class.getClassLoader();
+  
+  @Param({"1", "10", "100", "1000"})
+  public int batchSize;
+  
+  private RevisionLog revLog;
+  private List<GraphOperation> batch;
+  private String txnId;
+  private int txnSubmitId;
+  
+  @Setup(Level.Iteration)
+  public void setUp() throws Exception
+  {
+    // A fresh database per iteration stops the collection growing without bound
+    InMemoryMongo mongo = new InMemoryMongo("revlog-"+System.nanoTime());
+    revLog = new RevisionLogDirectToMongoDbImpl(classLoader, mongo.getMongo(), mongo.getDb());
+    batch = new ArrayList<>(batchSize);
+    for (int i=0; i<batchSize; i++) {
+      batch.add(new CreateNode(BenchmarkData.createNode(i)));
+    }
+    txnId = "benchmark-txn-"+System.nanoTime();
+    txnSubmitId = 0;
+  }
+  
+  @Benchmark
+  public void submitRevisions() throws Exception
+  {
+    revLog.submitRevisions("benchmark-graph", "trunk", txnId, txnSubmitId++, batch);
+  }
+}
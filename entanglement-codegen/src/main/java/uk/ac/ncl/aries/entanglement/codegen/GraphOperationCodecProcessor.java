@@ -0,0 +1,481 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.codegen;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates a <code>GraphOperationCodec</code> for each class annotated with
+ * <code>GenerateOperationCodec</code>, and lists the generated classes in
+ * <code>META-INF/services</code> so that they are found at runtime.
+ *
+ * Each generated codec reads and writes the operation's properties directly
+ * through its getters and setters, one field at a time, with no reflection
+ * and no intermediate JSON. Fields are named and laid out exactly as the
+ * Gson marshaller would write them, so documents written either way can be
+ * read either way.
+ *
+ * The annotation and the runtime classes that generated code depends on live
+ * in the entanglement module, so they are referred to here by name only.
+ *
+ * @author Keith Flanagan
+ */
+@SupportedAnnotationTypes(GraphOperationCodecProcessor.ANNOTATION)
+public class GraphOperationCodecProcessor
+    extends AbstractProcessor
+{
+  static final String ANNOTATION =
+      "uk.ac.ncl.aries.entanglement.revlog.codec.GenerateOperationCodec";
+  private static final String CODEC_INTERFACE =
+      "uk.ac.ncl.aries.entanglement.revlog.codec.GraphOperationCodec";
+  private static final String SUPPORT =
+      "uk.ac.ncl.aries.entanglement.revlog.codec.CodecSupport";
+  private static final String SERVICE_FILE = "META-INF/services/"+CODEC_INTERFACE;
+
+  private static final String CODEC_SUFFIX = "Codec";
+
+  // Names of all codecs generated during this compilation
+  private final Set<String> generated = new TreeSet<>();
+
+  @Override
+  public SourceVersion getSupportedSourceVersion()
+  {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+  {
+    if (roundEnv.processingOver()) {
+      if (!generated.isEmpty()) {
+        writeServiceFile();
+      }
+      return false;
+    }
+    TypeElement annotation = processingEnv.getElementUtils().getTypeElement(ANNOTATION);
+    if (annotation == null) {
+      return false;
+    }
+    for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+      if (element.getKind() != ElementKind.CLASS) {
+        error(element, "@GenerateOperationCodec may only be used on classes");
+        continue;
+      }
+      TypeElement opType = (TypeElement) element;
+      try {
+        List<Property> properties = findProperties(opType);
+        if (properties != null) {
+          generated.add(writeCodec(opType, properties));
+        }
+      }
+      catch(IOException e) {
+        error(opType, "Failed to write codec: "+e.getMessage());
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the serialized properties of <code>opType</code>, superclass
+   * properties first, or null if an error was reported.
+   */
+  private List<Property> findProperties(TypeElement opType)
+  {
+    boolean valid = true;
+    if (!opType.getModifiers().contains(Modifier.PUBLIC)
+        || opType.getModifiers().contains(Modifier.ABSTRACT)) {
+      error(opType, "Operation classes with generated codecs must be public and concrete");
+      valid = false;
+    }
+    boolean hasDefaultConstructor = false;
+    for (ExecutableElement ctor : ElementFilter.constructorsIn(opType.getEnclosedElements())) {
+      if (ctor.getParameters().isEmpty() && ctor.getModifiers().contains(Modifier.PUBLIC)) {
+        hasDefaultConstructor = true;
+      }
+    }
+    if (!hasDefaultConstructor) {
+      error(opType, "Operation classes with generated codecs need a public no-argument constructor");
+      valid = false;
+    }
+
+    List<ExecutableElement> methods = ElementFilter.methodsIn(
+        processingEnv.getElementUtils().getAllMembers(opType));
+
+    // Walk up to java.lang.Object, then add fields from the top down
+    List<TypeElement> hierarchy = new ArrayList<>();
+    for (TypeElement cls = opType; cls != null; cls = superclassOf(cls)) {
+      hierarchy.add(cls);
+    }
+    Collections.reverse(hierarchy);
+
+    List<Property> properties = new ArrayList<>();
+    for (TypeElement cls : hierarchy) {
+      for (VariableElement field : ElementFilter.fieldsIn(cls.getEnclosedElements())) {
+        Set<Modifier> modifiers = field.getModifiers();
+        if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+          continue;
+        }
+        String name = field.getSimpleName().toString();
+        ExecutableElement getter = findAccessor(methods, 0, "get"+name, "is"+name);
+        ExecutableElement setter = findAccessor(methods, 1, "set"+name, null);
+        if (getter == null || setter == null) {
+          error(field, "Field: "+name+" needs a public getter and setter for a codec to be generated");
+          valid = false;
+          continue;
+        }
+        Property property = new Property(name, getter.getSimpleName().toString(),
+            setter.getSimpleName().toString(), field.asType());
+        if (property.kind == null) {
+          error(field, "Field: "+name+" has type: "+field.asType()+", which generated "
+              + "codecs don't support. Write a GraphOperationCodec by hand instead.");
+          valid = false;
+          continue;
+        }
+        properties.add(property);
+      }
+    }
+    return valid ? properties : null;
+  }
+
+  private TypeElement superclassOf(TypeElement cls)
+  {
+    TypeMirror superclass = cls.getSuperclass();
+    if (superclass.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    TypeElement superElement = (TypeElement) ((DeclaredType) superclass).asElement();
+    if (superElement.getQualifiedName().contentEquals("java.lang.Object")) {
+      return null;
+    }
+    return superElement;
+  }
+
+  /*
+   * Existing operation classes have accessors such as 'getnUid' for a field
+   * named 'nUid', and 'getPTags' for 'pTags', so names are matched ignoring case.
+   */
+  private static ExecutableElement findAccessor(List<ExecutableElement> methods,
+      int paramCount, String name, String altName)
+  {
+    for (ExecutableElement method : methods) {
+      if (!method.getModifiers().contains(Modifier.PUBLIC)
+          || method.getModifiers().contains(Modifier.STATIC)
+          || method.getParameters().size() != paramCount) {
+        continue;
+      }
+      String methodName = method.getSimpleName().toString();
+      if (methodName.equalsIgnoreCase(name)
+          || (altName != null && methodName.equalsIgnoreCase(altName))) {
+        return method;
+      }
+    }
+    return null;
+  }
+
+  private String writeCodec(TypeElement opType, List<Property> properties)
+      throws IOException
+  {
+    String packageName = processingEnv.getElementUtils()
+        .getPackageOf(opType).getQualifiedName().toString();
+    StringBuilder flatName = new StringBuilder(opType.getSimpleName());
+    for (Element e = opType.getEnclosingElement();
+         e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+      flatName.insert(0, e.getSimpleName()+"_");
+    }
+    String codecName = flatName + CODEC_SUFFIX;
+    String qualifiedCodecName = packageName.isEmpty() ? codecName : packageName+"."+codecName;
+    String opName = opType.getQualifiedName().toString();
+
+    JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedCodecName, opType);
+    try (PrintWriter out = new PrintWriter(file.openWriter())) {
+      if (!packageName.isEmpty()) {
+        out.println("package "+packageName+";");
+        out.println();
+      }
+      out.println("/**");
+      out.println(" * Generated by "+getClass().getSimpleName()+" from {@link "+opName+"}.");
+      out.println(" * Do not edit.");
+      out.println(" */");
+      out.println("public final class "+codecName);
+      out.println("    implements "+CODEC_INTERFACE+"<"+opName+">");
+      out.println("{");
+
+      out.println("  @Override");
+      out.println("  public Class<"+opName+"> getOperationType()");
+      out.println("  {");
+      out.println("    return "+opName+".class;");
+      out.println("  }");
+      out.println();
+
+      out.println("  @Override");
+      out.println("  public com.mongodb.BasicDBObject toDBObject("+opName+" op)");
+      out.println("  {");
+      out.println("    com.mongodb.BasicDBObject dbObject = new com.mongodb.BasicDBObject();");
+      for (Property p : properties) {
+        p.writeSerializer(out);
+      }
+      out.println("    return dbObject;");
+      out.println("  }");
+      out.println();
+
+      out.println("  @Override");
+      out.println("  public "+opName+" fromDBObject(com.mongodb.DBObject dbObject)");
+      out.println("  {");
+      out.println("    "+opName+" op = new "+opName+"();");
+      out.println("    Object v;");
+      for (Property p : properties) {
+        p.writeDeserializer(out);
+      }
+      out.println("    return op;");
+      out.println("  }");
+      out.println("}");
+    }
+    return qualifiedCodecName;
+  }
+
+  private void writeServiceFile()
+  {
+    /*
+     * An incremental build only processes the sources that changed, so keep
+     * the entries written by previous builds.
+     */
+    Set<String> codecs = new TreeSet<>(generated);
+    try {
+      FileObject existing = processingEnv.getFiler()
+          .getResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+      try (BufferedReader reader = new BufferedReader(
+          new InputStreamReader(existing.openInputStream(), "UTF-8"))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (!line.isEmpty() && !line.startsWith("#")) {
+            codecs.add(line);
+          }
+        }
+      }
+    }
+    catch(IOException e) {
+      // No previous file
+    }
+
+    try {
+      FileObject file = processingEnv.getFiler()
+          .createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+      try (Writer writer = new OutputStreamWriter(file.openOutputStream(), "UTF-8")) {
+        for (String codec : codecs) {
+          writer.write(codec);
+          writer.write("\n");
+        }
+      }
+    }
+    catch(IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "Failed to write "+SERVICE_FILE+": "+e.getMessage());
+    }
+  }
+
+  private void error(Element element, String message)
+  {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+
+  private enum Kind
+  {
+    PRIMITIVE, NUMBER, BOOLEAN, STRING, OBJECT, DB_OBJECT, BASIC_DB_OBJECT,
+    STRING_SET, STRING_LIST, ENUM;
+  }
+
+  /**
+   * A serialized bean property, and the code that converts it.
+   */
+  private class Property
+  {
+    private final String name;
+    private final String getter;
+    private final String setter;
+    private final String typeName;
+    private final Kind kind;
+    // For numeric types, the Number method that converts a stored value
+    private String numberMethod;
+
+    private Property(String name, String getter, String setter, TypeMirror type)
+    {
+      this.name = name;
+      this.getter = getter;
+      this.setter = setter;
+      this.typeName = type.toString();
+      this.kind = classify(type);
+    }
+
+    private Kind classify(TypeMirror type)
+    {
+      if (type.getKind().isPrimitive()) {
+        if (type.getKind() == TypeKind.BOOLEAN) {
+          return Kind.PRIMITIVE;
+        }
+        if (type.getKind() == TypeKind.CHAR) {
+          return null;
+        }
+        numberMethod = type.getKind().name().toLowerCase()+"Value";
+        return Kind.PRIMITIVE;
+      }
+      if (type.getKind() != TypeKind.DECLARED) {
+        return null;
+      }
+      Element element = ((DeclaredType) type).asElement();
+      if (element.getKind() == ElementKind.ENUM) {
+        return Kind.ENUM;
+      }
+      switch (typeName) {
+        case "java.lang.String":
+          return Kind.STRING;
+        case "java.lang.Object":
+          return Kind.OBJECT;
+        case "java.lang.Boolean":
+          return Kind.BOOLEAN;
+        case "java.lang.Integer":
+          numberMethod = "intValue";
+          return Kind.NUMBER;
+        case "java.lang.Long":
+          numberMethod = "longValue";
+          return Kind.NUMBER;
+        case "java.lang.Double":
+          numberMethod = "doubleValue";
+          return Kind.NUMBER;
+        case "java.lang.Float":
+          numberMethod = "floatValue";
+          return Kind.NUMBER;
+        case "java.lang.Short":
+          numberMethod = "shortValue";
+          return Kind.NUMBER;
+        case "java.lang.Byte":
+          numberMethod = "byteValue";
+          return Kind.NUMBER;
+        case "com.mongodb.DBObject":
+          return Kind.DB_OBJECT;
+        case "com.mongodb.BasicDBObject":
+          return Kind.BASIC_DB_OBJECT;
+        case "java.util.Set<java.lang.String>":
+          return Kind.STRING_SET;
+        case "java.util.List<java.lang.String>":
+          return Kind.STRING_LIST;
+        default:
+          return null;
+      }
+    }
+
+    private void writeSerializer(PrintWriter out)
+    {
+      String get = "op."+getter+"()";
+      if (kind == Kind.PRIMITIVE) {
+        out.println("    dbObject.put(\""+name+"\", "+get+");");
+        return;
+      }
+      // Null properties are omitted, as they are by Gson
+      String local = "f_"+name;
+      out.println("    "+typeName+" "+local+" = "+get+";");
+      out.println("    if ("+local+" != null) {");
+      String value;
+      switch (kind) {
+        case OBJECT:
+        case DB_OBJECT:
+        case BASIC_DB_OBJECT:
+          value = SUPPORT+".checkValue("+local+")";
+          break;
+        case STRING_SET:
+        case STRING_LIST:
+          value = SUPPORT+".toDBList("+local+")";
+          break;
+        case ENUM:
+          value = local+".name()";
+          break;
+        default:
+          value = local;
+      }
+      out.println("      dbObject.put(\""+name+"\", "+value+");");
+      out.println("    }");
+    }
+
+    private void writeDeserializer(PrintWriter out)
+    {
+      String value;
+      switch (kind) {
+        case PRIMITIVE:
+        case NUMBER:
+          value = numberMethod == null
+              ? "(Boolean) v" : "((Number) v)."+numberMethod+"()";
+          break;
+        case BOOLEAN:
+        case STRING:
+        case DB_OBJECT:
+          value = "("+typeName+") v";
+          break;
+        case OBJECT:
+          value = "v";
+          break;
+        case BASIC_DB_OBJECT:
+          value = SUPPORT+".toBasicDBObject(v)";
+          break;
+        case STRING_SET:
+          value = SUPPORT+".toStringSet(v)";
+          break;
+        case STRING_LIST:
+          value = SUPPORT+".toStringList(v)";
+          break;
+        case ENUM:
+          value = typeName+".valueOf((String) v)";
+          break;
+        default:
+          throw new IllegalStateException("Unhandled property kind: "+kind);
+      }
+      // Absent properties keep the value assigned by the constructor
+      out.println("    v = dbObject.get(\""+name+"\");");
+      out.println("    if (v != null) {");
+      out.println("      op."+setter+"("+value+");");
+      out.println("    }");
+    }
+  }
+}
@@ -22,6 +22,7 @@ import com.torrenttamer.mongodb.gson.GsonDBObjectMarshaller;
 import java.lang.reflect.Type;
 import java.util.HashMap;
 import java.util.Map;
+import uk.ac.ncl.aries.entanglement.metrics.InstrumentedProxy;
 import uk.ac.ncl.aries.entanglement.revlog.RevisionItemDeserializer;
 import uk.ac.ncl.aries.entanglement.revlog.RevisionItemSerializer;
 import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
@@ -53,6 +54,7 @@ public class ObjectMarshallerFactory
 //    adapters.put(byte[].class, new ByteArraySerializer());
 //    adapters.put(RevisionItem.class, new RevisionItemDeserializer(defaultCl));
     GsonDBObjectMarshaller marshaller = new GsonDBObjectMarshaller(adapters);
-    return marshaller;
+    // Times serialization and deserialization under 'marshaller.*'
+    return InstrumentedProxy.wrap(DbObjectMarshaller.class, marshaller, "marshaller");
   }
 }
@@ -26,6 +26,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import uk.ac.ncl.aries.entanglement.graph.data.Node;
+import uk.ac.ncl.aries.entanglement.revlog.BlockAllocatingCounter;
 import uk.ac.ncl.aries.entanglement.revlog.Counter;
 import uk.ac.ncl.aries.entanglement.revlog.RevisionLog;
 import uk.ac.ncl.aries.entanglement.revlog.RevisionLogDirectToMongoDbImpl;
@@ -80,6 +81,21 @@ public class TestCounter
     System.out.println("Took: "+durationSecs+" seconds to perform "+toCreate
         +" operations = "+opsPerSec+" operations per second");
     
+    System.out.println("Starting block allocating counter test");
+    BlockAllocatingCounter blockCounter = new BlockAllocatingCounter(m, db, "test-counter");
+    start = System.currentTimeMillis();
+    for (int i=0; i<toCreate; i++)
+    {
+      long next = blockCounter.next();
+    }
+    end = System.currentTimeMillis();
+    durationSecs = (end - start) / 1000d;
+    opsPerSec = toCreate / durationSecs;
+    System.out.println("Took: "+durationSecs+" seconds to perform "+toCreate
+        +" operations = "+opsPerSec+" operations per second, using "
+        +blockCounter.getBlocksReserved()+" block reservations (final block size: "
+        +blockCounter.getBlockSize()+")");
+    
     System.out.println("\n\nDone.");
   }
   
@@ -18,16 +18,12 @@
 
 package uk.ac.ncl.aries.entanglement.cli.export;
 
-import uk.ac.ncl.aries.entanglement.shell.gdfexport.GdfWriter;
 import com.mongodb.*;
 import com.torrenttamer.mongodb.dbobject.DbObjectMarshaller;
-import com.torrenttamer.mongodb.dbobject.DeserialisingIterable;
 import java.awt.Color;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.HashMap;
@@ -42,8 +38,6 @@ import uk.ac.ncl.aries.entanglement.player.LogPlayerException;
 import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
 import uk.ac.ncl.aries.entanglement.graph.GraphDAOFactory;
 import uk.ac.ncl.aries.entanglement.graph.GraphModelException;
-import uk.ac.ncl.aries.entanglement.graph.data.Edge;
-import uk.ac.ncl.aries.entanglement.graph.data.Node;
 import uk.ac.ncl.aries.entanglement.revlog.RevisionLog;
 import uk.ac.ncl.aries.entanglement.revlog.RevisionLogDirectToMongoDbImpl;
 import uk.ac.ncl.aries.entanglement.revlog.RevisionLogException;
@@ -272,30 +266,9 @@ public class MongoGraphToGDF
     RevisionLog log = new RevisionLogDirectToMongoDbImpl(classLoader, m, db);
     
     
-    /*
-     * GDF file writer
-     */
-    GdfWriter writer = new GdfWriter(new BufferedWriter(new FileWriter(outputFile)));
-    
-    writer.writeNodeDef();
-    Iterable<Node> nodeItr = new DeserialisingIterable<>(nodeDao.iterateAll(), marshaller, Node.class);
-    for (Node node : nodeItr) {
-      Color nodeColour = DEFAULT_COLOR;
-      if (nodeColorMappings.containsKey(node.getType())) {
-        nodeColour = nodeColorMappings.get(node.getType());
-      }
-      
-      writer.writeNode(node, nodeColour);
-    }
-    
-    writer.writeEdgeDef();
-    Iterable<Edge> edgeItr = new DeserialisingIterable<>(nodeDao.iterateAll(), marshaller, Edge.class);
-    for (Edge edge : edgeItr) {
-      writer.writeEdge(edge);
-    }
-    
-    writer.flush();
-    writer.close();
+    StreamingGdfExporter exporter = new StreamingGdfExporter(nodeDao, edgeDao);
+    exporter.setNodeColorMappings(nodeColorMappings);
+    exporter.export(outputFile);
   }
   
   
@@ -195,8 +195,28 @@ public class MongoGraphToGephi {
     System.out.println("\n\nDone.");
   }
 
+  /**
+   * Writes the graph in GEXF format without holding it in memory.
+   * See <code>StreamingGexfExporter</code>.
+   */
   public void exportGexf(File outputFile)
           throws IOException, GraphModelException, RevisionLogException {
+    StreamingGexfExporter exporter = new StreamingGexfExporter(nodeDao, edgeDao);
+    if (colorPropsFile != null) {
+      exporter.setNodeColorMappings(loadColorMappings(colorPropsFile));
+    }
+    exporter.export(outputFile);
+    System.out.println("Complete Nodes: " + exporter.getNodesWritten()
+            + " Complete Edges: " + exporter.getEdgesWritten());
+  }
+
+  /**
+   * Builds a Gephi toolkit graph model containing every node and edge, and
+   * exports it using the toolkit. The whole graph is held in memory, so this
+   * is only suitable for small graphs.
+   */
+  public void exportGexfUsingGephi(File outputFile)
+          throws IOException, GraphModelException, RevisionLogException {
     //Load colour mappings, if any
     Map<String, Color> nodeColorMappings = new HashMap<>();
     if (colorPropsFile != null) {
@@ -253,7 +273,7 @@ public class MongoGraphToGephi {
 
       for (String nodeAttrName : node.keySet()) {
         Object val = node.get(nodeAttrName);
-        if (nodeAttrName.equals("_id")) {
+        if (nodeAttrName.startsWith("_")) {
           continue;
         }
         if (val instanceof BasicDBList) {
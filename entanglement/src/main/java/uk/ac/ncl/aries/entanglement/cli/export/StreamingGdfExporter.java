@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.cli.export;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.awt.Color;
+import java.io.IOException;
+import java.io.Writer;
+import uk.ac.ncl.aries.entanglement.graph.EdgeDAO;
+import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
+
+/**
+ * Writes a graph in GDF format (as read by Gephi and GUESS) in constant
+ * memory. The columns are the same as those written by <code>GdfWriter</code>.
+ *
+ * @author Keith Flanagan
+ */
+public class StreamingGdfExporter
+    extends StreamingGraphExporter
+{
+  private static final DBObject NODE_FIELDS = new BasicDBObject("_id", 0)
+      .append(NodeDAO.FIELD_UID, 1).append(NodeDAO.FIELD_TYPE, 1);
+
+  private static final DBObject EDGE_FIELDS = new BasicDBObject("_id", 0)
+      .append(EdgeDAO.FIELD_FROM_NODE_UID, 1).append(EdgeDAO.FIELD_TO_NODE_UID, 1)
+      .append(EdgeDAO.FIELD_UID, 1).append(EdgeDAO.FIELD_TYPE, 1);
+
+  public StreamingGdfExporter(NodeDAO nodeDao, EdgeDAO edgeDao)
+  {
+    super(nodeDao, edgeDao);
+  }
+
+  @Override
+  protected DBObject getNodeFields() {
+    return NODE_FIELDS;
+  }
+
+  @Override
+  protected DBObject getEdgeFields() {
+    return EDGE_FIELDS;
+  }
+
+  @Override
+  protected void writeHeader(Writer out) throws IOException
+  {
+    out.write("nodedef>name VARCHAR,type VARCHAR,color VARCHAR\n");
+  }
+
+  @Override
+  protected void writeSeparator(Writer out) throws IOException
+  {
+    out.write("edgedef>node1 VARCHAR,node2 VARCHAR,edge_guid VARCHAR,type VARCHAR\n");
+  }
+
+  @Override
+  protected void writeFooter(Writer out) throws IOException
+  {
+  }
+
+  @Override
+  protected void writeNode(Writer out, DBObject node) throws IOException
+  {
+    String type = (String) node.get(NodeDAO.FIELD_TYPE);
+    Color c = getNodeColor(type);
+    _writeValue(out, node.get(NodeDAO.FIELD_UID));
+    out.write(',');
+    _writeValue(out, type);
+    out.write(",'");
+    out.write(Integer.toString(c.getRed()));
+    out.write(',');
+    out.write(Integer.toString(c.getGreen()));
+    out.write(',');
+    out.write(Integer.toString(c.getBlue()));
+    out.write("'\n");
+  }
+
+  @Override
+  protected void writeEdge(Writer out, DBObject edge) throws IOException
+  {
+    _writeValue(out, edge.get(EdgeDAO.FIELD_FROM_NODE_UID));
+    out.write(',');
+    _writeValue(out, edge.get(EdgeDAO.FIELD_TO_NODE_UID));
+    out.write(',');
+    _writeValue(out, edge.get(EdgeDAO.FIELD_UID));
+    out.write(',');
+    _writeValue(out, edge.get(EdgeDAO.FIELD_TYPE));
+    out.write('\n');
+  }
+
+  /*
+   * Values containing a separator are quoted. GDF has no escape for quotes,
+   * so any within a quoted value are replaced.
+   */
+  private static void _writeValue(Writer out, Object value) throws IOException
+  {
+    String str = String.valueOf(value);
+    if (str.indexOf(',') < 0 && str.indexOf('\'') < 0 && str.indexOf('\n') < 0) {
+      out.write(str);
+      return;
+    }
+    out.write('\'');
+    out.write(str.replace('\'', '"').replace('\n', ' '));
+    out.write('\'');
+  }
+}
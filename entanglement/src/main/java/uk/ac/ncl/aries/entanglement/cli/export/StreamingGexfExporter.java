@@ -0,0 +1,246 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.cli.export;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.awt.Color;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import uk.ac.ncl.aries.entanglement.graph.EdgeDAO;
+import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
+
+/**
+ * Writes a graph in GEXF 1.2 format in constant memory, as an alternative to
+ * building a Gephi toolkit graph model and exporting that.
+ *
+ * As with the Gephi-based export, every node property whose name doesn't
+ * start with an underscore becomes a node attribute. Attribute columns are
+ * discovered while the nodes are written, and declared in the header
+ * afterwards. A column is typed by the first value seen for it, and falls
+ * back to <code>string</code> if a later value has a different type.
+ *
+ * @author Keith Flanagan
+ */
+public class StreamingGexfExporter
+    extends StreamingGraphExporter
+{
+  private static final DBObject EDGE_FIELDS = new BasicDBObject("_id", 0)
+      .append(EdgeDAO.FIELD_FROM_NODE_UID, 1).append(EdgeDAO.FIELD_TO_NODE_UID, 1)
+      .append(EdgeDAO.FIELD_UID, 1).append(EdgeDAO.FIELD_TYPE, 1);
+
+  private static final String TYPE_STRING = "string";
+
+  /*
+   * Attribute name -> column. Only used by the node section thread until the
+   * node section is complete, and by the header afterwards.
+   */
+  private final Map<String, Column> columns;
+  private long anonymousEdgeCount;
+
+  public StreamingGexfExporter(NodeDAO nodeDao, EdgeDAO edgeDao)
+  {
+    super(nodeDao, edgeDao);
+    this.columns = new LinkedHashMap<>();
+  }
+
+  @Override
+  protected void beginExport()
+  {
+    columns.clear();
+    anonymousEdgeCount = 0;
+  }
+
+  @Override
+  protected DBObject getNodeFields() {
+    // Every property may become an attribute
+    return null;
+  }
+
+  @Override
+  protected DBObject getEdgeFields() {
+    return EDGE_FIELDS;
+  }
+
+  @Override
+  protected void writeHeader(Writer out) throws IOException
+  {
+    out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    out.write("<gexf xmlns=\"http://www.gexf.net/1.2draft\" "
+        + "xmlns:viz=\"http://www.gexf.net/1.2draft/viz\" version=\"1.2\">\n");
+    out.write("  <graph mode=\"static\" defaultedgetype=\"directed\">\n");
+    out.write("    <attributes class=\"node\">\n");
+    for (Map.Entry<String, Column> entry : columns.entrySet()) {
+      Column col = entry.getValue();
+      out.write("      <attribute id=\"");
+      out.write(Integer.toString(col.id));
+      out.write("\" title=\"");
+      _writeEscaped(out, entry.getKey());
+      out.write("\" type=\"");
+      out.write(col.type);
+      out.write("\"/>\n");
+    }
+    out.write("    </attributes>\n");
+    out.write("    <nodes>\n");
+  }
+
+  @Override
+  protected void writeSeparator(Writer out) throws IOException
+  {
+    out.write("    </nodes>\n");
+    out.write("    <edges>\n");
+  }
+
+  @Override
+  protected void writeFooter(Writer out) throws IOException
+  {
+    out.write("    </edges>\n");
+    out.write("  </graph>\n");
+    out.write("</gexf>\n");
+  }
+
+  @Override
+  protected void writeNode(Writer out, DBObject node) throws IOException
+  {
+    String uid = (String) node.get(NodeDAO.FIELD_UID);
+    String name = (String) node.get(NodeDAO.FIELD_NAME);
+    out.write("      <node id=\"");
+    _writeEscaped(out, uid);
+    out.write("\" label=\"");
+    _writeEscaped(out, name == null || name.isEmpty() ? uid : name);
+    out.write("\">\n");
+
+    out.write("        <attvalues>\n");
+    for (String attrName : node.keySet()) {
+      Object val = node.get(attrName);
+      if (attrName.startsWith("_") || val == null) {
+        continue;
+      }
+      Column col = _getColumn(attrName, val);
+      out.write("          <attvalue for=\"");
+      out.write(Integer.toString(col.id));
+      out.write("\" value=\"");
+      _writeEscaped(out, val.toString());
+      out.write("\"/>\n");
+    }
+    out.write("        </attvalues>\n");
+
+    Color c = getNodeColor((String) node.get(NodeDAO.FIELD_TYPE));
+    out.write("        <viz:color r=\"");
+    out.write(Integer.toString(c.getRed()));
+    out.write("\" g=\"");
+    out.write(Integer.toString(c.getGreen()));
+    out.write("\" b=\"");
+    out.write(Integer.toString(c.getBlue()));
+    out.write("\"/>\n");
+    out.write("      </node>\n");
+  }
+
+  @Override
+  protected void writeEdge(Writer out, DBObject edge) throws IOException
+  {
+    String uid = (String) edge.get(EdgeDAO.FIELD_UID);
+    if (uid == null) {
+      uid = "e"+(anonymousEdgeCount++);
+    }
+    out.write("      <edge id=\"");
+    _writeEscaped(out, uid);
+    out.write("\" source=\"");
+    _writeEscaped(out, String.valueOf(edge.get(EdgeDAO.FIELD_FROM_NODE_UID)));
+    out.write("\" target=\"");
+    _writeEscaped(out, String.valueOf(edge.get(EdgeDAO.FIELD_TO_NODE_UID)));
+    out.write("\" label=\"");
+    _writeEscaped(out, String.valueOf(edge.get(EdgeDAO.FIELD_TYPE)));
+    out.write("\" weight=\"1.0\"/>\n");
+  }
+
+  private Column _getColumn(String attrName, Object val)
+  {
+    String type = _gexfType(val);
+    Column col = columns.get(attrName);
+    if (col == null) {
+      col = new Column(columns.size(), type);
+      columns.put(attrName, col);
+    } else if (!col.type.equals(type)) {
+      col.type = TYPE_STRING;
+    }
+    return col;
+  }
+
+  private static String _gexfType(Object val)
+  {
+    if (val instanceof Integer || val instanceof Short || val instanceof Byte) {
+      return "integer";
+    } else if (val instanceof Long) {
+      return "long";
+    } else if (val instanceof Double) {
+      return "double";
+    } else if (val instanceof Float) {
+      return "float";
+    } else if (val instanceof Boolean) {
+      return "boolean";
+    }
+    // Including lists, which are written using their string form
+    return TYPE_STRING;
+  }
+
+  private static void _writeEscaped(Writer out, String str) throws IOException
+  {
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      switch (c) {
+        case '&':
+          out.write("&amp;");
+          break;
+        case '<':
+          out.write("&lt;");
+          break;
+        case '>':
+          out.write("&gt;");
+          break;
+        case '"':
+          out.write("&quot;");
+          break;
+        case '\n':
+        case '\r':
+        case '\t':
+          out.write(c);
+          break;
+        default:
+          // Other control characters are not allowed in XML 1.0
+          if (c >= 0x20) {
+            out.write(c);
+          }
+      }
+    }
+  }
+
+  private static class Column
+  {
+    private final int id;
+    private String type;
+
+    private Column(int id, String type)
+    {
+      this.id = id;
+      this.type = type;
+    }
+  }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.cli.export;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import java.awt.Color;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.graph.EdgeDAO;
+import uk.ac.ncl.aries.entanglement.graph.GraphModelException;
+import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
+
+/**
+ * Base class for exporters that write a graph to a file in constant memory,
+ * however large the graph is.
+ *
+ * Nodes and edges are read with batched cursors that fetch only the fields
+ * that the output format needs. The node and edge sections are written in
+ * parallel, each by its own thread, to temporary files next to the output
+ * file. When both are complete, the output file is assembled from the
+ * format's header, the two sections and a footer, using
+ * <code>FileChannel</code> transfers. The header is written last, so it can
+ * include information gathered while the sections were being written.
+ *
+ * Instances may be reused, but not by several threads at once.
+ *
+ * @author Keith Flanagan
+ */
+public abstract class StreamingGraphExporter
+{
+  private static final Logger logger =
+      Logger.getLogger(StreamingGraphExporter.class.getName());
+
+  protected static final Charset UTF8 = Charset.forName("UTF-8");
+  protected static final Color DEFAULT_COLOR = Color.BLACK;
+
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+  public static final int DEFAULT_BUFFER_CHARS = 256 * 1024;
+
+  private final DBCollection nodeCol;
+  private final DBCollection edgeCol;
+
+  private final Map<String, Color> nodeColorMappings;
+  private int batchSize;
+  private int bufferChars;
+
+  private long nodesWritten;
+  private long edgesWritten;
+
+  public StreamingGraphExporter(NodeDAO nodeDao, EdgeDAO edgeDao)
+  {
+    this.nodeCol = nodeDao.getCollection();
+    this.edgeCol = edgeDao.getCollection();
+    this.nodeColorMappings = new HashMap<>();
+    this.batchSize = DEFAULT_BATCH_SIZE;
+    this.bufferChars = DEFAULT_BUFFER_CHARS;
+  }
+
+  /**
+   * Called at the start of each export, before any other method. Subclasses
+   * that gather information while writing should reset it here.
+   */
+  protected void beginExport()
+  {
+  }
+
+  /**
+   * @return the fields to fetch for each node, or null to fetch all fields
+   */
+  protected abstract DBObject getNodeFields();
+
+  /**
+   * @return the fields to fetch for each edge, or null to fetch all fields
+   */
+  protected abstract DBObject getEdgeFields();
+
+  /**
+   * Called once the node and edge sections are complete. Writes everything
+   * that comes before the node section.
+   */
+  protected abstract void writeHeader(Writer out) throws IOException;
+
+  /**
+   * Writes everything between the node section and the edge section.
+   */
+  protected abstract void writeSeparator(Writer out) throws IOException;
+
+  /**
+   * Writes everything after the edge section.
+   */
+  protected abstract void writeFooter(Writer out) throws IOException;
+
+  /**
+   * Called from the node section thread for every node.
+   */
+  protected abstract void writeNode(Writer out, DBObject node) throws IOException;
+
+  /**
+   * Called from the edge section thread for every edge.
+   */
+  protected abstract void writeEdge(Writer out, DBObject edge) throws IOException;
+
+  public void export(File outputFile)
+      throws IOException, GraphModelException
+  {
+    long startMs = System.currentTimeMillis();
+    beginExport();
+    File dir = outputFile.getAbsoluteFile().getParentFile();
+    File nodeSection = File.createTempFile(outputFile.getName()+".nodes", ".part", dir);
+    File edgeSection = File.createTempFile(outputFile.getName()+".edges", ".part", dir);
+    ExecutorService exe = Executors.newFixedThreadPool(2);
+    try {
+      Future<Long> nodeCount = exe.submit(
+          new SectionWriter(nodeCol, getNodeFields(), nodeSection, true));
+      Future<Long> edgeCount = exe.submit(
+          new SectionWriter(edgeCol, getEdgeFields(), edgeSection, false));
+      nodesWritten = _get(nodeCount);
+      edgesWritten = _get(edgeCount);
+
+      try (FileChannel out = new FileOutputStream(outputFile).getChannel()) {
+        Writer writer = _newWriter(out, 8192);
+        writeHeader(writer);
+        writer.flush();
+        _transfer(nodeSection, out);
+        writeSeparator(writer);
+        writer.flush();
+        _transfer(edgeSection, out);
+        writeFooter(writer);
+        writer.flush();
+      }
+    }
+    finally {
+      exe.shutdownNow();
+      nodeSection.delete();
+      edgeSection.delete();
+    }
+    logger.info("Exported "+nodesWritten+" nodes and "+edgesWritten+" edges to: "
+        + outputFile.getAbsolutePath()+" in "+(System.currentTimeMillis() - startMs)+"ms");
+  }
+
+  protected Color getNodeColor(String nodeType)
+  {
+    Color color = nodeColorMappings.get(nodeType);
+    return color == null ? DEFAULT_COLOR : color;
+  }
+
+  private long _get(Future<Long> section)
+      throws IOException, GraphModelException
+  {
+    try {
+      return section.get();
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GraphModelException("Interrupted while exporting graph", e);
+    }
+    catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof GraphModelException) {
+        throw (GraphModelException) cause;
+      }
+      throw new GraphModelException("Failed to export graph", cause);
+    }
+  }
+
+  private Writer _newWriter(FileChannel channel, int chars)
+  {
+    // Unsynchronized, unlike the writers returned by Channels.newWriter
+    return new BufferedWriter(
+        new OutputStreamWriter(Channels.newOutputStream(channel), UTF8), chars);
+  }
+
+  private static void _transfer(File section, FileChannel out)
+      throws IOException
+  {
+    try (FileChannel in = new FileInputStream(section).getChannel()) {
+      long size = in.size();
+      long position = 0;
+      while (position < size) {
+        position = position + in.transferTo(position, size - position, out);
+      }
+    }
+  }
+
+  /**
+   * Streams one collection into a section file.
+   */
+  private class SectionWriter
+      implements Callable<Long>
+  {
+    private final DBCollection col;
+    private final DBObject fields;
+    private final File sectionFile;
+    private final boolean nodes;
+
+    private SectionWriter(DBCollection col, DBObject fields, File sectionFile, boolean nodes)
+    {
+      this.col = col;
+      this.fields = fields;
+      this.sectionFile = sectionFile;
+      this.nodes = nodes;
+    }
+
+    @Override
+    public Long call()
+        throws IOException, GraphModelException
+    {
+      long count = 0;
+      DBObject query = new BasicDBObject();
+      DBCursor cursor = null;
+      try (FileChannel channel = new FileOutputStream(sectionFile).getChannel()) {
+        Writer out = _newWriter(channel, bufferChars);
+        cursor = col.find(query, fields).batchSize(batchSize);
+        for (DBObject entity : cursor) {
+          if (nodes) {
+            writeNode(out, entity);
+          } else {
+            writeEdge(out, entity);
+          }
+          count++;
+        }
+        out.flush();
+      }
+      catch(MongoException e) {
+        throw new GraphModelException("Failed to perform database operation:\n"
+            + "Query: "+query+", collection: "+col.getName(), e);
+      }
+      finally {
+        if (cursor != null) {
+          cursor.close();
+        }
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Reads node type to colour mappings from a properties file. Values are
+   * the names of the colour constants in <code>java.awt.Color</code>, such as
+   * <code>RED</code>. Unrecognised names map to black.
+   */
+  public static Map<String, Color> loadColorMappings(File propFile)
+      throws IOException
+  {
+    Properties props = new Properties();
+    try (FileInputStream is = new FileInputStream(propFile)) {
+      props.load(is);
+    }
+    Map<String, Color> nodeTypeToColour = new HashMap<>();
+    for (String nodeType : props.stringPropertyNames()) {
+      nodeTypeToColour.put(nodeType, _parseColor(props.getProperty(nodeType)));
+    }
+    return nodeTypeToColour;
+  }
+
+  private static Color _parseColor(String colorString)
+  {
+    switch(colorString) {
+      case "BLACK" :
+        return Color.BLACK;
+      case "BLUE" :
+        return Color.BLUE;
+      case "CYAN" :
+        return Color.CYAN;
+      case "DARK_GRAY" :
+        return Color.DARK_GRAY;
+      case "GRAY" :
+        return Color.GRAY;
+      case "GREEN" :
+        return Color.GREEN;
+      case "LIGHT_GRAY" :
+        return Color.LIGHT_GRAY;
+      case "MAGENTA" :
+        return Color.MAGENTA;
+      case "ORANGE" :
+        return Color.ORANGE;
+      case "PINK" :
+        return Color.PINK;
+      case "RED" :
+        return Color.RED;
+      case "WHITE" :
+        return Color.WHITE;
+      case "YELLOW" :
+        return Color.YELLOW;
+      default:
+        return DEFAULT_COLOR;
+    }
+  }
+
+  public Map<String, Color> getNodeColorMappings() {
+    return nodeColorMappings;
+  }
+
+  public void setNodeColorMappings(Map<String, Color> mappings) {
+    nodeColorMappings.clear();
+    if (mappings != null) {
+      nodeColorMappings.putAll(mappings);
+    }
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public int getBufferChars() {
+    return bufferChars;
+  }
+
+  public void setBufferChars(int bufferChars) {
+    this.bufferChars = bufferChars;
+  }
+
+  public long getNodesWritten() {
+    return nodesWritten;
+  }
+
+  public long getEdgesWritten() {
+    return edgesWritten;
+  }
+}
@@ -23,10 +23,21 @@ import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.Mongo;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 import com.torrenttamer.mongodb.dbobject.DbObjectMarshaller;
+import com.torrenttamer.mongodb.dbobject.DbObjectMarshallerException;
 import com.torrenttamer.mongodb.dbobject.KeyExtractingIterable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bson.types.ObjectId;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import uk.ac.ncl.aries.entanglement.ObjectMarshallerFactory;
@@ -50,12 +61,37 @@ abstract public class AbstractGraphEntityDAO
    */
   private static final DBObject IDX_TYPE_AND_NAME = 
           new BasicDBObject(FIELD_TYPE, 1).append(FIELD_NAME, 1);
+  /*
+   * Unique index on the derived type/name field. This is sparse, since 
+   * unnamed entities don't have the field. A compound unique index on 
+   * (type, name) can't be used because every unnamed entity of a type would 
+   * then collide on a null name.
+   */
+  private static final DBObject IDX_TYPE_NAME_KEY = new BasicDBObject(FIELD_TYPE_NAME_KEY, 1);
+  
+  private static final int BULK_INSERT_BATCH_SIZE = 1000;
+  
+  /*
+   * Writes that rely on unique indexes to detect duplicates must be 
+   * acknowledged, whatever the default write concern of the collection is.
+   */
+  private static final WriteConcern CHECKED_WRITE = WriteConcern.SAFE;
+  private static final WriteConcern CHECKED_BULK_WRITE = 
+          WriteConcern.SAFE.continueOnErrorForInsert(true);
   
   protected final Mongo m;
   protected final DB db;
   
   protected InsertMode insertModeHint;
   
+  /**
+   * True if unique indexes on the UID and type/name fields are known to be 
+   * present and to cover every document in the collection. If so, the 
+   * database detects duplicate entities and <code>store</code> doesn't need 
+   * to query for existing ones first.
+   */
+  protected final boolean uniqueIndexesEnforced;
+  
 //  private final JsonUtils json;
   protected final DbObjectMarshaller marshaller;
   
@@ -99,10 +135,100 @@ abstract public class AbstractGraphEntityDAO
     insertModeHint = InsertMode.INSERT_CONSISTENCY;
     
     //Make sure indexes exist
-    col.ensureIndex(IDX_UID);
+    uniqueIndexesEnforced = _ensureUniqueIndexes();
     col.ensureIndex(IDX_TYPE_AND_NAME);
   }
   
+  /**
+   * Creates the unique indexes used to detect duplicate entities. 
+   * 
+   * Collections created by older versions have a non-unique UID index, and 
+   * documents without the derived type/name field. Unique indexes can't 
+   * safely be added to those, so for such collections we log a warning and 
+   * fall back on checking for existing entities before each insert.
+   * 
+   * @return true if the unique indexes can be relied on.
+   */
+  private boolean _ensureUniqueIndexes()
+  {
+    boolean wasUnique = _hasUniqueIndex(IDX_UID);
+    if (!wasUnique && col.count() > 0) {
+      logger.log(Level.WARNING, "Collection {0} predates unique entity indexes. "
+          + "Stores will check for existing entities before inserting. "
+          + "Re-create the working copy to enable faster inserts.", col.getName());
+      col.ensureIndex(IDX_UID);
+      return false;
+    }
+    try {
+      col.ensureIndex(IDX_UID, new BasicDBObject("unique", true));
+      col.ensureIndex(IDX_TYPE_NAME_KEY, 
+          new BasicDBObject("unique", true).append("sparse", true));
+    }
+    catch(Exception e) {
+      logger.log(Level.WARNING, "Failed to create unique indexes on collection: "
+          + col.getName(), e);
+      return false;
+    }
+    return _hasUniqueIndex(IDX_UID) && _hasUniqueIndex(IDX_TYPE_NAME_KEY);
+  }
+  
+  private boolean _hasUniqueIndex(DBObject keys)
+  {
+    List<String> wantedFields = new ArrayList<>(keys.keySet());
+    for (DBObject idx : col.getIndexInfo()) {
+      DBObject idxKeys = (DBObject) idx.get("key");
+      if (idxKeys != null && wantedFields.equals(new ArrayList<>(idxKeys.keySet()))) {
+        return Boolean.TRUE.equals(idx.get("unique"));
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Sets the internal fields of an entity that is about to be inserted.
+   */
+  private static void _prepareInsert(BasicDBObject item)
+  {
+    _setTypeNameKey(item);
+    item.put(FIELD_VERSION, 1L);
+  }
+  
+  /**
+   * Sets the derived type/name field of an entity that is about to be 
+   * inserted, or removes it if the entity has no name.
+   */
+  private static void _setTypeNameKey(BasicDBObject item)
+  {
+    String name = item.getString(FIELD_NAME);
+    if (name == null) {
+      item.removeField(FIELD_TYPE_NAME_KEY);
+    } else {
+      item.put(FIELD_TYPE_NAME_KEY, _createTypeNameKey(item.getString(FIELD_TYPE), name));
+    }
+  }
+  
+  private static DBObject _createTypeNameKey(String type, String name)
+  {
+    return new BasicDBObject(FIELD_TYPE, type).append(FIELD_NAME, name);
+  }
+  
+  /**
+   * Creates an exception that describes which uniqueness constraint 
+   * <code>item</code> violated.
+   */
+  private GraphModelException _duplicateEntity(BasicDBObject item, MongoException e)
+  {
+    String msg = String.valueOf(e.getMessage());
+    if (msg.contains(FIELD_TYPE_NAME_KEY)) {
+      return new GraphModelException(
+          "Failed to store item - an entity with the same 'well known' name already exists: "
+          + item.getString(FIELD_NAME), e);
+    }
+    return new GraphModelException(
+        "Failed to store item - an entity with this unique ID already exists: "
+        + item.getString(FIELD_UID), e);
+  }
+  
   @Override
   public InsertMode getInsertModeHint()
   {
@@ -126,47 +252,38 @@ abstract public class AbstractGraphEntityDAO
   {
     try {
 //      logger.log(Level.INFO, "Storing node: {0}", node);
+      _prepareInsert(item);
       if (insertModeHint == InsertMode.INSERT_CONSISTENCY) {
-        String uid = item.getString(FIELD_UID);
-        String name = item.getString(FIELD_NAME);
-        String type = item.getString(FIELD_TYPE);
-//        logger.info("Running in consistency mode");
-        if (existsByUid(uid)) {
-          throw new GraphModelException(
-              "Failed to store item - an entity with this unique ID already exists: "+uid);
-        }
-        if (name != null && existsByName(type, name)) {
-          throw new GraphModelException(
-              "Failed to store item - an entity with the same 'well known' name already exists: "+name);        
+        if (uniqueIndexesEnforced) {
+          col.insert(item, CHECKED_WRITE);
+        } else {
+          String uid = item.getString(FIELD_UID);
+          String name = item.getString(FIELD_NAME);
+          String type = item.getString(FIELD_TYPE);
+  //        logger.info("Running in consistency mode");
+          if (existsByUid(uid)) {
+            throw new GraphModelException(
+                "Failed to store item - an entity with this unique ID already exists: "+uid);
+          }
+          if (name != null && existsByName(type, name)) {
+            throw new GraphModelException(
+                "Failed to store item - an entity with the same 'well known' name already exists: "+name);        
+          }
+          col.insert(item);
         }
+      } else {
+        col.insert(item);
       }
-
-      col.insert(item);
       
-      /////// DEBUG (Performance info)
-      if (printPeriodicPerformanceInfo) {  
-        insertCount++;
-        if (timestampOfLastPerformanceMessage < 0) {
-          //First ever insert
-          long now = System.currentTimeMillis();
-          timestampOfLastPerformanceMessage = now;
-          timestampOfFirstInsert = now;
-          return;
-        }
-        if (insertCount % PRINT_PERF_INFO_EVERY == 0) {
-          long now = System.currentTimeMillis();
-          double secondsPerBlock = (now - timestampOfLastPerformanceMessage);
-          secondsPerBlock = secondsPerBlock / 1000;
-          double totalSeconds = (now - timestampOfFirstInsert);
-          totalSeconds = totalSeconds / 1000;
-          logger.log(Level.INFO,
-                  "Inserted a total of\t{0}\t"+getClass().getSimpleName()+" documents. "
-                  + "Total time\t{1}\t seconds. Seconds since last block: {2}",
-                  new Object[]{insertCount, totalSeconds, secondsPerBlock});
-          timestampOfLastPerformanceMessage = now;
-        }
-      }
-      /////// DEBUG (Performance info) (end)
+      _recordInserts(1);
+    }
+    catch(MongoException.DuplicateKey e)
+    {
+      throw _duplicateEntity(item, e);
+    }
+    catch(GraphModelException e)
+    {
+      throw e;
     }
     catch(Exception e)
     {
@@ -174,78 +291,370 @@ abstract public class AbstractGraphEntityDAO
     }
   }
   
-
   @Override
-  public void setPropertyByUid(String uid, String propertyName, Object propertyValue)
+  public void storeAll(Collection<BasicDBObject> entities)
       throws GraphModelException
   {
-//    logger.log(Level.INFO, "Storing edge: {0}", edge);
+    Map<String, GraphModelException> failures = new LinkedHashMap<>();
+    if (!uniqueIndexesEnforced) {
+      // Without unique indexes, duplicates can only be found by looking first
+      for (BasicDBObject item : entities) {
+        try {
+          store(item);
+        }
+        catch(GraphModelException e) {
+          failures.put(item.getString(FIELD_UID), e);
+        }
+      }
+    } else {
+      List<BasicDBObject> chunk = new ArrayList<>(BULK_INSERT_BATCH_SIZE);
+      for (BasicDBObject item : entities) {
+        chunk.add(item);
+        if (chunk.size() >= BULK_INSERT_BATCH_SIZE) {
+          _insertChunk(chunk, failures);
+          chunk.clear();
+        }
+      }
+      if (!chunk.isEmpty()) {
+        _insertChunk(chunk, failures);
+      }
+    }
     
-    DBObject criteria = null;
-    DBObject fieldsToReturn = null;
-    DBObject sort = null;
-    DBObject update = null;
-    boolean remove = false;
-    boolean returnNew = false;
-    boolean upsert = false;
+    if (!failures.isEmpty()) {
+      throw new BulkStoreException("Failed to store "+failures.size()+" of "
+          + entities.size()+" entities. First failure: "
+          + failures.values().iterator().next().getMessage(), failures);
+    }
+  }
+  
+  @Override
+  public boolean storeIfNotExists(BasicDBObject item)
+      throws GraphModelException
+  {
+    String uid = item.getString(FIELD_UID);
+    String type = item.getString(FIELD_TYPE);
+    String name = item.getString(FIELD_NAME);
+    if (!uniqueIndexesEnforced) {
+      // Not atomic, but the best we can do without unique indexes
+      if (existsByUid(uid) || (name != null && existsByName(type, name))) {
+        return false;
+      }
+      store(item);
+      return true;
+    }
     
+    _prepareInsert(item);
+    DBObject query = null;
     try {
-      criteria = new BasicDBObject(FIELD_UID, uid);
-      
-      fieldsToReturn = new BasicDBObject();
-      sort = new BasicDBObject();
-      
-      DBObject valDbObj = marshaller.serialize(propertyValue);
-      //Use of '$' operators causes an update, rather than full doc replacement
-      update = new BasicDBObject(
-          "$set", new BasicDBObject(propertyName, valDbObj));
+      /*
+       * Upsert on one identifying key. If an entity exists with that key, the
+       * update is a no-op. If one exists with the other key, the insert 
+       * violates a unique index, which also means the entity exists.
+       */
+      String keyField = name == null ? FIELD_UID : FIELD_TYPE_NAME_KEY;
+      query = new BasicDBObject(keyField, item.get(keyField));
+      BasicDBObject toInsert = new BasicDBObject(item);
+      toInsert.removeField(keyField);
+      toInsert.removeField("_id");
+      DBObject update = new BasicDBObject("$setOnInsert", toInsert);
       
-      //Perform atomic update of a single document
-      col.findAndModify(criteria, fieldsToReturn, sort, remove, update, returnNew, upsert);
+      WriteResult result = col.update(query, update, true, false, CHECKED_WRITE);
+      boolean created = !Boolean.TRUE.equals(result.getField("updatedExisting"));
+      if (created) {
+        _recordInserts(1);
+      }
+      return created;
+    }
+    catch(MongoException.DuplicateKey e) {
+      return false;
+    }
+    catch(Exception e) {
+      throw new GraphModelException("Failed to perform database operation: \n"
+          + "Query: "+query, e);
+    }
+  }
+  
+  /**
+   * Inserts a set of entities with a single multi-document insert. If the 
+   * insert reports an error, we find out which entities are missing and retry
+   * each one individually, so that every failure is attributed to the 
+   * correct entity.
+   */
+  private void _insertChunk(List<BasicDBObject> chunk, Map<String, GraphModelException> failures)
+  {
+    List<Object> ids = new ArrayList<>(chunk.size());
+    for (BasicDBObject item : chunk) {
+      _prepareInsert(item);
+      if (!item.containsField("_id")) {
+        item.put("_id", new ObjectId());
+      }
+      ids.add(item.get("_id"));
+    }
+    
+    try {
+      col.insert(new ArrayList<DBObject>(chunk), CHECKED_BULK_WRITE);
+      _recordInserts(chunk.size());
+      return;
+    }
+    catch(Exception e) {
+      logger.log(Level.FINE, "Bulk insert of {0} entities reported an error; "
+          + "checking entities individually", chunk.size());
+    }
+    
+    Set<Object> storedIds = new HashSet<>();
+    DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", ids));
+    for (DBObject stored : col.find(query, new BasicDBObject("_id", 1))) {
+      storedIds.add(stored.get("_id"));
+    }
+    _recordInserts(storedIds.size());
+    
+    for (BasicDBObject item : chunk) {
+      if (storedIds.contains(item.get("_id"))) {
+        continue;
+      }
+      try {
+        col.insert(item, CHECKED_WRITE);
+        _recordInserts(1);
+      }
+      catch(MongoException.DuplicateKey e) {
+        failures.put(item.getString(FIELD_UID), _duplicateEntity(item, e));
+      }
+      catch(Exception e) {
+        failures.put(item.getString(FIELD_UID), 
+            new GraphModelException("Failed to store item: "+item, e));
+      }
+    }
+  }
+  
+  private void _recordInserts(int count)
+  {
+    /////// DEBUG (Performance info)
+    if (!printPeriodicPerformanceInfo || count == 0) {
+      return;
+    }
+    int before = insertCount;
+    insertCount = insertCount + count;
+    if (timestampOfLastPerformanceMessage < 0) {
+      //First ever insert
+      long now = System.currentTimeMillis();
+      timestampOfLastPerformanceMessage = now;
+      timestampOfFirstInsert = now;
+      return;
+    }
+    if (insertCount / PRINT_PERF_INFO_EVERY != before / PRINT_PERF_INFO_EVERY) {
+      long now = System.currentTimeMillis();
+      double secondsPerBlock = (now - timestampOfLastPerformanceMessage);
+      secondsPerBlock = secondsPerBlock / 1000;
+      double totalSeconds = (now - timestampOfFirstInsert);
+      totalSeconds = totalSeconds / 1000;
+      logger.log(Level.INFO,
+              "Inserted a total of\t{0}\t"+getClass().getSimpleName()+" documents. "
+              + "Total time\t{1}\t seconds. Seconds since last block: {2}",
+              new Object[]{insertCount, totalSeconds, secondsPerBlock});
+      timestampOfLastPerformanceMessage = now;
+    }
+    /////// DEBUG (Performance info) (end)
+  }
+  
+
+  @Override
+  public void setPropertyByUid(String uid, String propertyName, Object propertyValue)
+      throws GraphModelException
+  {
+    setPropertiesByUid(uid, Collections.singletonMap(propertyName, propertyValue));
+  }
+  
+  @Override
+  public void setPropertyByName(String entityType, String entityName, String propertyName, Object propertyValue)
+      throws GraphModelException
+  {
+    setPropertiesByName(entityType, entityName, 
+        Collections.singletonMap(propertyName, propertyValue));
+  }
+  
+  @Override
+  public void setPropertiesByUid(String uid, Map<String, Object> properties)
+      throws GraphModelException
+  {
+    _setProperties(new BasicDBObject(FIELD_UID, uid), properties);
+  }
+  
+  @Override
+  public void setPropertiesByName(String entityType, String entityName, Map<String, Object> properties)
+      throws GraphModelException
+  {
+    _setProperties(new BasicDBObject(FIELD_TYPE, entityType).append(FIELD_NAME, entityName), 
+        properties);
+  }
+  
+  /*
+   * A plain update is used rather than findAndModify, which would also find
+   * and return the document. Every update is acknowledged, so that failures,
+   * including duplicate 'well known' names, are reported.
+   */
+  private void _setProperties(DBObject criteria, Map<String, Object> properties)
+      throws GraphModelException
+  {
+    _setProperties(criteria, properties, 1);
+  }
+  
+  private void _setProperties(DBObject criteria, Map<String, Object> properties,
+      long versionIncrement)
+      throws GraphModelException
+  {
+    if (properties.isEmpty()) {
+      return;
+    }
+    BasicDBObject update = null;
+    try {
+      update = _createSetUpdate(properties, versionIncrement);
+      _updateTypeNameKey(criteria, properties, update);
+      col.update(criteria, update, false, false, CHECKED_WRITE);
+    }
+    catch(MongoException.DuplicateKey e)
+    {
+      throw new GraphModelException("Failed to set properties: "+properties.keySet()
+          + " - an entity with the same 'well known' name already exists", e);
+    }
+    catch(GraphModelException e)
+    {
+      throw e;
     }
     catch(Exception e)
     {
-      throw new GraphModelException("Failed to store item: "+propertyName 
-              + " on: "+uid, e);
+      throw new GraphModelException("Failed to perform database operation:\n"
+          + "Query: "+criteria+"\nUpdate: "+update, e);
     }
+  }
+  
+  @Override
+  public void setPropertiesByUid(Map<String, Map<String, Object>> propertiesByUid,
+          Map<String, Integer> updateCounts)
+      throws GraphModelException
+  {
+    if (propertiesByUid.isEmpty()) {
+      return;
+    }
+    // Each update is acknowledged, so a failure is reported against its entity
+    for (Map.Entry<String, Map<String, Object>> entry : propertiesByUid.entrySet()) {
+      Integer updateCount = updateCounts == null ? null : updateCounts.get(entry.getKey());
+      long versionIncrement = updateCount == null ? 1 : updateCount;
+      _setProperties(new BasicDBObject(FIELD_UID, entry.getKey()), entry.getValue(), 
+          versionIncrement);
+    }
+  }
   
+  private BasicDBObject _createSetUpdate(Map<String, Object> properties)
+      throws GraphModelException, DbObjectMarshallerException
+  {
+    return _createSetUpdate(properties, 1);
+  }
+  
+  private BasicDBObject _createSetUpdate(Map<String, Object> properties, 
+          long versionIncrement)
+      throws GraphModelException, DbObjectMarshallerException
+  {
+    BasicDBObject values = new BasicDBObject();
+    for (Map.Entry<String, Object> property : properties.entrySet()) {
+      _checkSettable(property.getKey());
+      values.put(property.getKey(), marshaller.serialize(property.getValue()));
+    }
+    //Use of '$' operators causes an update, rather than full doc replacement
+    return new BasicDBObject("$set", values)
+        .append("$inc", new BasicDBObject(FIELD_VERSION, versionIncrement));
   }
   
   @Override
-  public void setPropertyByName(String entityType, String entityName, String propertyName, Object propertyValue)
+  public boolean compareAndSetPropertyByUid(String uid, long expectedVersion, 
+          String propertyName, Object propertyValue)
       throws GraphModelException
   {
-//    logger.log(Level.INFO, "Storing edge: {0}", edge);
-    
-    DBObject criteria = null;
-    DBObject fieldsToReturn = null;
-    DBObject sort = null;
-    DBObject update = null;
-    boolean remove = false;
-    boolean returnNew = false;
-    boolean upsert = false;
-    
+    return _compareAndSetProperty(new BasicDBObject(FIELD_UID, uid), 
+        expectedVersion, propertyName, propertyValue);
+  }
+  
+  @Override
+  public boolean compareAndSetPropertyByName(String entityType, String entityName, 
+          long expectedVersion, String propertyName, Object propertyValue)
+      throws GraphModelException
+  {
+    return _compareAndSetProperty(
+        new BasicDBObject(FIELD_TYPE, entityType).append(FIELD_NAME, entityName),
+        expectedVersion, propertyName, propertyValue);
+  }
+  
+  private boolean _compareAndSetProperty(BasicDBObject criteria, long expectedVersion, 
+          String propertyName, Object propertyValue)
+      throws GraphModelException
+  {
+    // A null query value also matches documents without the field
+    criteria.append(FIELD_VERSION, expectedVersion == 0 ? null : expectedVersion);
+    BasicDBObject update = null;
     try {
-      criteria = new BasicDBObject(FIELD_TYPE, entityType).append(FIELD_NAME, entityName);
+      Map<String, Object> properties = Collections.singletonMap(propertyName, propertyValue);
+      update = _createSetUpdate(properties);
+      _updateTypeNameKey(criteria, properties, update);
       
-      fieldsToReturn = new BasicDBObject();
-      sort = new BasicDBObject();
-      
-      DBObject valDbObj = marshaller.serialize(propertyValue);
-      //Use of '$' operators causes an update, rather than full doc replacement
-      update = new BasicDBObject(
-          "$set", new BasicDBObject(propertyName, valDbObj));
-      
-      //Perform atomic update of a single document
-      col.findAndModify(criteria, fieldsToReturn, sort, remove, update, returnNew, upsert);
+      WriteResult result = col.update(criteria, update, false, false, CHECKED_WRITE);
+      return result.getN() == 1;
+    }
+    catch(MongoException.DuplicateKey e)
+    {
+      throw new GraphModelException("Failed to set: "+propertyName 
+              + " - an entity with the same 'well known' name already exists: "+propertyValue, e);
+    }
+    catch(GraphModelException e)
+    {
+      throw e;
     }
     catch(Exception e)
     {
-      throw new GraphModelException("Failed to store item: "+propertyName 
-              + " on entity with type: "+entityType+", name: "+entityType, e);
+      throw new GraphModelException("Failed to perform database operation:\n"
+          + "Query: "+criteria+"\nUpdate: "+update, e);
     }
   }
   
+  private static void _checkSettable(String propertyName)
+      throws GraphModelException
+  {
+    if (FIELD_VERSION.equals(propertyName) || FIELD_TYPE_NAME_KEY.equals(propertyName)) {
+      throw new GraphModelException("Property: "+propertyName
+          + " is maintained by the DAO and can't be set directly");
+    }
+  }
+  
+  private static boolean _isIdentityUpdate(Map<String, Object> properties)
+  {
+    return properties.containsKey(FIELD_NAME) || properties.containsKey(FIELD_TYPE);
+  }
+  
+  /**
+   * If <code>properties</code> include the name or type field, adds an update
+   * of the derived type/name field to <code>update</code> so that uniqueness
+   * checks remain correct after an entity is renamed.
+   * 
+   * @return true if the update changes the name or type of the entity
+   */
+  private boolean _updateTypeNameKey(DBObject criteria, Map<String, Object> properties, 
+          BasicDBObject update)
+  {
+    if (!_isIdentityUpdate(properties)) {
+      return false;
+    }
+    DBObject current = col.findOne(criteria, new BasicDBObject(FIELD_TYPE, 1).append(FIELD_NAME, 1));
+    if (current == null) {
+      return true;
+    }
+    Object type = properties.containsKey(FIELD_TYPE) ? properties.get(FIELD_TYPE) : current.get(FIELD_TYPE);
+    Object name = properties.containsKey(FIELD_NAME) ? properties.get(FIELD_NAME) : current.get(FIELD_NAME);
+    if (name == null) {
+      update.append("$unset", new BasicDBObject(FIELD_TYPE_NAME_KEY, 1));
+    } else {
+      ((DBObject) update.get("$set")).put(FIELD_TYPE_NAME_KEY, 
+          _createTypeNameKey(String.valueOf(type), String.valueOf(name)));
+    }
+    return true;
+  }
   
   @Override
   public String lookupUniqueIdForName(String type, String name)
@@ -261,7 +670,7 @@ abstract public class AbstractGraphEntityDAO
       fields = new BasicDBObject();
       fields.put(FIELD_UID, 1);
 
-      DBObject result = col.findOne(query);
+      DBObject result = col.findOne(query, fields);
       if (result == null) {
         //There is no node with this name
         return null;
@@ -280,19 +689,27 @@ abstract public class AbstractGraphEntityDAO
   @Override
   public DBObject getByUid(String nodeUid)
       throws GraphModelException
+  {
+    return getByUid(nodeUid, null);
+  }
+  
+  @Override
+  public DBObject getByName(String type, String name)
+      throws GraphModelException
+  {
+    return getByName(type, name, null);
+  }
+  
+  @Override
+  public DBObject getByUid(String nodeUid, DBObject fields)
+      throws GraphModelException
   {
     DBObject query = null;
     try {
-//      logger.log(Level.INFO, "Getting node by UID: {0}", nodeUid);
       query = new BasicDBObject();
       query.put(FIELD_UID, nodeUid);
 
-
-      DBObject obj = col.findOne(query);
-      if (obj == null) {
-        return null;
-      }
-      return obj;
+      return fields == null ? col.findOne(query) : col.findOne(query, fields);
     }
     catch(Exception e) {
       throw new GraphModelException("Failed to perform database operation: \n"
@@ -301,7 +718,7 @@ abstract public class AbstractGraphEntityDAO
   }
   
   @Override
-  public DBObject getByName(String type, String name)
+  public DBObject getByName(String type, String name, DBObject fields)
       throws GraphModelException
   {
     DBObject query = null;
@@ -310,11 +727,7 @@ abstract public class AbstractGraphEntityDAO
       query.put(FIELD_TYPE, type);
       query.put(FIELD_NAME, name);
 
-      DBObject nodeObj = col.findOne(query);
-      if (nodeObj == null) {
-        return null;
-      }
-      return nodeObj;
+      return fields == null ? col.findOne(query) : col.findOne(query, fields);
     }
     catch(Exception e) {
       throw new GraphModelException("Failed to perform database operation: \n"
@@ -327,48 +740,43 @@ abstract public class AbstractGraphEntityDAO
   public boolean existsByUid(String uniqueId)
       throws GraphModelException
   {
-    DBObject query = null;
-    try {
-      query = new BasicDBObject();
-      query.put(FIELD_UID, uniqueId);
-
-      long count = col.count(query);
-      if (count > 1) {
-        throw new GraphModelException(
-                "Unique ID: "+uniqueId+" should be unique, but we found: "
-                + count + " instances with that name!");
-      }
-      return count == 1;
-    }
-    catch(Exception e) {
-      throw new GraphModelException("Failed to perform database operation: \n"
-          + "Query: "+query, e);
-    }
+    DBObject query = new BasicDBObject(FIELD_UID, uniqueId);
+    // Covered by the UID index, so no documents are read
+    return _existsCovered(query, new BasicDBObject(FIELD_UID, 1).append("_id", 0));
   }
   
   @Override
   public boolean existsByName(String entityType, String entityName)
       throws GraphModelException
   {
-    DBObject query = null;
+    DBObject query = new BasicDBObject(FIELD_TYPE, entityType).append(FIELD_NAME, entityName);
+    // Covered by the type/name index, so no documents are read
+    return _existsCovered(query, 
+        new BasicDBObject(FIELD_TYPE, 1).append(FIELD_NAME, 1).append("_id", 0));
+  }
+  
+  /**
+   * Returns true if at least one document matches <code>query</code>. The 
+   * query stops at the first match, and <code>fields</code> should be 
+   * chosen so that an index covers it.
+   */
+  private boolean _existsCovered(DBObject query, DBObject fields)
+      throws GraphModelException
+  {
+    DBCursor cursor = null;
     try {
-      query = new BasicDBObject();
-      query.put(FIELD_TYPE, entityType);
-      query.put(FIELD_NAME, entityName);
-
-      long count = col.count(query);
-      if (count > 1) {
-        throw new GraphModelException(
-            "Type: "+entityType+", Name: "+entityName 
-            +" should be unique, but we found: "+count
-            + " instances with that name!");
-      }
-      return count == 1;
+      cursor = col.find(query, fields).limit(1);
+      return cursor.hasNext();
     }
     catch(Exception e) {
-      throw new GraphModelException("Failed to perform database operation:\n"
+      throw new GraphModelException("Failed to perform database operation: \n"
           + "Query: "+query, e);
     }
+    finally {
+      if (cursor != null) {
+        cursor.close();
+      }
+    }
   }
   
   @Override
@@ -441,6 +849,55 @@ abstract public class AbstractGraphEntityDAO
     }
   }
   
+  @Override
+  public List<ScanPartition> partitionAll(int partitionCount, DBObject fields, int batchSize)
+      throws GraphModelException
+  {
+    DBObject keys = new BasicDBObject(ScanPartition.FIELD_ID, 1);
+    DBObject sort = new BasicDBObject(ScanPartition.FIELD_ID, 1);
+    List<ScanPartition> partitions = new ArrayList<>(Math.max(partitionCount, 1));
+    DBObject query = null;
+    try {
+      long total = col.count();
+      if (partitionCount <= 1 || total < partitionCount) {
+        partitions.add(new ScanPartition(col, 0, null, null, fields, batchSize));
+        return partitions;
+      }
+      /*
+       * Each boundary is found by skipping forwards from the previous one over
+       * the _id index, so finding all of them reads each index key at most
+       * once. Concurrent inserts may make the partitions uneven, but never
+       * leave gaps, since the first and last partitions are unbounded.
+       */
+      int step = (int) Math.min(total / partitionCount, Integer.MAX_VALUE);
+      Object lower = null;
+      for (int i = 0; i < partitionCount - 1; i++) {
+        query = lower == null 
+            ? new BasicDBObject() 
+            : new BasicDBObject(ScanPartition.FIELD_ID, new BasicDBObject("$gte", lower));
+        DBCursor cursor = col.find(query, keys).sort(sort).skip(step).limit(1);
+        Object upper;
+        try {
+          if (!cursor.hasNext()) {
+            break;
+          }
+          upper = cursor.next().get(ScanPartition.FIELD_ID);
+        }
+        finally {
+          cursor.close();
+        }
+        partitions.add(new ScanPartition(col, partitions.size(), lower, upper, fields, batchSize));
+        lower = upper;
+      }
+      partitions.add(new ScanPartition(col, partitions.size(), lower, null, fields, batchSize));
+      return partitions;
+    }
+    catch(Exception e) {
+      throw new GraphModelException("Failed to perform database operation: \n"
+          + "Query: "+query, e);
+    }
+  }
+  
   @Override
   public List<String> listTypes()
       throws GraphModelException
@@ -458,16 +915,20 @@ abstract public class AbstractGraphEntityDAO
   @Override
   public Iterable<DBObject> iterateByType(String typeName)
       throws GraphModelException
+  {
+    return iterateByType(typeName, null);
+  }
+  
+  @Override
+  public Iterable<DBObject> iterateByType(String typeName, DBObject fields)
+      throws GraphModelException
   {
     DBObject query = null;
     try {
-//      logger.log(Level.INFO, "Getting node(s) by type: {0}", typeName);
       query = new BasicDBObject();
       query.put(FIELD_TYPE, typeName);
 
-//      logger.log(Level.INFO, "Generated query: {0}", query);
-
-      DBCursor cursor = col.find(query);
+      DBCursor cursor = fields == null ? col.find(query) : col.find(query, fields);
       return cursor;
     }
     catch(Exception e) {
@@ -21,7 +21,9 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This is useful if you already have a NodeDAO or EdgeDAO in your application 
@@ -65,6 +67,16 @@ abstract public class AbstractGraphEntityDelegateDAO
     delegate.store(entity);
   }
 
+  @Override
+  public void storeAll(Collection<BasicDBObject> entities) throws GraphModelException {
+    delegate.storeAll(entities);
+  }
+
+  @Override
+  public boolean storeIfNotExists(BasicDBObject entity) throws GraphModelException {
+    return delegate.storeIfNotExists(entity);
+  }
+
   @Override
   public void setPropertyByUid(String uid, String propertyName, Object propertyValue) throws GraphModelException {
     delegate.setPropertyByUid(uid, propertyName, propertyValue);
@@ -75,6 +87,31 @@ abstract public class AbstractGraphEntityDelegateDAO
     delegate.setPropertyByName(entityType, entityName, propertyName, propertyValue);
   }
 
+  @Override
+  public void setPropertiesByUid(String uid, Map<String, Object> properties) throws GraphModelException {
+    delegate.setPropertiesByUid(uid, properties);
+  }
+
+  @Override
+  public void setPropertiesByName(String entityType, String entityName, Map<String, Object> properties) throws GraphModelException {
+    delegate.setPropertiesByName(entityType, entityName, properties);
+  }
+
+  @Override
+  public void setPropertiesByUid(Map<String, Map<String, Object>> propertiesByUid, Map<String, Integer> updateCounts) throws GraphModelException {
+    delegate.setPropertiesByUid(propertiesByUid, updateCounts);
+  }
+
+  @Override
+  public boolean compareAndSetPropertyByUid(String uid, long expectedVersion, String propertyName, Object propertyValue) throws GraphModelException {
+    return delegate.compareAndSetPropertyByUid(uid, expectedVersion, propertyName, propertyValue);
+  }
+
+  @Override
+  public boolean compareAndSetPropertyByName(String entityType, String entityName, long expectedVersion, String propertyName, Object propertyValue) throws GraphModelException {
+    return delegate.compareAndSetPropertyByName(entityType, entityName, expectedVersion, propertyName, propertyValue);
+  }
+
   @Override
   public String lookupUniqueIdForName(String entityType, String entityName) throws GraphModelException {
     return delegate.lookupUniqueIdForName(entityType, entityName);
@@ -90,6 +127,17 @@ abstract public class AbstractGraphEntityDelegateDAO
     return delegate.getByName(entityType, entityName);
   }
 
+  @Override
+  public DBObject getByUid(String uid, DBObject fields) throws GraphModelException {
+    return delegate.getByUid(uid, fields);
+  }
+
+  @Override
+  public DBObject getByName(String entityType, String entityName, DBObject fields)
+      throws GraphModelException {
+    return delegate.getByName(entityType, entityName, fields);
+  }
+
   @Override
   public boolean existsByUid(String uniqueId) throws GraphModelException {
     return delegate.existsByUid(uniqueId);
@@ -110,6 +158,12 @@ abstract public class AbstractGraphEntityDelegateDAO
     return delegate.iterateAll();
   }
 
+  @Override
+  public List<ScanPartition> partitionAll(int partitionCount, DBObject fields, int batchSize)
+      throws GraphModelException {
+    return delegate.partitionAll(partitionCount, fields, batchSize);
+  }
+
   @Override
   public List<String> listTypes() throws GraphModelException {
     return delegate.listTypes();
@@ -120,6 +174,12 @@ abstract public class AbstractGraphEntityDelegateDAO
     return delegate.iterateByType(typeName);
   }
 
+  @Override
+  public Iterable<DBObject> iterateByType(String typeName, DBObject fields)
+      throws GraphModelException {
+    return delegate.iterateByType(typeName, fields);
+  }
+
   @Override
   public Iterable<String> iterateIdsByType(String typeName, int offset, int limit) throws GraphModelException {
     return delegate.iterateIdsByType(typeName, offset, limit);
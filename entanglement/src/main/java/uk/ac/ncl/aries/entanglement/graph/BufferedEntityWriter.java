@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package uk.ac.ncl.aries.entanglement.graph;
+
+import com.mongodb.BasicDBObject;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accumulates entities in memory and passes them to 
+ * <code>GraphEntityDAO.storeAll</code> once <code>batchSize</code> entities
+ * have been added. Remember to call <code>flush</code> once the last entity
+ * has been added.
+ * 
+ * Instances of this class are not thread safe.
+ * 
+ * @author Keith Flanagan
+ */
+public class BufferedEntityWriter
+{
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+  
+  private final GraphEntityDAO dao;
+  private final int batchSize;
+  private final List<BasicDBObject> buffer;
+
+  public BufferedEntityWriter(GraphEntityDAO dao) {
+    this(dao, DEFAULT_BATCH_SIZE);
+  }
+  
+  public BufferedEntityWriter(GraphEntityDAO dao, int batchSize) {
+    this.dao = dao;
+    this.batchSize = batchSize;
+    this.buffer = new ArrayList<>(batchSize);
+  }
+  
+  /**
+   * Adds an entity to the buffer, writing the buffer if it is full.
+   * 
+   * @param entity the entity to store
+   * @throws GraphModelException if the buffer was written and one or more
+   * entities could not be stored. If this is a <code>BulkStoreException</code>
+   * then the other entities of the batch have been stored.
+   */
+  public void add(BasicDBObject entity)
+      throws GraphModelException
+  {
+    buffer.add(entity);
+    if (buffer.size() >= batchSize) {
+      flush();
+    }
+  }
+  
+  /**
+   * Writes any buffered entities. The buffer is emptied even if some entities
+   * fail to store.
+   * 
+   * @throws GraphModelException 
+   */
+  public void flush()
+      throws GraphModelException
+  {
+    if (buffer.isEmpty()) {
+      return;
+    }
+    try {
+      dao.storeAll(buffer);
+    }
+    finally {
+      buffer.clear();
+    }
+  }
+
+  public int getBufferedCount() {
+    return buffer.size();
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package uk.ac.ncl.aries.entanglement.graph;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Thrown by <code>GraphEntityDAO.storeAll</code> when one or more entities of
+ * a batch could not be stored. Entities that are not listed in 
+ * <code>getFailures</code> were stored successfully.
+ * 
+ * @author Keith Flanagan
+ */
+public class BulkStoreException
+    extends GraphModelException
+{
+  private final Map<String, GraphModelException> failures;
+
+  public BulkStoreException(String message, Map<String, GraphModelException> failures) {
+    super(message);
+    this.failures = Collections.unmodifiableMap(failures);
+  }
+
+  /**
+   * @return a map of entity UID to the reason that the entity could not be 
+   * stored.
+   */
+  public Map<String, GraphModelException> getFailures() {
+    return failures;
+  }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.graph;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code>NodeDAO</code> decorator that caches the mapping from
+ * (type, well known name) to node UID. Log players resolve edge end points and
+ * named property updates through <code>lookupUniqueIdForName</code>, which
+ * otherwise costs one database query per call.
+ *
+ * The cache is a least-recently-used map bounded by the approximate heap size
+ * of its entries. Entries are added when a named node is stored or looked up,
+ * and removed when the node is deleted or its name or type is changed through
+ * this DAO. Changes made to the node collection by other means are not seen,
+ * so all writes to the collection should go through the same instance.
+ *
+ * Instances are thread safe.
+ *
+ * @author Keith Flanagan
+ */
+public class CachingNodeDAO
+    extends AbstractGraphEntityDelegateDAO
+    implements NodeDAO
+{
+  public static final long DEFAULT_MAX_CACHE_BYTES = 64L * 1024 * 1024;
+
+  /*
+   * Rough per-entry overhead of the two maps, the key object and the strings
+   * (object headers, references, hash table entries).
+   */
+  private static final int ENTRY_OVERHEAD_BYTES = 160;
+
+  private final long maxCacheBytes;
+
+  // Access-ordered, so iteration starts at the least recently used entry
+  private final LinkedHashMap<NameKey, String> nameToUid;
+  private final Map<String, NameKey> uidToName;
+  private long cacheBytes;
+  /*
+   * Incremented by every invalidation. A lookup that misses the cache only
+   * caches its database result if no invalidation happened in the meantime,
+   * since the result may predate a concurrent delete or rename.
+   */
+  private long invalidationCount;
+
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+  private final AtomicLong evictions;
+
+  public CachingNodeDAO(NodeDAO delegate) {
+    this(delegate, DEFAULT_MAX_CACHE_BYTES);
+  }
+
+  public CachingNodeDAO(NodeDAO delegate, long maxCacheBytes) {
+    super(delegate);
+    this.maxCacheBytes = maxCacheBytes;
+    this.nameToUid = new LinkedHashMap<>(1024, 0.75f, true);
+    this.uidToName = new HashMap<>(1024);
+    this.hits = new AtomicLong(0);
+    this.misses = new AtomicLong(0);
+    this.evictions = new AtomicLong(0);
+  }
+
+  @Override
+  public void store(BasicDBObject entity) throws GraphModelException {
+    super.store(entity);
+    _cacheEntity(entity);
+  }
+
+  @Override
+  public void storeAll(Collection<BasicDBObject> entities) throws GraphModelException {
+    try {
+      super.storeAll(entities);
+    }
+    catch(BulkStoreException e) {
+      for (BasicDBObject entity : entities) {
+        if (!e.getFailures().containsKey(entity.getString(FIELD_UID))) {
+          _cacheEntity(entity);
+        }
+      }
+      throw e;
+    }
+    for (BasicDBObject entity : entities) {
+      _cacheEntity(entity);
+    }
+  }
+
+  @Override
+  public boolean storeIfNotExists(BasicDBObject entity) throws GraphModelException {
+    boolean stored = super.storeIfNotExists(entity);
+    if (stored) {
+      _cacheEntity(entity);
+    }
+    return stored;
+  }
+
+  @Override
+  public void setPropertyByUid(String uid, String propertyName, Object propertyValue)
+      throws GraphModelException {
+    // Invalidate afterwards, so that a concurrent lookup can't re-cache the old value
+    try {
+      super.setPropertyByUid(uid, propertyName, propertyValue);
+    }
+    finally {
+      if (_isIdentityField(propertyName)) {
+        _invalidateUid(uid);
+      }
+    }
+  }
+
+  @Override
+  public void setPropertyByName(String entityType, String entityName,
+      String propertyName, Object propertyValue) throws GraphModelException {
+    try {
+      super.setPropertyByName(entityType, entityName, propertyName, propertyValue);
+    }
+    finally {
+      if (_isIdentityField(propertyName)) {
+        _invalidateName(new NameKey(entityType, entityName));
+      }
+    }
+  }
+
+  @Override
+  public void setPropertiesByUid(String uid, Map<String, Object> properties)
+      throws GraphModelException {
+    try {
+      super.setPropertiesByUid(uid, properties);
+    }
+    finally {
+      if (_hasIdentityField(properties)) {
+        _invalidateUid(uid);
+      }
+    }
+  }
+
+  @Override
+  public void setPropertiesByName(String entityType, String entityName,
+      Map<String, Object> properties) throws GraphModelException {
+    try {
+      super.setPropertiesByName(entityType, entityName, properties);
+    }
+    finally {
+      if (_hasIdentityField(properties)) {
+        _invalidateName(new NameKey(entityType, entityName));
+      }
+    }
+  }
+
+  @Override
+  public void setPropertiesByUid(Map<String, Map<String, Object>> propertiesByUid,
+      Map<String, Integer> updateCounts) throws GraphModelException {
+    try {
+      super.setPropertiesByUid(propertiesByUid, updateCounts);
+    }
+    finally {
+      for (Map.Entry<String, Map<String, Object>> entry : propertiesByUid.entrySet()) {
+        if (_hasIdentityField(entry.getValue())) {
+          _invalidateUid(entry.getKey());
+        }
+      }
+    }
+  }
+  
+  private boolean _hasIdentityField(Map<String, Object> properties) {
+    for (String propertyName : properties.keySet()) {
+      if (_isIdentityField(propertyName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean compareAndSetPropertyByUid(String uid, long expectedVersion,
+      String propertyName, Object propertyValue) throws GraphModelException {
+    try {
+      return super.compareAndSetPropertyByUid(uid, expectedVersion, propertyName, propertyValue);
+    }
+    finally {
+      if (_isIdentityField(propertyName)) {
+        _invalidateUid(uid);
+      }
+    }
+  }
+
+  @Override
+  public boolean compareAndSetPropertyByName(String entityType, String entityName,
+      long expectedVersion, String propertyName, Object propertyValue) throws GraphModelException {
+    try {
+      return super.compareAndSetPropertyByName(entityType, entityName, 
+          expectedVersion, propertyName, propertyValue);
+    }
+    finally {
+      if (_isIdentityField(propertyName)) {
+        _invalidateName(new NameKey(entityType, entityName));
+      }
+    }
+  }
+
+  @Override
+  public String lookupUniqueIdForName(String entityType, String entityName)
+      throws GraphModelException {
+    NameKey key = new NameKey(entityType, entityName);
+    long invalidationsBefore;
+    synchronized (this) {
+      String uid = nameToUid.get(key);
+      if (uid != null) {
+        hits.incrementAndGet();
+        return uid;
+      }
+      invalidationsBefore = invalidationCount;
+    }
+    misses.incrementAndGet();
+    String uid = super.lookupUniqueIdForName(entityType, entityName);
+    if (uid != null) {
+      synchronized (this) {
+        if (invalidationCount == invalidationsBefore) {
+          _put(key, uid);
+        }
+      }
+    }
+    return uid;
+  }
+
+  @Override
+  public boolean existsByName(String entityType, String entityName)
+      throws GraphModelException {
+    synchronized (this) {
+      if (nameToUid.containsKey(new NameKey(entityType, entityName))) {
+        hits.incrementAndGet();
+        return true;
+      }
+    }
+    // Not counted as a miss, since the answer doesn't populate the cache
+    return super.existsByName(entityType, entityName);
+  }
+
+  @Override
+  public DBObject deleteByUid(String uid) throws GraphModelException {
+    try {
+      return super.deleteByUid(uid);
+    }
+    finally {
+      _invalidateUid(uid);
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  public synchronized int getCacheSize() {
+    return nameToUid.size();
+  }
+
+  public synchronized long getEstimatedCacheBytes() {
+    return cacheBytes;
+  }
+
+  public long getMaxCacheBytes() {
+    return maxCacheBytes;
+  }
+
+  public synchronized void clearCache() {
+    invalidationCount++;
+    nameToUid.clear();
+    uidToName.clear();
+    cacheBytes = 0;
+  }
+
+  private static boolean _isIdentityField(String propertyName) {
+    return FIELD_NAME.equals(propertyName) || FIELD_TYPE.equals(propertyName)
+        || FIELD_UID.equals(propertyName);
+  }
+
+  private void _cacheEntity(BasicDBObject entity) {
+    String name = entity.getString(FIELD_NAME);
+    String uid = entity.getString(FIELD_UID);
+    if (name != null && uid != null) {
+      _put(new NameKey(entity.getString(FIELD_TYPE), name), uid);
+    }
+  }
+
+  private synchronized void _put(NameKey key, String uid) {
+    String previousUid = nameToUid.put(key, uid);
+    if (previousUid != null) {
+      uidToName.remove(previousUid);
+      cacheBytes = cacheBytes - _estimateBytes(key, previousUid);
+    }
+    NameKey previousKey = uidToName.put(uid, key);
+    if (previousKey != null && !previousKey.equals(key)) {
+      nameToUid.remove(previousKey);
+      cacheBytes = cacheBytes - _estimateBytes(previousKey, uid);
+    }
+    cacheBytes = cacheBytes + _estimateBytes(key, uid);
+
+    Iterator<Map.Entry<NameKey, String>> itr = nameToUid.entrySet().iterator();
+    while (cacheBytes > maxCacheBytes && itr.hasNext()) {
+      Map.Entry<NameKey, String> eldest = itr.next();
+      itr.remove();
+      uidToName.remove(eldest.getValue());
+      cacheBytes = cacheBytes - _estimateBytes(eldest.getKey(), eldest.getValue());
+      evictions.incrementAndGet();
+    }
+  }
+
+  private synchronized void _invalidateUid(String uid) {
+    invalidationCount++;
+    NameKey key = uidToName.remove(uid);
+    if (key != null) {
+      nameToUid.remove(key);
+      cacheBytes = cacheBytes - _estimateBytes(key, uid);
+    }
+  }
+
+  private synchronized void _invalidateName(NameKey key) {
+    invalidationCount++;
+    String uid = nameToUid.remove(key);
+    if (uid != null) {
+      uidToName.remove(uid);
+      cacheBytes = cacheBytes - _estimateBytes(key, uid);
+    }
+  }
+
+  private static long _estimateBytes(NameKey key, String uid) {
+    // Java strings use two bytes per character
+    return ENTRY_OVERHEAD_BYTES
+        + 2L * (_length(key.type) + _length(key.name) + uid.length());
+  }
+
+  private static int _length(String str) {
+    return str == null ? 0 : str.length();
+  }
+
+  private static class NameKey
+  {
+    private final String type;
+    private final String name;
+
+    private NameKey(String type, String name) {
+      this.type = type;
+      this.name = name;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = 7;
+      hash = 59 * hash + (type != null ? type.hashCode() : 0);
+      hash = 59 * hash + (name != null ? name.hashCode() : 0);
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      final NameKey other = (NameKey) obj;
+      return (type == null ? other.type == null : type.equals(other.type))
+          && (name == null ? other.name == null : name.equals(other.name));
+    }
+  }
+}
@@ -19,6 +19,7 @@
 package uk.ac.ncl.aries.entanglement.graph;
 
 import com.mongodb.*;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import uk.ac.ncl.aries.entanglement.graph.data.Edge;
@@ -72,6 +73,81 @@ public interface EdgeDAO
   public Iterable<DBObject> iterateEdgesToNode(String toNodeUid)
           throws GraphModelException;
   
+  /**
+   * Projection-aware version of <code>iterateEdgesBetweenNodes</code>.
+   * @param fields the fields to return (a MongoDB projection), or null to 
+   * return whole documents
+   */
+  public Iterable<DBObject> iterateEdgesBetweenNodes(
+          String fromNodeUid, String toNodeUid, DBObject fields)
+          throws GraphModelException;
+  
+  /**
+   * Projection-aware version of <code>iterateEdgesFromNode</code>.
+   * @param fields the fields to return (a MongoDB projection), or null to 
+   * return whole documents
+   */
+  public Iterable<DBObject> iterateEdgesFromNode(String fromNodeUid, DBObject fields)
+          throws GraphModelException;
+  
+  /**
+   * Projection-aware version of <code>iterateEdgesToNode</code>.
+   * @param fields the fields to return (a MongoDB projection), or null to 
+   * return whole documents
+   */
+  public Iterable<DBObject> iterateEdgesToNode(String toNodeUid, DBObject fields)
+          throws GraphModelException;
+  
+  /**
+   * Returns the outgoing edges of a node as <code>EdgeTopology</code> 
+   * instances. Only the edge UID, type and end points are fetched.
+   */
+  public EdgeTopologyIterable iterateTopologyFromNode(String fromNodeUid)
+          throws GraphModelException;
+  
+  /**
+   * Returns the incoming edges of a node as <code>EdgeTopology</code> 
+   * instances. Only the edge UID, type and end points are fetched.
+   */
+  public EdgeTopologyIterable iterateTopologyToNode(String toNodeUid)
+          throws GraphModelException;
+  
+  /**
+   * Returns the outgoing edges of a set of nodes with a single query, as 
+   * <code>EdgeTopology</code> instances. Callers should keep the number of
+   * UIDs per call to a few thousand, since the query must fit in one BSON
+   * document.
+   * 
+   * @param fromNodeUids the nodes whose outgoing edges should be returned
+   * @param edgeType only return edges of this type, or null for any type
+   * @param toNodeType only return edges to nodes of this type, or null for 
+   * any type
+   */
+  public EdgeTopologyIterable iterateTopologyFromNodes(Collection<String> fromNodeUids,
+          String edgeType, String toNodeType)
+          throws GraphModelException;
+  
+  /**
+   * Returns the incoming edges of a set of nodes with a single query. See 
+   * <code>iterateTopologyFromNodes</code>.
+   * 
+   * @param toNodeUids the nodes whose incoming edges should be returned
+   * @param edgeType only return edges of this type, or null for any type
+   * @param fromNodeType only return edges from nodes of this type, or null
+   * for any type
+   */
+  public EdgeTopologyIterable iterateTopologyToNodes(Collection<String> toNodeUids,
+          String edgeType, String fromNodeType)
+          throws GraphModelException;
+  
+  /**
+   * Returns every edge in the graph as an <code>EdgeTopology</code> instance.
+   * 
+   * @param batchSize the cursor batch size, or 0 for the server default
+   */
+  public EdgeTopologyIterable iterateTopology(int batchSize)
+          throws GraphModelException;
+  
   /**
    * Returns true if there exists at least one edge between the specified node, 
    * and any node of type <code>toNodeType</code>.
@@ -128,5 +204,29 @@ public interface EdgeDAO
    */
   public Map<String, Long> countEdgesByTypeToNode(String toNodeUid)
           throws GraphModelException;
+  
+  /**
+   * Batched version of <code>countEdgesByTypeFromNode</code> that computes
+   * the outgoing edge counts of many nodes with a single query.
+   * 
+   * @param fromNodeUids the nodes to count outgoing edges for
+   * @return a map of node UID to a map of edge type to edge count. Nodes
+   * without outgoing edges map to an empty map.
+   * @throws GraphModelException 
+   */
+  public Map<String, Map<String, Long>> countEdgesByTypeFromNodes(Collection<String> fromNodeUids)
+          throws GraphModelException;
+  
+  /**
+   * Batched version of <code>countEdgesByTypeToNode</code> that computes
+   * the incoming edge counts of many nodes with a single query.
+   * 
+   * @param toNodeUids the nodes to count incoming edges for
+   * @return a map of node UID to a map of edge type to edge count. Nodes
+   * without incoming edges map to an empty map.
+   * @throws GraphModelException 
+   */
+  public Map<String, Map<String, Long>> countEdgesByTypeToNodes(Collection<String> toNodeUids)
+          throws GraphModelException;
 
 }
@@ -19,7 +19,10 @@
 package uk.ac.ncl.aries.entanglement.graph;
 
 import com.mongodb.*;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -55,6 +58,13 @@ public class EdgeDAOSeparateDocImpl
   private static final DBObject IDX_TO_NODE_UID = new BasicDBObject(FIELD_TO_NODE_UID, 1);
   
   
+  /*
+   * Upper limit on the number of node UIDs per aggregation. Each group in the
+   * result is one (node, edge type) pair, and the whole aggregation result
+   * must fit within a single BSON document.
+   */
+  private static final int MAX_NODES_PER_AGGREGATION = 5000;
+  
   private final DBCollection nodeCol;
   
   ////////// DEBUG / TEST - Performance info stuff (end)
@@ -139,61 +149,123 @@ public class EdgeDAOSeparateDocImpl
   public Iterable<DBObject> iterateEdgesBetweenNodes(String fromNodeUid, String toNodeUid)
       throws GraphModelException
   {
-    DBObject query = null;
-    try {
-      logger.log(Level.INFO, "Iterating edges between nodes: {0} --> {1}", 
-              new Object[]{fromNodeUid, toNodeUid});
-      //Empty 'query' selects all documents (nodes in this case)
-      query = new BasicDBObject();
-      query.put(FIELD_FROM_NODE_UID, fromNodeUid);
-      query.put(FIELD_TO_NODE_UID, toNodeUid);
-
-      final DBCursor cursor = col.find(query);
-
-//      return new DeserialisingIterable<>(cursor, marshaller, Edge.class);
-      return cursor;
-    }
-    catch(Exception e) {
-      throw new GraphModelException("Failed to perform database operation:\n"
-          + "Query: "+query, e);
-    }
+    return iterateEdgesBetweenNodes(fromNodeUid, toNodeUid, null);
   }
 
   @Override
   public Iterable<DBObject> iterateEdgesFromNode(String fromNodeUid)
           throws GraphModelException
   {
-    DBObject query = null;
-    try {
-      logger.log(Level.INFO, "Iterating edges starting from node: {0}", 
-              new Object[]{fromNodeUid});
-      //Empty 'query' selects all documents (nodes in this case)
-      query = new BasicDBObject();
-      query.put(FIELD_FROM_NODE_UID, fromNodeUid);
+    return iterateEdgesFromNode(fromNodeUid, null);
+  }
+  
+  @Override
+  public Iterable<DBObject> iterateEdgesToNode(String toNodeUid)
+          throws GraphModelException
+  {
+    return iterateEdgesToNode(toNodeUid, null);
+  }
+  
+  @Override
+  public Iterable<DBObject> iterateEdgesBetweenNodes(String fromNodeUid, String toNodeUid,
+          DBObject fields)
+      throws GraphModelException
+  {
+    logger.log(Level.FINE, "Iterating edges between nodes: {0} --> {1}", 
+            new Object[]{fromNodeUid, toNodeUid});
+    DBObject query = new BasicDBObject();
+    query.put(FIELD_FROM_NODE_UID, fromNodeUid);
+    query.put(FIELD_TO_NODE_UID, toNodeUid);
+    return find(query, fields, 0);
+  }
 
-      final DBCursor cursor = col.find(query);
-//      return new DeserialisingIterable<>(cursor, marshaller, Edge.class);
-      return cursor;
+  @Override
+  public Iterable<DBObject> iterateEdgesFromNode(String fromNodeUid, DBObject fields)
+          throws GraphModelException
+  {
+    logger.log(Level.FINE, "Iterating edges starting from node: {0}", fromNodeUid);
+    return find(new BasicDBObject(FIELD_FROM_NODE_UID, fromNodeUid), fields, 0);
+  }
+  
+  @Override
+  public Iterable<DBObject> iterateEdgesToNode(String toNodeUid, DBObject fields)
+          throws GraphModelException
+  {
+    logger.log(Level.FINE, "Iterating edges ending at node: {0}", toNodeUid);
+    return find(new BasicDBObject(FIELD_TO_NODE_UID, toNodeUid), fields, 0);
+  }
+  
+  @Override
+  public EdgeTopologyIterable iterateTopologyFromNode(String fromNodeUid)
+          throws GraphModelException
+  {
+    return new EdgeTopologyIterable(find(
+        new BasicDBObject(FIELD_FROM_NODE_UID, fromNodeUid), EdgeTopology.fields(), 0));
+  }
+  
+  @Override
+  public EdgeTopologyIterable iterateTopologyToNode(String toNodeUid)
+          throws GraphModelException
+  {
+    return new EdgeTopologyIterable(find(
+        new BasicDBObject(FIELD_TO_NODE_UID, toNodeUid), EdgeTopology.fields(), 0));
+  }
+  
+  @Override
+  public EdgeTopologyIterable iterateTopologyFromNodes(Collection<String> fromNodeUids,
+          String edgeType, String toNodeType)
+          throws GraphModelException
+  {
+    return new EdgeTopologyIterable(find(adjacencyQuery(
+        FIELD_FROM_NODE_UID, fromNodeUids, edgeType, FIELD_TO_NODE_TYPE, toNodeType),
+        EdgeTopology.fields(), 0));
+  }
+  
+  @Override
+  public EdgeTopologyIterable iterateTopologyToNodes(Collection<String> toNodeUids,
+          String edgeType, String fromNodeType)
+          throws GraphModelException
+  {
+    return new EdgeTopologyIterable(find(adjacencyQuery(
+        FIELD_TO_NODE_UID, toNodeUids, edgeType, FIELD_FROM_NODE_TYPE, fromNodeType),
+        EdgeTopology.fields(), 0));
+  }
+  
+  private static DBObject adjacencyQuery(String nodeField, Collection<String> nodeUids,
+          String edgeType, String otherTypeField, String otherType)
+  {
+    BasicDBObject query = new BasicDBObject();
+    if (edgeType != null) {
+      query.append(FIELD_TYPE, edgeType);
     }
-    catch(Exception e) {
-      throw new GraphModelException("Failed to perform database operation:\n"
-          + "Query: "+query, e);
+    if (nodeUids.size() == 1) {
+      query.append(nodeField, nodeUids.iterator().next());
+    }
+    else {
+      query.append(nodeField, new BasicDBObject("$in", nodeUids));
+    }
+    if (otherType != null) {
+      query.append(otherTypeField, otherType);
     }
+    return query;
   }
   
   @Override
-  public Iterable<DBObject> iterateEdgesToNode(String toNodeUid)
+  public EdgeTopologyIterable iterateTopology(int batchSize)
+          throws GraphModelException
+  {
+    return new EdgeTopologyIterable(
+        find(new BasicDBObject(), EdgeTopology.fields(), batchSize));
+  }
+  
+  private DBCursor find(DBObject query, DBObject fields, int batchSize)
           throws GraphModelException
   {
-    DBObject query = null;
     try {
-      logger.log(Level.INFO, "Iterating edges ending at node: {0}", 
-              new Object[]{toNodeUid});
-      //Empty 'query' selects all documents (nodes in this case)
-      query = new BasicDBObject();
-      query.put(FIELD_TO_NODE_UID, toNodeUid);
-
-      final DBCursor cursor = col.find(query);
+      DBCursor cursor = fields == null ? col.find(query) : col.find(query, fields);
+      if (batchSize > 0) {
+        cursor.batchSize(batchSize);
+      }
       return cursor;
     }
     catch(Exception e) {
@@ -267,7 +339,7 @@ public class EdgeDAOSeparateDocImpl
     DBObject query = null;
     try {
       query = new BasicDBObject();
-      query.put(FIELD_TO_NODE_TYPE, toNodeUid);
+      query.put(FIELD_TO_NODE_UID, toNodeUid);
       long count = col.count(query);
       return count;
     }
@@ -299,47 +371,110 @@ public class EdgeDAOSeparateDocImpl
   public Map<String, Long> countEdgesByTypeFromNode(String fromNodeUid)
           throws GraphModelException
   {
-    DBObject query = null;
+    return countEdgesByType(FIELD_FROM_NODE_UID, fromNodeUid);
+  }
+  
+  @Override
+  public Map<String, Long> countEdgesByTypeToNode(String toNodeUid)
+          throws GraphModelException
+  {
+    return countEdgesByType(FIELD_TO_NODE_UID, toNodeUid);
+  }
+  
+  @Override
+  public Map<String, Map<String, Long>> countEdgesByTypeFromNodes(Collection<String> fromNodeUids)
+          throws GraphModelException
+  {
+    return countEdgesByType(FIELD_FROM_NODE_UID, fromNodeUids);
+  }
+  
+  @Override
+  public Map<String, Map<String, Long>> countEdgesByTypeToNodes(Collection<String> toNodeUids)
+          throws GraphModelException
+  {
+    return countEdgesByType(FIELD_TO_NODE_UID, toNodeUids);
+  }
+  
+  /**
+   * Counts the edges attached to a node, grouped by edge type, with a single
+   * aggregation. The $match stage uses the index on <code>nodeField</code>.
+   * 
+   * @param nodeField either <code>FIELD_FROM_NODE_UID</code> or 
+   * <code>FIELD_TO_NODE_UID</code>
+   * @param nodeUid the node whose edges should be counted
+   */
+  private Map<String, Long> countEdgesByType(String nodeField, String nodeUid)
+          throws GraphModelException
+  {
+    DBObject match = null;
+    DBObject group = null;
     try {
-      query = new BasicDBObject();
-      query.put(FIELD_FROM_NODE_UID, fromNodeUid);
+      match = new BasicDBObject("$match", new BasicDBObject(nodeField, nodeUid));
+      group = new BasicDBObject("$group", 
+          new BasicDBObject("_id", "$"+FIELD_TYPE)
+          .append("count", new BasicDBObject("$sum", 1)));
       
-      List<String> types = (List<String>) col.distinct(FIELD_TYPE, query);
+      AggregationOutput output = col.aggregate(match, group);
       Map<String, Long> edgeTypeToCount = new HashMap<>();
-      for (String edgeType : types) {
-        long count = countEdgesOfTypeFromNode(edgeType, fromNodeUid);
-        edgeTypeToCount.put(edgeType, count);
+      for (DBObject result : output.results()) {
+        edgeTypeToCount.put((String) result.get("_id"), 
+            ((Number) result.get("count")).longValue());
       }
-      
       return edgeTypeToCount;
     }
     catch(Exception e) {
       throw new GraphModelException("Failed to perform database operation:\n"
-          + "Query: "+query, e);
+          + "Pipeline: "+match+", "+group, e);
     }
   }
   
-  @Override
-  public Map<String, Long> countEdgesByTypeToNode(String toNodeUid)
+  /**
+   * Counts the edges attached to each of a set of nodes, grouped by node and
+   * edge type. Large sets of nodes are split into several aggregations.
+   */
+  private Map<String, Map<String, Long>> countEdgesByType(String nodeField, Collection<String> nodeUids)
           throws GraphModelException
   {
-    DBObject query = null;
+    Map<String, Map<String, Long>> nodeToTypeCounts = new HashMap<>();
+    List<String> chunk = new ArrayList<>();
+    for (String nodeUid : new LinkedHashSet<>(nodeUids)) {
+      nodeToTypeCounts.put(nodeUid, new HashMap<String, Long>());
+      chunk.add(nodeUid);
+      if (chunk.size() >= MAX_NODES_PER_AGGREGATION) {
+        countEdgesByType(nodeField, chunk, nodeToTypeCounts);
+        chunk.clear();
+      }
+    }
+    if (!chunk.isEmpty()) {
+      countEdgesByType(nodeField, chunk, nodeToTypeCounts);
+    }
+    return nodeToTypeCounts;
+  }
+  
+  private void countEdgesByType(String nodeField, List<String> nodeUids,
+          Map<String, Map<String, Long>> nodeToTypeCounts)
+          throws GraphModelException
+  {
+    DBObject match = null;
+    DBObject group = null;
     try {
-      query = new BasicDBObject();
-      query.put(FIELD_TO_NODE_UID, toNodeUid);
+      match = new BasicDBObject("$match", 
+          new BasicDBObject(nodeField, new BasicDBObject("$in", nodeUids)));
+      group = new BasicDBObject("$group", 
+          new BasicDBObject("_id", 
+              new BasicDBObject("node", "$"+nodeField).append("type", "$"+FIELD_TYPE))
+          .append("count", new BasicDBObject("$sum", 1)));
       
-      List<String> types = (List<String>) col.distinct(FIELD_TYPE, query);
-      Map<String, Long> edgeTypeToCount = new HashMap<>();
-      for (String edgeType : types) {
-        long count = countEdgesOfTypeFromNode(edgeType, toNodeUid);
-        edgeTypeToCount.put(edgeType, count);
+      AggregationOutput output = col.aggregate(match, group);
+      for (DBObject result : output.results()) {
+        DBObject id = (DBObject) result.get("_id");
+        Map<String, Long> typeCounts = nodeToTypeCounts.get((String) id.get("node"));
+        typeCounts.put((String) id.get("type"), ((Number) result.get("count")).longValue());
       }
-      
-      return edgeTypeToCount;
     }
     catch(Exception e) {
       throw new GraphModelException("Failed to perform database operation:\n"
-          + "Query: "+query, e);
+          + "Pipeline: "+match+", "+group, e);
     }
   }
   
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.graph;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * A lightweight, immutable view of an edge that holds only its identity and
+ * end points. Traversals and exports that don't need edge properties can 
+ * read edges as <code>EdgeTopology</code> instances, which are much smaller
+ * than the full <code>DBObject</code> documents and are fetched with a 
+ * projection, so unused properties never leave the database.
+ * 
+ * @author Keith Flanagan
+ */
+public final class EdgeTopology
+{
+  private final String uid;
+  private final String type;
+  private final String fromUid;
+  private final String toUid;
+
+  public EdgeTopology(String uid, String type, String fromUid, String toUid)
+  {
+    this.uid = uid;
+    this.type = type;
+    this.fromUid = fromUid;
+    this.toUid = toUid;
+  }
+  
+  /**
+   * @return a projection selecting only the fields needed to build an 
+   * <code>EdgeTopology</code>. A new object is returned on each call, since 
+   * <code>DBObject</code>s are mutable.
+   */
+  public static DBObject fields()
+  {
+    return new BasicDBObject(GraphEntityDAO.FIELD_UID, 1)
+        .append(GraphEntityDAO.FIELD_TYPE, 1)
+        .append(EdgeDAO.FIELD_FROM_NODE_UID, 1)
+        .append(EdgeDAO.FIELD_TO_NODE_UID, 1)
+        .append("_id", 0);
+  }
+  
+  public static EdgeTopology fromDBObject(DBObject edge)
+  {
+    return new EdgeTopology(
+        (String) edge.get(GraphEntityDAO.FIELD_UID),
+        (String) edge.get(GraphEntityDAO.FIELD_TYPE),
+        (String) edge.get(EdgeDAO.FIELD_FROM_NODE_UID),
+        (String) edge.get(EdgeDAO.FIELD_TO_NODE_UID));
+  }
+
+  public String getUid() {
+    return uid;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public String getFromUid() {
+    return fromUid;
+  }
+
+  public String getToUid() {
+    return toUid;
+  }
+
+  @Override
+  public String toString() {
+    return "EdgeTopology{" + "uid=" + uid + ", type=" + type 
+        + ", fromUid=" + fromUid + ", toUid=" + toUid + '}';
+  }
+}
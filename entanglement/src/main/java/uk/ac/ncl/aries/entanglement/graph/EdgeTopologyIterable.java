@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.graph;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import java.util.Iterator;
+
+/**
+ * Wraps a cursor over edge documents and returns each as an
+ * <code>EdgeTopology</code>. The cursor should have been created with the
+ * projection returned by <code>EdgeTopology.fields()</code>.
+ * 
+ * @author Keith Flanagan
+ */
+public class EdgeTopologyIterable
+    implements Iterable<EdgeTopology>
+{
+  private final DBCursor cursor;
+
+  public EdgeTopologyIterable(DBCursor cursor)
+  {
+    this.cursor = cursor;
+  }
+  
+  @Override
+  public Iterator<EdgeTopology> iterator()
+  {
+    final Iterator<DBObject> itr = cursor.iterator();
+    return new Iterator<EdgeTopology>() {
+      @Override
+      public boolean hasNext() {
+        return itr.hasNext();
+      }
+
+      @Override
+      public EdgeTopology next() {
+        return EdgeTopology.fromDBObject(itr.next());
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Not supported.");
+      }
+    };
+  }
+  
+  /**
+   * Closes the underlying cursor. This is only necessary if iteration is 
+   * abandoned before the end is reached.
+   */
+  public void close()
+  {
+    cursor.close();
+  }
+}
@@ -20,8 +20,13 @@ package uk.ac.ncl.aries.entanglement.graph;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.Mongo;
+import uk.ac.ncl.aries.entanglement.metrics.InstrumentedProxy;
 
 /**
+ * Creates the default DAO implementations. DAOs returned by this class record
+ * the duration of every operation in the current 
+ * <code>MetricsRegistry</code>, under the prefixes 
+ * <code>dao.node</code> and <code>dao.edge</code>.
  *
  * @author Keith Flanagan
  */
@@ -31,7 +36,21 @@ public class GraphDAOFactory
           DBCollection nodeCol, DBCollection edgeCol)
   {
     NodeDAO nodeDao = new NodeDAONodePerDocImpl(classLoader, m, db, nodeCol);
-    return nodeDao;
+    return InstrumentedProxy.wrap(NodeDAO.class, nodeDao, "dao.node");
+  }
+  
+  /**
+   * Creates a default <code>NodeDAO</code> wrapped in a 
+   * <code>CachingNodeDAO</code>, which caches name to UID lookups.
+   * 
+   * @param maxCacheBytes the approximate maximum heap space to use for the 
+   * cache.
+   */
+  public static CachingNodeDAO createCachingNodeDAO(ClassLoader classLoader, Mongo m, DB db, 
+          DBCollection nodeCol, DBCollection edgeCol, long maxCacheBytes)
+  {
+    NodeDAO nodeDao = createDefaultNodeDAO(classLoader, m, db, nodeCol, edgeCol);
+    return new CachingNodeDAO(nodeDao, maxCacheBytes);
   }
   
   public static EdgeDAO createDefaultEdgeDAO(ClassLoader classLoader, 
@@ -51,6 +70,6 @@ public class GraphDAOFactory
           Mongo m, DB db, DBCollection nodeCol, DBCollection edgeCol)
   {
     EdgeDAO edgeDao = new EdgeDAOSeparateDocImpl(classLoader, m, db, nodeCol, edgeCol);
-    return edgeDao;
+    return InstrumentedProxy.wrap(EdgeDAO.class, edgeDao, "dao.edge");
   }
 }
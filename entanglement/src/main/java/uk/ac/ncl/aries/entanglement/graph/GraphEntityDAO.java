@@ -21,7 +21,9 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import uk.ac.ncl.aries.entanglement.player.LogPlayerException;
 
 /**
@@ -35,6 +37,25 @@ public interface GraphEntityDAO
   public static final String FIELD_NAME = "name";
   public static final String FIELD_TYPE = "type";
   
+  /**
+   * A field that is derived from <code>FIELD_TYPE</code> and 
+   * <code>FIELD_NAME</code> and maintained by the DAO for named entities. A
+   * sparse unique index on it enforces that (type, name) pairs are unique.
+   * Fields starting with an underscore are internal and should not be 
+   * exported.
+   */
+  public static final String FIELD_TYPE_NAME_KEY = "_typeName";
+  
+  /**
+   * A counter maintained by the DAO that is set to 1 when an entity is 
+   * stored and incremented by every update. A writer that reads an entity 
+   * can pass the version it read to a compare-and-set method, which then
+   * fails rather than overwriting a concurrent update. Entities stored before
+   * versions were introduced have no version field, and are treated as
+   * version 0.
+   */
+  public static final String FIELD_VERSION = "_version";
+  
   
   public InsertMode getInsertModeHint();
   public void setInsertModeHint(InsertMode mode);
@@ -48,6 +69,36 @@ public interface GraphEntityDAO
   public void store(BasicDBObject entity)
       throws GraphModelException;
   
+  /**
+   * Stores a batch of entities using multi-document inserts. This is much
+   * faster than calling <code>store</code> for each entity. The uniqueness of
+   * entity UIDs and (type, name) pairs is enforced regardless of the 
+   * current <code>InsertMode</code>.
+   * 
+   * Entities are stored independently: if some of them can't be stored, the
+   * others still are. 
+   * 
+   * @param entities the entities to store. Each must have a UID.
+   * @throws BulkStoreException if one or more entities could not be stored.
+   * The exception maps the UID of each of those entities to the reason.
+   * @throws GraphModelException 
+   */
+  public void storeAll(Collection<BasicDBObject> entities)
+      throws GraphModelException;
+  
+  /**
+   * Stores an entity unless one with the same UID, or the same type and 
+   * 'well known' name, already exists. When the collection has unique 
+   * indexes this is a single atomic upsert, so concurrent callers can't 
+   * create duplicates. Existing entities are left unchanged.
+   * 
+   * @param entity the entity to store. It must have a UID and a type.
+   * @return true if the entity was stored, false if it already existed
+   * @throws GraphModelException 
+   */
+  public boolean storeIfNotExists(BasicDBObject entity)
+      throws GraphModelException;
+  
   /**
    * Given a node's UID, sets the named property to the given value. Note that
    * any arbitrary property name can be given here, even if this node was
@@ -65,6 +116,65 @@ public interface GraphEntityDAO
   public void setPropertyByName(String entityType, String entityName, String propertyName, Object propertyValue)
       throws GraphModelException;
   
+  /**
+   * Sets several properties of an entity with a single update. This is
+   * cheaper than calling <code>setPropertyByUid</code> for each property.
+   * 
+   * @param uid the ID of the entity to update
+   * @param properties property names mapped to their new values
+   * @throws GraphModelException 
+   */
+  public void setPropertiesByUid(String uid, Map<String, Object> properties)
+      throws GraphModelException;
+  
+  public void setPropertiesByName(String entityType, String entityName, Map<String, Object> properties)
+      throws GraphModelException;
+  
+  /**
+   * Sets properties of many entities, with one update per entity. Each 
+   * update is acknowledged before the next is sent, so a failure is reported
+   * for the entity that caused it, and the entities before it have been 
+   * updated. Entities that don't exist are ignored.
+   * 
+   * @param propertiesByUid entity IDs mapped to the properties to set on 
+   * each entity
+   * @param updateCounts entity IDs mapped to the number of separate updates 
+   * that were merged into their properties. Each entity's version is advanced
+   * by that number, as if the updates had been made one at a time. Entities 
+   * that aren't listed, or a null map, count as one update.
+   * @throws GraphModelException 
+   */
+  public void setPropertiesByUid(Map<String, Map<String, Object>> propertiesByUid,
+          Map<String, Integer> updateCounts)
+      throws GraphModelException;
+  
+  /**
+   * Sets the named property of an entity, provided that the entity's 
+   * <code>FIELD_VERSION</code> is still <code>expectedVersion</code>. The 
+   * check and the update are a single atomic operation.
+   * 
+   * @param uid the ID of the entity to update
+   * @param expectedVersion the version of the entity that the caller last read
+   * @param propertyName the property to set.
+   * @param propertyValue a data bean to be JSON-serialised and converted into
+   * a DBObject.
+   * @return true if the property was set; false if the entity has been 
+   * modified since that version, or doesn't exist. The caller would normally
+   * re-read the entity and retry.
+   * @throws GraphModelException 
+   */
+  public boolean compareAndSetPropertyByUid(String uid, long expectedVersion, 
+          String propertyName, Object propertyValue)
+      throws GraphModelException;
+  
+  /**
+   * Same as <code>compareAndSetPropertyByUid</code>, but identifies the
+   * entity by type and 'well known' name.
+   */
+  public boolean compareAndSetPropertyByName(String entityType, String entityName, 
+          long expectedVersion, String propertyName, Object propertyValue)
+      throws GraphModelException;
+  
   public String lookupUniqueIdForName(String entityType, String entityName)
       throws GraphModelException;
   
@@ -81,6 +191,24 @@ public interface GraphEntityDAO
   public DBObject getByName(String entityType, String entityName)
       throws GraphModelException;
   
+  /**
+   * Projection-aware version of <code>getByUid</code>. 
+   * 
+   * @param fields the fields to return (a MongoDB projection), or null to 
+   * return the whole document
+   */
+  public DBObject getByUid(String uid, DBObject fields)
+      throws GraphModelException;
+  
+  /**
+   * Projection-aware version of <code>getByName</code>.
+   * 
+   * @param fields the fields to return (a MongoDB projection), or null to 
+   * return the whole document
+   */
+  public DBObject getByName(String entityType, String entityName, DBObject fields)
+      throws GraphModelException;
+  
   public boolean existsByUid(String uniqueId)
       throws GraphModelException;
   
@@ -95,12 +223,37 @@ public interface GraphEntityDAO
   public DBCursor iterateAll()
       throws GraphModelException;
   
+  /**
+   * Splits the collection into ranges of roughly equal size that can be 
+   * scanned concurrently, each with its own cursor. See 
+   * <code>ParallelScanner</code>.
+   * 
+   * @param partitionCount the desired number of partitions. Fewer may be 
+   * returned if the collection is small.
+   * @param fields the fields to return from each document, or null to return
+   * whole documents
+   * @param batchSize the cursor batch size, or 0 for the server default
+   * @return partitions that together cover the whole collection
+   * @throws GraphModelException 
+   */
+  public List<ScanPartition> partitionAll(int partitionCount, DBObject fields, int batchSize)
+      throws GraphModelException;
+  
   public List<String> listTypes()
       throws GraphModelException;
   
   public Iterable<DBObject> iterateByType(String typeName)
       throws GraphModelException;
   
+  /**
+   * Projection-aware version of <code>iterateByType</code>.
+   * 
+   * @param fields the fields to return (a MongoDB projection), or null to 
+   * return whole documents
+   */
+  public Iterable<DBObject> iterateByType(String typeName, DBObject fields)
+      throws GraphModelException;
+  
 
   public Iterable<String> iterateIdsByType(String typeName, int offset, int limit)
       throws GraphModelException;
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.graph;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Scans a whole graph entity collection using one cursor per
+ * <code>ScanPartition</code>, running the partitions as tasks on a
+ * fork-join pool. Whole-graph jobs (exports, analytics) are otherwise limited
+ * to the throughput of the single cursor returned by <code>iterateAll</code>.
+ *
+ * The collection is split into several partitions per pool thread, so that
+ * threads that finish early can steal the remaining partitions.
+ *
+ * @author Keith Flanagan
+ */
+public class ParallelScanner
+{
+  private static final Logger logger =
+      Logger.getLogger(ParallelScanner.class.getName());
+
+  public static final int DEFAULT_PARTITIONS_PER_THREAD = 4;
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+
+  private final GraphEntityDAO dao;
+  private final ForkJoinPool pool;
+
+  private DBObject fields;
+  private int batchSize;
+  private int partitionsPerThread;
+
+  /**
+   * Creates a scanner that uses the given pool. The pool's parallelism
+   * should not exceed the number of connections available to the Mongo
+   * driver.
+   */
+  public ParallelScanner(GraphEntityDAO dao, ForkJoinPool pool)
+  {
+    this.dao = dao;
+    this.pool = pool;
+    this.batchSize = DEFAULT_BATCH_SIZE;
+    this.partitionsPerThread = DEFAULT_PARTITIONS_PER_THREAD;
+  }
+
+  /**
+   * Performs a scan. Blocks until every partition has been read, or until
+   * the visitor or a cursor fails, in which case the remaining partitions
+   * are cancelled.
+   *
+   * @return the number of documents visited
+   * @throws GraphModelException
+   */
+  public long scan(ScanVisitor visitor)
+      throws GraphModelException
+  {
+    int partitionCount = Math.max(1, pool.getParallelism() * partitionsPerThread);
+    List<ScanPartition> partitions = dao.partitionAll(partitionCount, fields, batchSize);
+    logger.log(Level.FINE, "Scanning {0} with {1} partitions",
+        new Object[] { dao.getCollection().getName(), partitions.size() });
+    try {
+      return pool.invoke(new ScanAllTask(partitions, visitor));
+    }
+    catch(RuntimeException e) {
+      // The pool may rethrow a copy of the task's exception that wraps it
+      for (Throwable t = e; t != null; t = t.getCause()) {
+        if (t instanceof GraphModelException) {
+          throw (GraphModelException) t;
+        }
+      }
+      throw new GraphModelException("Parallel scan of "
+          + dao.getCollection().getName()+" failed", e);
+    }
+  }
+
+  public DBObject getFields() {
+    return fields;
+  }
+
+  /**
+   * Sets the projection used by every partition cursor, or null to return
+   * whole documents.
+   */
+  public void setFields(DBObject fields) {
+    this.fields = fields;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public int getPartitionsPerThread() {
+    return partitionsPerThread;
+  }
+
+  public void setPartitionsPerThread(int partitionsPerThread) {
+    this.partitionsPerThread = partitionsPerThread;
+  }
+
+  private static class ScanAllTask
+      extends RecursiveTask<Long>
+  {
+    private final List<ScanPartition> partitions;
+    private final ScanVisitor visitor;
+
+    private ScanAllTask(List<ScanPartition> partitions, ScanVisitor visitor)
+    {
+      this.partitions = partitions;
+      this.visitor = visitor;
+    }
+
+    @Override
+    protected Long compute()
+    {
+      List<ScanPartitionTask> tasks = new ArrayList<>(partitions.size());
+      for (ScanPartition partition : partitions) {
+        tasks.add(new ScanPartitionTask(partition, visitor));
+      }
+      long total = 0;
+      for (ScanPartitionTask task : ForkJoinTask.invokeAll(tasks)) {
+        total = total + task.join();
+      }
+      return total;
+    }
+  }
+
+  private static class ScanPartitionTask
+      extends RecursiveTask<Long>
+  {
+    private final ScanPartition partition;
+    private final ScanVisitor visitor;
+
+    private ScanPartitionTask(ScanPartition partition, ScanVisitor visitor)
+    {
+      this.partition = partition;
+      this.visitor = visitor;
+    }
+
+    @Override
+    protected Long compute()
+    {
+      long count = 0;
+      try {
+        DBCursor cursor = partition.openCursor();
+        try {
+          while (cursor.hasNext()) {
+            visitor.visit(partition, cursor.next());
+            count++;
+          }
+        }
+        finally {
+          cursor.close();
+        }
+      }
+      catch(GraphModelException e) {
+        throw new ScanFailedException(e);
+      }
+      return count;
+    }
+  }
+
+  /*
+   * Carries a checked exception out of a fork-join task.
+   */
+  private static class ScanFailedException
+      extends RuntimeException
+  {
+    private ScanFailedException(GraphModelException cause)
+    {
+      super(cause);
+    }
+  }
+}
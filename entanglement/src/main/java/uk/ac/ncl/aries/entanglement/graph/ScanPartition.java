@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.graph;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import java.util.Iterator;
+
+/**
+ * A contiguous range of a graph entity collection, bounded by document
+ * <code>_id</code>. Partitions returned by
+ * <code>GraphEntityDAO.partitionAll</code> don't overlap and together cover
+ * every document in the collection, so each can be scanned by a separate
+ * thread with its own cursor.
+ *
+ * Each call to <code>iterator</code> opens a new cursor. Cursors are
+ * exhausted (and therefore closed by the driver) when fully iterated;
+ * callers that stop early should close the cursor returned by
+ * <code>openCursor</code> themselves.
+ *
+ * @author Keith Flanagan
+ */
+public class ScanPartition
+    implements Iterable<DBObject>
+{
+  public static final String FIELD_ID = "_id";
+
+  private final DBCollection col;
+  private final int index;
+  private final Object minId;
+  private final Object maxId;
+  private final DBObject fields;
+  private final int batchSize;
+
+  /**
+   * @param col the collection to scan
+   * @param index the position of this partition in its partition list
+   * @param minId the inclusive lower bound, or null for no lower bound
+   * @param maxId the exclusive upper bound, or null for no upper bound
+   * @param fields the fields to return, or null for whole documents
+   * @param batchSize the number of documents per cursor batch, or 0 for the
+   * server default
+   */
+  public ScanPartition(DBCollection col, int index, Object minId, Object maxId,
+      DBObject fields, int batchSize)
+  {
+    this.col = col;
+    this.index = index;
+    this.minId = minId;
+    this.maxId = maxId;
+    this.fields = fields;
+    this.batchSize = batchSize;
+  }
+
+  public DBObject getQuery()
+  {
+    BasicDBObject query = new BasicDBObject();
+    if (minId != null || maxId != null) {
+      BasicDBObject range = new BasicDBObject();
+      if (minId != null) {
+        range.append("$gte", minId);
+      }
+      if (maxId != null) {
+        range.append("$lt", maxId);
+      }
+      query.append(FIELD_ID, range);
+    }
+    return query;
+  }
+
+  /**
+   * Opens a cursor over this partition. Documents are returned in
+   * <code>_id</code> order, which lets the server walk the <code>_id</code>
+   * index rather than the whole collection.
+   */
+  public DBCursor openCursor()
+      throws GraphModelException
+  {
+    DBObject query = getQuery();
+    try {
+      DBCursor cursor = fields == null ? col.find(query) : col.find(query, fields);
+      cursor.sort(new BasicDBObject(FIELD_ID, 1));
+      if (batchSize > 0) {
+        cursor.batchSize(batchSize);
+      }
+      return cursor;
+    }
+    catch(Exception e) {
+      throw new GraphModelException("Failed to perform database operation: \n"
+          + "Query: "+query, e);
+    }
+  }
+
+  @Override
+  public Iterator<DBObject> iterator()
+  {
+    try {
+      return openCursor();
+    }
+    catch(GraphModelException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public Object getMinId() {
+    return minId;
+  }
+
+  public Object getMaxId() {
+    return maxId;
+  }
+
+  @Override
+  public String toString() {
+    return "ScanPartition{" + "index=" + index + ", minId=" + minId
+        + ", maxId=" + maxId + '}';
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.graph;
+
+import com.mongodb.DBObject;
+
+/**
+ * Receives documents from a <code>ParallelScanner</code>. A single instance
+ * is called concurrently from several threads, so implementations must be
+ * thread safe.
+ *
+ * @author Keith Flanagan
+ */
+public interface ScanVisitor
+{
+  /**
+   * @param partition the partition that the document was read from. Calls
+   * for any one partition are made by one thread, in <code>_id</code> order.
+   * @param document the document read
+   * @throws GraphModelException to abort the scan
+   */
+  public void visit(ScanPartition partition, DBObject document)
+      throws GraphModelException;
+}
@@ -0,0 +1,636 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.graph.adjacency;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.graph.EdgeDAO;
+import uk.ac.ncl.aries.entanglement.graph.GraphModelException;
+
+/**
+ * An in-memory index of the topology of a graph checkout, for traversals 
+ * that would otherwise need one database query per node per hop.
+ * 
+ * Node UIDs, node types and edge types are interned to dense int codes. Edges
+ * are held in primitive arrays, and are indexed in both directions in 
+ * compressed sparse row (CSR) form: the outgoing edges of node <i>n</i> are 
+ * <code>outEdges[outOffsets[n] .. outOffsets[n+1])</code>, and likewise for 
+ * incoming edges. Apart from the edge UID lookup table, the index costs 
+ * roughly 24 bytes per edge.
+ * 
+ * CSR arrays can't be updated in place. Edges added after the last 
+ * compaction are held in small per-node lists, and removed edges are marked 
+ * in a bit set. Once these amount to more than an eighth of the indexed 
+ * edges, the CSR arrays are rebuilt. Node IDs are never reassigned, so they 
+ * can be held by callers across updates.
+ * 
+ * Build an index with <code>build</code>, and keep it up to date with an
+ * <code>AdjacencyIndexUpdater</code>. Instances are thread safe; queries 
+ * run concurrently with each other, but not with updates.
+ * 
+ * @author Keith Flanagan
+ */
+public class AdjacencyIndex
+{
+  private static final Logger logger =
+      Logger.getLogger(AdjacencyIndex.class.getName());
+  
+  public static final int NOT_FOUND = Dictionary.NOT_FOUND;
+  /**
+   * May be passed wherever an edge type code is expected, to match edges of
+   * any type.
+   */
+  public static final int ANY_TYPE = -1;
+  
+  private static final int MIN_COMPACTION_DELTA = 4096;
+  
+  private final ReadWriteLock lock;
+  
+  private final Dictionary nodes;
+  private final Dictionary nodeTypes;
+  private final Dictionary edgeTypes;
+  /*
+   * Node ID -> node type code, or NOT_FOUND if the node type isn't known
+   */
+  private final IntList nodeTypeCodes;
+  
+  /*
+   * The edge table, indexed by edge ID. Edge IDs are reassigned on compaction.
+   */
+  private Dictionary edgeUids;
+  private IntList edgeFrom;
+  private IntList edgeTo;
+  private IntList edgeType;
+  private BitSet removed;
+  private int removedCount;
+  
+  /*
+   * CSR arrays over edges [0, csrEdgeCount) and nodes [0, csrNodeCount)
+   */
+  private int csrNodeCount;
+  private int csrEdgeCount;
+  private int[] outOffsets;
+  private int[] outEdges;
+  private int[] inOffsets;
+  private int[] inEdges;
+  
+  /*
+   * Node ID -> IDs of edges added since the last compaction
+   */
+  private Map<Integer, IntList> deltaOut;
+  private Map<Integer, IntList> deltaIn;
+  
+  private volatile boolean stale;
+
+  public AdjacencyIndex()
+  {
+    lock = new ReentrantReadWriteLock();
+    nodes = new Dictionary();
+    nodeTypes = new Dictionary();
+    edgeTypes = new Dictionary();
+    nodeTypeCodes = new IntList(1024);
+    resetEdges(1024);
+  }
+  
+  /**
+   * Builds an index by streaming the whole edge collection. Only the fields
+   * needed by the index are fetched.
+   * 
+   * @param edgeDao the edge collection to index
+   * @param batchSize the cursor batch size, or 0 for the server default
+   */
+  public static AdjacencyIndex build(EdgeDAO edgeDao, int batchSize)
+      throws GraphModelException
+  {
+    DBObject fields = new BasicDBObject(EdgeDAO.FIELD_UID, 1)
+        .append(EdgeDAO.FIELD_TYPE, 1)
+        .append(EdgeDAO.FIELD_FROM_NODE_UID, 1)
+        .append(EdgeDAO.FIELD_FROM_NODE_TYPE, 1)
+        .append(EdgeDAO.FIELD_TO_NODE_UID, 1)
+        .append(EdgeDAO.FIELD_TO_NODE_TYPE, 1)
+        .append("_id", 0);
+    long start = System.currentTimeMillis();
+    AdjacencyIndex index = new AdjacencyIndex();
+    DBCursor cursor = null;
+    try {
+      cursor = edgeDao.getCollection().find(new BasicDBObject(), fields);
+      if (batchSize > 0) {
+        cursor.batchSize(batchSize);
+      }
+      index.lock.writeLock().lock();
+      try {
+        while (cursor.hasNext()) {
+          DBObject edge = cursor.next();
+          index.addEdgeInternal(
+              (String) edge.get(EdgeDAO.FIELD_UID),
+              (String) edge.get(EdgeDAO.FIELD_TYPE),
+              (String) edge.get(EdgeDAO.FIELD_FROM_NODE_UID),
+              (String) edge.get(EdgeDAO.FIELD_FROM_NODE_TYPE),
+              (String) edge.get(EdgeDAO.FIELD_TO_NODE_UID),
+              (String) edge.get(EdgeDAO.FIELD_TO_NODE_TYPE));
+        }
+        index.compact();
+      }
+      finally {
+        index.lock.writeLock().unlock();
+      }
+    }
+    catch(Exception e) {
+      throw new GraphModelException("Failed to build an adjacency index for: "
+          + edgeDao.getCollection().getName(), e);
+    }
+    finally {
+      if (cursor != null) {
+        cursor.close();
+      }
+    }
+    logger.log(Level.INFO, "Indexed {0} edges between {1} nodes in {2} ms",
+        new Object[] { index.getEdgeCount(), index.getNodeCount(), 
+          System.currentTimeMillis() - start });
+    return index;
+  }
+  
+  /**
+   * Adds an edge. Adding an edge whose UID is already present has no effect.
+   * 
+   * @param fromType the type of the 'from' node, or null if unknown
+   * @param toType the type of the 'to' node, or null if unknown
+   * @return true if the edge was added
+   */
+  public boolean addEdge(String uid, String type, String fromUid, String fromType,
+      String toUid, String toType)
+  {
+    lock.writeLock().lock();
+    try {
+      boolean added = addEdgeInternal(uid, type, fromUid, fromType, toUid, toType);
+      maybeCompact();
+      return added;
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+  
+  /**
+   * Removes an edge by UID.
+   * 
+   * @return true if the edge was present
+   */
+  public boolean removeEdge(String uid)
+  {
+    lock.writeLock().lock();
+    try {
+      int edge = edgeUids.lookup(uid);
+      if (edge == NOT_FOUND || removed.get(edge)) {
+        return false;
+      }
+      removed.set(edge);
+      removedCount++;
+      maybeCompact();
+      return true;
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+  
+  /**
+   * Marks this index as possibly out of date with respect to the database,
+   * for example because an update could not be applied. A stale index 
+   * should be rebuilt.
+   */
+  public void markStale()
+  {
+    stale = true;
+  }
+
+  public boolean isStale() {
+    return stale;
+  }
+  
+  /**
+   * @return the ID of the node with the specified UID, or <code>NOT_FOUND</code>
+   * if no edge has been indexed that starts or ends at that node.
+   */
+  public int getNodeId(String nodeUid)
+  {
+    lock.readLock().lock();
+    try {
+      return nodes.lookup(nodeUid);
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+  
+  public String getNodeUid(int nodeId)
+  {
+    lock.readLock().lock();
+    try {
+      return nodes.get(nodeId);
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+  
+  /**
+   * @return the type of the node with the specified ID, or null if unknown
+   */
+  public String getNodeType(int nodeId)
+  {
+    lock.readLock().lock();
+    try {
+      int code = nodeTypeCodes.get(nodeId);
+      return code == NOT_FOUND ? null : nodeTypes.get(code);
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+  
+  /**
+   * @return the code for an edge type, or <code>NOT_FOUND</code> if no edge 
+   * of that type has been indexed
+   */
+  public int getEdgeTypeCode(String edgeType)
+  {
+    lock.readLock().lock();
+    try {
+      return edgeTypes.lookup(edgeType);
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+  
+  public int getNodeCount()
+  {
+    lock.readLock().lock();
+    try {
+      return nodes.size();
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+  
+  public int getEdgeCount()
+  {
+    lock.readLock().lock();
+    try {
+      return edgeUids.size() - removedCount;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+  
+  /**
+   * Returns the nodes reachable from a node by one outgoing edge. A node 
+   * appears once for each edge that leads to it.
+   * 
+   * @param nodeId the node to start from
+   * @param edgeTypeCode the type of edge to follow, or <code>ANY_TYPE</code>
+   * @return the IDs of the neighbouring nodes
+   */
+  public int[] getSuccessors(int nodeId, int edgeTypeCode)
+  {
+    lock.readLock().lock();
+    try {
+      IntList result = new IntList();
+      collectNeighbours(nodeId, true, edgeTypeCode, result);
+      return result.toArray();
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+  
+  /**
+   * Returns the nodes from which a node is reachable by one edge. A node 
+   * appears once for each edge that leads from it.
+   * 
+   * @param nodeId the node whose incoming edges are followed
+   * @param edgeTypeCode the type of edge to follow, or <code>ANY_TYPE</code>
+   * @return the IDs of the neighbouring nodes
+   */
+  public int[] getPredecessors(int nodeId, int edgeTypeCode)
+  {
+    lock.readLock().lock();
+    try {
+      IntList result = new IntList();
+      collectNeighbours(nodeId, false, edgeTypeCode, result);
+      return result.toArray();
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+  
+  /**
+   * UID-based equivalent of <code>getSuccessors</code>.
+   * 
+   * @param edgeType the type of edge to follow, or null for any type
+   */
+  public List<String> getSuccessors(String nodeUid, String edgeType)
+  {
+    return getNeighbourUids(nodeUid, edgeType, true);
+  }
+  
+  /**
+   * UID-based equivalent of <code>getPredecessors</code>.
+   * 
+   * @param edgeType the type of edge to follow, or null for any type
+   */
+  public List<String> getPredecessors(String nodeUid, String edgeType)
+  {
+    return getNeighbourUids(nodeUid, edgeType, false);
+  }
+  
+  /**
+   * In-memory equivalent of <code>EdgeDAO.existsEdgeToNodeOfType</code>.
+   */
+  public boolean existsEdgeToNodeOfType(String fromNodeUid, String toNodeType)
+  {
+    lock.readLock().lock();
+    try {
+      int node = nodes.lookup(fromNodeUid);
+      int typeCode = nodeTypes.lookup(toNodeType);
+      if (node == NOT_FOUND || typeCode == NOT_FOUND) {
+        return false;
+      }
+      IntList successors = new IntList();
+      collectNeighbours(node, true, ANY_TYPE, successors);
+      for (int i = 0; i < successors.size(); i++) {
+        if (nodeTypeCodes.get(successors.get(i)) == typeCode) {
+          return true;
+        }
+      }
+      return false;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+  
+  /**
+   * Finds a shortest directed path between two nodes with a breadth-first 
+   * search.
+   * 
+   * @param maxDepth the maximum number of edges in the path
+   * @return the UIDs of the nodes on the path, including both end points, or
+   * an empty list if there is no such path
+   */
+  public List<String> findShortestPath(String fromNodeUid, String toNodeUid, int maxDepth)
+  {
+    lock.readLock().lock();
+    try {
+      int from = nodes.lookup(fromNodeUid);
+      int to = nodes.lookup(toNodeUid);
+      if (from == NOT_FOUND || to == NOT_FOUND) {
+        return Collections.emptyList();
+      }
+      if (from == to) {
+        return Collections.singletonList(fromNodeUid);
+      }
+      int[] parent = new int[nodes.size()];
+      Arrays.fill(parent, NOT_FOUND);
+      parent[from] = from;
+      IntList frontier = new IntList();
+      frontier.add(from);
+      IntList neighbours = new IntList();
+      for (int depth = 0; depth < maxDepth && frontier.size() > 0; depth++) {
+        IntList next = new IntList();
+        for (int i = 0; i < frontier.size(); i++) {
+          int node = frontier.get(i);
+          neighbours.clear();
+          collectNeighbours(node, true, ANY_TYPE, neighbours);
+          for (int j = 0; j < neighbours.size(); j++) {
+            int neighbour = neighbours.get(j);
+            if (parent[neighbour] != NOT_FOUND) {
+              continue;
+            }
+            parent[neighbour] = node;
+            if (neighbour == to) {
+              List<String> path = new ArrayList<>(depth + 2);
+              for (int n = to; n != from; n = parent[n]) {
+                path.add(nodes.get(n));
+              }
+              path.add(fromNodeUid);
+              Collections.reverse(path);
+              return path;
+            }
+            next.add(neighbour);
+          }
+        }
+        frontier = next;
+      }
+      return Collections.emptyList();
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+  
+  private List<String> getNeighbourUids(String nodeUid, String edgeType, boolean outgoing)
+  {
+    lock.readLock().lock();
+    try {
+      int node = nodes.lookup(nodeUid);
+      int typeCode = edgeType == null ? ANY_TYPE : edgeTypes.lookup(edgeType);
+      if (node == NOT_FOUND || (edgeType != null && typeCode == NOT_FOUND)) {
+        return Collections.emptyList();
+      }
+      IntList ids = new IntList();
+      collectNeighbours(node, outgoing, typeCode, ids);
+      List<String> uids = new ArrayList<>(ids.size());
+      for (int i = 0; i < ids.size(); i++) {
+        uids.add(nodes.get(ids.get(i)));
+      }
+      return uids;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+  
+  /*
+   * Must be called with the read or write lock held.
+   */
+  private void collectNeighbours(int node, boolean outgoing, int typeCode, IntList result)
+  {
+    IntList ends = outgoing ? edgeTo : edgeFrom;
+    if (node < csrNodeCount) {
+      int[] offsets = outgoing ? outOffsets : inOffsets;
+      int[] edges = outgoing ? outEdges : inEdges;
+      for (int i = offsets[node]; i < offsets[node + 1]; i++) {
+        addIfMatches(edges[i], ends, typeCode, result);
+      }
+    }
+    IntList delta = (outgoing ? deltaOut : deltaIn).get(node);
+    if (delta != null) {
+      for (int i = 0; i < delta.size(); i++) {
+        addIfMatches(delta.get(i), ends, typeCode, result);
+      }
+    }
+  }
+  
+  private void addIfMatches(int edge, IntList ends, int typeCode, IntList result)
+  {
+    if (removedCount > 0 && removed.get(edge)) {
+      return;
+    }
+    if (typeCode != ANY_TYPE && edgeType.get(edge) != typeCode) {
+      return;
+    }
+    result.add(ends.get(edge));
+  }
+  
+  /*
+   * Must be called with the write lock held.
+   */
+  private boolean addEdgeInternal(String uid, String type, String fromUid, 
+      String fromType, String toUid, String toType)
+  {
+    int existing = edgeUids.lookup(uid);
+    if (existing != NOT_FOUND) {
+      if (!removed.get(existing)) {
+        return false;
+      }
+      // Drop the removed edge, so that its UID can be reused
+      compact();
+    }
+    int from = internNode(fromUid, fromType);
+    int to = internNode(toUid, toType);
+    int edge = edgeUids.intern(uid);
+    edgeFrom.add(from);
+    edgeTo.add(to);
+    edgeType.add(edgeTypes.intern(type));
+    addToDelta(deltaOut, from, edge);
+    addToDelta(deltaIn, to, edge);
+    return true;
+  }
+  
+  private int internNode(String nodeUid, String nodeType)
+  {
+    int node = nodes.intern(nodeUid);
+    if (node == nodeTypeCodes.size()) {
+      nodeTypeCodes.add(NOT_FOUND);
+    }
+    if (nodeType != null && nodeTypeCodes.get(node) == NOT_FOUND) {
+      nodeTypeCodes.set(node, nodeTypes.intern(nodeType));
+    }
+    return node;
+  }
+  
+  private static void addToDelta(Map<Integer, IntList> delta, int node, int edge)
+  {
+    IntList edges = delta.get(node);
+    if (edges == null) {
+      edges = new IntList(4);
+      delta.put(node, edges);
+    }
+    edges.add(edge);
+  }
+  
+  private void maybeCompact()
+  {
+    int pending = (edgeUids.size() - csrEdgeCount) + removedCount;
+    if (pending > Math.max(MIN_COMPACTION_DELTA, csrEdgeCount / 8)) {
+      compact();
+    }
+  }
+  
+  /*
+   * Drops removed edges, renumbers the remaining ones and rebuilds the CSR
+   * arrays. Must be called with the write lock held.
+   */
+  private void compact()
+  {
+    Dictionary oldUids = edgeUids;
+    IntList oldFrom = edgeFrom;
+    IntList oldTo = edgeTo;
+    IntList oldType = edgeType;
+    BitSet oldRemoved = removed;
+    
+    int edgeCount = oldUids.size() - removedCount;
+    resetEdges(edgeCount);
+    for (int i = 0; i < oldUids.size(); i++) {
+      if (oldRemoved.get(i)) {
+        continue;
+      }
+      edgeUids.intern(oldUids.get(i));
+      edgeFrom.add(oldFrom.get(i));
+      edgeTo.add(oldTo.get(i));
+      edgeType.add(oldType.get(i));
+    }
+    
+    int nodeCount = nodes.size();
+    outOffsets = new int[nodeCount + 1];
+    inOffsets = new int[nodeCount + 1];
+    for (int i = 0; i < edgeCount; i++) {
+      outOffsets[edgeFrom.get(i) + 1]++;
+      inOffsets[edgeTo.get(i) + 1]++;
+    }
+    for (int n = 0; n < nodeCount; n++) {
+      outOffsets[n + 1] += outOffsets[n];
+      inOffsets[n + 1] += inOffsets[n];
+    }
+    outEdges = new int[edgeCount];
+    inEdges = new int[edgeCount];
+    int[] outPos = Arrays.copyOf(outOffsets, nodeCount);
+    int[] inPos = Arrays.copyOf(inOffsets, nodeCount);
+    for (int i = 0; i < edgeCount; i++) {
+      outEdges[outPos[edgeFrom.get(i)]++] = i;
+      inEdges[inPos[edgeTo.get(i)]++] = i;
+    }
+    csrNodeCount = nodeCount;
+    csrEdgeCount = edgeCount;
+  }
+  
+  private void resetEdges(int capacity)
+  {
+    edgeUids = new Dictionary();
+    edgeFrom = new IntList(capacity);
+    edgeTo = new IntList(capacity);
+    edgeType = new IntList(capacity);
+    removed = new BitSet();
+    removedCount = 0;
+    deltaOut = new HashMap<>();
+    deltaIn = new HashMap<>();
+    csrNodeCount = 0;
+    csrEdgeCount = 0;
+    outOffsets = new int[1];
+    inOffsets = new int[1];
+    outEdges = new int[0];
+    inEdges = new int[0];
+  }
+}
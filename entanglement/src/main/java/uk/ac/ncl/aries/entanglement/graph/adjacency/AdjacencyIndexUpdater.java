@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.graph.adjacency;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.graph.EdgeDAO;
+import uk.ac.ncl.aries.entanglement.graph.GraphModelException;
+import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
+import uk.ac.ncl.aries.entanglement.player.LogPlayer;
+import uk.ac.ncl.aries.entanglement.revlog.RevisionLog;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateEdge;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateEdgeIfNotExists;
+import uk.ac.ncl.aries.entanglement.revlog.commands.DeleteEdgeByUid;
+import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
+import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionCommit;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItemContainer;
+import uk.ac.ncl.aries.entanglement.util.experimental.GraphOpPostCommitPlayer;
+
+/**
+ * A <code>GraphOpPostCommitPlayer</code> that also keeps an 
+ * <code>AdjacencyIndex</code> up to date. Each committed transaction is first
+ * played to the working copy, and its edge operations are then applied to 
+ * the index. Register this instead of a plain 
+ * <code>GraphOpPostCommitPlayer</code>.
+ * 
+ * Edge operations may refer to end points by name, and may leave the edge 
+ * UID to be generated when the operation is played. These are resolved from
+ * the working copy, which is why the index is updated only after the 
+ * transaction has been played. If an operation can't be applied, the index
+ * is marked stale and should be rebuilt.
+ * 
+ * @author Keith Flanagan
+ */
+public class AdjacencyIndexUpdater
+    extends GraphOpPostCommitPlayer
+{
+  private static final Logger logger =
+      Logger.getLogger(AdjacencyIndexUpdater.class.getName());
+  
+  private final AdjacencyIndex index;
+  private final RevisionLog revLog;
+  private final NodeDAO nodeDao;
+  private final EdgeDAO edgeDao;
+
+  public AdjacencyIndexUpdater(LogPlayer player, AdjacencyIndex index, 
+      RevisionLog revLog, NodeDAO nodeDao, EdgeDAO edgeDao)
+  {
+    super(player);
+    this.index = index;
+    this.revLog = revLog;
+    this.nodeDao = nodeDao;
+    this.edgeDao = edgeDao;
+  }
+
+  @Override
+  public void notifyPostCommit(TransactionCommit op) {
+    super.notifyPostCommit(op);
+    try {
+      for (RevisionItemContainer container : revLog.iterateRevisionsForTransaction(op.getUid())) {
+        for (RevisionItem item : container.getItems()) {
+          applyItem(item);
+        }
+      }
+    }
+    catch(Exception e) {
+      logger.log(Level.WARNING, "Failed to update the adjacency index for "
+          + "transaction: "+op.getUid()+". The index is now stale.", e);
+      index.markStale();
+    }
+  }
+  
+  private void applyItem(RevisionItem item)
+      throws GraphModelException
+  {
+    GraphOperation op = item.getOp();
+    if (op instanceof CreateEdge) {
+      addEdge(((CreateEdge) op).getEdge());
+    }
+    else if (op instanceof CreateEdgeIfNotExists) {
+      addEdge(((CreateEdgeIfNotExists) op).getEdge());
+    }
+    else if (op instanceof DeleteEdgeByUid) {
+      index.removeEdge(((DeleteEdgeByUid) op).getUid());
+    }
+  }
+  
+  private void addEdge(BasicDBObject edge)
+      throws GraphModelException
+  {
+    String fromType = edge.getString(EdgeDAO.FIELD_FROM_NODE_TYPE);
+    String toType = edge.getString(EdgeDAO.FIELD_TO_NODE_TYPE);
+    String fromUid = resolveNode(edge, EdgeDAO.FIELD_FROM_NODE_UID, 
+        fromType, EdgeDAO.FIELD_FROM_NODE_NAME);
+    String toUid = resolveNode(edge, EdgeDAO.FIELD_TO_NODE_UID, 
+        toType, EdgeDAO.FIELD_TO_NODE_NAME);
+    
+    String uid = edge.getString(EdgeDAO.FIELD_UID);
+    if (uid != null) {
+      index.addEdge(uid, edge.getString(EdgeDAO.FIELD_TYPE), fromUid, fromType, toUid, toType);
+      return;
+    }
+    /*
+     * The UID was generated when the operation was played, so pick up any 
+     * edges between the two nodes that aren't indexed yet. Adding an edge 
+     * that is already indexed has no effect.
+     */
+    DBObject fields = new BasicDBObject(EdgeDAO.FIELD_UID, 1).append(EdgeDAO.FIELD_TYPE, 1);
+    for (DBObject stored : edgeDao.iterateEdgesBetweenNodes(fromUid, toUid, fields)) {
+      index.addEdge((String) stored.get(EdgeDAO.FIELD_UID), 
+          (String) stored.get(EdgeDAO.FIELD_TYPE), fromUid, fromType, toUid, toType);
+    }
+  }
+  
+  private String resolveNode(BasicDBObject edge, String uidField, String nodeType, 
+      String nameField)
+      throws GraphModelException
+  {
+    String uid = edge.getString(uidField);
+    if (uid == null) {
+      uid = nodeDao.lookupUniqueIdForName(nodeType, edge.getString(nameField));
+    }
+    if (uid == null) {
+      throw new GraphModelException("Can't resolve the "+uidField
+          + " end point of edge: "+edge);
+    }
+    return uid;
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.graph.adjacency;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns strings to dense int codes, starting at 0.
+ * 
+ * @author Keith Flanagan
+ */
+class Dictionary
+{
+  static final int NOT_FOUND = -1;
+  
+  private final Map<String, Integer> codes;
+  private final List<String> values;
+
+  Dictionary()
+  {
+    codes = new HashMap<>();
+    values = new ArrayList<>();
+  }
+  
+  int intern(String value)
+  {
+    Integer code = codes.get(value);
+    if (code == null) {
+      code = values.size();
+      codes.put(value, code);
+      values.add(value);
+    }
+    return code;
+  }
+  
+  int lookup(String value)
+  {
+    Integer code = codes.get(value);
+    return code == null ? NOT_FOUND : code;
+  }
+  
+  String get(int code)
+  {
+    return values.get(code);
+  }
+  
+  int size()
+  {
+    return values.size();
+  }
+}
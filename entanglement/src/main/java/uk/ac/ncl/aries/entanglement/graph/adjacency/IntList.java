@@ -0,0 +1,74 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.graph.adjacency;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints.
+ * 
+ * @author Keith Flanagan
+ */
+class IntList
+{
+  private int[] data;
+  private int size;
+
+  IntList()
+  {
+    this(16);
+  }
+  
+  IntList(int initialCapacity)
+  {
+    data = new int[Math.max(initialCapacity, 1)];
+  }
+  
+  void add(int value)
+  {
+    if (size == data.length) {
+      data = Arrays.copyOf(data, data.length + (data.length >> 1) + 1);
+    }
+    data[size++] = value;
+  }
+  
+  int get(int index)
+  {
+    return data[index];
+  }
+  
+  void set(int index, int value)
+  {
+    data[index] = value;
+  }
+  
+  int size()
+  {
+    return size;
+  }
+  
+  void clear()
+  {
+    size = 0;
+  }
+  
+  int[] toArray()
+  {
+    return Arrays.copyOf(data, size);
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values with a fixed memory footprint.
+ * 
+ * Values are counted in log-linear buckets: each power of two is split into
+ * 16 equal sub-buckets, so percentiles are accurate to within about 6%. Values
+ * below 16 are counted exactly. The count, minimum, maximum and mean are 
+ * exact. Recorded values are never discarded, so percentiles describe 
+ * everything recorded since the histogram was created or last reset.
+ * 
+ * @author Keith Flanagan
+ */
+public class InMemoryHistogram
+    implements MetricHistogram
+{
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Enough buckets for every non-negative long
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+  
+  private final AtomicLongArray buckets;
+  private final AtomicLong count;
+  private final AtomicLong sum;
+  private final AtomicLong min;
+  private final AtomicLong max;
+
+  public InMemoryHistogram()
+  {
+    buckets = new AtomicLongArray(BUCKETS);
+    count = new AtomicLong(0);
+    sum = new AtomicLong(0);
+    min = new AtomicLong(Long.MAX_VALUE);
+    max = new AtomicLong(Long.MIN_VALUE);
+  }
+  
+  @Override
+  public void update(long value)
+  {
+    if (value < 0) {
+      value = 0;
+    }
+    buckets.incrementAndGet(_bucketFor(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    
+    long current = min.get();
+    while (value < current && !min.compareAndSet(current, value)) {
+      current = min.get();
+    }
+    current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+  
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Returns a snapshot of the histogram. Updates that happen while the 
+   * snapshot is being taken may be partially included.
+   */
+  @Override
+  public MetricSnapshot getSnapshot()
+  {
+    long[] copy = new long[BUCKETS];
+    long total = 0;
+    for (int i=0; i<BUCKETS; i++) {
+      copy[i] = buckets.get(i);
+      total = total + copy[i];
+    }
+    if (total == 0) {
+      return new MetricSnapshot(0, 0, 0, 0, 0, 0, 0, 0);
+    }
+    long minVal = min.get();
+    long maxVal = max.get();
+    double mean = (double) sum.get() / count.get();
+    return new MetricSnapshot(total, minVal, maxVal, mean,
+        _percentile(copy, total, 0.5, minVal, maxVal),
+        _percentile(copy, total, 0.95, minVal, maxVal),
+        _percentile(copy, total, 0.99, minVal, maxVal),
+        _percentile(copy, total, 0.999, minVal, maxVal));
+  }
+  
+  public void reset()
+  {
+    for (int i=0; i<BUCKETS; i++) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    min.set(Long.MAX_VALUE);
+    max.set(Long.MIN_VALUE);
+  }
+  
+  private static long _percentile(long[] counts, long total, double quantile,
+          long minVal, long maxVal)
+  {
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i=0; i<counts.length; i++) {
+      seen = seen + counts[i];
+      if (seen >= rank && counts[i] > 0) {
+        // Report the middle of the bucket, clamped to the observed range
+        long lower = _bucketLowerBound(i);
+        long upper = i + 1 < BUCKETS ? _bucketLowerBound(i + 1) - 1 : Long.MAX_VALUE;
+        long mid = lower + (upper - lower) / 2;
+        return Math.max(minVal, Math.min(maxVal, mid));
+      }
+    }
+    return maxVal;
+  }
+  
+  private static int _bucketFor(long value)
+  {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+  
+  private static long _bucketLowerBound(int bucket)
+  {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+  }
+}
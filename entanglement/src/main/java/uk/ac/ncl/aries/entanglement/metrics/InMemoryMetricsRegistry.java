@@ -0,0 +1,197 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The default <code>MetricsRegistry</code>. Metrics are held in memory for 
+ * the lifetime of the registry, and histograms and timers provide approximate
+ * percentiles (see <code>InMemoryHistogram</code>).
+ * 
+ * @author Keith Flanagan
+ */
+public class InMemoryMetricsRegistry
+    implements MetricsRegistry
+{
+  private final ConcurrentMap<String, InMemoryCounter> counters;
+  private final ConcurrentMap<String, InMemoryTimer> timers;
+  private final ConcurrentMap<String, InMemoryHistogram> histograms;
+
+  public InMemoryMetricsRegistry()
+  {
+    counters = new ConcurrentHashMap<>();
+    timers = new ConcurrentHashMap<>();
+    histograms = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public MetricCounter counter(String name)
+  {
+    InMemoryCounter counter = counters.get(name);
+    if (counter == null) {
+      InMemoryCounter created = new InMemoryCounter();
+      counter = counters.putIfAbsent(name, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    return counter;
+  }
+
+  @Override
+  public MetricTimer timer(String name)
+  {
+    InMemoryTimer timer = timers.get(name);
+    if (timer == null) {
+      InMemoryTimer created = new InMemoryTimer();
+      timer = timers.putIfAbsent(name, created);
+      if (timer == null) {
+        timer = created;
+      }
+    }
+    return timer;
+  }
+
+  @Override
+  public MetricHistogram histogram(String name)
+  {
+    InMemoryHistogram histogram = histograms.get(name);
+    if (histogram == null) {
+      InMemoryHistogram created = new InMemoryHistogram();
+      histogram = histograms.putIfAbsent(name, created);
+      if (histogram == null) {
+        histogram = created;
+      }
+    }
+    return histogram;
+  }
+  
+  public SortedMap<String, Long> getCounterValues()
+  {
+    SortedMap<String, Long> values = new TreeMap<>();
+    for (Map.Entry<String, InMemoryCounter> entry : counters.entrySet()) {
+      values.put(entry.getKey(), entry.getValue().getCount());
+    }
+    return values;
+  }
+  
+  public SortedMap<String, MetricSnapshot> getTimerSnapshots()
+  {
+    SortedMap<String, MetricSnapshot> snapshots = new TreeMap<>();
+    for (Map.Entry<String, InMemoryTimer> entry : timers.entrySet()) {
+      snapshots.put(entry.getKey(), entry.getValue().getSnapshot());
+    }
+    return snapshots;
+  }
+  
+  public SortedMap<String, MetricSnapshot> getHistogramSnapshots()
+  {
+    SortedMap<String, MetricSnapshot> snapshots = new TreeMap<>();
+    for (Map.Entry<String, InMemoryHistogram> entry : histograms.entrySet()) {
+      snapshots.put(entry.getKey(), entry.getValue().getSnapshot());
+    }
+    return snapshots;
+  }
+  
+  /**
+   * Discards every metric recorded so far.
+   */
+  public void clear()
+  {
+    counters.clear();
+    timers.clear();
+    histograms.clear();
+  }
+  
+  /**
+   * @return a human-readable table of every metric. Timer values are shown in
+   * milliseconds.
+   */
+  public String formatReport()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Timers (ms):\n");
+    for (Map.Entry<String, MetricSnapshot> entry : getTimerSnapshots().entrySet()) {
+      MetricSnapshot s = entry.getValue();
+      sb.append(String.format("  %-50s count=%d mean=%.3f p50=%.3f p95=%.3f p99=%.3f max=%.3f%n",
+          entry.getKey(), s.getCount(), s.getMean() / 1000000d, 
+          _toMillis(s.getP50()), _toMillis(s.getP95()), _toMillis(s.getP99()), 
+          _toMillis(s.getMax())));
+    }
+    sb.append("Histograms:\n");
+    for (Map.Entry<String, MetricSnapshot> entry : getHistogramSnapshots().entrySet()) {
+      MetricSnapshot s = entry.getValue();
+      sb.append(String.format("  %-50s count=%d mean=%.1f p50=%d p95=%d p99=%d max=%d%n",
+          entry.getKey(), s.getCount(), s.getMean(), 
+          s.getP50(), s.getP95(), s.getP99(), s.getMax()));
+    }
+    sb.append("Counters:\n");
+    for (Map.Entry<String, Long> entry : getCounterValues().entrySet()) {
+      sb.append(String.format("  %-50s %d%n", entry.getKey(), entry.getValue()));
+    }
+    return sb.toString();
+  }
+  
+  private static double _toMillis(long nanos) {
+    return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+  
+  private static class InMemoryCounter
+      implements MetricCounter
+  {
+    private final AtomicLong count = new AtomicLong(0);
+
+    @Override
+    public void inc() {
+      count.incrementAndGet();
+    }
+
+    @Override
+    public void inc(long n) {
+      count.addAndGet(n);
+    }
+
+    @Override
+    public long getCount() {
+      return count.get();
+    }
+  }
+  
+  private static class InMemoryTimer
+      implements MetricTimer
+  {
+    private final InMemoryHistogram durations = new InMemoryHistogram();
+
+    @Override
+    public void update(long durationNanos) {
+      durations.update(durationNanos);
+    }
+
+    @Override
+    public MetricSnapshot getSnapshot() {
+      return durations.getSnapshot();
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Wraps an object in a dynamic proxy that times every call made through one
+ * of its interfaces. Each method gets a timer named 
+ * <code>&lt;prefix&gt;.&lt;methodName&gt;</code> (overloads share a timer), 
+ * and a counter named <code>&lt;prefix&gt;.&lt;methodName&gt;.errors</code> 
+ * that counts calls which threw an exception. Methods inherited from 
+ * <code>Object</code> are passed straight through.
+ * 
+ * Methods that return lazily evaluated results, such as database cursors, are
+ * timed only until they return.
+ * 
+ * @author Keith Flanagan
+ */
+public class InstrumentedProxy
+    implements InvocationHandler
+{
+  /**
+   * @param iface the interface to proxy
+   * @param target the object to forward calls to
+   * @param prefix the prefix of the metric names
+   * @return a proxy that implements <code>iface</code>
+   */
+  public static <T> T wrap(Class<T> iface, T target, String prefix)
+  {
+    Object proxy = Proxy.newProxyInstance(iface.getClassLoader(), 
+        new Class<?>[] { iface }, new InstrumentedProxy(target, prefix));
+    return iface.cast(proxy);
+  }
+  
+  /**
+   * @return the object that <code>obj</code> forwards calls to, if it was 
+   * created by <code>wrap</code>, or otherwise <code>obj</code> itself.
+   */
+  public static Object unwrap(Object obj)
+  {
+    if (obj != null && Proxy.isProxyClass(obj.getClass())) {
+      InvocationHandler handler = Proxy.getInvocationHandler(obj);
+      if (handler instanceof InstrumentedProxy) {
+        return ((InstrumentedProxy) handler).target;
+      }
+    }
+    return obj;
+  }
+  
+  private final Object target;
+  private final String prefix;
+  private final ConcurrentMap<Method, String> metricNames;
+
+  private InstrumentedProxy(Object target, String prefix)
+  {
+    this.target = target;
+    this.prefix = prefix;
+    this.metricNames = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args)
+      throws Throwable
+  {
+    if (method.getDeclaringClass() == Object.class) {
+      return _invoke(method, args);
+    }
+    String name = metricNames.get(method);
+    if (name == null) {
+      name = prefix + "." + method.getName();
+      metricNames.put(method, name);
+    }
+    
+    MetricsRegistry registry = Metrics.getRegistry();
+    long start = System.nanoTime();
+    try {
+      return _invoke(method, args);
+    }
+    catch(Throwable e) {
+      registry.counter(name + ".errors").inc();
+      throw e;
+    }
+    finally {
+      registry.timer(name).update(System.nanoTime() - start);
+    }
+  }
+  
+  private Object _invoke(Method method, Object[] args)
+      throws Throwable
+  {
+    try {
+      return method.invoke(target, args);
+    }
+    catch(InvocationTargetException e) {
+      // Rethrow what the target threw, so callers see its declared exceptions
+      throw e.getCause();
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.metrics;
+
+/**
+ * A point-in-time summary of a histogram or timer. Percentiles may be 
+ * approximate, depending on the registry implementation.
+ * 
+ * @author Keith Flanagan
+ */
+public class MetricSnapshot
+{
+  private final long count;
+  private final long min;
+  private final long max;
+  private final double mean;
+  private final long p50;
+  private final long p95;
+  private final long p99;
+  private final long p999;
+
+  public MetricSnapshot(long count, long min, long max, double mean, 
+          long p50, long p95, long p99, long p999)
+  {
+    this.count = count;
+    this.min = min;
+    this.max = max;
+    this.mean = mean;
+    this.p50 = p50;
+    this.p95 = p95;
+    this.p99 = p99;
+    this.p999 = p999;
+  }
+
+  @Override
+  public String toString() {
+    return "MetricSnapshot{" + "count=" + count + ", min=" + min + ", max=" + max 
+            + ", mean=" + mean + ", p50=" + p50 + ", p95=" + p95 
+            + ", p99=" + p99 + ", p999=" + p999 + '}';
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getMin() {
+    return min;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public double getMean() {
+    return mean;
+  }
+
+  public long getP50() {
+    return p50;
+  }
+
+  public long getP95() {
+    return p95;
+  }
+
+  public long getP99() {
+    return p99;
+  }
+
+  public long getP999() {
+    return p999;
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.metrics;
+
+/**
+ * Records the distribution of operation durations. Typical usage is:
+ * <pre>
+ * long start = System.nanoTime();
+ * try {
+ *   ...
+ * }
+ * finally {
+ *   timer.update(System.nanoTime() - start);
+ * }
+ * </pre>
+ * 
+ * @author Keith Flanagan
+ */
+public interface MetricTimer
+{
+  /**
+   * @param durationNanos the duration of one operation, in nanoseconds
+   */
+  public void update(long durationNanos);
+  
+  /**
+   * @return a snapshot of the recorded durations, in nanoseconds
+   */
+  public MetricSnapshot getSnapshot();
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.metrics;
+
+import java.util.Iterator;
+import java.util.ServiceLoader;
+import java.util.logging.Logger;
+
+/**
+ * Holds the <code>MetricsRegistry</code> used by Entanglement's revision log,
+ * DAOs, log players and marshaller. 
+ * 
+ * Unless <code>setRegistry</code> or <code>loadRegistry</code> is called, the
+ * registry is loaded on first use with <code>ServiceLoader</code>, using the
+ * class loader of this class. If no implementation is found, an 
+ * <code>InMemoryMetricsRegistry</code> is used.
+ * 
+ * Components look the registry up on every operation, so replacing it takes
+ * effect immediately, although metrics already recorded are not copied.
+ * 
+ * @author Keith Flanagan
+ */
+public class Metrics
+{
+  private static final Logger logger = 
+          Logger.getLogger(Metrics.class.getName());
+  
+  private static volatile MetricsRegistry registry;
+  
+  public static MetricsRegistry getRegistry()
+  {
+    MetricsRegistry current = registry;
+    if (current == null) {
+      current = loadRegistry(Metrics.class.getClassLoader());
+    }
+    return current;
+  }
+  
+  public static void setRegistry(MetricsRegistry newRegistry)
+  {
+    registry = newRegistry;
+  }
+  
+  /**
+   * Replaces the current registry with the first implementation found by
+   * <code>ServiceLoader</code> in the specified class loader, or an
+   * <code>InMemoryMetricsRegistry</code> if there is none.
+   * 
+   * @param cl the class loader to search
+   * @return the registry now in use
+   */
+  public static synchronized MetricsRegistry loadRegistry(ClassLoader cl)
+  {
+    MetricsRegistry loaded = null;
+    Iterator<MetricsRegistry> itr = ServiceLoader.load(MetricsRegistry.class, cl).iterator();
+    if (itr.hasNext()) {
+      loaded = itr.next();
+      logger.info("Using metrics registry: "+loaded.getClass().getName());
+    } else {
+      loaded = new InMemoryMetricsRegistry();
+    }
+    registry = loaded;
+    return loaded;
+  }
+  
+  /**
+   * Convenience method equivalent to <code>getRegistry().timer(name)</code>.
+   */
+  public static MetricTimer timer(String name)
+  {
+    return getRegistry().timer(name);
+  }
+  
+  public static MetricCounter counter(String name)
+  {
+    return getRegistry().counter(name);
+  }
+  
+  public static MetricHistogram histogram(String name)
+  {
+    return getRegistry().histogram(name);
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.metrics;
+
+/**
+ * A service provider interface for collecting runtime metrics. The 
+ * implementation in use is chosen by <code>Metrics</code>, which loads the 
+ * first implementation listed in 
+ * <code>META-INF/services/uk.ac.ncl.aries.entanglement.metrics.MetricsRegistry</code>,
+ * or uses an <code>InMemoryMetricsRegistry</code> if there are none. 
+ * Implementations might, for example, forward to an external monitoring 
+ * system.
+ * 
+ * Metrics are created on first use and identified by dotted names such as
+ * <code>revlog.commit</code>. Each method must return the same instance for 
+ * the same name, and all methods must be thread safe and cheap enough to call
+ * on every operation.
+ * 
+ * @author Keith Flanagan
+ */
+public interface MetricsRegistry
+{
+  public MetricCounter counter(String name);
+  
+  public MetricTimer timer(String name);
+  
+  public MetricHistogram histogram(String name);
+}
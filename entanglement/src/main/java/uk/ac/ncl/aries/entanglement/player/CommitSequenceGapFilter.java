@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.player;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.metrics.Metrics;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItemContainer;
+
+/**
+ * Passes through committed containers in commit sequence order, but ends at
+ * the first missing commit sequence number. Transactions can become visible
+ * shortly before one with a lower number, so a replay that carried on past 
+ * the gap would checkpoint beyond the missing transaction and never play it.
+ * 
+ * A gap is only skipped if the transaction after it committed more than 
+ * <code>gapTimeoutMillis</code> ago, in which case the missing commits are
+ * assumed to have failed. Containers committed before sequence numbers were 
+ * assigned are passed through unchecked.
+ * 
+ * @author Keith Flanagan
+ */
+class CommitSequenceGapFilter
+    implements Iterable<RevisionItemContainer>
+{
+  private static final Logger logger =
+      Logger.getLogger(CommitSequenceGapFilter.class.getName());
+  
+  private static final String METRIC_SKIPPED_GAPS = "replay.skippedGaps";
+  
+  private final Iterable<RevisionItemContainer> containers;
+  private final long afterCommitSeq;
+  private final long gapTimeoutMillis;
+
+  /**
+   * @param containers committed containers, in commit order
+   * @param afterCommitSeq the commit sequence number of the last transaction
+   * already applied, or 0
+   * @param gapTimeoutMillis how long a gap may remain before it is skipped
+   */
+  CommitSequenceGapFilter(Iterable<RevisionItemContainer> containers, 
+      long afterCommitSeq, long gapTimeoutMillis)
+  {
+    this.containers = containers;
+    this.afterCommitSeq = afterCommitSeq;
+    this.gapTimeoutMillis = gapTimeoutMillis;
+  }
+
+  @Override
+  public Iterator<RevisionItemContainer> iterator()
+  {
+    final Iterator<RevisionItemContainer> itr = containers.iterator();
+    return new Iterator<RevisionItemContainer>() {
+      private long lastSeq = afterCommitSeq;
+      private RevisionItemContainer next;
+      private boolean ended;
+
+      @Override
+      public boolean hasNext() {
+        if (next != null) {
+          return true;
+        }
+        if (ended || !itr.hasNext()) {
+          return false;
+        }
+        RevisionItemContainer container = itr.next();
+        long seq = container.getCommitSeq();
+        if (seq > lastSeq + 1 && !_gapExpired(container)) {
+          ended = true;
+          return false;
+        }
+        if (seq > 0) {
+          lastSeq = seq;
+        }
+        next = container;
+        return true;
+      }
+
+      @Override
+      public RevisionItemContainer next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        RevisionItemContainer container = next;
+        next = null;
+        return container;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Not supported.");
+      }
+      
+      private boolean _gapExpired(RevisionItemContainer container) {
+        long age = System.currentTimeMillis() - container.getCommitTimestamp();
+        if (age < gapTimeoutMillis) {
+          logger.info("Stopping replay at missing commit sequence number: "
+              + (lastSeq + 1)+". It may not have become visible yet.");
+          return false;
+        }
+        Metrics.counter(METRIC_SKIPPED_GAPS).inc();
+        logger.warning("Commit sequence numbers "+(lastSeq + 1)+" to "
+            + (container.getCommitSeq() - 1)+" are missing, but later transactions "
+            + "committed "+age+" ms ago. Assuming that those commits failed.");
+        return true;
+      }
+    };
+  }
+}
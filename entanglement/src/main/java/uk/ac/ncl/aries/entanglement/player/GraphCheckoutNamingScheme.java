@@ -26,6 +26,7 @@ public class GraphCheckoutNamingScheme
 {
   private final String graphName;
   private final String graphBranchName;
+  private final String checkoutName;
   private final String nodeCollectionName;
   private final String edgeCollectionName;
   
@@ -34,8 +35,17 @@ public class GraphCheckoutNamingScheme
     this.graphName = graphName;
     this.graphBranchName = graphBranchName;
     
-    this.nodeCollectionName = graphName +"_" + graphBranchName+"_nodes";
-    this.edgeCollectionName = graphName +"_" + graphBranchName+"_edges";
+    this.checkoutName = graphName +"_" + graphBranchName;
+    this.nodeCollectionName = checkoutName+"_nodes";
+    this.edgeCollectionName = checkoutName+"_edges";
+  }
+
+  /**
+   * @return a name that uniquely identifies this graph/branch working copy
+   * within a database.
+   */
+  public String getCheckoutName() {
+    return checkoutName;
   }
 
   public String getNodeCollectionName() {
@@ -41,6 +41,48 @@ public interface LogPlayer
   public void playRevisionsForTransaction(String transactionUid)
       throws LogPlayerException;
   
+  /**
+   * Returns the position in the revision log that the working copy has been
+   * brought up to, or null if no replay has been recorded for it.
+   * 
+   * @return the working copy's checkpoint, or null.
+   * @throws LogPlayerException 
+   */
+  public ReplayCheckpoint getCheckpoint()
+      throws LogPlayerException;
+  
+  /**
+   * Brings an existing working copy up to date by applying only those 
+   * committed revisions that come after <code>checkpoint</code> in commit 
+   * order. The stored checkpoint is advanced as revisions are applied.
+   * 
+   * If <code>checkpoint</code> is null, this is equivalent to 
+   * <code>replayAllRevisions</code>.
+   * 
+   * A transaction can become visible shortly before one with a lower commit
+   * sequence number, so the replay stops at the first missing number rather
+   * than checkpointing past it. Calling this again later picks up from there.
+   * 
+   * Note that if a replay fails part-way through, the working copy may 
+   * contain some revisions beyond the stored checkpoint. Replaying those 
+   * again may fail (for example, when a node already exists), in which case
+   * the working copy should be deleted and rebuilt.
+   * 
+   * @param checkpoint the position to replay from
+   * @throws LogPlayerException 
+   */
+  public void replaySince(ReplayCheckpoint checkpoint)
+      throws LogPlayerException;
+  
+  /**
+   * Convenience method that calls <code>replaySince</code> with the working
+   * copy's stored checkpoint.
+   * 
+   * @throws LogPlayerException 
+   */
+  public void replaySinceLastCheckpoint()
+      throws LogPlayerException;
+  
   /**
    * Replays log items for a particular graph/branch up to the specified 
    * revision ID.
@@ -26,6 +26,7 @@ import com.torrenttamer.mongodb.dbobject.DbObjectMarshaller;
 import java.util.logging.Logger;
 import uk.ac.ncl.aries.entanglement.player.spi.LogItemPlayer;
 import uk.ac.ncl.aries.entanglement.player.spi.LogItemPlayerProvider;
+import uk.ac.ncl.aries.entanglement.player.spi.LogItemPlayerProviderException;
 import uk.ac.ncl.aries.entanglement.revlog.RevisionLog;
 import uk.ac.ncl.aries.entanglement.revlog.RevisionLogException;
 import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
@@ -41,6 +42,10 @@ public class LogPlayerMongoDbImpl
   private static final Logger logger =
       Logger.getLogger(LogPlayerMongoDbImpl.class.getName());
   
+  private static final int PROGRESS_EVERY_CONTAINERS = 100;
+  public static final long DEFAULT_GAP_TIMEOUT_MILLIS = 
+      RevisionLogTailer.DEFAULT_GAP_TIMEOUT_MILLIS;
+  
 //  private final Mongo m;
 //  private final DB db;
   
@@ -56,6 +61,15 @@ public class LogPlayerMongoDbImpl
   
   private final LogItemPlayerProvider playerProvider;
   
+  private final String checkoutName;
+  private final ReplayCheckpointDAO checkpointDao;
+  
+  private int parallelism;
+  private int replayWindowSize;
+  private ReplayProgressListener progressListener;
+  private boolean coalescePropertyUpdates;
+  private long gapTimeoutMillis;
+  
 //  public LogPlayerMongoDbImpl(Mongo m, DB db, String graphName, String graphBranch, 
 //          DbObjectMarshaller marshaller,
 //          RevisionLog revLog, NodeDAO nodeDao, EdgeDAO edgeDao)
@@ -72,6 +86,12 @@ public class LogPlayerMongoDbImpl
     this.graphBranch = graphBranch;
     
     playerProvider = new LogItemPlayerProvider(cl, marshaller);
+    checkoutName = new GraphCheckoutNamingScheme(graphName, graphBranch).getCheckoutName();
+    checkpointDao = new ReplayCheckpointDAO(nodeDao.getCollection().getDB());
+    parallelism = 1;
+    replayWindowSize = PartitionedLogReplayer.DEFAULT_WINDOW_SIZE;
+    coalescePropertyUpdates = true;
+    gapTimeoutMillis = DEFAULT_GAP_TIMEOUT_MILLIS;
     
     this.revLog = revLog;
     this.nodeDao = nodeDao;
@@ -86,6 +106,67 @@ public class LogPlayerMongoDbImpl
 //    edgeDao = PlayerDAOFactory.createDefaultEdgeDAO(m, db, nodeCol, edgeCol);
   }
   
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Sets the number of worker threads used by <code>replayAllRevisions</code>.
+   * A value of 1 (the default) replays every item on the calling thread.
+   * Larger values use a <code>PartitionedLogReplayer</code>.
+   * 
+   * @param parallelism the number of worker threads to use.
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1");
+    }
+    this.parallelism = parallelism;
+  }
+
+  public boolean isCoalescePropertyUpdates() {
+    return coalescePropertyUpdates;
+  }
+
+  /**
+   * If true (the default), runs of consecutive property updates are merged
+   * and written in bulk by a <code>PropertyUpdateCoalescer</code>, rather 
+   * than played one at a time.
+   */
+  public void setCoalescePropertyUpdates(boolean coalescePropertyUpdates) {
+    this.coalescePropertyUpdates = coalescePropertyUpdates;
+  }
+
+  public int getReplayWindowSize() {
+    return replayWindowSize;
+  }
+
+  public void setReplayWindowSize(int replayWindowSize) {
+    this.replayWindowSize = replayWindowSize;
+  }
+
+  public long getGapTimeoutMillis() {
+    return gapTimeoutMillis;
+  }
+
+  /**
+   * Replays stop at the first missing commit sequence number, since the 
+   * missing transaction may not have become visible yet. A gap is skipped 
+   * only if the transaction after it committed more than 
+   * <code>gapTimeoutMillis</code> ago.
+   */
+  public void setGapTimeoutMillis(long gapTimeoutMillis) {
+    this.gapTimeoutMillis = gapTimeoutMillis;
+  }
+
+  public ReplayProgressListener getProgressListener() {
+    return progressListener;
+  }
+
+  public void setProgressListener(ReplayProgressListener progressListener) {
+    this.progressListener = progressListener;
+  }
+  
   @Override
   public void deleteWorkingCopy()
       throws LogPlayerException
@@ -93,6 +174,7 @@ public class LogPlayerMongoDbImpl
     try {
       nodeDao.getCollection().drop();
       edgeDao.getCollection().drop();
+      checkpointDao.delete(checkoutName);
     }
     catch(Exception e) {
       throw new LogPlayerException(
@@ -107,15 +189,7 @@ public class LogPlayerMongoDbImpl
     try {
       Iterable<RevisionItemContainer> containers = 
               revLog.iterateCommittedRevisionsForGraph(graphId, graphBranch);
-      for (RevisionItemContainer container : containers)
-      {
-        for (RevisionItem item : container.getItems()) {
-  //        logger.info("Going to play revision: "+item);
-
-          LogItemPlayer itemPlayer = playerProvider.getPlayerFor(item.getType());
-          itemPlayer.playItem(nodeDao, edgeDao, item);
-        }
-      }
+      replay(new CommitSequenceGapFilter(containers, 0, gapTimeoutMillis));
     }
     catch(Exception e) {
       throw new LogPlayerException(
@@ -123,6 +197,125 @@ public class LogPlayerMongoDbImpl
     }
   }
   
+  @Override
+  public ReplayCheckpoint getCheckpoint()
+      throws LogPlayerException
+  {
+    return checkpointDao.get(checkoutName);
+  }
+  
+  @Override
+  public void replaySinceLastCheckpoint()
+      throws LogPlayerException
+  {
+    replaySince(getCheckpoint());
+  }
+  
+  @Override
+  public void replaySince(ReplayCheckpoint checkpoint)
+      throws LogPlayerException
+  {
+    if (checkpoint == null) {
+      replayAllRevisions();
+      return;
+    }
+    if (checkpoint.getCommitSeq() <= 0) {
+      throw new LogPlayerException("Checkpoint for working copy: "+checkoutName
+          + " refers to a revision committed before commit sequence numbers were "
+          + "assigned. Delete and rebuild the working copy instead: "+checkpoint);
+    }
+    try {
+      logger.info("Replaying revisions committed after: "+checkpoint);
+      Iterable<RevisionItemContainer> containers = 
+              revLog.iterateCommittedRevisionsForGraphSince(graphId, graphBranch, 
+                  checkpoint.getCommitSeq(), checkpoint.getTxnSubmitId());
+      replay(new CommitSequenceGapFilter(containers, checkpoint.getCommitSeq(), 
+          gapTimeoutMillis));
+    }
+    catch(Exception e) {
+      throw new LogPlayerException(
+          "Failed to replay log to a working copy: "+graphId+"/"+graphBranch
+          + " from checkpoint: "+checkpoint, e);
+    }
+  }
+  
+  /**
+   * Plays the given committed containers and advances the checkpoint as 
+   * each transaction (or, when replaying in parallel, each window) completes.
+   */
+  private void replay(Iterable<RevisionItemContainer> containers)
+      throws LogPlayerException, LogItemPlayerProviderException
+  {
+    ReplayPositionListener checkpointer = new ReplayPositionListener() {
+      @Override
+      public void notifyAppliedThrough(RevisionItemContainer container)
+          throws LogPlayerException {
+        checkpointDao.advance(checkoutName, container);
+      }
+    };
+    
+    if (parallelism > 1) {
+      PartitionedLogReplayer replayer = new PartitionedLogReplayer(
+          playerProvider, nodeDao, edgeDao, parallelism, replayWindowSize);
+      replayer.setProgressListener(progressListener);
+      replayer.setPositionListener(checkpointer);
+      replayer.setCoalescePropertyUpdates(coalescePropertyUpdates);
+      replayer.replay(containers);
+      return;
+    }
+
+    long startedAt = System.currentTimeMillis();
+    long containersRead = 0;
+    long itemsPlayed = 0;
+    RevisionItemContainer previous = null;
+    PropertyUpdateCoalescer coalescer = new PropertyUpdateCoalescer(nodeDao);
+    for (RevisionItemContainer container : containers)
+    {
+      // Checkpoint whenever a transaction has been fully applied
+      if (previous != null 
+          && !previous.getTransactionUid().equals(container.getTransactionUid())) {
+        coalescer.flush();
+        checkpointer.notifyAppliedThrough(previous);
+      }
+      
+      containersRead++;
+      for (RevisionItem item : container.getItems()) {
+//        logger.info("Going to play revision: "+item);
+
+        LogItemPlayer itemPlayer = playerProvider.getPlayerFor(item.getType());
+        _play(coalescer, itemPlayer, item);
+        itemsPlayed++;
+      }
+      previous = container;
+      if (progressListener != null && containersRead % PROGRESS_EVERY_CONTAINERS == 0) {
+        progressListener.notifyProgress(containersRead, itemsPlayed, 
+            System.currentTimeMillis() - startedAt);
+      }
+    }
+    coalescer.flush();
+    if (previous != null) {
+      checkpointer.notifyAppliedThrough(previous);
+    }
+    if (progressListener != null) {
+      progressListener.notifyProgress(containersRead, itemsPlayed, 
+          System.currentTimeMillis() - startedAt);
+    }
+  }
+  
+  /**
+   * Plays an item, or hands it to <code>coalescer</code> to be written later.
+   */
+  private void _play(PropertyUpdateCoalescer coalescer, LogItemPlayer itemPlayer, 
+      RevisionItem item)
+      throws LogPlayerException
+  {
+    if (coalescePropertyUpdates && coalescer.add(item, itemPlayer)) {
+      return;
+    }
+    coalescer.flush();
+    itemPlayer.playItem(nodeDao, edgeDao, item);
+  }
+  
   @Override
   public void playRevisionsForTransaction(String transactionUid)
       throws LogPlayerException
@@ -131,12 +324,25 @@ public class LogPlayerMongoDbImpl
       logger.info("Going to play revision items for txn: "+transactionUid);
       Iterable<RevisionItemContainer> containers = 
               revLog.iterateRevisionsForTransaction(transactionUid);
+      RevisionItemContainer last = null;
+      PropertyUpdateCoalescer coalescer = new PropertyUpdateCoalescer(nodeDao);
       for (RevisionItemContainer container : containers)
       {
         for (RevisionItem item : container.getItems()) {
           LogItemPlayer itemPlayer = playerProvider.getPlayerFor(item.getType());
-          itemPlayer.playItem(nodeDao, edgeDao, item);
+          _play(coalescer, itemPlayer, item);
         }
+        last = container;
+      }
+      coalescer.flush();
+      /*
+       * Only committed transactions have a position in commit order. This 
+       * assumes that transactions are played in commit sequence order, as 
+       * RevisionLogTailer does, and as GraphOpPostCommitPlayer does because
+       * post-commit events are dispatched in that order.
+       */
+      if (last != null && last.getCommitSeq() > 0) {
+        checkpointDao.advance(checkoutName, last);
       }
     }
     catch(Exception e) {
@@ -0,0 +1,511 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.player;
+
+import com.mongodb.BasicDBObject;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.graph.EdgeDAO;
+import uk.ac.ncl.aries.entanglement.graph.GraphEntityDAO;
+import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
+import uk.ac.ncl.aries.entanglement.player.spi.LogItemPlayer;
+import uk.ac.ncl.aries.entanglement.player.spi.LogItemPlayerProvider;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateEdge;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateNode;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateNodeIfNotExists;
+import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
+import uk.ac.ncl.aries.entanglement.revlog.commands.SetNamedNodeProperty;
+import uk.ac.ncl.aries.entanglement.revlog.commands.SetNodeProperty;
+import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionBegin;
+import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionCommit;
+import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionRollback;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItemContainer;
+
+/**
+ * Replays a stream of revision items into a working copy using a pool of
+ * worker threads, while producing the same working copy as a serial replay.
+ *
+ * Items are read in log order and collected into a 'window'. When the window
+ * is full (or when adding the next item could change the outcome) it is
+ * played in three phases, each of which is partitioned across the workers:
+ * <ol>
+ * <li>Node creation, sharded by the node's name (or UID, if unnamed).</li>
+ * <li>Edge creation. These depend only on nodes, which now exist.</li>
+ * <li>Property updates, sharded by their target node so that updates to the
+ * same node are applied in log order.</li>
+ * </ol>
+ *
+ * Items in a window are only reordered when doing so is safe. The window is
+ * flushed before adding an item that:
+ * <ul>
+ * <li>creates a node whose UID or type/name was already created, or
+ * referenced by an edge or a property update, earlier in the window;</li>
+ * <li>creates an edge whose UID has already been seen in the window;</li>
+ * <li>updates a node by name when the window already contains updates by
+ * UID (or vice versa), since we can't tell whether they target the same node
+ * without a database lookup.</li>
+ * </ul>
+ * Deletions, updates to a node's identity fields (UID, name or type) and any
+ * operation type not listed above are treated as barriers: the current window
+ * is flushed and the item is played on its own.
+ *
+ * @author Keith Flanagan
+ */
+public class PartitionedLogReplayer
+{
+  private static final Logger logger =
+      Logger.getLogger(PartitionedLogReplayer.class.getName());
+
+  public static final int DEFAULT_WINDOW_SIZE = 20000;
+
+  private static enum Kind {
+    NODE, EDGE, PROPERTY, MARKER, BARRIER;
+  }
+
+  private final LogItemPlayerProvider playerProvider;
+  private final NodeDAO nodeDao;
+  private final EdgeDAO edgeDao;
+  private final int parallelism;
+  private final int windowSize;
+
+  private ReplayProgressListener progressListener;
+  private ReplayPositionListener positionListener;
+  private boolean coalescePropertyUpdates;
+
+  private long containersRead;
+  private long itemsPlayed;
+  private long startedAt;
+  // The last container whose items have all been queued or played
+  private RevisionItemContainer lastQueuedContainer;
+  private RevisionItemContainer lastReportedContainer;
+
+  public PartitionedLogReplayer(LogItemPlayerProvider playerProvider,
+          NodeDAO nodeDao, EdgeDAO edgeDao, int parallelism, int windowSize)
+  {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1");
+    }
+    this.playerProvider = playerProvider;
+    this.nodeDao = nodeDao;
+    this.edgeDao = edgeDao;
+    this.parallelism = parallelism;
+    this.windowSize = windowSize;
+    this.coalescePropertyUpdates = true;
+  }
+
+  public ReplayProgressListener getProgressListener() {
+    return progressListener;
+  }
+
+  public void setProgressListener(ReplayProgressListener progressListener) {
+    this.progressListener = progressListener;
+  }
+
+  public ReplayPositionListener getPositionListener() {
+    return positionListener;
+  }
+
+  /**
+   * Sets a listener that is told, after each window has been played, the 
+   * last revision container whose items have all been applied.
+   */
+  public void setPositionListener(ReplayPositionListener positionListener) {
+    this.positionListener = positionListener;
+  }
+
+  public boolean isCoalescePropertyUpdates() {
+    return coalescePropertyUpdates;
+  }
+
+  /**
+   * If true (the default), each worker merges the property updates in its 
+   * shard using a <code>PropertyUpdateCoalescer</code>.
+   */
+  public void setCoalescePropertyUpdates(boolean coalescePropertyUpdates) {
+    this.coalescePropertyUpdates = coalescePropertyUpdates;
+  }
+
+  /**
+   * Plays every item from the given containers, in the order that they are
+   * returned.
+   *
+   * @param containers the revision containers to replay
+   * @throws LogPlayerException if any item fails to play. Items in the same
+   * window as the failed item may or may not have been applied.
+   */
+  public void replay(Iterable<RevisionItemContainer> containers)
+      throws LogPlayerException
+  {
+    containersRead = 0;
+    itemsPlayed = 0;
+    startedAt = System.currentTimeMillis();
+    lastQueuedContainer = null;
+    lastReportedContainer = null;
+
+    ExecutorService exe = Executors.newFixedThreadPool(parallelism, new ReplayThreadFactory());
+    try {
+      Window window = new Window();
+      for (RevisionItemContainer container : containers) {
+        containersRead++;
+        for (RevisionItem item : container.getItems()) {
+          // Players are resolved here because LogItemPlayerProvider isn't thread safe
+          LogItemPlayer player = playerProvider.getPlayerFor(item.getType());
+          Kind kind = classify(item.getOp());
+          switch (kind) {
+            case MARKER:
+              player.playItem(nodeDao, edgeDao, item);
+              itemsPlayed++;
+              break;
+            case BARRIER:
+              flush(exe, window);
+              player.playItem(nodeDao, edgeDao, item);
+              itemsPlayed++;
+              break;
+            default:
+              if (!window.add(kind, item, player)) {
+                flush(exe, window);
+                window.add(kind, item, player);
+              }
+              if (window.size >= windowSize) {
+                flush(exe, window);
+              }
+          }
+        }
+        lastQueuedContainer = container;
+      }
+      flush(exe, window);
+    }
+    catch(LogPlayerException e) {
+      throw e;
+    }
+    catch(Exception e) {
+      throw new LogPlayerException("Failed to replay revision items", e);
+    }
+    finally {
+      exe.shutdownNow();
+    }
+  }
+
+  private Kind classify(GraphOperation op)
+  {
+    if (op instanceof CreateNode || op instanceof CreateNodeIfNotExists) {
+      return Kind.NODE;
+    } else if (op instanceof CreateEdge) {
+      return Kind.EDGE;
+    } else if (op instanceof SetNodeProperty) {
+      return isIdentityField(((SetNodeProperty) op).getpName()) ? Kind.BARRIER : Kind.PROPERTY;
+    } else if (op instanceof SetNamedNodeProperty) {
+      return isIdentityField(((SetNamedNodeProperty) op).getpName()) ? Kind.BARRIER : Kind.PROPERTY;
+    } else if (op instanceof TransactionBegin
+        || op instanceof TransactionCommit
+        || op instanceof TransactionRollback) {
+      return Kind.MARKER;
+    }
+    return Kind.BARRIER;
+  }
+
+  private static boolean isIdentityField(String propertyName)
+  {
+    return GraphEntityDAO.FIELD_UID.equals(propertyName)
+        || GraphEntityDAO.FIELD_NAME.equals(propertyName)
+        || GraphEntityDAO.FIELD_TYPE.equals(propertyName);
+  }
+
+  private static String uidKey(String uid)
+  {
+    return "u|" + uid;
+  }
+
+  private static String nameKey(String type, String name)
+  {
+    return "n|" + type + "|" + name;
+  }
+
+  private void flush(ExecutorService exe, Window window)
+      throws LogPlayerException
+  {
+    if (window.size > 0) {
+      runPhase(exe, window.nodeShards);
+      runPhase(exe, window.edgeShards);
+      runPhase(exe, window.propertyShards);
+      itemsPlayed = itemsPlayed + window.size;
+      window.clear();
+
+      if (progressListener != null) {
+        progressListener.notifyProgress(containersRead, itemsPlayed,
+            System.currentTimeMillis() - startedAt);
+      }
+    }
+    
+    if (positionListener != null && lastQueuedContainer != null
+        && lastQueuedContainer != lastReportedContainer) {
+      positionListener.notifyAppliedThrough(lastQueuedContainer);
+      lastReportedContainer = lastQueuedContainer;
+    }
+  }
+
+  private void runPhase(ExecutorService exe, List<List<PlannedItem>> shards)
+      throws LogPlayerException
+  {
+    List<Future<Void>> futures = new ArrayList<>(shards.size());
+    for (final List<PlannedItem> shard : shards) {
+      if (shard.isEmpty()) {
+        continue;
+      }
+      futures.add(exe.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          PropertyUpdateCoalescer coalescer = coalescePropertyUpdates
+              ? new PropertyUpdateCoalescer(nodeDao) : null;
+          for (PlannedItem planned : shard) {
+            if (coalescer == null) {
+              planned.player.playItem(nodeDao, edgeDao, planned.item);
+            } else if (!coalescer.add(planned.item, planned.player)) {
+              coalescer.flush();
+              planned.player.playItem(nodeDao, edgeDao, planned.item);
+            }
+          }
+          if (coalescer != null) {
+            coalescer.flush();
+          }
+          return null;
+        }
+      }));
+    }
+
+    // Wait for every shard, even after a failure, so that no worker is still
+    // writing when we return.
+    Throwable firstFailure = null;
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      }
+      catch(ExecutionException e) {
+        if (firstFailure == null) {
+          firstFailure = e.getCause();
+        }
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new LogPlayerException("Interrupted while replaying revision items", e);
+      }
+    }
+    if (firstFailure instanceof LogPlayerException) {
+      throw (LogPlayerException) firstFailure;
+    } else if (firstFailure != null) {
+      throw new LogPlayerException("Failed to replay revision items", firstFailure);
+    }
+  }
+
+  private static class PlannedItem
+  {
+    private final RevisionItem item;
+    private final LogItemPlayer player;
+
+    private PlannedItem(RevisionItem item, LogItemPlayer player) {
+      this.item = item;
+      this.player = player;
+    }
+  }
+
+  /**
+   * A set of items that can safely be played in phases, plus the bookkeeping
+   * required to decide whether another item can join it.
+   */
+  private class Window
+  {
+    private final List<List<PlannedItem>> nodeShards;
+    private final List<List<PlannedItem>> edgeShards;
+    private final List<List<PlannedItem>> propertyShards;
+
+    // UIDs and type/names of nodes created in this window
+    private final Set<String> createdNodeKeys;
+    // Nodes that edges or property updates in this window refer to
+    private final Set<String> referencedNodeKeys;
+    private final Set<String> edgeUids;
+    private Boolean propertiesByUid;
+
+    private int size;
+    private int nextEdgeShard;
+
+    private Window()
+    {
+      nodeShards = createShards();
+      edgeShards = createShards();
+      propertyShards = createShards();
+      createdNodeKeys = new HashSet<>();
+      referencedNodeKeys = new HashSet<>();
+      edgeUids = new HashSet<>();
+    }
+
+    private List<List<PlannedItem>> createShards()
+    {
+      List<List<PlannedItem>> shards = new ArrayList<>(parallelism);
+      for (int i=0; i<parallelism; i++) {
+        shards.add(new LinkedList<PlannedItem>());
+      }
+      return shards;
+    }
+
+    private void clear()
+    {
+      for (int i=0; i<parallelism; i++) {
+        nodeShards.get(i).clear();
+        edgeShards.get(i).clear();
+        propertyShards.get(i).clear();
+      }
+      createdNodeKeys.clear();
+      referencedNodeKeys.clear();
+      edgeUids.clear();
+      propertiesByUid = null;
+      size = 0;
+    }
+
+    private int shardFor(String key)
+    {
+      return (key.hashCode() & Integer.MAX_VALUE) % parallelism;
+    }
+
+    /**
+     * Adds an item to this window, unless doing so could change the outcome
+     * of the replay. An empty window always accepts an item.
+     *
+     * @return true if the item was added, false if the window must be
+     * flushed first.
+     */
+    private boolean add(Kind kind, RevisionItem item, LogItemPlayer player)
+    {
+      PlannedItem planned = new PlannedItem(item, player);
+      switch (kind) {
+        case NODE:
+          return addNode(planned);
+        case EDGE:
+          return addEdge(planned);
+        case PROPERTY:
+          return addProperty(planned);
+        default:
+          throw new IllegalArgumentException("Unsupported item kind: "+kind);
+      }
+    }
+
+    private boolean addNode(PlannedItem planned)
+    {
+      GraphOperation op = planned.item.getOp();
+      BasicDBObject node = op instanceof CreateNode
+          ? ((CreateNode) op).getNode()
+          : ((CreateNodeIfNotExists) op).getNode();
+
+      List<String> keys = new ArrayList<>(2);
+      if (node.containsField(NodeDAO.FIELD_NAME)) {
+        keys.add(nameKey(node.getString(NodeDAO.FIELD_TYPE), node.getString(NodeDAO.FIELD_NAME)));
+      }
+      if (node.containsField(NodeDAO.FIELD_UID)) {
+        keys.add(uidKey(node.getString(NodeDAO.FIELD_UID)));
+      }
+      for (String key : keys) {
+        if (createdNodeKeys.contains(key) || referencedNodeKeys.contains(key)) {
+          return false;
+        }
+      }
+      createdNodeKeys.addAll(keys);
+
+      // Nodes with neither a UID nor a name get a fresh UID and can go anywhere
+      int shard = keys.isEmpty() ? size % parallelism : shardFor(keys.get(0));
+      nodeShards.get(shard).add(planned);
+      size++;
+      return true;
+    }
+
+    private boolean addEdge(PlannedItem planned)
+    {
+      BasicDBObject edge = ((CreateEdge) planned.item.getOp()).getEdge();
+      String edgeUid = null;
+      if (edge.containsField(EdgeDAO.FIELD_UID)) {
+        edgeUid = edge.getString(EdgeDAO.FIELD_UID);
+        if (edgeUids.contains(edgeUid)) {
+          return false;
+        }
+        edgeUids.add(edgeUid);
+      }
+
+      // Edges that identify their end points by name look them up at play time
+      if (!edge.containsField(EdgeDAO.FIELD_FROM_NODE_UID)) {
+        referencedNodeKeys.add(nameKey(
+            edge.getString(EdgeDAO.FIELD_FROM_NODE_TYPE), edge.getString(EdgeDAO.FIELD_FROM_NODE_NAME)));
+      }
+      if (!edge.containsField(EdgeDAO.FIELD_TO_NODE_UID)) {
+        referencedNodeKeys.add(nameKey(
+            edge.getString(EdgeDAO.FIELD_TO_NODE_TYPE), edge.getString(EdgeDAO.FIELD_TO_NODE_NAME)));
+      }
+
+      int shard = edgeUid == null ? nextEdgeShard++ % parallelism : shardFor(edgeUid);
+      edgeShards.get(shard).add(planned);
+      size++;
+      return true;
+    }
+
+    private boolean addProperty(PlannedItem planned)
+    {
+      GraphOperation op = planned.item.getOp();
+      boolean byUid = op instanceof SetNodeProperty;
+      if (propertiesByUid != null && propertiesByUid != byUid) {
+        return false;
+      }
+      propertiesByUid = byUid;
+
+      String key;
+      if (byUid) {
+        key = uidKey(((SetNodeProperty) op).getnUid());
+      } else {
+        SetNamedNodeProperty named = (SetNamedNodeProperty) op;
+        key = nameKey(named.getnType(), named.getnName());
+      }
+      referencedNodeKeys.add(key);
+      propertyShards.get(shardFor(key)).add(planned);
+      size++;
+      return true;
+    }
+  }
+
+  private static class ReplayThreadFactory
+      implements ThreadFactory
+  {
+    private static final AtomicInteger poolCount = new AtomicInteger(0);
+    private final int poolId = poolCount.incrementAndGet();
+    private final AtomicInteger threadCount = new AtomicInteger(0);
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "log-replay-"+poolId+"-"+threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
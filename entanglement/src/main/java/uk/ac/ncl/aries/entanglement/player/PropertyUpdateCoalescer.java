@@ -0,0 +1,223 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.player;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import uk.ac.ncl.aries.entanglement.graph.GraphModelException;
+import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
+import uk.ac.ncl.aries.entanglement.metrics.InstrumentedProxy;
+import uk.ac.ncl.aries.entanglement.metrics.Metrics;
+import uk.ac.ncl.aries.entanglement.player.spi.LogItemPlayer;
+import uk.ac.ncl.aries.entanglement.player.spi.SetNamedNodePropertyPlayer;
+import uk.ac.ncl.aries.entanglement.player.spi.SetNodePropertyPlayer;
+import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
+import uk.ac.ncl.aries.entanglement.revlog.commands.SetNamedNodeProperty;
+import uk.ac.ncl.aries.entanglement.revlog.commands.SetNodeProperty;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
+
+/**
+ * Merges runs of consecutive property updates during replay. All of the 
+ * properties set on an entity within a run are written as a single 
+ * <code>$set</code>, and the updates for different entities are written
+ * together using <code>NodeDAO.setPropertiesByUid</code>. A transaction 
+ * that sets 20 properties on each of 100,000 nodes then costs 100,000 
+ * updates instead of 2,000,000.
+ * 
+ * Callers offer each item with <code>add</code>. An item that isn't 
+ * absorbed must be played normally, after calling <code>flush</code> so 
+ * that it sees every earlier update. <code>flush</code> must also be called 
+ * after the last item. Within a run, each entity ends up with the last value
+ * set for each property, exactly as if the items had been played one by one,
+ * and its version is advanced by the number of items merged into its update.
+ * 
+ * Items are only absorbed if they would be played by the standard property
+ * players, so a custom player registered for either operation still sees 
+ * every item. Players wrapped by <code>InstrumentedProxy</code> are 
+ * unwrapped for this check. Updates that change a node's identity, or that
+ * carry an expected version, are never absorbed. Runs are split whenever nodes switch between
+ * being identified by UID and by name, since the two could refer to the same
+ * node.
+ * 
+ * The counters <code>replay.coalescer.items</code> and 
+ * <code>replay.coalescer.updates</code> record how many items were absorbed
+ * and how many updates they were written with.
+ * 
+ * Instances are not thread safe.
+ * 
+ * @author Keith Flanagan
+ */
+public class PropertyUpdateCoalescer
+{
+  public static final int DEFAULT_MAX_PENDING_ENTITIES = 1000;
+  
+  private static final String METRIC_ITEMS = "replay.coalescer.items";
+  private static final String METRIC_UPDATES = "replay.coalescer.updates";
+  
+  private final NodeDAO nodeDao;
+  private final int maxPendingEntities;
+  
+  private final Map<String, Map<String, Object>> pendingByUid;
+  private final Map<List<String>, Map<String, Object>> pendingByName;
+  // The number of items merged into each pending entity's update
+  private final Map<String, Integer> updateCountsByUid;
+  private final Map<List<String>, Integer> updateCountsByName;
+  private int pendingItems;
+  private long itemsCoalesced;
+
+  public PropertyUpdateCoalescer(NodeDAO nodeDao)
+  {
+    this(nodeDao, DEFAULT_MAX_PENDING_ENTITIES);
+  }
+  
+  public PropertyUpdateCoalescer(NodeDAO nodeDao, int maxPendingEntities)
+  {
+    this.nodeDao = nodeDao;
+    this.maxPendingEntities = maxPendingEntities;
+    this.pendingByUid = new LinkedHashMap<>();
+    this.pendingByName = new LinkedHashMap<>();
+    this.updateCountsByUid = new HashMap<>();
+    this.updateCountsByName = new HashMap<>();
+  }
+  
+  /**
+   * @param item the next item to replay
+   * @param player the player that would otherwise play <code>item</code>
+   * @return true if the item was absorbed, or false if it must be played
+   * normally after a <code>flush</code>.
+   * @throws LogPlayerException if pending updates had to be written, and
+   * failed.
+   */
+  public boolean add(RevisionItem item, LogItemPlayer player)
+      throws LogPlayerException
+  {
+    GraphOperation op = item.getOp();
+    Class<?> playerClass = InstrumentedProxy.unwrap(player).getClass();
+    if (op instanceof SetNodeProperty && playerClass == SetNodePropertyPlayer.class) {
+      SetNodeProperty setOp = (SetNodeProperty) op;
+      if (setOp.getExpectedVersion() != null || _isIdentityField(setOp.getpName())) {
+        return false;
+      }
+      if (!pendingByName.isEmpty()) {
+        flush();
+      }
+      _merge(pendingByUid, updateCountsByUid, setOp.getnUid(), 
+          setOp.getpName(), setOp.getpVal());
+    } else if (op instanceof SetNamedNodeProperty 
+        && playerClass == SetNamedNodePropertyPlayer.class) {
+      SetNamedNodeProperty setOp = (SetNamedNodeProperty) op;
+      if (_isIdentityField(setOp.getpName())) {
+        return false;
+      }
+      if (!pendingByUid.isEmpty()) {
+        flush();
+      }
+      _merge(pendingByName, updateCountsByName, 
+          Arrays.asList(setOp.getnType(), setOp.getnName()), 
+          setOp.getpName(), setOp.getpVal());
+    } else {
+      return false;
+    }
+    
+    pendingItems++;
+    if (pendingByUid.size() + pendingByName.size() >= maxPendingEntities) {
+      flush();
+    }
+    return true;
+  }
+  
+  private static <K> void _merge(Map<K, Map<String, Object>> pending, 
+      Map<K, Integer> updateCounts, K entityKey, String propertyName, Object propertyValue)
+  {
+    Map<String, Object> properties = pending.get(entityKey);
+    if (properties == null) {
+      properties = new LinkedHashMap<>();
+      pending.put(entityKey, properties);
+      updateCounts.put(entityKey, 1);
+    } else {
+      updateCounts.put(entityKey, updateCounts.get(entityKey) + 1);
+    }
+    properties.put(propertyName, propertyValue);
+  }
+  
+  private static boolean _isIdentityField(String propertyName)
+  {
+    return NodeDAO.FIELD_UID.equals(propertyName)
+        || NodeDAO.FIELD_NAME.equals(propertyName)
+        || NodeDAO.FIELD_TYPE.equals(propertyName);
+  }
+  
+  /**
+   * Writes all pending updates.
+   */
+  public void flush()
+      throws LogPlayerException
+  {
+    if (pendingItems == 0) {
+      return;
+    }
+    try {
+      if (!pendingByName.isEmpty()) {
+        // Named nodes must exist, as they must for SetNamedNodePropertyPlayer
+        for (Map.Entry<List<String>, Map<String, Object>> entry : pendingByName.entrySet()) {
+          String type = entry.getKey().get(0);
+          String name = entry.getKey().get(1);
+          String uid = nodeDao.lookupUniqueIdForName(type, name);
+          if (uid == null) {
+            throw new LogPlayerException("Failed to find named node: "+name
+                + " while attempting to set properties: "+entry.getValue().keySet());
+          }
+          pendingByUid.put(uid, entry.getValue());
+          updateCountsByUid.put(uid, updateCountsByName.get(entry.getKey()));
+        }
+      }
+      nodeDao.setPropertiesByUid(pendingByUid, updateCountsByUid);
+      itemsCoalesced = itemsCoalesced + pendingItems;
+      Metrics.counter(METRIC_ITEMS).inc(pendingItems);
+      Metrics.counter(METRIC_UPDATES).inc(pendingByUid.size());
+    }
+    catch(GraphModelException e) {
+      throw new LogPlayerException("Failed to write "+pendingItems
+          + " property updates to "+pendingByUid.size()+" nodes", e);
+    }
+    finally {
+      pendingByUid.clear();
+      pendingByName.clear();
+      updateCountsByUid.clear();
+      updateCountsByName.clear();
+      pendingItems = 0;
+    }
+  }
+
+  /**
+   * @return the number of items currently absorbed but not yet written
+   */
+  public int getPendingItems() {
+    return pendingItems;
+  }
+
+  /**
+   * @return the total number of items written by this instance
+   */
+  public long getItemsCoalesced() {
+    return itemsCoalesced;
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package uk.ac.ncl.aries.entanglement.player;
+
+import java.util.Date;
+
+/**
+ * Records the position in a graph's revision log up to which a working copy
+ * has been brought. The position is that of the last revision container that
+ * was fully applied, in commit order.
+ * 
+ * @author Keith Flanagan
+ */
+public class ReplayCheckpoint
+{
+  private String checkoutName;
+  private long commitSeq;
+  private String transactionUid;
+  private int txnSubmitId;
+  private Date dateUpdated;
+
+  public ReplayCheckpoint()
+  {
+  }
+
+  @Override
+  public String toString() {
+    return "ReplayCheckpoint{" + "checkoutName=" + checkoutName 
+            + ", commitSeq=" + commitSeq 
+            + ", transactionUid=" + transactionUid 
+            + ", txnSubmitId=" + txnSubmitId + ", dateUpdated=" + dateUpdated + '}';
+  }
+
+  public String getCheckoutName() {
+    return checkoutName;
+  }
+
+  public void setCheckoutName(String checkoutName) {
+    this.checkoutName = checkoutName;
+  }
+
+  public long getCommitSeq() {
+    return commitSeq;
+  }
+
+  public void setCommitSeq(long commitSeq) {
+    this.commitSeq = commitSeq;
+  }
+
+  public String getTransactionUid() {
+    return transactionUid;
+  }
+
+  public void setTransactionUid(String transactionUid) {
+    this.transactionUid = transactionUid;
+  }
+
+  public int getTxnSubmitId() {
+    return txnSubmitId;
+  }
+
+  public void setTxnSubmitId(int txnSubmitId) {
+    this.txnSubmitId = txnSubmitId;
+  }
+
+  public Date getDateUpdated() {
+    return dateUpdated;
+  }
+
+  public void setDateUpdated(Date dateUpdated) {
+    this.dateUpdated = dateUpdated;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package uk.ac.ncl.aries.entanglement.player;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import java.util.Arrays;
+import java.util.Date;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItemContainer;
+
+/**
+ * Stores one <code>ReplayCheckpoint</code> per working copy, keyed by the
+ * checkout name from <code>GraphCheckoutNamingScheme</code>.
+ * 
+ * @author Keith Flanagan
+ */
+public class ReplayCheckpointDAO
+{
+  private static final String DEFAULT_COL_CHECKPOINTS = "replay_checkpoints";
+  
+  private static final String FIELD_COMMIT_SEQ = "commitSeq";
+  private static final String FIELD_TXN_UID = "transactionUid";
+  private static final String FIELD_TXN_SUBMIT_ID = "txnSubmitId";
+  private static final String FIELD_DATE_UPDATED = "dateUpdated";
+  
+  private final DBCollection col;
+
+  public ReplayCheckpointDAO(DB db)
+  {
+    this.col = db.getCollection(DEFAULT_COL_CHECKPOINTS);
+  }
+  
+  /**
+   * @param checkoutName the working copy
+   * @return the checkpoint of the working copy, or null if it has none.
+   * @throws LogPlayerException 
+   */
+  public ReplayCheckpoint get(String checkoutName)
+      throws LogPlayerException
+  {
+    DBObject query = new BasicDBObject("_id", checkoutName);
+    try {
+      DBObject obj = col.findOne(query);
+      if (obj == null) {
+        return null;
+      }
+      ReplayCheckpoint checkpoint = new ReplayCheckpoint();
+      checkpoint.setCheckoutName(checkoutName);
+      // Checkpoints written before commit sequence numbers existed have none
+      Number commitSeq = (Number) obj.get(FIELD_COMMIT_SEQ);
+      checkpoint.setCommitSeq(commitSeq == null ? 0 : commitSeq.longValue());
+      checkpoint.setTransactionUid((String) obj.get(FIELD_TXN_UID));
+      checkpoint.setTxnSubmitId(((Number) obj.get(FIELD_TXN_SUBMIT_ID)).intValue());
+      checkpoint.setDateUpdated((Date) obj.get(FIELD_DATE_UPDATED));
+      return checkpoint;
+    }
+    catch(Exception e) {
+      throw new LogPlayerException("Failed to perform database operation:\n"
+          + "Query: "+query, e);
+    }
+  }
+  
+  /**
+   * Moves the checkpoint of a working copy forward to the position of 
+   * <code>lastApplied</code>. If the existing checkpoint is already at or 
+   * beyond that position, it is left unchanged, so concurrent or repeated
+   * calls can never move a checkpoint backwards.
+   * 
+   * @param checkoutName the working copy
+   * @param lastApplied the last revision container applied to the working copy
+   * @throws LogPlayerException 
+   */
+  public void advance(String checkoutName, RevisionItemContainer lastApplied)
+      throws LogPlayerException
+  {
+    long seq = lastApplied.getCommitSeq();
+    String txnUid = lastApplied.getTransactionUid();
+    int submitId = lastApplied.getTxnSubmitId();
+    
+    // Match only if the stored position is before the new one
+    DBObject[] orArgs = new BasicDBObject[] {
+        new BasicDBObject(FIELD_COMMIT_SEQ, new BasicDBObject("$lt", seq)),
+        new BasicDBObject(FIELD_COMMIT_SEQ, new BasicDBObject("$exists", false)),
+        new BasicDBObject(FIELD_COMMIT_SEQ, seq)
+            .append(FIELD_TXN_SUBMIT_ID, new BasicDBObject("$lt", submitId))
+    };
+    DBObject query = new BasicDBObject("_id", checkoutName)
+        .append("$or", Arrays.asList(orArgs));
+    DBObject update = new BasicDBObject("$set", 
+        new BasicDBObject(FIELD_COMMIT_SEQ, seq)
+        .append(FIELD_TXN_UID, txnUid)
+        .append(FIELD_TXN_SUBMIT_ID, submitId)
+        .append(FIELD_DATE_UPDATED, new Date()));
+    try {
+      col.update(query, update, true, false);
+    }
+    catch(MongoException.DuplicateKey e) {
+      // The checkpoint exists and is already at or beyond this position
+    }
+    catch(Exception e) {
+      throw new LogPlayerException("Failed to perform database operation:\n"
+          + "Query: "+query+"\nUpdate: "+update, e);
+    }
+  }
+  
+  public void delete(String checkoutName)
+      throws LogPlayerException
+  {
+    DBObject query = new BasicDBObject("_id", checkoutName);
+    try {
+      col.remove(query);
+    }
+    catch(Exception e) {
+      throw new LogPlayerException("Failed to perform database operation:\n"
+          + "Query: "+query, e);
+    }
+  }
+}
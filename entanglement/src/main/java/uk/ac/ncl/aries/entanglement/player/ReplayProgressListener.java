@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.player;
+
+/**
+ * Receives periodic progress reports while a revision log is being replayed
+ * into a working copy.
+ *
+ * @author Keith Flanagan
+ */
+public interface ReplayProgressListener
+{
+  /**
+   * @param containersRead the number of revision containers read from the
+   * revision log so far
+   * @param itemsPlayed the number of revision items applied to the working
+   * copy so far
+   * @param elapsedMillis the time since the replay started
+   */
+  public void notifyProgress(long containersRead, long itemsPlayed, long elapsedMillis);
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.player;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.metrics.Metrics;
+import uk.ac.ncl.aries.entanglement.revlog.RevisionLog;
+import uk.ac.ncl.aries.entanglement.revlog.RevisionLogException;
+
+/**
+ * Keeps a working copy up to date with transactions committed by any process,
+ * by polling the revision log's commit sequence index. This allows several 
+ * service instances to each maintain their own working copy of the same 
+ * graph/branch. 
+ * 
+ * On start-up, the working copy is first brought up to date from its 
+ * checkpoint (or rebuilt, if it has none). New transactions are then played
+ * one at a time with <code>LogPlayer.playRevisionsForTransaction</code>, in
+ * commit sequence order, which also advances the checkpoint. A restarted 
+ * tailer therefore resumes where it left off.
+ * 
+ * Commit sequence numbers are dense, but a transaction can become visible 
+ * shortly before one with a lower number. When a gap is seen, the tailer
+ * waits for up to <code>gapTimeoutMillis</code> for the missing transaction
+ * before assuming that its commit failed and skipping it.
+ * 
+ * If playing a transaction fails, it is retried on every poll and newer 
+ * transactions are held back. A transaction that fails part-way may need the
+ * working copy to be rebuilt.
+ * 
+ * A working copy should be maintained either by a tailer or by a 
+ * <code>GraphOpPostCommitPlayer</code>, not both.
+ * 
+ * @author Keith Flanagan
+ */
+public class RevisionLogTailer
+{
+  private static final Logger logger =
+      Logger.getLogger(RevisionLogTailer.class.getName());
+  
+  public static final long DEFAULT_POLL_INTERVAL_MILLIS = 500;
+  public static final long DEFAULT_GAP_TIMEOUT_MILLIS = 30000;
+  public static final int DEFAULT_MAX_TRANSACTIONS_PER_POLL = 1000;
+  
+  private static final String METRIC_PLAYED = "tailer.transactionsPlayed";
+  private static final String METRIC_SKIPPED_GAPS = "tailer.skippedGaps";
+  private static final String METRIC_FAILED = "tailer.failed";
+  
+  private final RevisionLog revLog;
+  private final LogPlayer player;
+  private final String graphId;
+  private final String branchId;
+  
+  private long pollIntervalMillis;
+  private long gapTimeoutMillis;
+  private int maxTransactionsPerPoll;
+  
+  private volatile long lastPlayedSeq;
+  // When the gap after lastPlayedSeq was first seen, or 0 if there is none
+  private long gapSeenAtMillis;
+  
+  private Thread pollThread;
+  private volatile boolean running;
+
+  public RevisionLogTailer(RevisionLog revLog, LogPlayer player, 
+          String graphId, String branchId)
+  {
+    this.revLog = revLog;
+    this.player = player;
+    this.graphId = graphId;
+    this.branchId = branchId;
+    this.pollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+    this.gapTimeoutMillis = DEFAULT_GAP_TIMEOUT_MILLIS;
+    this.maxTransactionsPerPoll = DEFAULT_MAX_TRANSACTIONS_PER_POLL;
+  }
+  
+  /**
+   * Brings the working copy up to date and starts polling for new 
+   * transactions on a background thread.
+   * 
+   * @throws LogPlayerException if the initial catch-up fails
+   */
+  public synchronized void start()
+      throws LogPlayerException
+  {
+    if (running) {
+      return;
+    }
+    catchUp();
+    running = true;
+    pollThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        pollLoop();
+      }
+    }, "revlog-tailer-"+graphId+"-"+branchId);
+    pollThread.setDaemon(true);
+    pollThread.start();
+  }
+  
+  public synchronized void stop()
+  {
+    running = false;
+    if (pollThread != null) {
+      pollThread.interrupt();
+      try {
+        pollThread.join();
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      pollThread = null;
+    }
+  }
+  
+  /**
+   * Replays everything committed since the working copy's checkpoint. The
+   * replay stops at the first missing commit sequence number that might 
+   * still appear. Polling then waits for it, or skips it after 
+   * <code>gapTimeoutMillis</code>.
+   */
+  public void catchUp()
+      throws LogPlayerException
+  {
+    player.replaySinceLastCheckpoint();
+    ReplayCheckpoint checkpoint = player.getCheckpoint();
+    lastPlayedSeq = checkpoint == null ? 0 : checkpoint.getCommitSeq();
+    gapSeenAtMillis = 0;
+    logger.info("Working copy of "+graphId+"/"+branchId
+        + " is up to date to commit sequence: "+lastPlayedSeq);
+  }
+  
+  private void pollLoop()
+  {
+    while (running) {
+      try {
+        int played = poll();
+        if (played < maxTransactionsPerPoll) {
+          Thread.sleep(pollIntervalMillis);
+        }
+      }
+      catch(InterruptedException e) {
+        break;
+      }
+      catch(Exception e) {
+        Metrics.counter(METRIC_FAILED).inc();
+        logger.log(Level.SEVERE, "Failed to apply new transactions to working copy of "
+            + graphId+"/"+branchId+" after commit sequence: "+lastPlayedSeq
+            + ". Will retry.", e);
+        try {
+          Thread.sleep(pollIntervalMillis);
+        }
+        catch(InterruptedException e2) {
+          break;
+        }
+      }
+    }
+    logger.info("Stopped tailing revision log for "+graphId+"/"+branchId);
+  }
+  
+  /**
+   * Plays any newly committed transactions that are not held back by a gap.
+   * This is called repeatedly by the polling thread, so it should only be 
+   * called directly when the tailer has not been started.
+   * 
+   * @return the number of transactions played
+   */
+  public int poll()
+      throws RevisionLogException, LogPlayerException
+  {
+    SortedMap<Long, String> newTxns = revLog.listCommittedTransactionsSince(
+        graphId, branchId, lastPlayedSeq, maxTransactionsPerPoll);
+    int played = 0;
+    for (Map.Entry<Long, String> entry : newTxns.entrySet()) {
+      long seq = entry.getKey();
+      if (seq != lastPlayedSeq + 1 && !_gapExpired(seq)) {
+        break;
+      }
+      player.playRevisionsForTransaction(entry.getValue());
+      lastPlayedSeq = seq;
+      gapSeenAtMillis = 0;
+      played++;
+      Metrics.counter(METRIC_PLAYED).inc();
+    }
+    return played;
+  }
+  
+  private boolean _gapExpired(long nextSeq)
+  {
+    long now = System.currentTimeMillis();
+    if (gapSeenAtMillis == 0) {
+      gapSeenAtMillis = now;
+    }
+    if (now - gapSeenAtMillis < gapTimeoutMillis) {
+      return false;
+    }
+    Metrics.counter(METRIC_SKIPPED_GAPS).inc();
+    logger.warning("Commit sequence numbers "+(lastPlayedSeq + 1)+" to "+(nextSeq - 1)
+        + " of "+graphId+"/"+branchId+" did not appear within "+gapTimeoutMillis
+        + " ms. Assuming that those commits failed.");
+    return true;
+  }
+
+  public long getLastPlayedSeq() {
+    return lastPlayedSeq;
+  }
+
+  public long getPollIntervalMillis() {
+    return pollIntervalMillis;
+  }
+
+  public void setPollIntervalMillis(long pollIntervalMillis) {
+    this.pollIntervalMillis = pollIntervalMillis;
+  }
+
+  public long getGapTimeoutMillis() {
+    return gapTimeoutMillis;
+  }
+
+  public void setGapTimeoutMillis(long gapTimeoutMillis) {
+    this.gapTimeoutMillis = gapTimeoutMillis;
+  }
+
+  public int getMaxTransactionsPerPoll() {
+    return maxTransactionsPerPoll;
+  }
+
+  public void setMaxTransactionsPerPoll(int maxTransactionsPerPoll) {
+    this.maxTransactionsPerPoll = maxTransactionsPerPoll;
+  }
+}
@@ -68,44 +68,22 @@ public class CreateNodeIfNotExistsPlayer
 
       BasicDBObject serializedNode = cn.getNode();
 
-      // Find out whether this node already exists by UID
-      String nodeUid = null;
-      boolean exists;
-      if (serializedNode.containsField(NodeDAO.FIELD_UID)) {
-        nodeUid = serializedNode.getString(NodeDAO.FIELD_UID);
-        exists = nodeDao.existsByUid(nodeUid);
-        if (exists) {
-          return; // For now, do nothing if a node with the same UID already exists
-        }
-      }
-
       // Node type is a required property
       if (!serializedNode.containsField(NodeDAO.FIELD_TYPE)) {
         throw new LogPlayerException("Can't play operation: "+item.getOp()
                 + ". Property " + NodeDAO.FIELD_TYPE + " was not set.");
       }
 
-      // Find out whether this node already exists by type|name
-      String nodeType = serializedNode.getString(NodeDAO.FIELD_TYPE);
-      String nodeName = serializedNode.getString(NodeDAO.FIELD_NAME);
-      if (serializedNode.containsField(NodeDAO.FIELD_NAME)) {
-        exists = nodeDao.existsByName(nodeType, nodeName);
-        if (exists) {
-          return; // For now, do nothing if a node with the same type and name combo already exists
-        }
-      }
-
-
-      /*
-       * If we get here, then the node does not currently exist.
-       */
-
       // Generate a UID for this node, if one does not already exist
       if (!serializedNode.containsField(NodeDAO.FIELD_UID)) {
         serializedNode.put(NodeDAO.FIELD_UID, UidGenerator.generateUid());
       }
 
-      nodeDao.store(serializedNode);
+      /*
+       * Stores the node unless it already exists by UID or type|name. For now,
+       * do nothing if it does exist.
+       */
+      nodeDao.storeIfNotExists(serializedNode);
     } catch (Exception e) {
       throw new LogPlayerException("Failed to play command", e);
     }
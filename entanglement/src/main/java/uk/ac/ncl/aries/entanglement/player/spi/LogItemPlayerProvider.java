@@ -23,6 +23,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.ServiceLoader;
 import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.metrics.InstrumentedProxy;
 
 /**
  *
@@ -45,6 +46,11 @@ public class LogItemPlayerProvider
     typeToProvider = new HashMap<>();
   }
 
+  /**
+   * Returns the player for the specified log item type. The returned player
+   * records the duration of each <code>playItem</code> call in the timer
+   * <code>player.&lt;itemType&gt;.playItem</code>.
+   */
   public LogItemPlayer getPlayerFor(String itemType)
       throws LogItemPlayerProviderException
   {
@@ -55,8 +61,10 @@ public class LogItemPlayerProvider
     for (LogItemPlayer impl : logItemPlayerLoader) {
       if (impl.getSupportedLogItemType().equals(itemType)) {
         impl.setMarshaller(marshaller);
-        typeToProvider.put(itemType, impl);
-        return impl;
+        LogItemPlayer instrumented = 
+            InstrumentedProxy.wrap(LogItemPlayer.class, impl, "player."+itemType);
+        typeToProvider.put(itemType, instrumented);
+        return instrumented;
       }
     }
     
@@ -19,7 +19,9 @@
 package uk.ac.ncl.aries.entanglement.player.spi;
 
 import com.torrenttamer.util.UidGenerator;
+import java.util.logging.Logger;
 import uk.ac.ncl.aries.entanglement.graph.EdgeDAO;
+import uk.ac.ncl.aries.entanglement.metrics.Metrics;
 import uk.ac.ncl.aries.entanglement.player.LogPlayerException;
 import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
 import uk.ac.ncl.aries.entanglement.revlog.commands.SetNodeProperty;
@@ -32,6 +34,11 @@ import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
 public class SetNodePropertyPlayer
     extends AbstractLogItemPlayer
 {
+  private static final Logger logger = 
+      Logger.getLogger(SetNodePropertyPlayer.class.getName());
+  
+  private static final String METRIC_VERSION_CONFLICTS = "player.versionConflicts";
+  
   @Override
   public String getSupportedLogItemType()
   {
@@ -42,13 +49,29 @@ public class SetNodePropertyPlayer
   public void playItem(NodeDAO nodeDao, EdgeDAO edgeDao, RevisionItem item)
       throws LogPlayerException
   {
+    SetNodeProperty op = (SetNodeProperty) item.getOp();
+    boolean set;
     try {
-      SetNodeProperty op = (SetNodeProperty) item.getOp();
-
-      nodeDao.setPropertyByUid(op.getnUid(), op.getpName(), op.getpVal());
+      if (op.getExpectedVersion() == null) {
+        nodeDao.setPropertyByUid(op.getnUid(), op.getpName(), op.getpVal());
+        set = true;
+      } else {
+        set = nodeDao.compareAndSetPropertyByUid(op.getnUid(), 
+            op.getExpectedVersion(), op.getpName(), op.getpVal());
+      }
     } catch (Exception e) {
       throw new LogPlayerException("Failed to play command", e);
     }
+    if (!set) {
+      /*
+       * The node's version depends only on the operations played before 
+       * this one, so every replay skips the same update.
+       */
+      Metrics.counter(METRIC_VERSION_CONFLICTS).inc();
+      logger.info("Version conflict: not setting property: "+op.getpName()
+          + " of node: "+op.getnUid()+". The node is no longer at version: "
+          + op.getExpectedVersion());
+    }
   }
 
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog;
+
+import com.mongodb.DB;
+import com.mongodb.Mongo;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Hands out unique values from a database <code>Counter</code> without a
+ * database round trip per value. Ranges of values are reserved from the
+ * counter with a single <code>$inc</code>, and are then handed out locally 
+ * using an <code>AtomicLong</code>. Threads only synchronize when the current
+ * block is used up and a new one must be reserved.
+ *
+ * The block size adapts to the rate at which values are requested. If a block
+ * is used up faster than <code>targetRefillIntervalMillis</code>, the next 
+ * block is twice as large (up to <code>maxBlockSize</code>). If a block lasts
+ * much longer than that, the next one is half the size (down to 
+ * <code>minBlockSize</code>).
+ *
+ * Values are unique across all counters of the same name, in any JVM, 
+ * including plain <code>Counter</code> instances. They are not dense: values
+ * left over in a block when the JVM exits are never used. Values from 
+ * different JVMs interleave, so they are only ordered within a single 
+ * instance. Use a plain <code>Counter</code> where a gap-free sequence is
+ * required.
+ *
+ * @author Keith Flanagan
+ */
+public class BlockAllocatingCounter
+{
+  private static final Logger logger =
+      Logger.getLogger(BlockAllocatingCounter.class.getName());
+
+  public static final int DEFAULT_INITIAL_BLOCK_SIZE = 1000;
+  public static final int DEFAULT_MIN_BLOCK_SIZE = 100;
+  public static final int DEFAULT_MAX_BLOCK_SIZE = 1000000;
+  public static final long DEFAULT_TARGET_REFILL_INTERVAL_MILLIS = 1000;
+
+  /*
+   * A block must last this many refill intervals before it shrinks. This 
+   * stops the size from oscillating under a steady request rate.
+   */
+  private static final int SHRINK_FACTOR = 4;
+
+  private final Counter counter;
+  private final long minBlockSize;
+  private final long maxBlockSize;
+  private final long targetRefillIntervalMillis;
+
+  private volatile Block current;
+  // Guarded by 'this'
+  private long blockSize;
+
+  private final AtomicLong blocksReserved;
+
+  public BlockAllocatingCounter(Mongo m, DB db, String counterName)
+  {
+    this(new Counter(m, db, counterName), DEFAULT_INITIAL_BLOCK_SIZE, 
+        DEFAULT_MIN_BLOCK_SIZE, DEFAULT_MAX_BLOCK_SIZE, 
+        DEFAULT_TARGET_REFILL_INTERVAL_MILLIS);
+  }
+
+  /**
+   * @param counter the database counter to reserve blocks from
+   * @param initialBlockSize the size of the first block reserved
+   * @param minBlockSize the smallest block size that will be used
+   * @param maxBlockSize the largest block size that will be used
+   * @param targetRefillIntervalMillis the desired time between block 
+   * reservations. Zero or less disables adaptive sizing.
+   */
+  public BlockAllocatingCounter(Counter counter, long initialBlockSize,
+          long minBlockSize, long maxBlockSize, long targetRefillIntervalMillis)
+  {
+    if (minBlockSize < 1 || maxBlockSize < minBlockSize) {
+      throw new IllegalArgumentException("Invalid block size bounds: "
+          + minBlockSize+" - "+maxBlockSize);
+    }
+    this.counter = counter;
+    this.minBlockSize = minBlockSize;
+    this.maxBlockSize = maxBlockSize;
+    this.targetRefillIntervalMillis = targetRefillIntervalMillis;
+    this.blockSize = Math.min(maxBlockSize, Math.max(minBlockSize, initialBlockSize));
+    this.blocksReserved = new AtomicLong(0);
+    // An exhausted block, so that the first call reserves a real one
+    this.current = new Block(1, 0, System.currentTimeMillis());
+  }
+
+  /**
+   * @return a value that has not been returned by any other counter of the 
+   * same name.
+   */
+  public long next()
+  {
+    while (true) {
+      Block block = current;
+      long value = block.next.getAndIncrement();
+      if (value <= block.last) {
+        return value;
+      }
+      _refill(block);
+    }
+  }
+
+  private synchronized void _refill(Block exhausted)
+  {
+    if (current != exhausted) {
+      // Another thread has already reserved a new block
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (blocksReserved.get() > 0 && targetRefillIntervalMillis > 0) {
+      long lasted = now - exhausted.reservedAtMillis;
+      if (lasted < targetRefillIntervalMillis && blockSize < maxBlockSize) {
+        blockSize = Math.min(maxBlockSize, blockSize * 2);
+        logger.fine("Counter "+counter.getCounterName()+" block size grown to: "+blockSize);
+      } else if (lasted > targetRefillIntervalMillis * SHRINK_FACTOR 
+          && blockSize > minBlockSize) {
+        blockSize = Math.max(minBlockSize, blockSize / 2);
+        logger.fine("Counter "+counter.getCounterName()+" block size shrunk to: "+blockSize);
+      }
+    }
+    long last = counter.reserve(blockSize);
+    current = new Block(last - blockSize + 1, last, now);
+    blocksReserved.incrementAndGet();
+  }
+
+  public synchronized long getBlockSize() {
+    return blockSize;
+  }
+
+  public long getBlocksReserved() {
+    return blocksReserved.get();
+  }
+
+  /**
+   * A reserved range of values, <code>[first, last]</code>.
+   */
+  private static class Block
+  {
+    private final AtomicLong next;
+    private final long last;
+    private final long reservedAtMillis;
+
+    private Block(long first, long last, long reservedAtMillis)
+    {
+      this.next = new AtomicLong(first);
+      this.last = last;
+      this.reservedAtMillis = reservedAtMillis;
+    }
+  }
+}
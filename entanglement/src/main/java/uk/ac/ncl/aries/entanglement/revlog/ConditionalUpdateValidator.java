@@ -0,0 +1,384 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.graph.GraphEntityDAO;
+import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
+import uk.ac.ncl.aries.entanglement.player.GraphCheckoutNamingScheme;
+import uk.ac.ncl.aries.entanglement.player.ReplayCheckpoint;
+import uk.ac.ncl.aries.entanglement.player.ReplayCheckpointDAO;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateNode;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateNodeIfNotExists;
+import uk.ac.ncl.aries.entanglement.revlog.commands.DeleteNodeByUid;
+import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
+import uk.ac.ncl.aries.entanglement.revlog.commands.SetNamedNodeProperty;
+import uk.ac.ncl.aries.entanglement.revlog.commands.SetNodeProperty;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItemContainer;
+import uk.ac.ncl.aries.entanglement.revlog.lock.EntityLockNames;
+import uk.ac.ncl.aries.entanglement.revlog.lock.LockException;
+import uk.ac.ncl.aries.entanglement.revlog.lock.LockManager;
+
+/**
+ * Checks the expected versions of the conditional <code>SetNodeProperty</code>
+ * operations of one transaction as it commits, so that a lost update fails
+ * the commit rather than being skipped when it is played.
+ * 
+ * A node's committed version is the version it has once every committed
+ * transaction has been played. It is read from the working copy, but only 
+ * after the revision log shows that no transaction committed since the 
+ * working copy's checkpoint touches the node. Otherwise, the validator waits 
+ * for the working copy to catch up. The transaction holds the node's locks 
+ * (by UID, and by name once the name is known), so no other writer can 
+ * change the node meanwhile.
+ * 
+ * The transaction's own operations are passed to <code>validate</code> in 
+ * playback order, and their effect on node versions is taken into account.
+ * 
+ * If the working copy doesn't catch up within the timeout, for example 
+ * because it is held back behind a staged transaction that is still being
+ * written, the validation fails rather than guessing.
+ * 
+ * @author Keith Flanagan
+ */
+class ConditionalUpdateValidator
+{
+  private static final Logger logger =
+      Logger.getLogger(ConditionalUpdateValidator.class.getName());
+  
+  private static final long CATCH_UP_POLL_MILLIS = 50;
+  
+  private static final DBObject VERSION_FIELDS = 
+      new BasicDBObject(GraphEntityDAO.FIELD_VERSION, 1)
+      .append(GraphEntityDAO.FIELD_TYPE, 1).append(GraphEntityDAO.FIELD_NAME, 1);
+  
+  private final RevisionLogDirectToMongoDbImpl revLog;
+  private final LockManager locks;
+  private final long timeoutMillis;
+  private final NodeDAO nodeDao;
+  private final ReplayCheckpointDAO checkpointDao;
+  private final String checkoutName;
+  private final String graphId;
+  private final String graphBranchId;
+  private final String txnId;
+  
+  // The effect of this transaction's operations so far, by node UID
+  private final Map<String, VersionChange> changes = new HashMap<>();
+  // Nodes created by this transaction, by type/name
+  private final Map<String, String> createdByName = new HashMap<>();
+  // Property updates by name to nodes not created by this transaction
+  private final Map<String, Integer> namedUpdates = new HashMap<>();
+  
+  ConditionalUpdateValidator(RevisionLogDirectToMongoDbImpl revLog, LockManager locks, long timeoutMillis,
+      NodeDAO nodeDao, String graphId, String graphBranchId, String txnId)
+  {
+    this.revLog = revLog;
+    this.locks = locks;
+    this.timeoutMillis = timeoutMillis;
+    this.nodeDao = nodeDao;
+    this.checkpointDao = new ReplayCheckpointDAO(nodeDao.getCollection().getDB());
+    this.checkoutName = new GraphCheckoutNamingScheme(graphId, graphBranchId).getCheckoutName();
+    this.graphId = graphId;
+    this.graphBranchId = graphBranchId;
+    this.txnId = txnId;
+  }
+  
+  /**
+   * @param ops the transaction's next operations, in playback order
+   * @throws RevisionLogException if a conditional update expects a version
+   * that the node won't have when the update is played
+   */
+  void validate(List<GraphOperation> ops)
+      throws RevisionLogException
+  {
+    for (GraphOperation op : ops) {
+      if (op instanceof CreateNode) {
+        _created(((CreateNode) op).getNode(), false);
+      } else if (op instanceof CreateNodeIfNotExists) {
+        _created(((CreateNodeIfNotExists) op).getNode(), true);
+      } else if (op instanceof DeleteNodeByUid) {
+        _change(((DeleteNodeByUid) op).getUid()).delete();
+      } else if (op instanceof SetNamedNodeProperty) {
+        SetNamedNodeProperty setOp = (SetNamedNodeProperty) op;
+        String nameKey = EntityLockNames.namedEntityId(setOp.getnType(), setOp.getnName());
+        String uid = createdByName.get(nameKey);
+        if (uid != null) {
+          _change(uid).increment();
+        } else {
+          Integer count = namedUpdates.get(nameKey);
+          namedUpdates.put(nameKey, count == null ? 1 : count + 1);
+        }
+      } else if (op instanceof SetNodeProperty) {
+        SetNodeProperty setOp = (SetNodeProperty) op;
+        VersionChange change = _change(setOp.getnUid());
+        if (setOp.getExpectedVersion() != null) {
+          _check(setOp, change);
+        }
+        change.increment();
+      }
+    }
+  }
+  
+  private void _created(BasicDBObject node, boolean ifNotExists)
+  {
+    String uid = node.getString(GraphEntityDAO.FIELD_UID);
+    if (uid == null) {
+      // The UID is generated when the operation is played
+      return;
+    }
+    VersionChange change = _change(uid);
+    if (ifNotExists) {
+      change.createIfAbsent();
+    } else {
+      change.create();
+    }
+    String name = node.getString(GraphEntityDAO.FIELD_NAME);
+    if (name != null) {
+      createdByName.put(EntityLockNames.namedEntityId(
+          node.getString(GraphEntityDAO.FIELD_TYPE), name), uid);
+    }
+  }
+  
+  private VersionChange _change(String uid)
+  {
+    VersionChange change = changes.get(uid);
+    if (change == null) {
+      change = new VersionChange();
+      changes.put(uid, change);
+    }
+    return change;
+  }
+  
+  private void _check(SetNodeProperty setOp, VersionChange change)
+      throws RevisionLogException
+  {
+    Long version;
+    if (change.replaced) {
+      version = change.version;
+    } else {
+      DBObject node = _readCommitted(setOp.getnUid());
+      if (node != null) {
+        // Earlier updates by name in this transaction also change the version
+        Integer count = namedUpdates.remove(EntityLockNames.namedEntityId(
+            (String) node.get(GraphEntityDAO.FIELD_TYPE), 
+            (String) node.get(GraphEntityDAO.FIELD_NAME)));
+        if (count != null) {
+          change.delta += count;
+        }
+      }
+      version = change.apply(_version(node));
+    }
+    if (version == null || version.longValue() != setOp.getExpectedVersion()) {
+      throw new RevisionLogException("Version conflict in transaction: "+txnId
+          + ". Node: "+setOp.getnUid()+" will be at version: "
+          + (version == null ? "<missing>" : version)
+          + ", but property: "+setOp.getpName()+" expects version: "
+          + setOp.getExpectedVersion());
+    }
+    change.set(version);
+  }
+  
+  private static Long _version(DBObject node)
+  {
+    if (node == null) {
+      return null;
+    }
+    // Nodes written before versions were introduced are at version 0
+    Number version = (Number) node.get(GraphEntityDAO.FIELD_VERSION);
+    return version == null ? 0 : version.longValue();
+  }
+  
+  /**
+   * Reads a node from the working copy once the working copy has played 
+   * every committed transaction that touches it.
+   */
+  private DBObject _readCommitted(String uid)
+      throws RevisionLogException
+  {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    Set<String> nameLocks = new HashSet<>();
+    try {
+      while (true) {
+        ReplayCheckpoint checkpoint = checkpointDao.get(checkoutName);
+        DBObject node = nodeDao.getByUid(uid, VERSION_FIELDS);
+        String nameKey = null;
+        if (node != null && node.get(GraphEntityDAO.FIELD_NAME) != null) {
+          nameKey = EntityLockNames.namedEntityId(
+              (String) node.get(GraphEntityDAO.FIELD_TYPE), 
+              (String) node.get(GraphEntityDAO.FIELD_NAME));
+          // Writers may also refer to the node by name
+          if (nameLocks.add(nameKey)) {
+            locks.acquire(txnId, Collections.singleton(
+                EntityLockNames.lockName(graphId, graphBranchId, nameKey)), timeoutMillis);
+          }
+        }
+        long lastTouched = _lastCommitTouching(checkpoint, uid, nameKey);
+        if (lastTouched < 0) {
+          return node;
+        }
+        if (System.currentTimeMillis() > deadline) {
+          throw new RevisionLogException("Can't check the version of node: "+uid
+              + " in transaction: "+txnId+". The working copy: "+checkoutName
+              + " has not played commit sequence number: "+lastTouched
+              + " after "+timeoutMillis+" ms");
+        }
+        logger.fine("Waiting for working copy: "+checkoutName
+            + " to play commit sequence number: "+lastTouched);
+        Thread.sleep(CATCH_UP_POLL_MILLIS);
+      }
+    }
+    catch(RevisionLogException e) {
+      throw e;
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RevisionLogException("Interrupted while checking the version of node: "
+          + uid+" in transaction: "+txnId, e);
+    }
+    catch(LockException e) {
+      throw new RevisionLogException("Failed to lock node: "+uid
+          + " by name in transaction: "+txnId, e);
+    }
+    catch(Exception e) {
+      throw new RevisionLogException("Failed to read the version of node: "
+          + uid+" in transaction: "+txnId, e);
+    }
+  }
+  
+  /**
+   * @return the commit sequence number of the last transaction committed 
+   * after <code>checkpoint</code> that touches the node, or -1 if there is 
+   * none.
+   */
+  private long _lastCommitTouching(ReplayCheckpoint checkpoint, String uid, String nameKey)
+  {
+    long afterSeq = checkpoint == null ? 0 : Math.max(0, checkpoint.getCommitSeq());
+    int afterSubmitId = checkpoint == null || afterSeq == 0 ? 0 : checkpoint.getTxnSubmitId();
+    long lastTouched = -1;
+    // Not stopping at incomplete transactions, so that later ones are seen
+    for (RevisionItemContainer container : revLog.iterateCommittedRevisionsPastIncomplete(
+        graphId, graphBranchId, afterSeq, afterSubmitId)) {
+      if (container.getCommitSeq() <= lastTouched) {
+        continue;
+      }
+      for (RevisionItem item : container.getItems()) {
+        if (_touches(item.getOp(), uid, nameKey)) {
+          lastTouched = container.getCommitSeq();
+          break;
+        }
+      }
+    }
+    return lastTouched;
+  }
+  
+  private static boolean _touches(GraphOperation op, String uid, String nameKey)
+  {
+    if (op instanceof SetNodeProperty) {
+      return uid.equals(((SetNodeProperty) op).getnUid());
+    } else if (op instanceof DeleteNodeByUid) {
+      return uid.equals(((DeleteNodeByUid) op).getUid());
+    } else if (op instanceof SetNamedNodeProperty) {
+      SetNamedNodeProperty setOp = (SetNamedNodeProperty) op;
+      return nameKey != null 
+          && nameKey.equals(EntityLockNames.namedEntityId(setOp.getnType(), setOp.getnName()));
+    } else if (op instanceof CreateNode) {
+      return _isNode(((CreateNode) op).getNode(), uid, nameKey);
+    } else if (op instanceof CreateNodeIfNotExists) {
+      return _isNode(((CreateNodeIfNotExists) op).getNode(), uid, nameKey);
+    }
+    return false;
+  }
+  
+  private static boolean _isNode(BasicDBObject node, String uid, String nameKey)
+  {
+    if (uid.equals(node.getString(GraphEntityDAO.FIELD_UID))) {
+      return true;
+    }
+    String name = node.getString(GraphEntityDAO.FIELD_NAME);
+    return nameKey != null && name != null && nameKey.equals(EntityLockNames.namedEntityId(
+        node.getString(GraphEntityDAO.FIELD_TYPE), name));
+  }
+  
+  /**
+   * The effect of a transaction's operations on the version of one node, 
+   * relative to its committed version. A null version means that the node 
+   * does not exist.
+   */
+  private static class VersionChange
+  {
+    // If true, the node's version no longer depends on its committed version
+    private boolean replaced;
+    private Long version;
+    // Otherwise, the increment if it exists, and the version if it doesn't
+    private long delta;
+    private Long versionIfAbsent;
+    
+    private Long apply(Long committedVersion) {
+      if (replaced) {
+        return version;
+      }
+      return committedVersion == null ? versionIfAbsent : committedVersion + delta;
+    }
+    
+    private void set(Long newVersion) {
+      replaced = true;
+      version = newVersion;
+    }
+    
+    private void create() {
+      set(1L);
+    }
+    
+    private void createIfAbsent() {
+      if (replaced) {
+        if (version == null) {
+          version = 1L;
+        }
+      } else if (versionIfAbsent == null) {
+        versionIfAbsent = 1L;
+      }
+    }
+    
+    private void delete() {
+      set(null);
+    }
+    
+    // Property updates of a missing node do nothing
+    private void increment() {
+      if (replaced) {
+        if (version != null) {
+          version++;
+        }
+      } else {
+        delta++;
+        if (versionIfAbsent != null) {
+          versionIfAbsent++;
+        }
+      }
+    }
+  }
+}
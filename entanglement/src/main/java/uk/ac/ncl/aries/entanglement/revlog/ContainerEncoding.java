@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog;
+
+/**
+ * The ways in which a revision log can store the items of a revision
+ * container. Container properties (graph, transaction, commit sequence, etc)
+ * are always stored as ordinary document fields so that they can be queried
+ * and indexed; only the representation of the items differs.
+ *
+ * A revision log can read containers written with any of these encodings,
+ * so the encoding may be changed at any time.
+ *
+ * @author Keith Flanagan
+ */
+public enum ContainerEncoding
+{
+  /**
+   * Items are stored as an array of subdocuments, each with a type name and
+   * the marshalled graph operation. This is the original format.
+   */
+  JSON,
+
+  /**
+   * Items are stored as a single binary field using numeric operation tags
+   * and a per-container field name dictionary.
+   * See <code>CompactRevisionItemCodec</code>.
+   */
+  COMPACT,
+
+  /**
+   * As <code>COMPACT</code>, but the encoded items of sufficiently large
+   * containers are also deflate-compressed.
+   */
+  COMPACT_DEFLATE;
+}
@@ -46,6 +46,20 @@ public class Counter
   }
   
   public long next()
+  {
+    return reserve(INCREMENT_BY);
+  }
+  
+  /**
+   * Atomically reserves a contiguous range of <code>count</code> values.
+   * The values <code>(result - count, result]</code> belong to the caller. 
+   * Ranges reserved through different <code>Counter</code> instances with the
+   * same name never overlap, including across JVMs.
+   * 
+   * @param count the number of values to reserve
+   * @return the highest value in the reserved range
+   */
+  public long reserve(long count)
   {
     boolean upsert = true;
     boolean returnNew = true;
@@ -58,7 +72,7 @@ public class Counter
     
     // Same as: update: {$inc: {c: 1}}
     DBObject update = new BasicDBObject(
-        "$inc", new BasicDBObject(FIELD_COUNTER, INCREMENT_BY)); 
+        "$inc", new BasicDBObject(FIELD_COUNTER, count)); 
 //    System.out.println("update: "+update);
     
     DBObject fields = new BasicDBObject();
@@ -68,7 +82,11 @@ public class Counter
     DBObject result = col.findAndModify(
         query, fields, sort, remove, update, returnNew, upsert);
     
-    return (Long) result.get(FIELD_COUNTER);
+    return ((Number) result.get(FIELD_COUNTER)).longValue();
+  }
+  
+  public String getCounterName() {
+    return counterName;
   }
 
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog;
+
+/**
+ * A hook that receives throughput information from a
+ * <code>GroupCommitWriter</code>. Implementations are called from the writer's
+ * flush thread, so they should return quickly and must be thread safe if
+ * they are shared between several writers.
+ *
+ * @author Keith Flanagan
+ */
+public interface GroupCommitMetrics
+{
+  /**
+   * Called after a batch of revision containers has been written to the
+   * database as a single multi-document insert.
+   *
+   * @param containerCount the number of revision containers (documents) written
+   * @param itemCount the total number of revision items across those containers
+   * @param queueMillis the time that the oldest container in the batch spent
+   * waiting in the queue before the insert began
+   * @param writeMillis the time taken by the database insert
+   */
+  public void batchWritten(int containerCount, int itemCount,
+          long queueMillis, long writeMillis);
+
+  /**
+   * Called when a batch insert fails. Every submission in the batch will have
+   * been failed with <code>cause</code>.
+   *
+   * @param containerCount the number of revision containers in the failed batch
+   * @param cause the database error
+   */
+  public void batchFailed(int containerCount, Throwable cause);
+}
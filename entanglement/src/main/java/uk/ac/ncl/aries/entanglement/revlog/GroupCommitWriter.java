@@ -0,0 +1,398 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queues serialized revision containers from any number of submitting threads
+ * and writes them to the revision log collection as multi-document inserts.
+ * A batch is written as soon as it reaches <code>maxBatchSize</code> documents,
+ * or when <code>maxBatchDelayMillis</code> has passed since its first document
+ * was taken from the queue, whichever happens first.
+ *
+ * A single thread performs all writes, so documents reach the database in the
+ * order in which they were queued. For any given transaction, containers
+ * submitted in increasing <code>txnSubmitId</code> order are therefore also
+ * written in that order, and a transaction commit can wait for all of its
+ * queued containers by calling <code>awaitTransaction</code>.
+ *
+ * If a batch insert fails, every submission in that batch is failed and each
+ * affected transaction is remembered as failed until
+ * <code>awaitTransaction</code> is called for it. The transaction should then
+ * be rolled back.
+ *
+ * @author Keith Flanagan
+ */
+public class GroupCommitWriter
+{
+  private static final Logger logger =
+      Logger.getLogger(GroupCommitWriter.class.getName());
+
+  private static final long IDLE_POLL_MILLIS = 100;
+
+  private final DBCollection col;
+  private final int maxBatchSize;
+  private final long maxBatchDelayNanos;
+
+  private final BlockingQueue<Submission> queue;
+  /*
+   * The most recently queued submission for each transaction that still has
+   * unwritten containers.
+   */
+  private final ConcurrentMap<String, Submission> lastSubmissionByTxn;
+  /*
+   * The first write error seen by each transaction, if any.
+   */
+  private final ConcurrentMap<String, Throwable> failedTxns;
+
+  private final Thread flushThread;
+  /*
+   * Submitters hold the read lock while checking running and queueing, and
+   * close() takes the write lock to clear running. So once close() has 
+   * cleared it, nothing more can be queued, and the flush thread can safely
+   * exit when the queue is empty.
+   */
+  private final ReadWriteLock closeLock;
+  private volatile boolean running;
+  private volatile GroupCommitMetrics metrics;
+
+  public GroupCommitWriter(DBCollection col, int maxBatchSize,
+          int maxQueuedDocuments, long maxBatchDelayMillis)
+  {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("maxBatchSize must be at least 1");
+    }
+    this.col = col;
+    this.maxBatchSize = maxBatchSize;
+    this.maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMillis);
+    this.queue = new LinkedBlockingQueue<>(Math.max(maxQueuedDocuments, maxBatchSize));
+    this.lastSubmissionByTxn = new ConcurrentHashMap<>();
+    this.failedTxns = new ConcurrentHashMap<>();
+    this.closeLock = new ReentrantReadWriteLock();
+
+    this.running = true;
+    this.flushThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        flushLoop();
+      }
+    }, "revlog-group-commit-"+col.getName());
+    flushThread.setDaemon(true);
+    flushThread.start();
+  }
+
+  public GroupCommitMetrics getMetrics() {
+    return metrics;
+  }
+
+  public void setMetrics(GroupCommitMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Queues a serialized revision container for writing. This method blocks
+   * if the queue is full.
+   *
+   * @param txnId the transaction that the container belongs to
+   * @param itemCount the number of revision items in the container
+   * @param dbObject the serialized container
+   * @return a future that completes when the container has been written
+   * @throws RevisionLogException if the writer has been closed, or the
+   * calling thread is interrupted while waiting for queue space.
+   */
+  public Future<Void> submit(String txnId, int itemCount, DBObject dbObject)
+      throws RevisionLogException
+  {
+    closeLock.readLock().lock();
+    try {
+      if (!running) {
+        throw new RevisionLogException("Group commit writer has been closed");
+      }
+      Submission submission = new Submission(txnId, itemCount, dbObject);
+      lastSubmissionByTxn.put(txnId, submission);
+      try {
+        queue.put(submission);
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        lastSubmissionByTxn.remove(txnId, submission);
+        throw new RevisionLogException(
+            "Interrupted while queueing revisions for transaction: "+txnId, e);
+      }
+      return submission;
+    }
+    finally {
+      closeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Blocks until every container queued so far for the specified transaction
+   * has been written, and clears any state held for the transaction.
+   *
+   * @param txnId the transaction to wait for
+   * @throws RevisionLogException if any queued container for the transaction
+   * failed to be written.
+   */
+  public void awaitTransaction(String txnId)
+      throws RevisionLogException
+  {
+    Submission last = lastSubmissionByTxn.get(txnId);
+    if (last != null) {
+      last.await();
+    }
+    Throwable failure = failedTxns.remove(txnId);
+    if (failure != null) {
+      throw new RevisionLogException("One or more revision containers for "
+          + "transaction: "+txnId+" could not be written", failure);
+    }
+  }
+
+  /**
+   * Discards any state held for a transaction without waiting for its 
+   * containers, including any write error. Used when a transaction is rolled 
+   * back, whether or not it was awaited.
+   */
+  public void forgetTransaction(String txnId)
+  {
+    lastSubmissionByTxn.remove(txnId);
+    failedTxns.remove(txnId);
+  }
+
+  /**
+   * Stops accepting new submissions, writes everything that is still queued,
+   * and then stops the flush thread.
+   */
+  public void close()
+  {
+    /*
+     * Submitters blocked on a full queue hold the read lock, but the flush 
+     * thread keeps draining without it, so this can't deadlock.
+     */
+    closeLock.writeLock().lock();
+    try {
+      running = false;
+    }
+    finally {
+      closeLock.writeLock().unlock();
+    }
+    try {
+      flushThread.join();
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void flushLoop()
+  {
+    List<Submission> batch = new ArrayList<>(maxBatchSize);
+    while (running || !queue.isEmpty()) {
+      try {
+        Submission first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + maxBatchDelayNanos;
+        queue.drainTo(batch, maxBatchSize - batch.size());
+        while (batch.size() < maxBatchSize) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            break;
+          }
+          Submission next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+          queue.drainTo(batch, maxBatchSize - batch.size());
+        }
+        writeBatch(batch);
+      }
+      catch(InterruptedException e) {
+        /*
+         * Only close() may stop the thread. Exiting here could strand 
+         * submissions queued afterwards, whose futures would never complete.
+         */
+        logger.info("Group commit flush thread interrupted; continuing until closed");
+        if (!batch.isEmpty()) {
+          writeBatch(batch);
+        }
+      }
+      catch(Throwable e) {
+        // writeBatch reports its own errors. Anything here is a bug, but the
+        // thread must survive it or submitters will block forever.
+        logger.log(Level.SEVERE, "Unexpected error in group commit flush thread", e);
+        failBatch(batch, e);
+      }
+      finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void writeBatch(List<Submission> batch)
+  {
+    List<DBObject> docs = new ArrayList<>(batch.size());
+    int itemCount = 0;
+    for (Submission submission : batch) {
+      docs.add(submission.dbObject);
+      itemCount = itemCount + submission.itemCount;
+    }
+    long startMs = System.currentTimeMillis();
+    long queueMs = startMs - batch.get(0).queuedAtMillis;
+    try {
+      col.insert(docs);
+    }
+    catch(Exception e) {
+      logger.log(Level.WARNING, "Failed to write a batch of "+docs.size()
+          + " revision containers", e);
+      failBatch(batch, e);
+      GroupCommitMetrics m = metrics;
+      if (m != null) {
+        m.batchFailed(batch.size(), e);
+      }
+      return;
+    }
+    long writeMs = System.currentTimeMillis() - startMs;
+    for (Submission submission : batch) {
+      submission.complete(null);
+      lastSubmissionByTxn.remove(submission.txnId, submission);
+    }
+    GroupCommitMetrics m = metrics;
+    if (m != null) {
+      m.batchWritten(batch.size(), itemCount, queueMs, writeMs);
+    }
+  }
+
+  private void failBatch(List<Submission> batch, Throwable cause)
+  {
+    for (Submission submission : batch) {
+      if (submission.isDone()) {
+        continue;
+      }
+      failedTxns.putIfAbsent(submission.txnId, cause);
+      submission.complete(cause);
+      lastSubmissionByTxn.remove(submission.txnId, submission);
+    }
+  }
+
+  /**
+   * A queued revision container, and the future handed back to its submitter.
+   */
+  private static class Submission
+      implements Future<Void>
+  {
+    private final String txnId;
+    private final int itemCount;
+    private final DBObject dbObject;
+    private final long queuedAtMillis;
+    private final CountDownLatch done;
+    private volatile Throwable failure;
+
+    private Submission(String txnId, int itemCount, DBObject dbObject)
+    {
+      this.txnId = txnId;
+      this.itemCount = itemCount;
+      this.dbObject = dbObject;
+      this.queuedAtMillis = System.currentTimeMillis();
+      this.done = new CountDownLatch(1);
+    }
+
+    private void complete(Throwable failure)
+    {
+      this.failure = failure;
+      done.countDown();
+    }
+
+    private void await()
+        throws RevisionLogException
+    {
+      try {
+        done.await();
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RevisionLogException(
+            "Interrupted while waiting for revisions of transaction: "+txnId
+            + " to be written", e);
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    @Override
+    public Void get()
+        throws InterruptedException, ExecutionException
+    {
+      done.await();
+      return result();
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+      if (!done.await(timeout, unit)) {
+        throw new TimeoutException("Revision container for transaction: "
+            + txnId+" was not written within "+timeout+" "+unit);
+      }
+      return result();
+    }
+
+    private Void result()
+        throws ExecutionException
+    {
+      if (failure != null) {
+        throw new ExecutionException(failure);
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog;
+
+import com.mongodb.DBObject;
+import com.torrenttamer.mongodb.dbobject.DbObjectMarshaller;
+import com.torrenttamer.mongodb.dbobject.DbObjectMarshallerException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.bson.types.Binary;
+import uk.ac.ncl.aries.entanglement.revlog.codec.CompactRevisionItemCodec;
+import uk.ac.ncl.aries.entanglement.revlog.codec.GraphOperationCodecs;
+import uk.ac.ncl.aries.entanglement.revlog.codec.RevisionItemCodecException;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItemContainer;
+
+/**
+ * Deserialises revision container documents as they are read from a cursor.
+ * Container properties are deserialised by the marshaller. Items stored in
+ * the compact binary encoding are decoded lazily, one at a time, as the
+ * container's item list is iterated. Items stored as subdocuments are
+ * decoded by their <code>GraphOperationCodec</code>s where available.
+ *
+ * @author Keith Flanagan
+ */
+class RevisionContainerIterable
+    implements Iterable<RevisionItemContainer>
+{
+  private final Iterable<DBObject> cursor;
+  private final DbObjectMarshaller marshaller;
+  private final GraphOperationCodecs opCodecs;
+  private final CompactRevisionItemCodec itemCodec;
+
+  RevisionContainerIterable(Iterable<DBObject> cursor, DbObjectMarshaller marshaller,
+      GraphOperationCodecs opCodecs, CompactRevisionItemCodec itemCodec)
+  {
+    this.cursor = cursor;
+    this.marshaller = marshaller;
+    this.opCodecs = opCodecs;
+    this.itemCodec = itemCodec;
+  }
+
+  @Override
+  public Iterator<RevisionItemContainer> iterator()
+  {
+    final Iterator<DBObject> itr = cursor.iterator();
+    return new Iterator<RevisionItemContainer>() {
+      @Override
+      public boolean hasNext() {
+        return itr.hasNext();
+      }
+
+      @Override
+      public RevisionItemContainer next() {
+        DBObject dbObject = itr.next();
+        try {
+          return decode(dbObject);
+        }
+        catch(Exception e) {
+          throw new IllegalStateException(
+              "Failed to deserialise revision container: "+dbObject.get("_id"), e);
+        }
+      }
+
+      @Override
+      public void remove() {
+        itr.remove();
+      }
+    };
+  }
+
+  private RevisionItemContainer decode(DBObject dbObject)
+      throws DbObjectMarshallerException, RevisionItemCodecException
+  {
+    // Items are decoded here rather than by the marshaller, which uses reflection
+    Object itemsBin = dbObject.removeField(RevisionLogDirectToMongoDbImpl.FIELD_ITEMS_BIN);
+    Object itemDocs = dbObject.removeField(RevisionLogDirectToMongoDbImpl.FIELD_ITEMS);
+    RevisionItemContainer container =
+        marshaller.deserialize(dbObject, RevisionItemContainer.class);
+    if (itemsBin != null) {
+      byte[] data = itemsBin instanceof Binary
+          ? ((Binary) itemsBin).getData() : (byte[]) itemsBin;
+      container.setItems(itemCodec.decode(data));
+    } else if (itemDocs != null) {
+      List<?> docs = (List<?>) itemDocs;
+      List<RevisionItem> items = new ArrayList<>(docs.size());
+      for (Object itemDoc : docs) {
+        items.add(opCodecs.deserializeItem((DBObject) itemDoc));
+      }
+      container.setItems(items);
+    }
+    return container;
+  }
+}
@@ -22,10 +22,8 @@ import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
-import com.torrenttamer.util.GenericServiceLoader;
 import java.lang.reflect.Type;
-import java.util.HashMap;
-import java.util.Map;
+import uk.ac.ncl.aries.entanglement.revlog.codec.GraphOperationCodecs;
 import uk.ac.ncl.aries.entanglement.revlog.commands.CreateNode;
 import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
 import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
@@ -39,7 +37,7 @@ import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
  * 
  * This deserializer uses additional information (a type name) stored as a 
  * property on the <code>RevisionItem</code> in order to instantiate the 
- * correct class form an SPI lookup. 
+ * correct class form an SPI lookup. Instances are thread safe.
  * 
  * The following is an example of a <code>RevisionItem</code> subdocument 
  * parsed by this deserializer. These are typically a list on another class,
@@ -63,15 +61,12 @@ import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
 public class RevisionItemDeserializer 
     implements JsonDeserializer<RevisionItem>
 { 
-  // SPI loader for GraphOperation. Used for lookup up type names.
-  private final GenericServiceLoader<GraphOperation> loader;
-  // A cache of typename -> graph operation type to avoid loader lookps.
-  private final Map<String, Class<? extends GraphOperation>> opTypeCache;
+  // Used for looking up type names. Caches lookups in a concurrent map.
+  private final GraphOperationCodecs opTypes;
   
   public RevisionItemDeserializer(ClassLoader classLoader)
   {
-    loader = new GenericServiceLoader<>(classLoader, GraphOperation.class);
-    opTypeCache = new HashMap<>();
+    opTypes = new GraphOperationCodecs(classLoader);
   }
   
   
@@ -86,7 +81,7 @@ public class RevisionItemDeserializer
 
       JsonObject rootObj = je.getAsJsonObject();
       typeName = rootObj.get("type").getAsString();
-      Class cl = getOperationTypeForName(typeName);
+      Class cl = opTypes.getOperationTypeForName(typeName);
       GraphOperation graphOp = jdc.deserialize(rootObj.get("op"), cl);
       
       RevisionItem revItem = new RevisionItem();
@@ -101,39 +96,5 @@ public class RevisionItemDeserializer
               + " to: " + typeName + ". Document was:\n" + je, e);
     }
   }
-  
-  /**
-   * Uses an SPI of <code>GraphOperation</code> to locate a Java class for the
-   * deserializer that represents the actual graph operation bean type. 
-   * The type name, <code>typeName</code> may either be the fully qualified 
-   * classname, or optionally, just the class 'simple name'. The reason we allow
-   * both is to reduce database disk space consumption for large graphs where
-   * billions of operations might be present. When using a 'short'.
-   * 
-   * This method uses an in-memory cache, so expensive lookup operations are
-   * only done once per operation type.
-   * 
-   * <code>typeName</code>, you should ensure that the names are unique.
-   * 
-   * @param typeName Either the fully qualified classname, or the class 'simple
-   * name' of the graph operation type.
-   * @return the Class of the operation type that matches the string <code>typeName</code>.
-   */
-  private Class<? extends GraphOperation> getOperationTypeForName(String typeName)
-          throws ClassNotFoundException
-  {
-    if (opTypeCache.keySet().contains(typeName)) {
-      return opTypeCache.get(typeName);
-    }
-    
-    GraphOperation op = loader.findByClassNameOrSimpleName(typeName);
-    if (op == null) {
-      throw new ClassNotFoundException("No "+GraphOperation.class.getName() 
-              + " inplmentation could be found to match type name: " + typeName
-              + ". Please check your SPI definition file.");
-    }
-    opTypeCache.put(typeName, op.getClass());
-    return op.getClass();
-  }
 
 }
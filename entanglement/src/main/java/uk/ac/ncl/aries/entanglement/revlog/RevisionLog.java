@@ -19,6 +19,8 @@
 package uk.ac.ncl.aries.entanglement.revlog;
 
 import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.Future;
 import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
 import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
 import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItemContainer;
@@ -41,6 +43,16 @@ import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItemContainer;
  */
 public interface RevisionLog
 {
+  /**
+   * Registers a listener for revision log events. Implementations may notify
+   * listeners asynchronously, after the operation that caused the event has
+   * returned. Each listener receives events in the order in which they
+   * occurred. Post-commit events for commits made through this instance 
+   * are delivered in commit sequence order, so a commit is only announced 
+   * once every earlier commit made through this instance has completed.
+   * 
+   * @param listener 
+   */
   public void addListener(RevisionLogListener listener);
   public void removeListener(RevisionLogListener listener);
   
@@ -96,6 +108,89 @@ public interface RevisionLog
           String txnId, int txnSubmitId, List<GraphOperation> ops)
           throws RevisionLogException;  
   
+  /**
+   * Asynchronous version of <code>submitRevisions</code>. The operations are
+   * validated and serialized on the calling thread, and then queued to be
+   * written along with revisions from other submitters. Implementations that
+   * have no queue may write the revisions immediately and return a completed
+   * future.
+   * 
+   * Containers submitted for the same transaction are written in the order
+   * in which this method was called. A transaction commit or rollback waits
+   * until every container queued for that transaction has been written.
+   * 
+   * @param graphId the ID of of the graph to submit the revision to.
+   * @param graphBranchId the branch of the graph to submit the revision to.
+   * @param txnId a unique ID of the transaction for which this revision is
+   * associated with.
+   * @param txnSubmitId a monotonically increasing integer associated with 
+   * transaction <code>txnId</code>.
+   * @param ops a list of operations to submit
+   * @return a future that completes when the revisions have been written. 
+   * If writing failed, <code>get</code> throws an 
+   * <code>ExecutionException</code> whose cause is the database error.
+   * @throws RevisionLogException if the operations could not be serialized
+   * or queued.
+   */
+  public Future<?> submitRevisionsAsync(String graphId, String graphBranchId, 
+          String txnId, int txnSubmitId, List<GraphOperation> ops)
+          throws RevisionLogException;
+  
+/**
+   * Writes and commits a whole transaction in one pass. This is used by 
+   * clients that stage a transaction locally (see 
+   * <code>TransactionSession</code>) rather than submitting its revisions as 
+   * they go. Each container is written once, already marked as committed, so 
+   * there is no separate commit update. Readers don't see any of the 
+   * containers until the transaction is committed in the transaction 
+   * registry, which happens in a single write after the last container has 
+   * been inserted. A commit marker container is then written, which is what
+   * readers look for.
+   * 
+   * Listeners are notified of the commit once every container has been 
+   * written. If writing fails, any containers that were written are removed.
+   * 
+   * @param graphId the ID of of the graph to submit the revisions to.
+   * @param graphBranchId the branch of the graph to submit the revisions to.
+   * @param txnId a unique ID for the transaction. No revisions may have been
+   * submitted for it already.
+   * @param containers the transaction's operations, one list per revision 
+   * container, in playback order. The iterable is read once, so it may be 
+   * backed by a file.
+   * @throws RevisionLogException 
+   */
+  public void submitCommittedTransaction(String graphId, String graphBranchId,
+          String txnId, Iterable<List<GraphOperation>> containers)
+          throws RevisionLogException;
+  
+  /**
+   * Rolls back transactions that are neither committed nor rolled back, and 
+   * to which no revisions have been submitted for <code>maxIdleMillis</code>.
+   * Their revision containers are removed. A client that later submits to, or
+   * tries to commit, a reaped transaction receives an exception. 
+   * 
+   * @param maxIdleMillis the idle time after which a transaction is presumed 
+   * to have been abandoned. This must be much longer than any client 
+   * legitimately pauses within a transaction.
+   * @param limit the maximum number of transactions to roll back
+   * @return the number of transactions rolled back. If this equals 
+   * <code>limit</code>, there may be more.
+   * @throws RevisionLogException 
+   */
+  public int rollbackAbandonedTransactions(long maxIdleMillis, int limit)
+          throws RevisionLogException;
+  
+  /**
+   * Deletes the bookkeeping of transactions that ended more than 
+   * <code>retainMillis</code> ago. Any containers that were submitted to a 
+   * reaped transaction after it was rolled back are also removed.
+   * 
+   * @return the number of transactions purged
+   * @throws RevisionLogException 
+   */
+  public int purgeEndedTransactions(long retainMillis, int limit)
+          throws RevisionLogException;
+  
 //  public Iterable<RevisionItem> iterateUncommittedRevisions();
   
   /**
@@ -116,8 +211,12 @@ public interface RevisionLog
   
   /**
    * For a given graph/branch, iterates committed revision containers, ordered 
-   * first by transaction commit date, and second by the <code>txnSubmitId</code>
-   * of the revision container.
+   * first by the commit sequence number of their transaction, and then by the
+   * <code>txnSubmitId</code> of the revision container.
+   * 
+   * Containers committed before sequence numbers were assigned are returned
+   * first, ordered by commit date, transaction UID and 
+   * <code>txnSubmitId</code>.
    * 
    * @param graphId
    * @param branchId
@@ -125,5 +224,48 @@ public interface RevisionLog
    */
   public Iterable<RevisionItemContainer> iterateCommittedRevisionsForGraph(String graphId, String branchId);
   
+  /**
+   * For a given graph/branch, iterates committed revision containers that 
+   * come after the specified container in commit order. Containers are
+   * returned in the same order as <code>iterateCommittedRevisionsForGraph</code>,
+   * so a caller that records the position of the last container it applied 
+   * can later catch up with only the newer revisions.
+   * 
+   * Commit sequence numbers are allocated before a transaction's containers 
+   * are marked as committed. When several transactions commit concurrently,
+   * a reader may therefore briefly see sequence number N+1 before N. Since 
+   * numbers are dense, a reader that needs a gap-free view can detect this 
+   * and wait. A commit that fails after its number was allocated leaves a 
+   * permanent gap. Iteration ends before a transaction written by 
+   * <code>submitCommittedTransaction</code> that isn't yet committed.
+   * 
+   * @param graphId
+   * @param branchId
+   * @param commitSeq the commit sequence number of the last applied container
+   * @param txnSubmitId the <code>txnSubmitId</code> of the last applied container
+   * @return 
+   */
+  public Iterable<RevisionItemContainer> iterateCommittedRevisionsForGraphSince(
+          String graphId, String branchId, long commitSeq, int txnSubmitId);
+  
+  /**
+   * For a given graph/branch, lists transactions whose commit sequence number
+   * is greater than <code>afterCommitSeq</code>, in commit order. This is a 
+   * cheap way for a reader to discover newly committed transactions without 
+   * reading their revisions. Only complete transactions are listed: the list
+   * ends before a transaction written by 
+   * <code>submitCommittedTransaction</code> that isn't yet committed.
+   * 
+   * @param graphId
+   * @param branchId
+   * @param afterCommitSeq the commit sequence number after which to start
+   * @param limit the maximum number of transactions to return
+   * @return a map of commit sequence number to transaction UID
+   * @throws RevisionLogException 
+   */
+  public SortedMap<Long, String> listCommittedTransactionsSince(
+          String graphId, String branchId, long afterCommitSeq, int limit)
+          throws RevisionLogException;
+  
 //  public Iterable<RevisionItem> iterateCommittedRevisionsForGraph(String graphId, String branchId, long fromRevId);
 }
@@ -20,21 +20,47 @@ package uk.ac.ncl.aries.entanglement.revlog;
 
 import com.mongodb.*;
 import com.torrenttamer.mongodb.dbobject.DbObjectMarshaller;
-import com.torrenttamer.mongodb.dbobject.DeserialisingIterable;
+import com.torrenttamer.mongodb.dbobject.DbObjectMarshallerException;
 import com.torrenttamer.util.UidGenerator;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.HashMap;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import uk.ac.ncl.aries.entanglement.ObjectMarshallerFactory;
+import uk.ac.ncl.aries.entanglement.graph.GraphEntityDAO;
+import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
+import uk.ac.ncl.aries.entanglement.metrics.Metrics;
+import uk.ac.ncl.aries.entanglement.revlog.codec.CompactRevisionItemCodec;
+import uk.ac.ncl.aries.entanglement.revlog.codec.GraphOperationCodecs;
+import uk.ac.ncl.aries.entanglement.revlog.codec.RevisionItemCodecException;
 import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
+import uk.ac.ncl.aries.entanglement.revlog.commands.SetNodeProperty;
 import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionBegin;
 import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionCommit;
 import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionRollback;
 import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
 import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItemContainer;
+import uk.ac.ncl.aries.entanglement.revlog.data.TransactionItem;
+import uk.ac.ncl.aries.entanglement.revlog.lock.EntityLockNames;
+import uk.ac.ncl.aries.entanglement.revlog.lock.LockException;
+import uk.ac.ncl.aries.entanglement.revlog.lock.LockManager;
 
 /**
  *
@@ -55,6 +81,22 @@ public class RevisionLogDirectToMongoDbImpl
   public static final String FIELD_TXN_SUBMIT_ID = "txnSubmitId";
   public static final String FIELD_COMMITTED = "committed";
   public static final String FIELD_DATE_COMMITTED = "dateCommitted";
+  public static final String FIELD_COMMIT_TIMESTAMP = "commitTimestamp";
+  public static final String FIELD_COMMIT_SEQ = "commitSeq";
+  public static final String FIELD_ITEMS = "items";
+  /**
+   * Holds the items of containers written with a compact encoding, in place
+   * of <code>FIELD_ITEMS</code>.
+   */
+  public static final String FIELD_ITEMS_BIN = "itemsBin";
+  /**
+   * Set on the containers of a transaction written by 
+   * <code>submitCommittedTransaction</code>. Such containers are written 
+   * already committed, so readers only see the transaction once its commit 
+   * marker (the container at <code>txnSubmitId</code> 
+   * <code>Integer.MAX_VALUE</code>) exists.
+   */
+  public static final String FIELD_STAGED = "staged";
   
   /*
    * Pre-defined index definitions
@@ -66,22 +108,71 @@ public class RevisionLogDirectToMongoDbImpl
   private static final DBObject IDX__GRPH_UID__GRPH_BRANCH__COMMITTED = 
           new BasicDBObject(FIELD_GRPH_UID, 1).append(FIELD_GRPH_BRANCH, 1).append(FIELD_COMMITTED, 1);
   
+  private static final DBObject IDX__GRPH_UID__GRPH_BRANCH__COMMIT_SEQ = 
+          new BasicDBObject(FIELD_GRPH_UID, 1).append(FIELD_GRPH_BRANCH, 1)
+          .append(FIELD_COMMIT_SEQ, 1).append(FIELD_TXN_SUBMIT_ID, 1);
+  
+  // Only used to order revisions committed before sequence numbers were assigned
+  private static final DBObject IDX__GRPH_UID__GRPH_BRANCH__COMMIT_ORDER = 
+          new BasicDBObject(FIELD_GRPH_UID, 1).append(FIELD_GRPH_BRANCH, 1)
+          .append(FIELD_DATE_COMMITTED, 1).append(FIELD_TXN_UID, 1).append(FIELD_TXN_SUBMIT_ID, 1);
+  
   /*
    * Pre-defined sort orders
    */
-  private static final DBObject SORT_BY_DATE_COMMITTED = new BasicDBObject(FIELD_DATE_COMMITTED, 1);
   private static final DBObject SORT_BY_TXN_SUBMIT_ID = new BasicDBObject(FIELD_TXN_SUBMIT_ID, 1); 
+  /*
+   * Note that a single sort document must be used for compound sorts: calling
+   * DBCursor.sort() twice replaces the first sort.
+   */
+  private static final DBObject SORT_BY_COMMIT_SEQ = new BasicDBObject(FIELD_COMMIT_SEQ, 1)
+          .append(FIELD_TXN_SUBMIT_ID, 1);
+  /*
+   * Revisions committed before sequence numbers were assigned have no 
+   * commitTimestamp either, so they are ordered by dateCommitted, which every
+   * commit has always set. Containers of one transaction share the same 
+   * value, so the transaction UID keeps each transaction together.
+   */
+  private static final DBObject SORT_BY_COMMIT_ORDER = new BasicDBObject(FIELD_DATE_COMMITTED, 1)
+          .append(FIELD_TXN_UID, 1).append(FIELD_TXN_SUBMIT_ID, 1);
   
 //  private static final String REV_COUNTER_NAME = "revision_count";
+  private static final String COMMIT_SEQ_COUNTER_PREFIX = "commitseq.";
   private static final String DEFAULT_COL_REVLOG = "revisions";
   
-  private final Set<RevisionLogListener> listeners;
+  private static final int DEFAULT_GROUP_COMMIT_QUEUE_BATCHES = 4;
+  public static final long DEFAULT_LOCK_TIMEOUT_MS = 30000;
+  /*
+   * The number of revision containers per insert when writing a staged 
+   * transaction
+   */
+  private static final int STAGED_INSERT_BATCH_SIZE = 100;
+  
+  /*
+   * Metric names
+   */
+  private static final String METRIC_SUBMIT_REVISION = "revlog.submitRevision";
+  private static final String METRIC_SUBMIT_REVISIONS = "revlog.submitRevisions";
+  private static final String METRIC_SUBMIT_REVISIONS_ASYNC = "revlog.submitRevisionsAsync";
+  private static final String METRIC_CONTAINER_SIZE = "revlog.containerSize";
+  private static final String METRIC_COMMIT = "revlog.commit";
+  private static final String METRIC_ROLLBACK = "revlog.rollback";
+  private static final String METRIC_REAPED = "revlog.reapedTransactions";
+  private static final String METRIC_ERRORS_SUFFIX = ".errors";
+  
+  /*
+   * The state of a staged transaction whose commit marker is missing
+   */
+  private enum StagedState { COMMITTED, WRITING, ROLLED_BACK }
+  
+  private volatile RevisionLogListenerDispatcher listenerDispatcher;
   
 //  private final HazelcastInstance hz;
   private final Mongo m;
   private final DB db;
   
   private final DBCollection revLogCol;
+  private final TransactionDAO txnDao;
   
 //  private final Counter nodeCounter;
   
@@ -89,49 +180,363 @@ public class RevisionLogDirectToMongoDbImpl
   
 //  private final JsonUtils serializer;
   private final DbObjectMarshaller marshaller;
+  private final GraphOperationCodecs opCodecs;
+  private final CompactRevisionItemCodec itemCodec;
+  private volatile ContainerEncoding containerEncoding;
+  
+  /*
+   * If non-null, revision containers are queued and written in batches.
+   */
+  private volatile GroupCommitWriter groupCommitWriter;
+  
+  /*
+   * If non-null, transactions lock the entities they modify.
+   */
+  private volatile LockManager lockManager;
+  private volatile long lockTimeoutMillis;
+  
+  /*
+   * Working copy node DAOs, keyed by graph ID and branch, that are used to
+   * check the expected versions of conditional property updates.
+   */
+  private final Map<String, NodeDAO> versionCheckDaos = new ConcurrentHashMap<>();
+  // Open transactions that contain conditional property updates
+  private final Set<String> conditionalTxns = 
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  
+  /*
+   * Post-commit events are dispatched in commit sequence order. These hold,
+   * per graph/branch, the sequence numbers allocated by this instance whose 
+   * commits are still in progress, and the events of completed commits that
+   * are waiting for an earlier one. Guarded by commitSeqLock.
+   */
+  private final Object commitSeqLock = new Object();
+  private final Map<String, SortedSet<Long>> inFlightCommitSeqs = new HashMap<>();
+  private final Map<String, SortedMap<Long, TransactionCommit>> pendingPostCommits = new HashMap<>();
   
   public RevisionLogDirectToMongoDbImpl(ClassLoader classLoader, Mongo m, DB db)
       throws RevisionLogException
   {
-    this.listeners = new HashSet<>();
+    this.listenerDispatcher = new RevisionLogListenerDispatcher();
     this.revLogColName = DEFAULT_COL_REVLOG;
     
     
     this.m = m;
     this.db = db;
     this.revLogCol = db.getCollection(revLogColName);
+    this.txnDao = new TransactionDAOMongoImpl(db);
     
     marshaller = ObjectMarshallerFactory.create(classLoader);
+    opCodecs = new GraphOperationCodecs(classLoader, marshaller);
+    itemCodec = new CompactRevisionItemCodec(
+        opCodecs, CompactRevisionItemCodec.DEFAULT_MIN_COMPRESS_BYTES);
+    containerEncoding = ContainerEncoding.JSON;
+    lockTimeoutMillis = DEFAULT_LOCK_TIMEOUT_MS;
     
     //Create indexes
     revLogCol.ensureIndex(IDX__TXN_UID__COMMITTED);
     revLogCol.ensureIndex(IDX__TXN_SUBMIT_ID);
     revLogCol.ensureIndex(IDX__GRPH_UID__GRPH_BRANCH__COMMITTED);
+    revLogCol.ensureIndex(IDX__GRPH_UID__GRPH_BRANCH__COMMIT_SEQ);
+    revLogCol.ensureIndex(IDX__GRPH_UID__GRPH_BRANCH__COMMIT_ORDER);
+  }
+
+  /**
+   * Switches this revision log into group commit mode. Subsequent calls to
+   * <code>submitRevision</code>, <code>submitRevisions</code> and 
+   * <code>submitRevisionsAsync</code> queue their revision containers, which are
+   * then written by a background thread as multi-document inserts. This
+   * significantly reduces the number of database round trips when many 
+   * threads submit small batches concurrently. Synchronous submit methods 
+   * still block until their own containers have been written.
+   * 
+   * @param maxBatchSize the maximum number of revision containers per insert.
+   * @param maxBatchDelayMillis the maximum time to wait for a batch to fill 
+   * before writing it. Zero writes whatever is queued straight away.
+   * @param metrics an optional hook that receives throughput information, or
+   * null.
+   */
+  public synchronized void enableGroupCommit(int maxBatchSize, 
+          long maxBatchDelayMillis, GroupCommitMetrics metrics)
+  {
+    if (groupCommitWriter != null) {
+      groupCommitWriter.close();
+    }
+    GroupCommitWriter writer = new GroupCommitWriter(revLogCol, maxBatchSize,
+        maxBatchSize * DEFAULT_GROUP_COMMIT_QUEUE_BATCHES, maxBatchDelayMillis);
+    writer.setMetrics(metrics);
+    groupCommitWriter = writer;
+  }
+  
+  /**
+   * Writes any queued revision containers and returns to writing each
+   * submission directly.
+   */
+  public synchronized void disableGroupCommit()
+  {
+    GroupCommitWriter writer = groupCommitWriter;
+    groupCommitWriter = null;
+    if (writer != null) {
+      writer.close();
+    }
+  }
+  
+  public GroupCommitWriter getGroupCommitWriter() {
+    return groupCommitWriter;
+  }
+  
+  /**
+   * Sets the encoding used for the items of revision containers written from
+   * now on. Containers are always readable regardless of the encoding they
+   * were written with, so this may be changed at any time. The default is
+   * <code>ContainerEncoding.JSON</code>.
+   */
+  public void setContainerEncoding(ContainerEncoding containerEncoding) {
+    this.containerEncoding = containerEncoding;
+  }
+
+  public ContainerEncoding getContainerEncoding() {
+    return containerEncoding;
+  }
+  
+  /**
+   * Sets the lock manager used to give transactions exclusive access to the
+   * graph entities they modify. Locks are acquired for each batch of 
+   * revisions as it is submitted, and are released when the transaction 
+   * commits or rolls back. A submit that can't acquire its locks within the
+   * lock timeout fails, and the transaction should then be rolled back.
+   * 
+   * Use a <code>StripedLockManager</code> when all writers share this
+   * revision log instance, or a <code>MongoLockManager</code> when writers
+   * run in several processes. The default, null, disables locking.
+   */
+  public void setLockManager(LockManager lockManager) {
+    this.lockManager = lockManager;
+  }
+
+  public LockManager getLockManager() {
+    return lockManager;
+  }
+
+  public long getLockTimeoutMillis() {
+    return lockTimeoutMillis;
   }
 
-  private String _getLockName(String graphId, String graphBranchId, String entityId)
+  public void setLockTimeoutMillis(long lockTimeoutMillis) {
+    this.lockTimeoutMillis = lockTimeoutMillis;
+  }
+  
+  /**
+   * Sets the working copy node DAO used to validate <code>SetNodeProperty</code>
+   * operations that carry an expected version. Such operations may only be
+   * submitted to a graph that has one, and only while a lock manager is set.
+   * When the transaction commits, each expected version is compared with 
+   * the version that the node will have when the update is played, and the 
+   * commit fails on a conflict so the transaction can be rolled back and 
+   * retried. The working copy is only trusted once the revision log shows
+   * that it has played every committed transaction touching the node, so it 
+   * must be kept up to date, for example by a <code>RevisionLogTailer</code>.
+   * A commit that waits longer than the lock timeout for it fails.
+   * 
+   * The transaction must commit through the same revision log instance that 
+   * its conditional updates were submitted to.
+   * 
+   * @param nodeDao the working copy's node DAO, or null to stop accepting 
+   * conditional updates for the graph.
+   */
+  public void setVersionCheckDao(String graphId, String graphBranchId, NodeDAO nodeDao) {
+    String key = graphId+"."+graphBranchId;
+    if (nodeDao == null) {
+      versionCheckDaos.remove(key);
+    } else {
+      versionCheckDaos.put(key, nodeDao);
+    }
+  }
+  
+  /*
+   * Records that a transaction contains conditional property updates, which
+   * are validated when it commits. That needs the entity locks and a working
+   * copy to check against.
+   */
+  private void _noteConditionalOps(String graphId, String graphBranchId, String txnId,
+      List<GraphOperation> ops)
+      throws RevisionLogException
+  {
+    for (GraphOperation op : ops) {
+      if (!(op instanceof SetNodeProperty)
+          || ((SetNodeProperty) op).getExpectedVersion() == null) {
+        continue;
+      }
+      if (lockManager == null || !versionCheckDaos.containsKey(graphId+"."+graphBranchId)) {
+        throw new RevisionLogException("Transaction: "+txnId
+            + " contains a conditional property update, but graph: "
+            + graphId+"/"+graphBranchId+" has no lock manager or version check DAO: "+op);
+      }
+      conditionalTxns.add(txnId);
+      return;
+    }
+  }
+  
+  /*
+   * Checks the expected versions of a transaction's conditional property 
+   * updates against the committed state of the log. This must be called
+   * while the transaction holds its locks, before it commits.
+   */
+  private void _validateConditionalOps(String graphId, String graphBranchId, String txnId,
+      Iterable<RevisionItemContainer> containers)
+      throws RevisionLogException
   {
-    StringBuilder sb = new StringBuilder();
-    sb.append(graphId).append(".").append(graphBranchId).append(".").append(entityId);
-    return sb.toString();
+    NodeDAO nodeDao = versionCheckDaos.get(graphId+"."+graphBranchId);
+    LockManager locks = lockManager;
+    if (nodeDao == null || locks == null) {
+      throw new RevisionLogException("Can't validate the conditional property updates of "
+          + "transaction: "+txnId+". Graph: "+graphId+"/"+graphBranchId
+          + " no longer has a lock manager or version check DAO.");
+    }
+    ConditionalUpdateValidator validator = new ConditionalUpdateValidator(
+        this, locks, lockTimeoutMillis, nodeDao, graphId, graphBranchId, txnId);
+    for (RevisionItemContainer container : containers) {
+      List<GraphOperation> ops = new ArrayList<>(container.getItems().size());
+      for (RevisionItem item : container.getItems()) {
+        ops.add(item.getOp());
+      }
+      validator.validate(ops);
+    }
+  }
+  
+  private void _lock(String graphId, String graphBranchId, String txnId, 
+      List<GraphOperation> ops)
+      throws RevisionLogException
+  {
+    LockManager locks = lockManager;
+    if (locks == null) {
+      return;
+    }
+    try {
+      locks.acquire(txnId, EntityLockNames.forOperations(graphId, graphBranchId, ops), 
+          lockTimeoutMillis);
+    }
+    catch(LockException e) {
+      throw new RevisionLogException("Failed to lock the entities modified by "
+          + ops.size()+" operations in transaction: "+txnId, e);
+    }
+  }
+  
+  private void _forgetTransaction(String txnId)
+  {
+    conditionalTxns.remove(txnId);
+    GroupCommitWriter writer = groupCommitWriter;
+    if (writer != null) {
+      writer.forgetTransaction(txnId);
+    }
+  }
+  
+  private void _unlock(String txnId)
+  {
+    LockManager locks = lockManager;
+    if (locks == null) {
+      return;
+    }
+    try {
+      locks.releaseAll(txnId);
+    }
+    catch(LockException e) {
+      // Leased locks expire eventually, so this isn't fatal
+      logger.log(Level.WARNING, "Failed to release locks of transaction: "+txnId, e);
+    }
+  }
+  
+  /**
+   * Replaces the dispatcher that delivers events to listeners, for example to
+   * change its queue size or policies. Registered listeners are moved to the 
+   * new dispatcher, and events queued on the old one are delivered before 
+   * this method returns.
+   */
+  public synchronized void setListenerDispatcher(RevisionLogListenerDispatcher dispatcher)
+  {
+    RevisionLogListenerDispatcher old = listenerDispatcher;
+    for (RevisionLogListener listener : old.getListeners()) {
+      dispatcher.addListener(listener);
+    }
+    listenerDispatcher = dispatcher;
+    old.close();
+    for (RevisionLogListener listener : old.getListeners()) {
+      old.removeListener(listener);
+    }
+  }
+  
+  public RevisionLogListenerDispatcher getListenerDispatcher() {
+    return listenerDispatcher;
   }
   
   @Override
-  public void addListener(RevisionLogListener listener)
+  public synchronized void addListener(RevisionLogListener listener)
   {
-    listeners.add(listener);
+    listenerDispatcher.addListener(listener);
   }
   
   @Override
-  public void removeListener(RevisionLogListener listener)
+  public synchronized void removeListener(RevisionLogListener listener)
   {
-    listeners.remove(listener);
+    listenerDispatcher.removeListener(listener);
   }
   
   private void notifyPostCommit(TransactionCommit op)
   {
-    for (RevisionLogListener listener : listeners) {
-      listener.notifyPostCommit(op);
+    listenerDispatcher.dispatchPostCommit(op);
+  }
+  
+  /*
+   * Allocates the next commit sequence number for a graph/branch. Every 
+   * number allocated must later be passed to _completeCommit.
+   */
+  private long _allocateCommitSeq(String graphId, String graphBranchId)
+  {
+    String key = graphId+"."+graphBranchId;
+    synchronized(commitSeqLock) {
+      Counter commitSeqCounter = new Counter(m, db, COMMIT_SEQ_COUNTER_PREFIX+key);
+      long commitSeq = commitSeqCounter.next();
+      SortedSet<Long> inFlight = inFlightCommitSeqs.get(key);
+      if (inFlight == null) {
+        inFlight = new TreeSet<>();
+        inFlightCommitSeqs.put(key, inFlight);
+      }
+      inFlight.add(commitSeq);
+      return commitSeq;
+    }
+  }
+  
+  /*
+   * Records that the commit holding commitSeq has finished, and notifies 
+   * listeners of every completed commit that no longer waits for an earlier
+   * one. op is null if the commit failed.
+   */
+  private void _completeCommit(String graphId, String graphBranchId, 
+      long commitSeq, TransactionCommit op)
+  {
+    String key = graphId+"."+graphBranchId;
+    synchronized(commitSeqLock) {
+      SortedSet<Long> inFlight = inFlightCommitSeqs.get(key);
+      inFlight.remove(commitSeq);
+      SortedMap<Long, TransactionCommit> pending = pendingPostCommits.get(key);
+      if (pending == null) {
+        pending = new TreeMap<>();
+        pendingPostCommits.put(key, pending);
+      }
+      if (op != null) {
+        pending.put(commitSeq, op);
+      }
+      long firstInFlight = inFlight.isEmpty() ? Long.MAX_VALUE : inFlight.first();
+      // Dispatch only queues the events, so this doesn't hold the lock for long
+      for (Iterator<Map.Entry<Long, TransactionCommit>> itr = pending.entrySet().iterator();
+          itr.hasNext(); ) {
+        Map.Entry<Long, TransactionCommit> entry = itr.next();
+        if (entry.getKey() > firstInFlight) {
+          break;
+        }
+        notifyPostCommit(entry.getValue());
+        itr.remove();
+      }
     }
   }
   
@@ -142,6 +547,7 @@ public class RevisionLogDirectToMongoDbImpl
   {
     RevisionItemContainer container = new RevisionItemContainer();
     RevisionItem item = new RevisionItem();
+    long startNanos = System.nanoTime();
     try
     {
       container.setUniqueId(UidGenerator.generateUid());
@@ -158,20 +564,37 @@ public class RevisionLogDirectToMongoDbImpl
       
       container.getItems().add(item);
       
+      if (op instanceof TransactionBegin) {
+        txnDao.begin(graphId, graphBranchId, txnId);
+      } else if (!(op instanceof TransactionCommit || op instanceof TransactionRollback)) {
+        txnDao.touch(graphId, graphBranchId, txnId);
+        _lock(graphId, graphBranchId, txnId, Collections.singletonList(op));
+        _noteConditionalOps(graphId, graphBranchId, txnId, Collections.singletonList(op));
+      }
+      
 //      DBObject dbObject = (DBObject) JSON.parse(serializer.serializeToString(container));
-      DBObject dbObject = marshaller.serialize(container);
-      revLogCol.insert(dbObject);
+      DBObject dbObject = _toDBObject(container);
+      GroupCommitWriter writer = groupCommitWriter;
+      if (writer == null) {
+        revLogCol.insert(dbObject);
+      } else {
+        _waitFor(txnId, writer.submit(txnId, 1, dbObject));
+      }
       
       if (op instanceof TransactionCommit) {
-        commit((TransactionCommit) op);
+        commit(graphId, graphBranchId, (TransactionCommit) op);
       } else if (op instanceof TransactionRollback) {
         rollback((TransactionRollback) op);
      }
     }
     catch(Exception e)
     {
+      Metrics.counter(METRIC_SUBMIT_REVISION+METRIC_ERRORS_SUFFIX).inc();
       throw new RevisionLogException("Failed to store revision log item: "+container, e);
     }
+    finally {
+      Metrics.timer(METRIC_SUBMIT_REVISION).update(System.nanoTime() - startNanos);
+    }
   }
   
   @Override
@@ -182,6 +605,255 @@ public class RevisionLogDirectToMongoDbImpl
     if (ops.isEmpty()) {
       return;
     }
+    long startNanos = System.nanoTime();
+    boolean success = false;
+    try {
+      GroupCommitWriter writer = groupCommitWriter;
+      if (writer != null) {
+        Future<?> written = submitRevisionsAsync(graphId, graphBranchId, txnId, txnSubmitId, ops);
+        _waitFor(txnId, written);
+      } else {
+        DBObject dbObject = _serializeContainer(graphId, graphBranchId, txnId, txnSubmitId, ops);
+        try
+        {
+          txnDao.touch(graphId, graphBranchId, txnId);
+          _lock(graphId, graphBranchId, txnId, ops);
+          _noteConditionalOps(graphId, graphBranchId, txnId, ops);
+          revLogCol.insert(dbObject);
+        }
+        catch(Exception e)
+        {
+          throw new RevisionLogException(
+                  "Failed to store "+ops.size()+" revision log items", e);
+        }
+      }
+      success = true;
+    }
+    finally {
+      if (!success) {
+        Metrics.counter(METRIC_SUBMIT_REVISIONS+METRIC_ERRORS_SUFFIX).inc();
+      }
+      Metrics.timer(METRIC_SUBMIT_REVISIONS).update(System.nanoTime() - startNanos);
+    }
+  }
+  
+  @Override
+  public Future<?> submitRevisionsAsync(String graphId, String graphBranchId,
+      String txnId, int txnSubmitId, List<GraphOperation> ops)
+      throws RevisionLogException
+  {
+    GroupCommitWriter writer = groupCommitWriter;
+    if (writer == null) {
+      submitRevisions(graphId, graphBranchId, txnId, txnSubmitId, ops);
+      return new CompletedFuture();
+    }
+    if (ops.isEmpty()) {
+      return new CompletedFuture();
+    }
+    // Measures serialization and queueing only, not the write itself
+    long startNanos = System.nanoTime();
+    try {
+      DBObject dbObject = _serializeContainer(graphId, graphBranchId, txnId, txnSubmitId, ops);
+      txnDao.touch(graphId, graphBranchId, txnId);
+      _lock(graphId, graphBranchId, txnId, ops);
+      _noteConditionalOps(graphId, graphBranchId, txnId, ops);
+      return writer.submit(txnId, ops.size(), dbObject);
+    }
+    catch(TransactionException e) {
+      throw new RevisionLogException("Failed to submit revisions to transaction: "+txnId, e);
+    }
+    finally {
+      Metrics.timer(METRIC_SUBMIT_REVISIONS_ASYNC).update(System.nanoTime() - startNanos);
+    }
+  }
+  
+  @Override
+  public void submitCommittedTransaction(String graphId, String graphBranchId,
+      String txnId, Iterable<List<GraphOperation>> containers)
+      throws RevisionLogException
+  {
+    long startNanos = System.nanoTime();
+    TransactionCommit commitOp = new TransactionCommit(txnId);
+    long commitSeq = -1;
+    boolean committed = false;
+    try {
+      logger.info("************* WRITING STAGED TRANSACTION: "+txnId);
+      txnDao.begin(graphId, graphBranchId, txnId);
+      commitSeq = _allocateCommitSeq(graphId, graphBranchId);
+      Date now = new Date(System.currentTimeMillis());
+      DBObject committedFields = new BasicDBObject(FIELD_COMMITTED, true)
+          .append(FIELD_DATE_COMMITTED, marshaller.serializeToString(now))
+          .append(FIELD_COMMIT_TIMESTAMP, now.getTime())
+          .append(FIELD_COMMIT_SEQ, commitSeq)
+          .append(FIELD_STAGED, true);
+      
+      // Containers are written already committed, so there is no commit update
+      List<DBObject> batch = new ArrayList<>(STAGED_INSERT_BATCH_SIZE);
+      DBObject beginContainer = _serializeTxnContainer(graphId, graphBranchId, txnId, -1, 
+          new TransactionBegin(txnId));
+      beginContainer.putAll(committedFields);
+      batch.add(beginContainer);
+      int txnSubmitId = 0;
+      for (List<GraphOperation> ops : containers) {
+        if (ops.isEmpty()) {
+          continue;
+        }
+        _lock(graphId, graphBranchId, txnId, ops);
+        _noteConditionalOps(graphId, graphBranchId, txnId, ops);
+        DBObject dbObject = _serializeContainer(graphId, graphBranchId, txnId, txnSubmitId++, ops);
+        dbObject.putAll(committedFields);
+        batch.add(dbObject);
+        if (batch.size() >= STAGED_INSERT_BATCH_SIZE) {
+          txnDao.touch(graphId, graphBranchId, txnId);
+          revLogCol.insert(batch, WriteConcern.SAFE);
+          batch.clear();
+        }
+      }
+      if (!batch.isEmpty()) {
+        revLogCol.insert(batch, WriteConcern.SAFE);
+      }
+      if (conditionalTxns.remove(txnId)) {
+        // The containers are only visible to readers of this transaction
+        _validateConditionalOps(graphId, graphBranchId, txnId, 
+            iterateRevisionsForTransaction(txnId));
+      }
+      /*
+       * Committing the registry entry is the single write that commits the 
+       * transaction, and fails if it was reaped while it was being written.
+       * Readers ignore the containers until the commit marker exists, or 
+       * write the marker themselves if the registry says it's committed.
+       */
+      txnDao.commit(txnId);
+      committed = true;
+      _insertCommitMarker(graphId, graphBranchId, txnId, committedFields);
+      
+      logger.info("************* STAGED TRANSACTION COMMITTED: "+txnId+". Notify listeners...");
+    }
+    catch(Exception e) {
+      if (committed) {
+        // Readers write the marker once they find the committed registry entry
+        logger.log(Level.WARNING, "Staged transaction: "+txnId
+            + " is committed, but its commit marker could not be written", e);
+        return;
+      }
+      logger.info("************* STAGED TRANSACTION FAILED: "+txnId);
+      Metrics.counter(METRIC_COMMIT+METRIC_ERRORS_SUFFIX).inc();
+      try {
+        revLogCol.remove(new BasicDBObject(FIELD_TXN_UID, txnId));
+        txnDao.rollback(txnId);
+      }
+      catch(Exception removeError) {
+        logger.log(Level.WARNING, "Failed to remove partially written transaction: "
+            + txnId, removeError);
+      }
+      throw new RevisionLogException("Failed to commit staged transaction: "+txnId, e);
+    }
+    finally {
+      conditionalTxns.remove(txnId);
+      _unlock(txnId);
+      if (commitSeq > 0) {
+        _completeCommit(graphId, graphBranchId, commitSeq, committed ? commitOp : null);
+      }
+      Metrics.timer(METRIC_COMMIT).update(System.nanoTime() - startNanos);
+    }
+  }
+  
+  private DBObject _serializeTxnContainer(String graphId, String graphBranchId,
+      String txnId, int txnSubmitId, GraphOperation op)
+      throws DbObjectMarshallerException
+  {
+    RevisionItemContainer container = new RevisionItemContainer();
+    container.setUniqueId(UidGenerator.generateUid());
+    container.setGraphUniqueId(graphId);
+    container.setGraphBranchId(graphBranchId);
+    container.setTransactionUid(txnId);
+    container.setTxnSubmitId(txnSubmitId);
+    container.setTimestamp(new Date(System.currentTimeMillis()));
+    RevisionItem item = new RevisionItem();
+    item.setOp(op);
+    item.setType(op.getClass().getSimpleName());
+    container.getItems().add(item);
+    return _toDBObject(container);
+  }
+  
+  private static String _commitMarkerId(String txnId)
+  {
+    return txnId+".commit";
+  }
+  
+  /*
+   * Writes the commit marker of a staged transaction. The marker has a fixed
+   * ID, so writing it again has no effect.
+   */
+  private void _insertCommitMarker(String graphId, String graphBranchId, 
+      String txnId, DBObject committedFields)
+      throws DbObjectMarshallerException
+  {
+    DBObject marker = _serializeTxnContainer(graphId, graphBranchId, txnId, 
+        Integer.MAX_VALUE, new TransactionCommit(txnId));
+    marker.putAll(committedFields);
+    marker.put("_id", _commitMarkerId(txnId));
+    try {
+      revLogCol.insert(marker, WriteConcern.SAFE);
+    }
+    catch(MongoException.DuplicateKey e) {
+      // Already written by the committer, or by a reader
+    }
+  }
+  
+  /*
+   * Writes the missing commit marker of a staged transaction that is 
+   * committed in the registry. The commit fields are copied from one of its
+   * containers.
+   */
+  private void _repairCommitMarker(String txnId)
+      throws DbObjectMarshallerException
+  {
+    if (revLogCol.findOne(new BasicDBObject("_id", _commitMarkerId(txnId))) != null) {
+      return;
+    }
+    DBObject container = revLogCol.findOne(
+        new BasicDBObject(FIELD_TXN_UID, txnId).append(FIELD_STAGED, true));
+    if (container == null) {
+      return;
+    }
+    logger.info("Writing missing commit marker of staged transaction: "+txnId);
+    DBObject committedFields = new BasicDBObject(FIELD_COMMITTED, true)
+        .append(FIELD_DATE_COMMITTED, container.get(FIELD_DATE_COMMITTED))
+        .append(FIELD_COMMIT_TIMESTAMP, container.get(FIELD_COMMIT_TIMESTAMP))
+        .append(FIELD_COMMIT_SEQ, container.get(FIELD_COMMIT_SEQ))
+        .append(FIELD_STAGED, true);
+    _insertCommitMarker((String) container.get(FIELD_GRPH_UID), 
+        (String) container.get(FIELD_GRPH_BRANCH), txnId, committedFields);
+  }
+  
+  /*
+   * Determines whether readers should see a staged transaction whose 
+   * containers have been found without its commit marker.
+   */
+  private StagedState _stagedState(String txnId)
+      throws TransactionException, DbObjectMarshallerException
+  {
+    if (revLogCol.findOne(new BasicDBObject("_id", _commitMarkerId(txnId))) != null) {
+      return StagedState.COMMITTED;
+    }
+    TransactionItem txn = txnDao.get(txnId);
+    if (txn != null && txn.isCommitted()) {
+      // The committer stopped before writing the marker
+      _repairCommitMarker(txnId);
+      return StagedState.COMMITTED;
+    }
+    if (txn != null && txn.isRolledBack()) {
+      // The containers are garbage, and are removed by the reaper or the committer
+      return StagedState.ROLLED_BACK;
+    }
+    return StagedState.WRITING;
+  }
+  
+  private DBObject _serializeContainer(String graphId, String graphBranchId,
+      String txnId, int txnSubmitId, List<GraphOperation> ops)
+      throws RevisionLogException
+  {
     try
     {
 //      List<DBObject> dbObjects = new LinkedList<>();
@@ -216,22 +888,100 @@ public class RevisionLogDirectToMongoDbImpl
 
 //      revLogTmpCol.insert(dbObjects);
 //      DBObject dbObject = (DBObject) JSON.parse(serializer.serializeToString(container));
-      DBObject dbObject = marshaller.serialize(container);
-      revLogCol.insert(dbObject);
-
+      Metrics.histogram(METRIC_CONTAINER_SIZE).update(ops.size());
+      return _toDBObject(container);
+    }
+    catch(RevisionLogException e)
+    {
+      throw e;
     }
     catch(Exception e)
     {
       throw new RevisionLogException(
-              "Failed to store "+ops.size()+" revision log items", e);
+              "Failed to serialize "+ops.size()+" revision log items", e);
     }
   }
   
-  private void commit(TransactionCommit op) throws RevisionLogException
+  private DBObject _toDBObject(RevisionItemContainer container)
+      throws DbObjectMarshallerException
+  {
+    ContainerEncoding encoding = containerEncoding;
+    List<RevisionItem> items = container.getItems();
+    String itemsField;
+    Object encodedItems;
+    try {
+      if (encoding == ContainerEncoding.JSON) {
+        itemsField = FIELD_ITEMS;
+        BasicDBList itemDocs = new BasicDBList();
+        for (RevisionItem item : items) {
+          itemDocs.add(opCodecs.serializeItem(item));
+        }
+        encodedItems = itemDocs;
+      } else {
+        itemsField = FIELD_ITEMS_BIN;
+        encodedItems = itemCodec.encode(items, encoding == ContainerEncoding.COMPACT_DEFLATE);
+      }
+    }
+    catch(RevisionItemCodecException e) {
+      // Some property value can only be handled by the reflective marshaller
+      logger.log(Level.FINE, "Revision items can't be stored in encoding: "
+          + encoding+"; falling back to the default marshaller", e);
+      return marshaller.serialize(container);
+    }
+    
+    // Marshal the container properties only
+    container.setItems(new LinkedList<RevisionItem>());
+    DBObject dbObject;
+    try {
+      dbObject = marshaller.serialize(container);
+    }
+    finally {
+      container.setItems(items);
+    }
+    dbObject.put(itemsField, encodedItems);
+    return dbObject;
+  }
+  
+  private void _waitFor(String txnId, Future<?> written)
+      throws RevisionLogException
+  {
+    try {
+      written.get();
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RevisionLogException(
+          "Interrupted while waiting for revisions of transaction: "+txnId+" to be written", e);
+    }
+    catch(ExecutionException e) {
+      throw new RevisionLogException(
+          "Failed to store revision log items for transaction: "+txnId, e.getCause());
+    }
+  }
+  
+  private void commit(String graphId, String graphBranchId, TransactionCommit op)
+      throws RevisionLogException
   {
     String transactionUid = op.getUid();
+    long startNanos = System.nanoTime();
+    long commitSeq = -1;
+    boolean committed = false;
     try {
       logger.info("************* COMMITTING: "+transactionUid);
+      GroupCommitWriter writer = groupCommitWriter;
+      if (writer != null) {
+        writer.awaitTransaction(transactionUid);
+      }
+      if (conditionalTxns.remove(transactionUid)) {
+        _validateConditionalOps(graphId, graphBranchId, transactionUid, 
+            iterateUncommittedRevisions(transactionUid));
+      }
+      // Fails if the transaction has been reaped
+      txnDao.commit(transactionUid);
+      
+      // Allocated only once all of the transaction's containers are written
+      commitSeq = _allocateCommitSeq(graphId, graphBranchId);
+      
       Date now = new Date(System.currentTimeMillis());
   //    String nowStr = serializer.serializeToString(now);
 
@@ -241,29 +991,51 @@ public class RevisionLogDirectToMongoDbImpl
       DBObject query = new BasicDBObject(FIELD_TXN_UID, transactionUid);
       DBObject update = new BasicDBObject("$set", 
               new BasicDBObject(FIELD_COMMITTED, true)
-              .append(FIELD_DATE_COMMITTED, marshaller.serializeToString(now)));
+              .append(FIELD_DATE_COMMITTED, marshaller.serializeToString(now))
+              .append(FIELD_COMMIT_TIMESTAMP, now.getTime())
+              .append(FIELD_COMMIT_SEQ, commitSeq));
   //            .append("dateCommitted", nowStr));
       logger.info("Generated query: "+query);
       logger.info("Generated update: "+update);
 
       WriteResult result = revLogCol.updateMulti(query, update);
+      committed = true;
+      _unlock(transactionUid);
 
       logger.info("************* COMMIT COMPLETED: "+transactionUid+". Notify listeners...");
-      notifyPostCommit(op);
-      logger.info("************* ALL LISTENERS NOTIFIED: "+transactionUid);
     }
     catch(Exception e) {
       logger.info("************* COMMIT FAILED: "+transactionUid);
+      Metrics.counter(METRIC_COMMIT+METRIC_ERRORS_SUFFIX).inc();
       throw new RevisionLogException("Failed to commit transaction: "+transactionUid, e);
     }
+    finally {
+      if (commitSeq > 0) {
+        // Listeners are notified once every earlier commit has completed
+        _completeCommit(graphId, graphBranchId, commitSeq, committed ? op : null);
+      }
+      Metrics.timer(METRIC_COMMIT).update(System.nanoTime() - startNanos);
+    }
   }
 
   
   private void rollback(TransactionRollback op) throws RevisionLogException
   {
     String transactionUid = op.getUid();
+    long startNanos = System.nanoTime();
     try {
       logger.info("************* ROLLING BACK TRANSACTION: "+transactionUid);
+      GroupCommitWriter writer = groupCommitWriter;
+      if (writer != null) {
+        try {
+          writer.awaitTransaction(transactionUid);
+        }
+        catch(RevisionLogException e) {
+          // Expected: failed writes are a common reason to roll back
+          logger.log(Level.INFO, "Rolling back transaction with failed writes: "+transactionUid, e);
+        }
+      }
+      txnDao.rollback(transactionUid);
       DBObject query = new BasicDBObject(FIELD_TXN_UID, transactionUid);
       WriteResult result = revLogCol.remove(query);
       logger.info(result.toString());
@@ -271,8 +1043,66 @@ public class RevisionLogDirectToMongoDbImpl
     }
     catch(Exception e) {
       logger.info("************* ROLLING FAILED: "+transactionUid);
+      Metrics.counter(METRIC_ROLLBACK+METRIC_ERRORS_SUFFIX).inc();
       throw new RevisionLogException("Failed to roll back transaction: "+transactionUid, e);
     }
+    finally {
+      _unlock(transactionUid);
+      _forgetTransaction(transactionUid);
+      Metrics.timer(METRIC_ROLLBACK).update(System.nanoTime() - startNanos);
+    }
+  }
+  
+  @Override
+  public int rollbackAbandonedTransactions(long maxIdleMillis, int limit)
+      throws RevisionLogException
+  {
+    Date idleSince = new Date(System.currentTimeMillis() - maxIdleMillis);
+    try {
+      List<TransactionItem> abandoned = txnDao.claimAbandoned(idleSince, limit);
+      for (TransactionItem txn : abandoned) {
+        logger.log(Level.INFO, "Rolling back abandoned transaction: {0} on graph: {1}/{2}, "
+            + "last active: {3}", new Object[] { txn.getTxnId(), 
+              txn.getGraphUniqueId(), txn.getGraphBranchId(), txn.getLastActivity() });
+        revLogCol.remove(new BasicDBObject(FIELD_TXN_UID, txn.getTxnId()));
+        _unlock(txn.getTxnId());
+        _forgetTransaction(txn.getTxnId());
+      }
+      Metrics.counter(METRIC_REAPED).inc(abandoned.size());
+      return abandoned.size();
+    }
+    catch(Exception e) {
+      throw new RevisionLogException("Failed to roll back abandoned transactions", e);
+    }
+  }
+  
+  @Override
+  public int purgeEndedTransactions(long retainMillis, int limit)
+      throws RevisionLogException
+  {
+    Date endedBefore = new Date(System.currentTimeMillis() - retainMillis);
+    try {
+      List<TransactionItem> ended = txnDao.listEnded(endedBefore, limit);
+      for (TransactionItem txn : ended) {
+        if (txn.isCommitted()) {
+          // Readers need the marker of a staged transaction once the entry is gone
+          _repairCommitMarker(txn.getTxnId());
+        }
+        if (txn.isRolledBack()) {
+          // Removes containers that a client wrote after the transaction was reaped
+          revLogCol.remove(new BasicDBObject(FIELD_TXN_UID, txn.getTxnId()));
+        }
+        txnDao.delete(txn.getTxnId());
+      }
+      return ended.size();
+    }
+    catch(Exception e) {
+      throw new RevisionLogException("Failed to purge ended transactions", e);
+    }
+  }
+  
+  public TransactionDAO getTransactionDAO() {
+    return txnDao;
   }
   
 //  @Override
@@ -292,7 +1122,7 @@ public class RevisionLogDirectToMongoDbImpl
     };
     DBObject query = new BasicDBObject("$and", Arrays.asList(andArgs));
     final DBCursor cursor = revLogCol.find(query).sort(SORT_BY_TXN_SUBMIT_ID);
-    return new DeserialisingIterable<>(cursor, marshaller, RevisionItemContainer.class);
+    return new RevisionContainerIterable(cursor, marshaller, opCodecs, itemCodec);
   }
   
   @Override
@@ -300,7 +1130,7 @@ public class RevisionLogDirectToMongoDbImpl
   {
     DBObject query = new BasicDBObject(FIELD_TXN_UID, transactionUid);
     final DBCursor cursor = revLogCol.find(query).sort(SORT_BY_TXN_SUBMIT_ID);
-    return new DeserialisingIterable<>(cursor, marshaller, RevisionItemContainer.class);
+    return new RevisionContainerIterable(cursor, marshaller, opCodecs, itemCodec);
   }
   
   
@@ -325,18 +1155,101 @@ public class RevisionLogDirectToMongoDbImpl
   public Iterable<RevisionItemContainer> iterateCommittedRevisionsForGraph(
       String graphId, String branchId)
   {    
-    DBObject[] andArgs = new BasicDBObject[] {
-        new BasicDBObject(FIELD_GRPH_UID, graphId),
-        new BasicDBObject(FIELD_GRPH_BRANCH, branchId),
-        new BasicDBObject(FIELD_COMMITTED, true)
+    // Revisions committed before commit sequence numbers were assigned
+    DBObject legacyQuery = new BasicDBObject(FIELD_GRPH_UID, graphId)
+        .append(FIELD_GRPH_BRANCH, branchId)
+        .append(FIELD_COMMITTED, true)
+        .append(FIELD_COMMIT_SEQ, new BasicDBObject("$exists", false));
+    final DBCursor legacyCursor = revLogCol.find(legacyQuery).sort(SORT_BY_COMMIT_ORDER);
+    
+    return new ConcatenatedIterable<>(
+        new RevisionContainerIterable(legacyCursor, marshaller, opCodecs, itemCodec),
+        iterateCommittedRevisionsForGraphSince(graphId, branchId, 0, 0));
+  }
+  
+  @Override
+  public Iterable<RevisionItemContainer> iterateCommittedRevisionsForGraphSince(
+      String graphId, String branchId, long commitSeq, int txnSubmitId)
+  {
+    return _iterateCommittedRevisionsSince(graphId, branchId, commitSeq, txnSubmitId, false);
+  }
+  
+  /**
+   * Like <code>iterateCommittedRevisionsForGraphSince</code>, but leaves out 
+   * staged transactions that are still being written rather than ending 
+   * there, so that later transactions are also returned. 
+   */
+  Iterable<RevisionItemContainer> iterateCommittedRevisionsPastIncomplete(
+      String graphId, String branchId, long commitSeq, int txnSubmitId)
+  {
+    return _iterateCommittedRevisionsSince(graphId, branchId, commitSeq, txnSubmitId, true);
+  }
+  
+  private Iterable<RevisionItemContainer> _iterateCommittedRevisionsSince(
+      String graphId, String branchId, long commitSeq, int txnSubmitId, 
+      boolean skipIncomplete)
+  {
+    /*
+     * (commitSeq, txnSubmitId) > (S, I). Only committed revisions have a 
+     * commitSeq greater than zero, so this is a range scan over the 
+     * commit sequence index.
+     */
+    DBObject[] orArgs = new BasicDBObject[] {
+        new BasicDBObject(FIELD_COMMIT_SEQ, new BasicDBObject("$gt", commitSeq)),
+        new BasicDBObject(FIELD_COMMIT_SEQ, commitSeq)
+            .append(FIELD_TXN_SUBMIT_ID, new BasicDBObject("$gt", txnSubmitId))
     };
-    DBObject query = new BasicDBObject("$and", Arrays.asList(andArgs));
-//    logger.info("Generated query: "+query);
+    DBObject query = new BasicDBObject(FIELD_GRPH_UID, graphId)
+        .append(FIELD_GRPH_BRANCH, branchId)
+        .append(FIELD_COMMIT_SEQ, new BasicDBObject("$gte", Math.max(commitSeq, 1)))
+        .append("$or", Arrays.asList(orArgs));
     
-    final DBCursor cursor = revLogCol.find(query).sort(SORT_BY_DATE_COMMITTED).sort(SORT_BY_TXN_SUBMIT_ID);
-//    return new DeserialisingIterable<>(cursor, new RevisionItemDBObjectDeserializer());
-//    return new DeserialisingIterable<>(cursor, new JsonDBObjectDeserializer(RevisionItemContainer.class));
-    return new DeserialisingIterable<>(cursor, marshaller, RevisionItemContainer.class);
+    final DBCursor cursor = revLogCol.find(query).sort(SORT_BY_COMMIT_SEQ);
+    return new RevisionContainerIterable(
+        new CompleteTransactionsIterable(cursor, skipIncomplete), 
+        marshaller, opCodecs, itemCodec);
+  }
+
+  @Override
+  public SortedMap<Long, String> listCommittedTransactionsSince(
+      String graphId, String branchId, long afterCommitSeq, int limit)
+      throws RevisionLogException
+  {
+    // The $match stage is a range scan over the commit sequence index
+    DBObject match = new BasicDBObject("$match", 
+        new BasicDBObject(FIELD_GRPH_UID, graphId)
+        .append(FIELD_GRPH_BRANCH, branchId)
+        .append(FIELD_COMMIT_SEQ, new BasicDBObject("$gt", afterCommitSeq)));
+    DBObject group = new BasicDBObject("$group", 
+        new BasicDBObject("_id", "$"+FIELD_COMMIT_SEQ)
+        .append(FIELD_TXN_UID, new BasicDBObject("$first", "$"+FIELD_TXN_UID))
+        .append(FIELD_STAGED, new BasicDBObject("$max", "$"+FIELD_STAGED))
+        .append(FIELD_TXN_SUBMIT_ID, new BasicDBObject("$max", "$"+FIELD_TXN_SUBMIT_ID)));
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("_id", 1));
+    DBObject limitStage = new BasicDBObject("$limit", limit);
+    try {
+      AggregationOutput output = revLogCol.aggregate(match, group, sort, limitStage);
+      SortedMap<Long, String> seqToTxn = new TreeMap<>();
+      for (DBObject result : output.results()) {
+        String txnId = (String) result.get(FIELD_TXN_UID);
+        if (Boolean.TRUE.equals(result.get(FIELD_STAGED))
+            && ((Number) result.get(FIELD_TXN_SUBMIT_ID)).intValue() != Integer.MAX_VALUE) {
+          StagedState state = _stagedState(txnId);
+          if (state == StagedState.WRITING) {
+            // Later transactions aren't listed until this one is complete
+            break;
+          } else if (state == StagedState.ROLLED_BACK) {
+            continue;
+          }
+        }
+        seqToTxn.put(((Number) result.get("_id")).longValue(), txnId);
+      }
+      return seqToTxn;
+    }
+    catch(Exception e) {
+      throw new RevisionLogException("Failed to perform database operation:\n"
+          + "Pipeline: "+Arrays.asList(match, group, sort, limitStage), e);
+    }
   }
 
 //  @Override
@@ -355,4 +1268,162 @@ public class RevisionLogDirectToMongoDbImpl
 //    return new DeserialisingIterable<>(cursor, new RevisionItemDBObjectDeserializer());
 //  }
 
+  /**
+   * Iterates the elements of one iterable, followed by those of another.
+   */
+  /**
+   * Passes through containers read in commit sequence order, but ends at the
+   * first staged transaction that is still being written (or leaves it out, 
+   * if <code>skipIncomplete</code> is set), and leaves out staged 
+   * transactions that were rolled back.
+   */
+  private class CompleteTransactionsIterable
+      implements Iterable<DBObject>
+  {
+    private final Iterable<DBObject> containers;
+
+    private final boolean skipIncomplete;
+
+    private CompleteTransactionsIterable(Iterable<DBObject> containers, 
+        boolean skipIncomplete) {
+      this.containers = containers;
+      this.skipIncomplete = skipIncomplete;
+    }
+
+    @Override
+    public Iterator<DBObject> iterator() {
+      final Iterator<DBObject> itr = containers.iterator();
+      return new Iterator<DBObject>() {
+        private DBObject next;
+        private long checkedSeq = -1;
+        private long skippedSeq = -1;
+        private boolean ended;
+        
+        @Override
+        public boolean hasNext() {
+          while (next == null && !ended && itr.hasNext()) {
+            DBObject container = itr.next();
+            if (!Boolean.TRUE.equals(container.get(FIELD_STAGED))) {
+              next = container;
+              continue;
+            }
+            long seq = ((Number) container.get(FIELD_COMMIT_SEQ)).longValue();
+            if (seq == skippedSeq) {
+              continue;
+            }
+            if (seq != checkedSeq) {
+              StagedState state;
+              try {
+                state = _stagedState((String) container.get(FIELD_TXN_UID));
+              }
+              catch(Exception e) {
+                throw new IllegalStateException(
+                    "Failed to check the commit marker of staged transaction: "
+                    + container.get(FIELD_TXN_UID), e);
+              }
+              if (state == StagedState.WRITING && !skipIncomplete) {
+                ended = true;
+                continue;
+              } else if (state != StagedState.COMMITTED) {
+                skippedSeq = seq;
+                continue;
+              }
+              checkedSeq = seq;
+            }
+            next = container;
+          }
+          return next != null;
+        }
+
+        @Override
+        public DBObject next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          DBObject container = next;
+          next = null;
+          return container;
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException("Not supported.");
+        }
+      };
+    }
+  }
+  
+  private static class ConcatenatedIterable<T>
+      implements Iterable<T>
+  {
+    private final Iterable<T> first;
+    private final Iterable<T> second;
+
+    private ConcatenatedIterable(Iterable<T> first, Iterable<T> second) {
+      this.first = first;
+      this.second = second;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      final Iterator<T> firstItr = first.iterator();
+      return new Iterator<T>() {
+        private Iterator<T> current = firstItr;
+
+        @Override
+        public boolean hasNext() {
+          if (!current.hasNext() && current == firstItr) {
+            current = second.iterator();
+          }
+          return current.hasNext();
+        }
+
+        @Override
+        public T next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return current.next();
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException("Not supported.");
+        }
+      };
+    }
+  }
+
+  /**
+   * Returned by <code>submitRevisionsAsync</code> when revisions have already
+   * been written synchronously.
+   */
+  private static class CompletedFuture
+      implements Future<Void>
+  {
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return true;
+    }
+
+    @Override
+    public Void get() {
+      return null;
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) {
+      return null;
+    }
+  }
 }
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.metrics.Metrics;
+import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionCommit;
+
+/**
+ * Delivers revision log events to <code>RevisionLogListener</code>s on a 
+ * dedicated pool of threads, so that the thread performing a commit does not
+ * wait for listeners to finish.
+ * 
+ * Each listener receives events one at a time, in the order in which they 
+ * were dispatched. Different listeners may be notified concurrently, and one
+ * slow listener does not delay the others beyond the shared queue limit.
+ * 
+ * At most <code>maxQueuedEvents</code> undelivered notifications (one per 
+ * listener per event) may be outstanding. When that limit is reached, the
+ * <code>BackpressurePolicy</code> decides whether the dispatching thread 
+ * waits or the notification is dropped. If a listener throws an exception, 
+ * the <code>FailurePolicy</code> decides whether it keeps receiving events.
+ * 
+ * @author Keith Flanagan
+ */
+public class RevisionLogListenerDispatcher
+{
+  private static final Logger logger =
+      Logger.getLogger(RevisionLogListenerDispatcher.class.getName());
+  
+  public static final int DEFAULT_THREADS = 2;
+  public static final int DEFAULT_MAX_QUEUED_EVENTS = 10000;
+  
+  /*
+   * The maximum number of events delivered to one listener before its thread
+   * is handed to another listener.
+   */
+  private static final int MAX_EVENTS_PER_RUN = 64;
+  private static final long IDLE_POLL_MILLIS = 10;
+  
+  private static final String METRIC_DISPATCH_LAG = "revlog.listeners.dispatchLag";
+  private static final String METRIC_DROPPED = "revlog.listeners.dropped";
+  private static final String METRIC_FAILED = "revlog.listeners.failed";
+  
+  public enum BackpressurePolicy
+  {
+    /**
+     * The dispatching thread waits for space in the queue. Commits are 
+     * slowed down to the rate at which listeners keep up.
+     */
+    BLOCK,
+    /**
+     * The notification is dropped and a warning is logged. Commits are never
+     * delayed, but listeners may miss events.
+     */
+    DROP;
+  }
+  
+  public enum FailurePolicy
+  {
+    /**
+     * The exception is logged and the listener continues to receive events.
+     */
+    LOG_AND_CONTINUE,
+    /**
+     * The exception is logged, the listener is removed and any events still
+     * queued for it are discarded.
+     */
+    REMOVE_LISTENER;
+  }
+  
+  private final ExecutorService exe;
+  private final Semaphore queueSpace;
+  private final BackpressurePolicy backpressurePolicy;
+  private final FailurePolicy failurePolicy;
+  private final ConcurrentMap<RevisionLogListener, Mailbox> mailboxes;
+  private final AtomicLong pending;
+  private volatile boolean closed;
+
+  public RevisionLogListenerDispatcher()
+  {
+    this(DEFAULT_THREADS, DEFAULT_MAX_QUEUED_EVENTS, 
+        BackpressurePolicy.BLOCK, FailurePolicy.LOG_AND_CONTINUE);
+  }
+  
+  public RevisionLogListenerDispatcher(int threads, int maxQueuedEvents,
+          BackpressurePolicy backpressurePolicy, FailurePolicy failurePolicy)
+  {
+    if (threads < 1 || maxQueuedEvents < 1) {
+      throw new IllegalArgumentException(
+          "threads and maxQueuedEvents must both be at least 1");
+    }
+    this.exe = Executors.newFixedThreadPool(threads, new DispatchThreadFactory());
+    this.queueSpace = new Semaphore(maxQueuedEvents);
+    this.backpressurePolicy = backpressurePolicy;
+    this.failurePolicy = failurePolicy;
+    this.mailboxes = new ConcurrentHashMap<>();
+    this.pending = new AtomicLong(0);
+  }
+  
+  public void addListener(RevisionLogListener listener)
+  {
+    Mailbox mailbox = new Mailbox(listener);
+    if (mailboxes.putIfAbsent(listener, mailbox) != null) {
+      logger.info("Listener is already registered: "+listener);
+    }
+  }
+  
+  /**
+   * Removes a listener. Events already queued for it are discarded, although
+   * an event that is being delivered at the time will complete.
+   */
+  public void removeListener(RevisionLogListener listener)
+  {
+    Mailbox mailbox = mailboxes.remove(listener);
+    if (mailbox != null) {
+      mailbox.discard();
+    }
+  }
+  
+  public List<RevisionLogListener> getListeners()
+  {
+    return new ArrayList<>(mailboxes.keySet());
+  }
+  
+  public void dispatchPostCommit(final TransactionCommit op)
+  {
+    dispatch(new Event() {
+      @Override
+      public void deliverTo(RevisionLogListener listener) {
+        listener.notifyPostCommit(op);
+      }
+
+      @Override
+      public String toString() {
+        return "notifyPostCommit("+op.getUid()+")";
+      }
+    });
+  }
+  
+  private void dispatch(Event event)
+  {
+    if (closed) {
+      logger.warning("Listener dispatcher has been closed; not delivering: "+event);
+      return;
+    }
+    long now = System.nanoTime();
+    for (Mailbox mailbox : mailboxes.values()) {
+      if (!_acquireQueueSpace(event, mailbox.listener)) {
+        continue;
+      }
+      pending.incrementAndGet();
+      mailbox.enqueue(new QueuedEvent(event, now));
+    }
+  }
+  
+  private boolean _acquireQueueSpace(Event event, RevisionLogListener listener)
+  {
+    switch (backpressurePolicy) {
+      case DROP:
+        if (queueSpace.tryAcquire()) {
+          return true;
+        }
+        break;
+      case BLOCK:
+      default:
+        try {
+          queueSpace.acquire();
+          return true;
+        }
+        catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        break;
+    }
+    Metrics.counter(METRIC_DROPPED).inc();
+    logger.warning("Listener queue is full; dropped event: "+event+" for listener: "+listener);
+    return false;
+  }
+  
+  /**
+   * Waits until every event dispatched so far has been delivered (or 
+   * discarded).
+   * 
+   * @param timeoutMillis the maximum time to wait
+   * @return true if there are no undelivered events, false if the timeout 
+   * elapsed first.
+   */
+  public boolean awaitIdle(long timeoutMillis)
+      throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (pending.get() > 0) {
+      if (System.currentTimeMillis() >= deadline) {
+        return false;
+      }
+      Thread.sleep(IDLE_POLL_MILLIS);
+    }
+    return true;
+  }
+  
+  public long getPendingEventCount()
+  {
+    return pending.get();
+  }
+  
+  /**
+   * Stops accepting events, delivers those already queued, and then stops 
+   * the dispatch threads.
+   */
+  public void close()
+  {
+    closed = true;
+    exe.shutdown();
+    try {
+      exe.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    /*
+     * Mailboxes can't reschedule themselves once the executor has shut down,
+     * so deliver anything they still hold on this thread.
+     */
+    for (Mailbox mailbox : mailboxes.values()) {
+      mailbox.drainInline();
+    }
+  }
+  
+  private void _release()
+  {
+    queueSpace.release();
+    pending.decrementAndGet();
+  }
+  
+  private interface Event
+  {
+    public void deliverTo(RevisionLogListener listener);
+  }
+  
+  private static class QueuedEvent
+  {
+    private final Event event;
+    private final long queuedAtNanos;
+
+    private QueuedEvent(Event event, long queuedAtNanos) {
+      this.event = event;
+      this.queuedAtNanos = queuedAtNanos;
+    }
+  }
+  
+  /**
+   * The events queued for a single listener. A mailbox is scheduled on the
+   * executor at most once at a time, which gives per-listener ordering.
+   */
+  private class Mailbox
+      implements Runnable
+  {
+    private final RevisionLogListener listener;
+    private final Queue<QueuedEvent> queue;
+    private final AtomicBoolean scheduled;
+    private volatile boolean discarded;
+
+    private Mailbox(RevisionLogListener listener)
+    {
+      this.listener = listener;
+      this.queue = new ConcurrentLinkedQueue<>();
+      this.scheduled = new AtomicBoolean(false);
+    }
+    
+    private void enqueue(QueuedEvent event)
+    {
+      queue.add(event);
+      if (discarded) {
+        discard();
+        return;
+      }
+      _schedule();
+    }
+    
+    private void _schedule()
+    {
+      if (scheduled.compareAndSet(false, true)) {
+        try {
+          exe.execute(this);
+        }
+        catch(RejectedExecutionException e) {
+          // Rejected after close(); close() drains the queue itself
+          scheduled.set(false);
+        }
+      }
+    }
+    
+    private void discard()
+    {
+      discarded = true;
+      QueuedEvent event;
+      while ((event = queue.poll()) != null) {
+        _release();
+      }
+    }
+
+    @Override
+    public void run()
+    {
+      try {
+        for (int i=0; i<MAX_EVENTS_PER_RUN && !discarded; i++) {
+          QueuedEvent event = queue.poll();
+          if (event == null) {
+            break;
+          }
+          _deliver(event);
+        }
+      }
+      finally {
+        scheduled.set(false);
+      }
+      // An event may have been queued after the last poll
+      if (!queue.isEmpty() && !discarded) {
+        _schedule();
+      }
+    }
+    
+    private void drainInline()
+    {
+      QueuedEvent event;
+      while (!discarded && (event = queue.poll()) != null) {
+        _deliver(event);
+      }
+    }
+    
+    private void _deliver(QueuedEvent queued)
+    {
+      try {
+        Metrics.timer(METRIC_DISPATCH_LAG).update(System.nanoTime() - queued.queuedAtNanos);
+        queued.event.deliverTo(listener);
+      }
+      catch(Throwable e) {
+        Metrics.counter(METRIC_FAILED).inc();
+        logger.log(Level.WARNING, "Listener: "+listener+" failed to process event: "
+            + queued.event, e);
+        if (failurePolicy == FailurePolicy.REMOVE_LISTENER) {
+          logger.warning("Removing failed listener: "+listener);
+          removeListener(listener);
+        }
+      }
+      finally {
+        _release();
+      }
+    }
+  }
+  
+  private static class DispatchThreadFactory
+      implements ThreadFactory
+  {
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "revlog-listener-"+count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
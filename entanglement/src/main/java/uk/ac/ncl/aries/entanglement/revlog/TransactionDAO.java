@@ -17,18 +17,71 @@
 
 package uk.ac.ncl.aries.entanglement.revlog;
 
+import java.util.Date;
+import java.util.List;
+import uk.ac.ncl.aries.entanglement.revlog.data.TransactionItem;
+
 /**
- * NOTE: currently not used
+ * A registry of transactions, with one <code>TransactionItem</code> per 
+ * transaction. It tracks the activity of each transaction so that 
+ * transactions abandoned by their clients can be found and rolled back.
  * 
+ * Committing and rolling back are mutually exclusive: once a transaction 
+ * has been marked as rolled back, it can't be committed, and vice versa.
+ * This prevents a transaction that has been reaped from being committed
+ * afterwards by a slow client.
  * 
  * @author Keith Flanagan
  */
 public interface TransactionDAO
 {
-  public void begin(String txnId) throws TransactionException;
+  public void begin(String graphId, String graphBranchId, String txnId) 
+      throws TransactionException;
+  
+  /**
+   * Records that revisions have been submitted to a transaction. If the
+   * transaction isn't registered yet (for example, it was started before the
+   * registry existed), it is registered now. Implementations may skip updates
+   * that occur within a short time of the previous one.
+   * 
+   * @throws TransactionException if the transaction has been rolled back.
+   */
+  public void touch(String graphId, String graphBranchId, String txnId) 
+      throws TransactionException;
+  
+  /**
+   * @throws TransactionException if the transaction has been rolled back.
+   */
   public void commit(String txnId) throws TransactionException;
+  
+  /**
+   * @throws TransactionException if the transaction has been committed.
+   */
   public void rollback(String txnId) throws TransactionException;
   
-  public void setLastInsertedRevItem(String txnId, String revLogItemId) throws TransactionException;
-//  public void submitRevisionToTxn(String txnId, )
+  /**
+   * @return the registry entry for a transaction, or null if there is none.
+   */
+  public TransactionItem get(String txnId) throws TransactionException;
+  
+  /**
+   * Finds up to <code>limit</code> transactions that are neither committed
+   * nor rolled back, and whose last activity was before <code>idleSince</code>,
+   * and marks them as rolled back. Each transaction is claimed atomically, so 
+   * a transaction that is committed concurrently is never returned.
+   * 
+   * @return the transactions that were claimed. The caller is responsible for
+   * removing their revisions.
+   */
+  public List<TransactionItem> claimAbandoned(Date idleSince, int limit) 
+      throws TransactionException;
+  
+  /**
+   * @return up to <code>limit</code> committed or rolled back transactions 
+   * that ended before <code>endedBefore</code>.
+   */
+  public List<TransactionItem> listEnded(Date endedBefore, int limit) 
+      throws TransactionException;
+  
+  public void delete(String txnId) throws TransactionException;
 }
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import uk.ac.ncl.aries.entanglement.revlog.data.TransactionItem;
+
+/**
+ * Stores one document per transaction, keyed by transaction ID.
+ * 
+ * Updates are conditional upserts. For example, a commit matches the 
+ * transaction only if it hasn't been rolled back. If it has, the upsert tries
+ * to insert a second document with the same <code>_id</code>, which fails
+ * with a duplicate key error, so each state change is a single atomic write.
+ * 
+ * @author Keith Flanagan
+ */
+public class TransactionDAOMongoImpl
+    implements TransactionDAO
+{
+  private static final String DEFAULT_COL_TRANSACTIONS = "transactions";
+  
+  public static final long DEFAULT_ACTIVITY_UPDATE_INTERVAL_MS = 10000;
+  
+  private static final String FIELD_GRPH_UID = "graphUniqueId";
+  private static final String FIELD_GRPH_BRANCH = "graphBranchId";
+  private static final String FIELD_BEGAN = "began";
+  private static final String FIELD_LAST_ACTIVITY = "lastActivity";
+  private static final String FIELD_ENDED = "ended";
+  private static final String FIELD_COMMITTED = "committed";
+  private static final String FIELD_ROLLED_BACK = "rolledBack";
+  
+  private static final DBObject IDX__COMMITTED__ROLLED_BACK__LAST_ACTIVITY = 
+      new BasicDBObject(FIELD_COMMITTED, 1).append(FIELD_ROLLED_BACK, 1)
+      .append(FIELD_LAST_ACTIVITY, 1);
+  private static final DBObject IDX__ENDED = new BasicDBObject(FIELD_ENDED, 1);
+  
+  private static final WriteConcern CHECKED_WRITE = WriteConcern.SAFE;
+  
+  private final DBCollection col;
+  
+  /*
+   * The time of the last activity update written by this client, per open
+   * transaction.
+   */
+  private final ConcurrentMap<String, Long> lastTouched;
+  private volatile long activityUpdateIntervalMs;
+
+  public TransactionDAOMongoImpl(DB db)
+  {
+    this.col = db.getCollection(DEFAULT_COL_TRANSACTIONS);
+    this.lastTouched = new ConcurrentHashMap<>();
+    this.activityUpdateIntervalMs = DEFAULT_ACTIVITY_UPDATE_INTERVAL_MS;
+    
+    col.ensureIndex(IDX__COMMITTED__ROLLED_BACK__LAST_ACTIVITY);
+    col.ensureIndex(IDX__ENDED);
+  }
+
+  @Override
+  public void begin(String graphId, String graphBranchId, String txnId)
+      throws TransactionException
+  {
+    _recordActivity(graphId, graphBranchId, txnId);
+  }
+
+  @Override
+  public void touch(String graphId, String graphBranchId, String txnId)
+      throws TransactionException
+  {
+    Long last = lastTouched.get(txnId);
+    if (last != null && System.currentTimeMillis() - last < activityUpdateIntervalMs) {
+      return;
+    }
+    _recordActivity(graphId, graphBranchId, txnId);
+  }
+  
+  private void _recordActivity(String graphId, String graphBranchId, String txnId)
+      throws TransactionException
+  {
+    Date now = new Date();
+    DBObject query = new BasicDBObject("_id", txnId)
+        .append(FIELD_ROLLED_BACK, new BasicDBObject("$ne", true));
+    DBObject update = new BasicDBObject("$set", 
+        new BasicDBObject(FIELD_LAST_ACTIVITY, now))
+        .append("$setOnInsert", new BasicDBObject(FIELD_GRPH_UID, graphId)
+          .append(FIELD_GRPH_BRANCH, graphBranchId)
+          .append(FIELD_BEGAN, now)
+          .append(FIELD_COMMITTED, false)
+          .append(FIELD_ROLLED_BACK, false));
+    try {
+      col.update(query, update, true, false, CHECKED_WRITE);
+      lastTouched.put(txnId, now.getTime());
+    }
+    catch(MongoException.DuplicateKey e) {
+      lastTouched.remove(txnId);
+      throw new TransactionException("Transaction: "+txnId+" has been rolled back. "
+          + "It may have been idle for too long and been presumed abandoned.");
+    }
+    catch(Exception e) {
+      throw new TransactionException("Failed to perform database operation:\n"
+          + "Query: "+query+"\nUpdate: "+update, e);
+    }
+  }
+
+  @Override
+  public void commit(String txnId)
+      throws TransactionException
+  {
+    lastTouched.remove(txnId);
+    _end(txnId, FIELD_COMMITTED, FIELD_ROLLED_BACK, 
+        "Transaction: "+txnId+" can't be committed because it has been rolled back. "
+        + "It may have been idle for too long and been presumed abandoned.");
+  }
+
+  @Override
+  public void rollback(String txnId)
+      throws TransactionException
+  {
+    lastTouched.remove(txnId);
+    _end(txnId, FIELD_ROLLED_BACK, FIELD_COMMITTED, 
+        "Transaction: "+txnId+" can't be rolled back because it has been committed.");
+  }
+  
+  /**
+   * Sets <code>outcomeField</code>, unless <code>conflictingField</code> is
+   * already set.
+   */
+  private void _end(String txnId, String outcomeField, String conflictingField,
+      String conflictMessage)
+      throws TransactionException
+  {
+    Date now = new Date();
+    DBObject query = new BasicDBObject("_id", txnId)
+        .append(conflictingField, new BasicDBObject("$ne", true));
+    DBObject update = new BasicDBObject("$set", 
+        new BasicDBObject(outcomeField, true)
+        .append(FIELD_ENDED, now)
+        .append(FIELD_LAST_ACTIVITY, now))
+        .append("$setOnInsert", new BasicDBObject(FIELD_BEGAN, now)
+          .append(conflictingField, false));
+    try {
+      col.update(query, update, true, false, CHECKED_WRITE);
+    }
+    catch(MongoException.DuplicateKey e) {
+      throw new TransactionException(conflictMessage);
+    }
+    catch(Exception e) {
+      throw new TransactionException("Failed to perform database operation:\n"
+          + "Query: "+query+"\nUpdate: "+update, e);
+    }
+  }
+
+  @Override
+  public TransactionItem get(String txnId)
+      throws TransactionException
+  {
+    DBObject query = new BasicDBObject("_id", txnId);
+    try {
+      DBObject obj = col.findOne(query);
+      return obj == null ? null : _toItem(obj);
+    }
+    catch(Exception e) {
+      throw new TransactionException("Failed to perform database operation:\n"
+          + "Query: "+query, e);
+    }
+  }
+
+  @Override
+  public List<TransactionItem> claimAbandoned(Date idleSince, int limit)
+      throws TransactionException
+  {
+    DBObject query = new BasicDBObject(FIELD_COMMITTED, false)
+        .append(FIELD_ROLLED_BACK, false)
+        .append(FIELD_LAST_ACTIVITY, new BasicDBObject("$lt", idleSince));
+    List<TransactionItem> claimed = new ArrayList<>();
+    try (DBCursor cursor = col.find(query).limit(limit)) {
+      for (DBObject obj : cursor) {
+        TransactionItem item = _toItem(obj);
+        Date now = new Date();
+        // Re-checks the query, in case the transaction was active or committed since
+        DBObject claimQuery = new BasicDBObject("_id", item.getTxnId());
+        claimQuery.putAll(query);
+        DBObject update = new BasicDBObject("$set", 
+            new BasicDBObject(FIELD_ROLLED_BACK, true).append(FIELD_ENDED, now));
+        WriteResult result = col.update(claimQuery, update, false, false, CHECKED_WRITE);
+        if (result.getN() == 1) {
+          item.setRolledBack(true);
+          item.setEnded(now);
+          claimed.add(item);
+        }
+      }
+      return claimed;
+    }
+    catch(Exception e) {
+      throw new TransactionException("Failed to perform database operation:\n"
+          + "Query: "+query, e);
+    }
+  }
+
+  @Override
+  public List<TransactionItem> listEnded(Date endedBefore, int limit)
+      throws TransactionException
+  {
+    DBObject query = new BasicDBObject(FIELD_ENDED, new BasicDBObject("$lt", endedBefore));
+    List<TransactionItem> items = new ArrayList<>();
+    try (DBCursor cursor = col.find(query).limit(limit)) {
+      for (DBObject obj : cursor) {
+        items.add(_toItem(obj));
+      }
+      return items;
+    }
+    catch(Exception e) {
+      throw new TransactionException("Failed to perform database operation:\n"
+          + "Query: "+query, e);
+    }
+  }
+
+  @Override
+  public void delete(String txnId)
+      throws TransactionException
+  {
+    DBObject query = new BasicDBObject("_id", txnId);
+    try {
+      col.remove(query);
+    }
+    catch(Exception e) {
+      throw new TransactionException("Failed to perform database operation:\n"
+          + "Query: "+query, e);
+    }
+  }
+  
+  private TransactionItem _toItem(DBObject obj)
+  {
+    TransactionItem item = new TransactionItem();
+    item.setTxnId((String) obj.get("_id"));
+    item.setGraphUniqueId((String) obj.get(FIELD_GRPH_UID));
+    item.setGraphBranchId((String) obj.get(FIELD_GRPH_BRANCH));
+    item.setBegan((Date) obj.get(FIELD_BEGAN));
+    item.setLastActivity((Date) obj.get(FIELD_LAST_ACTIVITY));
+    item.setEnded((Date) obj.get(FIELD_ENDED));
+    item.setCommitted(Boolean.TRUE.equals(obj.get(FIELD_COMMITTED)));
+    item.setRolledBack(Boolean.TRUE.equals(obj.get(FIELD_ROLLED_BACK)));
+    return item;
+  }
+
+  public DBCollection getCollection() {
+    return col;
+  }
+
+  public long getActivityUpdateIntervalMs() {
+    return activityUpdateIntervalMs;
+  }
+
+  /**
+   * Sets the minimum time between activity updates for the same transaction.
+   * This must be well below the idle time after which transactions are 
+   * presumed abandoned.
+   */
+  public void setActivityUpdateIntervalMs(long activityUpdateIntervalMs) {
+    this.activityUpdateIntervalMs = activityUpdateIntervalMs;
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically rolls back transactions whose clients have gone away without
+ * committing or rolling back. Without this, their revision containers stay
+ * uncommitted forever. Every query that filters on the committed flag then
+ * has to skip over them, and the revision log indexes keep growing.
+ * 
+ * Each pass rolls back at most <code>batchSize * maxBatchesPerPass</code>
+ * transactions, so a large backlog is worked through over several passes 
+ * instead of in one long burst of deletes. It then purges the bookkeeping 
+ * of transactions that ended more than <code>retentionMillis</code> ago.
+ * 
+ * Several processes may run a reaper against the same database. Each 
+ * abandoned transaction is claimed atomically, so it is only rolled back once.
+ * 
+ * @author Keith Flanagan
+ */
+public class TransactionReaper
+{
+  private static final Logger logger = 
+      Logger.getLogger(TransactionReaper.class.getName());
+  
+  public static final long DEFAULT_MAX_IDLE_MS = TimeUnit.HOURS.toMillis(6);
+  public static final long DEFAULT_INTERVAL_MS = TimeUnit.MINUTES.toMillis(5);
+  public static final long DEFAULT_RETENTION_MS = TimeUnit.DAYS.toMillis(1);
+  public static final int DEFAULT_BATCH_SIZE = 100;
+  public static final int DEFAULT_MAX_BATCHES_PER_PASS = 10;
+  
+  private final RevisionLog revLog;
+  
+  private long maxIdleMillis;
+  private long intervalMillis;
+  private long retentionMillis;
+  private int batchSize;
+  private int maxBatchesPerPass;
+  
+  private ScheduledExecutorService exe;
+
+  public TransactionReaper(RevisionLog revLog)
+  {
+    this.revLog = revLog;
+    this.maxIdleMillis = DEFAULT_MAX_IDLE_MS;
+    this.intervalMillis = DEFAULT_INTERVAL_MS;
+    this.retentionMillis = DEFAULT_RETENTION_MS;
+    this.batchSize = DEFAULT_BATCH_SIZE;
+    this.maxBatchesPerPass = DEFAULT_MAX_BATCHES_PER_PASS;
+  }
+  
+  /**
+   * Starts running passes in a background thread, every 
+   * <code>intervalMillis</code>.
+   */
+  public synchronized void start()
+  {
+    if (exe != null) {
+      return;
+    }
+    exe = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "revlog-transaction-reaper");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    exe.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          runPass();
+        }
+        catch(Exception e) {
+          // Thrown exceptions would cancel subsequent passes
+          logger.log(Level.WARNING, "Transaction reaper pass failed", e);
+        }
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+  
+  public synchronized void stop()
+  {
+    if (exe != null) {
+      exe.shutdownNow();
+      exe = null;
+    }
+  }
+  
+  /**
+   * Runs a single pass in the calling thread.
+   * 
+   * @return the number of transactions rolled back
+   * @throws RevisionLogException 
+   */
+  public int runPass()
+      throws RevisionLogException
+  {
+    int reaped = 0;
+    for (int i = 0; i < maxBatchesPerPass; i++) {
+      int count = revLog.rollbackAbandonedTransactions(maxIdleMillis, batchSize);
+      reaped = reaped + count;
+      if (count < batchSize) {
+        break;
+      }
+    }
+    int purged = 0;
+    for (int i = 0; i < maxBatchesPerPass; i++) {
+      int count = revLog.purgeEndedTransactions(retentionMillis, batchSize);
+      purged = purged + count;
+      if (count < batchSize) {
+        break;
+      }
+    }
+    if (reaped > 0 || purged > 0) {
+      logger.log(Level.INFO, "Rolled back {0} abandoned transactions; purged {1} ended transactions",
+          new Object[] { reaped, purged });
+    }
+    return reaped;
+  }
+
+  public long getMaxIdleMillis() {
+    return maxIdleMillis;
+  }
+
+  public void setMaxIdleMillis(long maxIdleMillis) {
+    this.maxIdleMillis = maxIdleMillis;
+  }
+
+  public long getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  /**
+   * Takes effect the next time the reaper is started.
+   */
+  public void setIntervalMillis(long intervalMillis) {
+    this.intervalMillis = intervalMillis;
+  }
+
+  public long getRetentionMillis() {
+    return retentionMillis;
+  }
+
+  public void setRetentionMillis(long retentionMillis) {
+    this.retentionMillis = retentionMillis;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public int getMaxBatchesPerPass() {
+    return maxBatchesPerPass;
+  }
+
+  public void setMaxBatchesPerPass(int maxBatchesPerPass) {
+    this.maxBatchesPerPass = maxBatchesPerPass;
+  }
+}
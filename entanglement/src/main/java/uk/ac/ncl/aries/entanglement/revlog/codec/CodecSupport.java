@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog.codec;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+/**
+ * Conversions used by generated <code>GraphOperationCodec</code>s for field
+ * types that need more than a cast.
+ *
+ * @author Keith Flanagan
+ */
+public class CodecSupport
+{
+  private CodecSupport()
+  {
+  }
+
+  /**
+   * Checks that a value of an untyped property can be stored by the MongoDB
+   * driver as it is. Other values (arbitrary beans, for example) need the
+   * reflective marshaller.
+   *
+   * @return <code>value</code>
+   * @throws IllegalArgumentException if <code>value</code>, or anything it
+   * contains, has an unsupported type.
+   */
+  public static <T> T checkValue(T value)
+  {
+    _checkValue(value);
+    return value;
+  }
+
+  public static BasicDBObject toBasicDBObject(Object value)
+  {
+    if (value instanceof BasicDBObject) {
+      return (BasicDBObject) value;
+    } else if (value instanceof DBObject) {
+      return new BasicDBObject(((DBObject) value).toMap());
+    } else if (value instanceof Map) {
+      return new BasicDBObject((Map) value);
+    }
+    throw new IllegalArgumentException("Expected a document, but found: "+value);
+  }
+
+  public static Set<String> toStringSet(Object value)
+  {
+    Collection<?> values = _toCollection(value);
+    Set<String> set = new HashSet<>(Math.max(16, values.size() * 2));
+    for (Object element : values) {
+      set.add((String) element);
+    }
+    return set;
+  }
+
+  public static List<String> toStringList(Object value)
+  {
+    Collection<?> values = _toCollection(value);
+    List<String> list = new ArrayList<>(values.size());
+    for (Object element : values) {
+      list.add((String) element);
+    }
+    return list;
+  }
+
+  public static BasicDBList toDBList(Collection<?> values)
+  {
+    BasicDBList list = new BasicDBList();
+    list.addAll(values);
+    return list;
+  }
+
+  private static void _checkValue(Object value)
+  {
+    if (value == null || value instanceof String || value instanceof Integer
+        || value instanceof Long || value instanceof Double
+        || value instanceof Float || value instanceof Short
+        || value instanceof Byte || value instanceof Boolean || value instanceof Date
+        || value instanceof byte[] || value instanceof Binary
+        || value instanceof ObjectId) {
+      return;
+    } else if (value instanceof Collection) {
+      for (Object element : (Collection<?>) value) {
+        _checkValue(element);
+      }
+      return;
+    } else if (value instanceof Map) {
+      // Includes BasicDBObject
+      for (Object element : ((Map<?, ?>) value).values()) {
+        _checkValue(element);
+      }
+      return;
+    } else if (value instanceof DBObject) {
+      DBObject dbObject = (DBObject) value;
+      for (String key : dbObject.keySet()) {
+        _checkValue(dbObject.get(key));
+      }
+      return;
+    }
+    throw new IllegalArgumentException(
+        "Values of type: "+value.getClass().getName()+" are not supported");
+  }
+
+  private static Collection<?> _toCollection(Object value)
+  {
+    if (value instanceof Collection) {
+      return (Collection<?>) value;
+    }
+    throw new IllegalArgumentException("Expected an array, but found: "+value);
+  }
+}
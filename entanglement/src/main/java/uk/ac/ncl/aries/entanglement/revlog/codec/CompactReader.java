@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog.codec;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.bson.types.ObjectId;
+import static uk.ac.ncl.aries.entanglement.revlog.codec.CompactWriter.*;
+
+/**
+ * Reads values written by a <code>CompactWriter</code>. Documents are decoded
+ * to <code>BasicDBObject</code> and arrays to <code>BasicDBList</code>, the
+ * same types that the MongoDB driver produces, so that decoded documents can
+ * be passed straight to a <code>DbObjectMarshaller</code>.
+ *
+ * Instances are not thread safe.
+ *
+ * @author Keith Flanagan
+ */
+class CompactReader
+{
+  private static final int OBJECT_ID_LENGTH = 12;
+
+  private final InputStream in;
+  private final List<String> dictionary;
+
+  CompactReader(InputStream in)
+  {
+    this.in = in;
+    this.dictionary = new ArrayList<>();
+  }
+
+  int readByte() throws IOException
+  {
+    int b = in.read();
+    if (b < 0) {
+      throw new EOFException("Unexpected end of compact revision data");
+    }
+    return b;
+  }
+
+  long readVarLong() throws IOException
+  {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift = shift + 7) {
+      int b = readByte();
+      value = value | ((long) (b & 0x7F)) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed variable length number");
+  }
+
+  long readSignedVarLong() throws IOException
+  {
+    long raw = readVarLong();
+    return (raw >>> 1) ^ -(raw & 1);
+  }
+
+  int readLength() throws IOException
+  {
+    long length = readVarLong();
+    if (length < 0 || length > Integer.MAX_VALUE) {
+      throw new IOException("Invalid length: "+length);
+    }
+    return (int) length;
+  }
+
+  byte[] readBytes(int length) throws IOException
+  {
+    byte[] bytes = new byte[length];
+    int read = 0;
+    while (read < length) {
+      int n = in.read(bytes, read, length - read);
+      if (n < 0) {
+        throw new EOFException("Unexpected end of compact revision data");
+      }
+      read = read + n;
+    }
+    return bytes;
+  }
+
+  String readString() throws IOException
+  {
+    return new String(readBytes(readLength()), UTF8);
+  }
+
+  String readName() throws IOException
+  {
+    long header = readVarLong();
+    if ((header & 1) == 0) {
+      long idx = header >>> 1;
+      if (idx >= dictionary.size()) {
+        throw new IOException("Field name index: "+idx+" is not in the dictionary");
+      }
+      return dictionary.get((int) idx);
+    }
+    long length = header >>> 1;
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Invalid length: "+length);
+    }
+    String name = new String(readBytes((int) length), UTF8);
+    dictionary.add(name);
+    return name;
+  }
+
+  BasicDBObject readDocument() throws IOException
+  {
+    int fieldCount = readLength();
+    BasicDBObject doc = new BasicDBObject();
+    for (int i = 0; i < fieldCount; i++) {
+      String name = readName();
+      doc.put(name, readValue());
+    }
+    return doc;
+  }
+
+  Object readValue() throws IOException
+  {
+    int type = readByte();
+    switch(type) {
+      case TYPE_NULL:
+        return null;
+      case TYPE_STRING:
+        return readString();
+      case TYPE_INT:
+        return (int) readSignedVarLong();
+      case TYPE_LONG:
+        return readSignedVarLong();
+      case TYPE_DOUBLE:
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+          bits = (bits << 8) | readByte();
+        }
+        return Double.longBitsToDouble(bits);
+      case TYPE_TRUE:
+        return Boolean.TRUE;
+      case TYPE_FALSE:
+        return Boolean.FALSE;
+      case TYPE_DOCUMENT:
+        return readDocument();
+      case TYPE_ARRAY:
+        int size = readLength();
+        BasicDBList list = new BasicDBList();
+        for (int i = 0; i < size; i++) {
+          list.add(readValue());
+        }
+        return list;
+      case TYPE_DATE:
+        return new Date(readSignedVarLong());
+      case TYPE_BINARY:
+        return readBytes(readLength());
+      case TYPE_OBJECT_ID:
+        return new ObjectId(readBytes(OBJECT_ID_LENGTH));
+      default:
+        throw new IOException("Unknown value type: "+type);
+    }
+  }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog.codec;
+
+import com.mongodb.BasicDBObject;
+import com.torrenttamer.mongodb.dbobject.DbObjectMarshaller;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateEdge;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateEdgeIfNotExists;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateNode;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateNodeIfNotExists;
+import uk.ac.ncl.aries.entanglement.revlog.commands.DeleteEdgeByUid;
+import uk.ac.ncl.aries.entanglement.revlog.commands.DeleteNodeByUid;
+import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
+import uk.ac.ncl.aries.entanglement.revlog.commands.SetNamedNodeProperty;
+import uk.ac.ncl.aries.entanglement.revlog.commands.SetNodeProperty;
+import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionBegin;
+import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionCommit;
+import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionRollback;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
+
+/**
+ * Encodes the revision items of a <code>RevisionItemContainer</code> into a
+ * single compact binary blob, as an alternative to storing them as an array
+ * of JSON-like subdocuments.
+ *
+ * The blob starts with a format version byte, a flags byte, and the number of
+ * items. The remaining bytes (the body) hold the items one after another, and
+ * may be deflate-compressed as a single block. Each item consists of:
+ * <ul>
+ * <li>a numeric tag identifying the operation type. The built-in operations
+ * have fixed tags. Tag 0 is used for any other operation, and is followed by
+ * the operation's type name, which is resolved through the
+ * <code>GraphOperation</code> SPI when decoding.</li>
+ * <li>the operation's properties, as produced by its
+ * <code>GraphOperationCodec</code> (or the <code>DbObjectMarshaller</code> for
+ * operations without one), written in the format of
+ * <code>CompactWriter</code>. Field names are shared between all the items in
+ * a blob through a dictionary.</li>
+ * </ul>
+ *
+ * Decoding is lazy: <code>decode</code> returns a list whose iterator decodes
+ * (and decompresses) one item at a time, so replaying a large container never
+ * holds more than one decoded operation from it in memory.
+ *
+ * Instances are thread safe.
+ *
+ * @author Keith Flanagan
+ */
+public class CompactRevisionItemCodec
+{
+  public static final int FORMAT_VERSION = 1;
+
+  /**
+   * Bodies shorter than this are never compressed, since deflate tends to
+   * make them larger.
+   */
+  public static final int DEFAULT_MIN_COMPRESS_BYTES = 512;
+
+  private static final int FLAG_DEFLATE = 0x01;
+
+  private static final int TAG_NAMED_TYPE = 0;
+
+  /*
+   * Tags are stored in the database, so this list may only ever be appended to.
+   * The index of each operation type is its tag.
+   */
+  private static final List<Class<? extends GraphOperation>> OP_TYPES_BY_TAG =
+      Collections.unmodifiableList(Arrays.<Class<? extends GraphOperation>>asList(
+          null,
+          CreateNode.class,
+          CreateNodeIfNotExists.class,
+          CreateEdge.class,
+          CreateEdgeIfNotExists.class,
+          DeleteNodeByUid.class,
+          DeleteEdgeByUid.class,
+          SetNodeProperty.class,
+          SetNamedNodeProperty.class,
+          TransactionBegin.class,
+          TransactionCommit.class,
+          TransactionRollback.class));
+
+  private static final Map<Class<?>, Integer> TAGS_BY_OP_TYPE;
+  static {
+    TAGS_BY_OP_TYPE = new HashMap<>();
+    for (int tag = 1; tag < OP_TYPES_BY_TAG.size(); tag++) {
+      TAGS_BY_OP_TYPE.put(OP_TYPES_BY_TAG.get(tag), tag);
+    }
+  }
+
+  private final GraphOperationCodecs codecs;
+  private final int minCompressBytes;
+
+  public CompactRevisionItemCodec(ClassLoader classLoader, DbObjectMarshaller marshaller)
+  {
+    this(classLoader, marshaller, DEFAULT_MIN_COMPRESS_BYTES);
+  }
+
+  public CompactRevisionItemCodec(ClassLoader classLoader,
+      DbObjectMarshaller marshaller, int minCompressBytes)
+  {
+    this(new GraphOperationCodecs(classLoader, marshaller), minCompressBytes);
+  }
+
+  public CompactRevisionItemCodec(GraphOperationCodecs codecs, int minCompressBytes)
+  {
+    this.codecs = codecs;
+    this.minCompressBytes = minCompressBytes;
+  }
+
+  /**
+   * Encodes a list of revision items.
+   *
+   * @param items the items to encode
+   * @param compress if true, the body is deflate-compressed, provided that it
+   * is at least <code>minCompressBytes</code> long and compression actually
+   * makes it smaller.
+   * @return the encoded items
+   * @throws RevisionItemCodecException if an item can't be encoded, for
+   * example because one of its property values has an unsupported type.
+   */
+  public byte[] encode(List<RevisionItem> items, boolean compress)
+      throws RevisionItemCodecException
+  {
+    try {
+      ByteArrayOutputStream bodyStream = new ByteArrayOutputStream(64 * items.size() + 16);
+      CompactWriter writer = new CompactWriter(bodyStream);
+      for (RevisionItem item : items) {
+        _writeItem(writer, item);
+      }
+      byte[] body = bodyStream.toByteArray();
+
+      int flags = 0;
+      if (compress && body.length >= minCompressBytes) {
+        byte[] deflated = _deflate(body);
+        if (deflated.length < body.length) {
+          body = deflated;
+          flags = flags | FLAG_DEFLATE;
+        }
+      }
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + 12);
+      CompactWriter header = new CompactWriter(out);
+      header.writeByte(FORMAT_VERSION);
+      header.writeByte(flags);
+      header.writeVarLong(items.size());
+      out.write(body);
+      return out.toByteArray();
+    }
+    catch(IOException e) {
+      throw new RevisionItemCodecException(
+          "Failed to encode "+items.size()+" revision items", e);
+    }
+  }
+
+  /**
+   * Returns a read-only list of the revision items held in an encoded blob.
+   * Only the header is read by this method. Items are decoded each time the
+   * list is iterated, unless the list is accessed by index, in which case all
+   * items are decoded once and retained.
+   *
+   * Decoding errors that happen during iteration are thrown as
+   * <code>IllegalStateException</code>s.
+   *
+   * @param data a blob produced by <code>encode</code>
+   * @return a lazily decoded list of revision items
+   * @throws RevisionItemCodecException if the blob's header is invalid
+   */
+  public List<RevisionItem> decode(byte[] data)
+      throws RevisionItemCodecException
+  {
+    return new DecodedItemList(data, _readHeader(data));
+  }
+
+  private void _writeItem(CompactWriter writer, RevisionItem item)
+      throws IOException, RevisionItemCodecException
+  {
+    GraphOperation op = item.getOp();
+    if (op == null) {
+      throw new RevisionItemCodecException("Revision item has no operation: "+item);
+    }
+    Integer tag = TAGS_BY_OP_TYPE.get(op.getClass());
+    if (tag != null) {
+      writer.writeVarLong(tag);
+    } else {
+      writer.writeVarLong(TAG_NAMED_TYPE);
+      writer.writeName(item.getType() != null ? item.getType() : op.getClass().getName());
+    }
+    writer.writeDocument(codecs.serialize(op));
+  }
+
+  private RevisionItem _readItem(CompactReader reader)
+      throws IOException, RevisionItemCodecException
+  {
+    long tag = reader.readVarLong();
+    String typeName;
+    Class<? extends GraphOperation> opType;
+    if (tag == TAG_NAMED_TYPE) {
+      typeName = reader.readName();
+      try {
+        opType = codecs.getOperationTypeForName(typeName);
+      }
+      catch(ClassNotFoundException e) {
+        throw new RevisionItemCodecException(e.getMessage(), e);
+      }
+    } else if (tag < OP_TYPES_BY_TAG.size()) {
+      opType = OP_TYPES_BY_TAG.get((int) tag);
+      typeName = opType.getSimpleName();
+    } else {
+      throw new RevisionItemCodecException("Unknown graph operation tag: "+tag);
+    }
+
+    BasicDBObject opDoc = reader.readDocument();
+    RevisionItem item = new RevisionItem();
+    item.setType(typeName);
+    item.setOp(codecs.deserialize(opDoc, opType));
+    return item;
+  }
+
+  private static byte[] _deflate(byte[] body) throws IOException
+  {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2);
+      DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater);
+      dos.write(body);
+      dos.finish();
+      return out.toByteArray();
+    }
+    finally {
+      deflater.end();
+    }
+  }
+
+  private static Header _readHeader(byte[] data)
+      throws RevisionItemCodecException
+  {
+    try {
+      ByteArrayInputStream in = new ByteArrayInputStream(data);
+      CompactReader reader = new CompactReader(in);
+      int version = reader.readByte();
+      if (version != FORMAT_VERSION) {
+        throw new RevisionItemCodecException(
+            "Unsupported compact revision format version: "+version);
+      }
+      int flags = reader.readByte();
+      int itemCount = reader.readLength();
+      return new Header(flags, itemCount, data.length - in.available());
+    }
+    catch(IOException e) {
+      throw new RevisionItemCodecException("Invalid compact revision data", e);
+    }
+  }
+
+  private static class Header
+  {
+    private final int flags;
+    private final int itemCount;
+    private final int bodyOffset;
+
+    private Header(int flags, int itemCount, int bodyOffset) {
+      this.flags = flags;
+      this.itemCount = itemCount;
+      this.bodyOffset = bodyOffset;
+    }
+  }
+
+  private class DecodedItemList
+      extends AbstractList<RevisionItem>
+  {
+    private final byte[] data;
+    private final Header header;
+    private List<RevisionItem> decoded;
+
+    private DecodedItemList(byte[] data, Header header) {
+      this.data = data;
+      this.header = header;
+    }
+
+    @Override
+    public int size() {
+      return header.itemCount;
+    }
+
+    @Override
+    public synchronized RevisionItem get(int index) {
+      if (decoded == null) {
+        List<RevisionItem> all = new ArrayList<>(header.itemCount);
+        for (Iterator<RevisionItem> itr = iterator(); itr.hasNext(); ) {
+          all.add(itr.next());
+        }
+        decoded = all;
+      }
+      return decoded.get(index);
+    }
+
+    @Override
+    public Iterator<RevisionItem> iterator() {
+      InputStream body = new ByteArrayInputStream(
+          data, header.bodyOffset, data.length - header.bodyOffset);
+      if ((header.flags & FLAG_DEFLATE) != 0) {
+        body = new BufferedInputStream(new InflaterInputStream(body));
+      }
+      return new DecodingIterator(new CompactReader(body), body, header.itemCount);
+    }
+  }
+
+  private class DecodingIterator
+      implements Iterator<RevisionItem>
+  {
+    private final CompactReader reader;
+    private final InputStream body;
+    private final int itemCount;
+    private int nextIdx;
+
+    private DecodingIterator(CompactReader reader, InputStream body, int itemCount) {
+      this.reader = reader;
+      this.body = body;
+      this.itemCount = itemCount;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return nextIdx < itemCount;
+    }
+
+    @Override
+    public RevisionItem next() {
+      if (nextIdx >= itemCount) {
+        throw new NoSuchElementException();
+      }
+      try {
+        RevisionItem item = _readItem(reader);
+        nextIdx++;
+        if (nextIdx == itemCount) {
+          // Releases the inflater's native memory straight away
+          body.close();
+        }
+        return item;
+      }
+      catch(IOException | RevisionItemCodecException e) {
+        throw new IllegalStateException("Failed to decode revision item "
+            + nextIdx+" of "+itemCount, e);
+      }
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Decoded revision items are read-only");
+    }
+  }
+}
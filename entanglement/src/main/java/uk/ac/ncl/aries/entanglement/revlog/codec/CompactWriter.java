@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog.codec;
+
+import com.mongodb.DBObject;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+/**
+ * Writes values in the compact revision item format. Integers are written as
+ * variable length (7 bits per byte) quantities, and document field names go
+ * through a dictionary: the first occurrence of a name writes the name itself,
+ * and every later occurrence writes its index. One writer (and therefore one
+ * dictionary) is used per revision container, so names that are repeated
+ * across many items are only stored once.
+ *
+ * Instances are not thread safe.
+ *
+ * @author Keith Flanagan
+ */
+class CompactWriter
+{
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  static final int TYPE_NULL = 0;
+  static final int TYPE_STRING = 1;
+  static final int TYPE_INT = 2;
+  static final int TYPE_LONG = 3;
+  static final int TYPE_DOUBLE = 4;
+  static final int TYPE_TRUE = 5;
+  static final int TYPE_FALSE = 6;
+  static final int TYPE_DOCUMENT = 7;
+  static final int TYPE_ARRAY = 8;
+  static final int TYPE_DATE = 9;
+  static final int TYPE_BINARY = 10;
+  static final int TYPE_OBJECT_ID = 11;
+
+  private final OutputStream out;
+  private final Map<String, Integer> dictionary;
+
+  CompactWriter(OutputStream out)
+  {
+    this.out = out;
+    this.dictionary = new HashMap<>();
+  }
+
+  void writeByte(int b) throws IOException
+  {
+    out.write(b);
+  }
+
+  void writeVarLong(long value) throws IOException
+  {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value = value >>> 7;
+    }
+    out.write((int) value);
+  }
+
+  void writeSignedVarLong(long value) throws IOException
+  {
+    // ZigZag, so that small negative numbers are also short
+    writeVarLong((value << 1) ^ (value >> 63));
+  }
+
+  void writeString(String value) throws IOException
+  {
+    byte[] bytes = value.getBytes(UTF8);
+    writeVarLong(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Writes a dictionary-encoded string. The low bit of the leading number is
+   * set if the string follows inline (the remaining bits are its length), or
+   * clear if the string is a repeat (the remaining bits are its index).
+   */
+  void writeName(String name) throws IOException
+  {
+    Integer idx = dictionary.get(name);
+    if (idx != null) {
+      writeVarLong(((long) idx) << 1);
+      return;
+    }
+    byte[] bytes = name.getBytes(UTF8);
+    writeVarLong((((long) bytes.length) << 1) | 1);
+    out.write(bytes);
+    dictionary.put(name, dictionary.size());
+  }
+
+  void writeDocument(DBObject doc) throws IOException, RevisionItemCodecException
+  {
+    writeVarLong(doc.keySet().size());
+    for (String key : doc.keySet()) {
+      writeName(key);
+      writeValue(doc.get(key));
+    }
+  }
+
+  void writeValue(Object value) throws IOException, RevisionItemCodecException
+  {
+    if (value == null) {
+      out.write(TYPE_NULL);
+    } else if (value instanceof String) {
+      out.write(TYPE_STRING);
+      writeString((String) value);
+    } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      out.write(TYPE_INT);
+      writeSignedVarLong(((Number) value).intValue());
+    } else if (value instanceof Long) {
+      out.write(TYPE_LONG);
+      writeSignedVarLong((Long) value);
+    } else if (value instanceof Double || value instanceof Float) {
+      out.write(TYPE_DOUBLE);
+      long bits = Double.doubleToRawLongBits(((Number) value).doubleValue());
+      for (int shift = 56; shift >= 0; shift = shift - 8) {
+        out.write((int) (bits >>> shift));
+      }
+    } else if (value instanceof Boolean) {
+      out.write((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+    } else if (value instanceof List) {
+      // Includes BasicDBList, which is also a DBObject
+      List<?> list = (List<?>) value;
+      out.write(TYPE_ARRAY);
+      writeVarLong(list.size());
+      for (Object element : list) {
+        writeValue(element);
+      }
+    } else if (value instanceof DBObject) {
+      out.write(TYPE_DOCUMENT);
+      writeDocument((DBObject) value);
+    } else if (value instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      out.write(TYPE_DOCUMENT);
+      writeVarLong(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        writeName(String.valueOf(entry.getKey()));
+        writeValue(entry.getValue());
+      }
+    } else if (value instanceof Date) {
+      out.write(TYPE_DATE);
+      writeSignedVarLong(((Date) value).getTime());
+    } else if (value instanceof byte[]) {
+      byte[] bytes = (byte[]) value;
+      out.write(TYPE_BINARY);
+      writeVarLong(bytes.length);
+      out.write(bytes);
+    } else if (value instanceof Binary) {
+      writeValue(((Binary) value).getData());
+    } else if (value instanceof ObjectId) {
+      out.write(TYPE_OBJECT_ID);
+      out.write(((ObjectId) value).toByteArray());
+    } else {
+      throw new RevisionItemCodecException("Values of type: "
+          + value.getClass().getName()+" are not supported by the compact encoding");
+    }
+  }
+}
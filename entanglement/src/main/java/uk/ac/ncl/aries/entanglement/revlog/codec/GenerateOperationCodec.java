@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog.codec;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a <code>GraphOperation</code> subclass for which a
+ * <code>GraphOperationCodec</code> should be generated at build time. The
+ * generated class is named after the operation with a <code>Codec</code>
+ * suffix, lives in the same package, and is registered in
+ * <code>META-INF/services</code> automatically.
+ *
+ * The operation class must have a public no-argument constructor, and every
+ * non-static, non-transient field (including inherited ones) must have a
+ * public getter and setter. Supported field types are <code>String</code>,
+ * <code>Object</code>, <code>DBObject</code>, <code>BasicDBObject</code>,
+ * primitives and their wrappers, enums, and <code>Set</code>s or
+ * <code>List</code>s of <code>String</code>s.
+ *
+ * @author Keith Flanagan
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface GenerateOperationCodec
+{
+}
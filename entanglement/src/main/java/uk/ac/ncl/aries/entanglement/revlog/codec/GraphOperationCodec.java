@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog.codec;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
+
+/**
+ * Converts one type of <code>GraphOperation</code> to and from a
+ * <code>DBObject</code> without reflection. The document layout is the same
+ * as the one produced by the Gson marshaller: one field per bean property,
+ * named after the Java field, with null properties omitted.
+ *
+ * Implementations are normally generated at build time for every operation
+ * class annotated with <code>GenerateOperationCodec</code>, and are found
+ * through the <code>GraphOperationCodec</code> SPI. They must be stateless, so
+ * that a single instance can be shared between threads.
+ *
+ * @author Keith Flanagan
+ */
+public interface GraphOperationCodec<T extends GraphOperation>
+{
+  public Class<T> getOperationType();
+
+  /**
+   * @throws IllegalArgumentException if a property value can't be stored in
+   * a document without the reflective marshaller.
+   */
+  public BasicDBObject toDBObject(T op);
+
+  /**
+   * @throws RuntimeException (typically <code>ClassCastException</code>) if a
+   * field of <code>dbObject</code> can't be converted to the corresponding
+   * property.
+   */
+  public T fromDBObject(DBObject dbObject);
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog.codec;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.torrenttamer.mongodb.dbobject.DbObjectMarshaller;
+import com.torrenttamer.mongodb.dbobject.DbObjectMarshallerException;
+import com.torrenttamer.util.GenericServiceLoader;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
+
+/**
+ * Looks up <code>GraphOperation</code> types by name, and converts operations
+ * and revision items to and from <code>DBObject</code>s using the
+ * <code>GraphOperationCodec</code> registered for each operation type.
+ * Operation types without a codec are passed to a fallback
+ * <code>DbObjectMarshaller</code> instead.
+ *
+ * Codecs are loaded once, when an instance is created. Instances are thread
+ * safe and are intended to be shared, for example between parallel replay
+ * workers.
+ *
+ * @author Keith Flanagan
+ */
+public class GraphOperationCodecs
+{
+  private static final Logger logger =
+      Logger.getLogger(GraphOperationCodecs.class.getName());
+
+  public static final String FIELD_ITEM_TYPE = "type";
+  public static final String FIELD_ITEM_OP = "op";
+
+  // Never modified after construction, so safe to read without locking
+  private final Map<Class<?>, GraphOperationCodec<?>> codecsByType;
+  private final DbObjectMarshaller fallback;
+
+  // SPI loader for GraphOperation. Used for looking up type names.
+  private final GenericServiceLoader<GraphOperation> loader;
+  // A cache of typename -> graph operation type to avoid loader lookups.
+  private final ConcurrentMap<String, Class<? extends GraphOperation>> opTypeCache;
+
+  /**
+   * Creates an instance that can only convert operation types that have a
+   * codec.
+   */
+  public GraphOperationCodecs(ClassLoader classLoader)
+  {
+    this(classLoader, null);
+  }
+
+  public GraphOperationCodecs(ClassLoader classLoader, DbObjectMarshaller fallback)
+  {
+    this.fallback = fallback;
+    this.loader = new GenericServiceLoader<>(classLoader, GraphOperation.class);
+    this.opTypeCache = new ConcurrentHashMap<>();
+    this.codecsByType = new HashMap<>();
+
+    Iterator<GraphOperationCodec> itr =
+        ServiceLoader.load(GraphOperationCodec.class, classLoader).iterator();
+    while (true) {
+      try {
+        if (!itr.hasNext()) {
+          break;
+        }
+        GraphOperationCodec<?> codec = itr.next();
+        codecsByType.put(codec.getOperationType(), codec);
+      }
+      catch(ServiceConfigurationError e) {
+        // The affected operation types will use the fallback marshaller
+        logger.log(Level.WARNING, "Failed to load a graph operation codec", e);
+      }
+    }
+    logger.log(Level.FINE, "Loaded {0} graph operation codecs", codecsByType.size());
+  }
+
+  /**
+   * @return the codec for the specified operation type, or null if there is
+   * none.
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends GraphOperation> GraphOperationCodec<T> getCodec(Class<T> opType)
+  {
+    return (GraphOperationCodec<T>) codecsByType.get(opType);
+  }
+
+  /**
+   * Uses an SPI of <code>GraphOperation</code> to locate the Java class of an
+   * operation type. The type name may either be the fully qualified
+   * classname, or the class 'simple name'. Lookups are cached, so the
+   * expensive SPI search is only done once per type name.
+   *
+   * @param typeName Either the fully qualified classname, or the class 'simple
+   * name' of the graph operation type.
+   * @return the Class of the operation type that matches <code>typeName</code>.
+   * @throws ClassNotFoundException if no operation type matches.
+   */
+  public Class<? extends GraphOperation> getOperationTypeForName(String typeName)
+      throws ClassNotFoundException
+  {
+    Class<? extends GraphOperation> opType = opTypeCache.get(typeName);
+    if (opType != null) {
+      return opType;
+    }
+    GraphOperation op;
+    synchronized (loader) {
+      op = loader.findByClassNameOrSimpleName(typeName);
+    }
+    if (op == null) {
+      throw new ClassNotFoundException("No "+GraphOperation.class.getName()
+          + " implementation could be found to match type name: " + typeName
+          + ". Please check your SPI definition file.");
+    }
+    opTypeCache.putIfAbsent(typeName, op.getClass());
+    return op.getClass();
+  }
+
+  @SuppressWarnings("unchecked")
+  public DBObject serialize(GraphOperation op)
+      throws RevisionItemCodecException
+  {
+    GraphOperationCodec<GraphOperation> codec =
+        (GraphOperationCodec<GraphOperation>) codecsByType.get(op.getClass());
+    try {
+      if (codec != null) {
+        return codec.toDBObject(op);
+      }
+      return _getFallback(op.getClass()).serialize(op);
+    }
+    catch(DbObjectMarshallerException | RuntimeException e) {
+      throw new RevisionItemCodecException("Failed to serialize operation: "+op, e);
+    }
+  }
+
+  public <T extends GraphOperation> T deserialize(DBObject dbObject, Class<T> opType)
+      throws RevisionItemCodecException
+  {
+    GraphOperationCodec<T> codec = getCodec(opType);
+    try {
+      if (codec != null) {
+        return codec.fromDBObject(dbObject);
+      }
+      return _getFallback(opType).deserialize(dbObject, opType);
+    }
+    catch(DbObjectMarshallerException | RuntimeException e) {
+      throw new RevisionItemCodecException("Failed to deserialize operation of type: "
+          + opType.getName()+". Document was:\n"+dbObject, e);
+    }
+  }
+
+  /**
+   * Serializes a revision item to the same subdocument layout that the Gson
+   * marshaller produces for the <code>items</code> of a revision container.
+   */
+  public DBObject serializeItem(RevisionItem item)
+      throws RevisionItemCodecException
+  {
+    return new BasicDBObject(FIELD_ITEM_TYPE, item.getType())
+        .append(FIELD_ITEM_OP, serialize(item.getOp()));
+  }
+
+  public RevisionItem deserializeItem(DBObject itemDoc)
+      throws RevisionItemCodecException
+  {
+    String typeName = (String) itemDoc.get(FIELD_ITEM_TYPE);
+    Class<? extends GraphOperation> opType;
+    try {
+      opType = getOperationTypeForName(typeName);
+    }
+    catch(ClassNotFoundException e) {
+      throw new RevisionItemCodecException(e.getMessage(), e);
+    }
+    RevisionItem item = new RevisionItem();
+    item.setType(typeName);
+    item.setOp(deserialize((DBObject) itemDoc.get(FIELD_ITEM_OP), opType));
+    return item;
+  }
+
+  private DbObjectMarshaller _getFallback(Class<?> opType)
+      throws RevisionItemCodecException
+  {
+    if (fallback == null) {
+      throw new RevisionItemCodecException(
+          "No codec is registered for operation type: "+opType.getName());
+    }
+    return fallback;
+  }
+}
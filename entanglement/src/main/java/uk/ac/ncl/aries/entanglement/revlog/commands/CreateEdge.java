@@ -21,11 +21,13 @@ package uk.ac.ncl.aries.entanglement.revlog.commands;
 import com.mongodb.BasicDBObject;
 import com.torrenttamer.mongodb.dbobject.DbObjectMarshaller;
 import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.revlog.codec.GenerateOperationCodec;
 
 /**
  *
  * @author Keith Flanagan
  */
+@GenerateOperationCodec
 public class CreateEdge
     extends GraphOperation
 {
@@ -20,6 +20,7 @@ package uk.ac.ncl.aries.entanglement.revlog.commands;
 
 import com.mongodb.BasicDBObject;
 import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.revlog.codec.GenerateOperationCodec;
 
 /**
  * This class can be used in cases where we just want to create a node entity
@@ -27,6 +28,7 @@ import java.util.logging.Logger;
  * 
  * @author Keith Flanagan
  */
+@GenerateOperationCodec
 public class CreateNode
     extends GraphOperation
 {
@@ -19,11 +19,13 @@ package uk.ac.ncl.aries.entanglement.revlog.commands;
 
 import com.mongodb.BasicDBObject;
 import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.revlog.codec.GenerateOperationCodec;
 
 /**
  *
  * @author Keith Flanagan
  */
+@GenerateOperationCodec
 public class CreateNodeIfNotExists
     extends GraphOperation
 {
@@ -18,11 +18,13 @@
 package uk.ac.ncl.aries.entanglement.revlog.commands;
 
 import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.revlog.codec.GenerateOperationCodec;
 
 /**
  *
  * @author Keith Flanagan
  */
+@GenerateOperationCodec
 public class DeleteEdgeByUid
     extends GraphOperation
 {
@@ -18,11 +18,21 @@
 package uk.ac.ncl.aries.entanglement.revlog.commands;
 
 import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.revlog.codec.GenerateOperationCodec;
 
 /**
+ * Sets a property of a node. If <code>expectedVersion</code> is set, the 
+ * node's version (see <code>GraphEntityDAO.FIELD_VERSION</code>) must still
+ * equal it. The revision log checks this when the transaction commits, 
+ * against every transaction committed before it, so that the commit fails 
+ * and can be retried (see 
+ * <code>RevisionLogDirectToMongoDbImpl.setVersionCheckDao</code>). When the
+ * operation is played, a node at a different version is left unchanged and
+ * the conflict is logged, so every replay has the same outcome.
  *
  * @author Keith Flanagan
  */
+@GenerateOperationCodec
 public class SetNodeProperty
     extends GraphOperation
 {
@@ -40,6 +50,11 @@ public class SetNodeProperty
   private String pName;
   private Object pVal;
   
+  /*
+   * Optional: the node version that the submitter read
+   */
+  private Long expectedVersion;
+  
 
   public SetNodeProperty()
   {
@@ -53,11 +68,18 @@ public class SetNodeProperty
     this.pVal = propertyValue;
   }
 
+  public SetNodeProperty(
+      String nodeUniqueId, long expectedVersion, String propertyName, Object propertyValue)
+  {
+    this(nodeUniqueId, propertyName, propertyValue);
+    this.expectedVersion = expectedVersion;
+  }
+
   @Override
   public String toString() {
     return "SetNodeProperty{" + "nodeUniqueId=" + nUid
             + ", propertyName=" + pName + ", propertyValue="
-            + pVal + '}';
+            + pVal + ", expectedVersion=" + expectedVersion + '}';
   }
 
   public String getnUid() {
@@ -84,4 +106,12 @@ public class SetNodeProperty
     this.pVal = pVal;
   }
 
+  public Long getExpectedVersion() {
+    return expectedVersion;
+  }
+
+  public void setExpectedVersion(Long expectedVersion) {
+    this.expectedVersion = expectedVersion;
+  }
+
 }
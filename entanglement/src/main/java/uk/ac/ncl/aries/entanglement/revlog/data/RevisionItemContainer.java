@@ -41,6 +41,8 @@ public class RevisionItemContainer
   private int txnSubmitId;
   private boolean committed;
   private Date dateCommitted;
+  private long commitTimestamp;
+  private long commitSeq;
   
   List<RevisionItem> items;
 
@@ -137,4 +139,30 @@ public class RevisionItemContainer
     this.dateCommitted = dateCommitted;
   }
 
+  /**
+   * @return the commit time of this container's transaction in milliseconds
+   * since the epoch, or 0 if the container is uncommitted or was committed 
+   * before commit timestamps were recorded.
+   */
+  public long getCommitTimestamp() {
+    return commitTimestamp;
+  }
+
+  public void setCommitTimestamp(long commitTimestamp) {
+    this.commitTimestamp = commitTimestamp;
+  }
+
+  /**
+   * @return the position of this container's transaction in the commit order
+   * of its graph/branch, starting at 1. Returns 0 if the container is 
+   * uncommitted or was committed before sequence numbers were assigned.
+   */
+  public long getCommitSeq() {
+    return commitSeq;
+  }
+
+  public void setCommitSeq(long commitSeq) {
+    this.commitSeq = commitSeq;
+  }
+
 }
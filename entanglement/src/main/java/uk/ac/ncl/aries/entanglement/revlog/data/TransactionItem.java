@@ -20,16 +20,19 @@ package uk.ac.ncl.aries.entanglement.revlog.data;
 import java.util.Date;
 
 /**
- * NOTE: currently not used
- * 
- * 
- * There is exactly one instance of this class for each transaction.
+ * There is exactly one instance of this class for each transaction. These are
+ * maintained by a <code>TransactionDAO</code>, which records when each 
+ * transaction began, when a client last submitted revisions to it, and how 
+ * it ended. Transactions that are neither committed nor rolled back, and that
+ * have been idle for a long time, are presumed to have been abandoned.
  * 
  * @author Keith Flanagan
  */
 public class TransactionItem
 {
   private String txnId;
+  private String graphUniqueId;
+  private String graphBranchId;
   private String firstRevItemInTxn;
   private String lastInsertedRevItem;
   
@@ -53,6 +56,22 @@ public class TransactionItem
     this.txnId = txnId;
   }
 
+  public String getGraphUniqueId() {
+    return graphUniqueId;
+  }
+
+  public void setGraphUniqueId(String graphUniqueId) {
+    this.graphUniqueId = graphUniqueId;
+  }
+
+  public String getGraphBranchId() {
+    return graphBranchId;
+  }
+
+  public void setGraphBranchId(String graphBranchId) {
+    this.graphBranchId = graphBranchId;
+  }
+
   public boolean isCommitted() {
     return committed;
   }
@@ -19,8 +19,9 @@
 package uk.ac.ncl.aries.entanglement.revlog.data;
 
 /**
- * NOTE: currently not used
- * 
+ * A lock on a graph entity, held by a transaction. See 
+ * <code>LockManager</code>. The <code>entityUid</code> is the full lock name,
+ * as created by <code>EntityLockNames</code>.
  * 
  * @author Keith Flanagan
  */
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog.lock;
+
+import com.mongodb.BasicDBObject;
+import java.util.Collection;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import uk.ac.ncl.aries.entanglement.graph.GraphEntityDAO;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateEdge;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateEdgeIfNotExists;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateNode;
+import uk.ac.ncl.aries.entanglement.revlog.commands.CreateNodeIfNotExists;
+import uk.ac.ncl.aries.entanglement.revlog.commands.DeleteEdgeByUid;
+import uk.ac.ncl.aries.entanglement.revlog.commands.DeleteNodeByUid;
+import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
+import uk.ac.ncl.aries.entanglement.revlog.commands.SetNamedNodeProperty;
+import uk.ac.ncl.aries.entanglement.revlog.commands.SetNodeProperty;
+
+/**
+ * Determines which graph entities a set of graph operations modifies, and 
+ * names the locks that protect them.
+ * 
+ * An entity is locked by its UID and, if it is named, by its type and name,
+ * since operations may refer to it either way. Edges lock only the edge 
+ * itself and not its end nodes. Otherwise, every writer adding edges to a 
+ * highly connected node would be serialized.
+ * 
+ * @author Keith Flanagan
+ */
+public class EntityLockNames
+{
+  public static String lockName(String graphId, String graphBranchId, String entityId)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append(graphId).append(".").append(graphBranchId).append(".").append(entityId);
+    return sb.toString();
+  }
+  
+  public static String namedEntityId(String type, String name)
+  {
+    return "name:"+type+":"+name;
+  }
+  
+  /**
+   * @return the names of the locks required by <code>ops</code>, sorted so 
+   * that transactions acquire them in a consistent order.
+   */
+  public static SortedSet<String> forOperations(String graphId, String graphBranchId,
+      Collection<GraphOperation> ops)
+  {
+    SortedSet<String> names = new TreeSet<>();
+    for (GraphOperation op : ops) {
+      addLockNames(graphId, graphBranchId, op, names);
+    }
+    return names;
+  }
+  
+  public static void addLockNames(String graphId, String graphBranchId,
+      GraphOperation op, Collection<String> names)
+  {
+    if (op instanceof CreateNode) {
+      _addEntity(graphId, graphBranchId, ((CreateNode) op).getNode(), names);
+    } else if (op instanceof CreateNodeIfNotExists) {
+      _addEntity(graphId, graphBranchId, ((CreateNodeIfNotExists) op).getNode(), names);
+    } else if (op instanceof CreateEdge) {
+      _addEntity(graphId, graphBranchId, ((CreateEdge) op).getEdge(), names);
+    } else if (op instanceof CreateEdgeIfNotExists) {
+      _addEntity(graphId, graphBranchId, ((CreateEdgeIfNotExists) op).getEdge(), names);
+    } else if (op instanceof DeleteNodeByUid) {
+      names.add(lockName(graphId, graphBranchId, ((DeleteNodeByUid) op).getUid()));
+    } else if (op instanceof DeleteEdgeByUid) {
+      names.add(lockName(graphId, graphBranchId, ((DeleteEdgeByUid) op).getUid()));
+    } else if (op instanceof SetNodeProperty) {
+      names.add(lockName(graphId, graphBranchId, ((SetNodeProperty) op).getnUid()));
+    } else if (op instanceof SetNamedNodeProperty) {
+      SetNamedNodeProperty setOp = (SetNamedNodeProperty) op;
+      names.add(lockName(graphId, graphBranchId, 
+          namedEntityId(setOp.getnType(), setOp.getnName())));
+    }
+  }
+  
+  private static void _addEntity(String graphId, String graphBranchId, 
+      BasicDBObject entity, Collection<String> names)
+  {
+    if (entity == null) {
+      return;
+    }
+    String uid = entity.getString(GraphEntityDAO.FIELD_UID);
+    if (uid != null) {
+      names.add(lockName(graphId, graphBranchId, uid));
+    }
+    String name = entity.getString(GraphEntityDAO.FIELD_NAME);
+    if (name != null) {
+      names.add(lockName(graphId, graphBranchId, 
+          namedEntityId(entity.getString(GraphEntityDAO.FIELD_TYPE), name)));
+    }
+  }
+}
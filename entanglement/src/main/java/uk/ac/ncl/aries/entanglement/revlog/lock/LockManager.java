@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog.lock;
+
+import java.util.Collection;
+import java.util.List;
+import uk.ac.ncl.aries.entanglement.revlog.data.TransactionLocks;
+
+/**
+ * Grants exclusive locks on graph entities to transactions. Lock names are
+ * created by <code>EntityLockNames</code>, and are of the form
+ * <code>graph.branch.entity</code>.
+ * 
+ * Locks are held by a transaction, not by a thread, and are re-entrant: a 
+ * transaction may request a lock that it already holds. They are held until 
+ * <code>releaseAll</code> is called when the transaction commits or rolls 
+ * back.
+ * 
+ * @author Keith Flanagan
+ */
+public interface LockManager
+{
+  /**
+   * Acquires all of the named locks for a transaction, waiting for up to
+   * <code>timeoutMillis</code> for locks held by other transactions to be 
+   * released. Either all of the locks are acquired, or none of those that 
+   * weren't already held by the transaction are.
+   * 
+   * Since a transaction may acquire locks over several calls, two 
+   * transactions can deadlock. The timeout breaks the deadlock: one of them 
+   * fails, and is expected to roll back.
+   * 
+   * @param txnId the transaction that will own the locks
+   * @param lockNames the locks to acquire
+   * @param timeoutMillis the maximum time to wait
+   * @throws LockException if the locks could not be acquired in time
+   */
+  public void acquire(String txnId, Collection<String> lockNames, long timeoutMillis)
+      throws LockException;
+  
+  /**
+   * Releases every lock held by a transaction. Does nothing if the 
+   * transaction holds no locks.
+   */
+  public void releaseAll(String txnId)
+      throws LockException;
+  
+  /**
+   * @return the locks currently held by a transaction
+   */
+  public List<TransactionLocks> listLocks(String txnId)
+      throws LockException;
+}
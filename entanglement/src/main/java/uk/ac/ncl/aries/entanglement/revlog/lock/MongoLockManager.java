@@ -0,0 +1,318 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog.lock;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import uk.ac.ncl.aries.entanglement.revlog.data.TransactionLocks;
+
+/**
+ * A <code>LockManager</code> shared by every process using the same 
+ * database. Each lock is a document whose <code>_id</code> is the lock name,
+ * so the unique <code>_id</code> index arbitrates between transactions 
+ * competing for the same lock.
+ * 
+ * Locks are leases. A lock whose lease has expired may be taken by another 
+ * transaction, so the locks of a client that dies are freed without any
+ * intervention. Every <code>acquire</code> call renews the leases of all of
+ * the transaction's locks. A transaction that pauses for longer than the 
+ * lease may therefore lose its locks.
+ * 
+ * Locks are acquired in bulk: one insert for all of the free locks in a 
+ * batch, plus a few queries, rather than one round trip per lock.
+ * 
+ * @author Keith Flanagan
+ */
+public class MongoLockManager
+    implements LockManager
+{
+  private static final String DEFAULT_COL_LOCKS = "entity_locks";
+  
+  public static final long DEFAULT_LEASE_MS = TimeUnit.MINUTES.toMillis(5);
+  
+  private static final String FIELD_TXN_UID = "transactionUid";
+  private static final String FIELD_EXPIRES = "expires";
+  
+  private static final DBObject IDX__TXN_UID = new BasicDBObject(FIELD_TXN_UID, 1);
+  private static final DBObject ID_ONLY = new BasicDBObject("_id", 1);
+  
+  private static final long MIN_RETRY_DELAY_MS = 10;
+  private static final long MAX_RETRY_DELAY_MS = 500;
+  
+  private final DBCollection col;
+  private volatile long leaseMillis;
+
+  public MongoLockManager(DB db)
+  {
+    this.col = db.getCollection(DEFAULT_COL_LOCKS);
+    this.leaseMillis = DEFAULT_LEASE_MS;
+    col.ensureIndex(IDX__TXN_UID);
+  }
+
+  @Override
+  public void acquire(String txnId, Collection<String> lockNames, long timeoutMillis)
+      throws LockException
+  {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    Set<String> pending = new TreeSet<>(lockNames);
+    
+    // Renew the leases of the locks already held
+    _renew(txnId);
+    pending.removeAll(_findOwned(txnId, pending));
+    Set<String> acquiredNow = new HashSet<>();
+    
+    boolean success = false;
+    try {
+      long retryDelay = MIN_RETRY_DELAY_MS;
+      while (!pending.isEmpty()) {
+        _takeExpired(txnId, pending);
+        _insertFree(txnId, pending);
+        Set<String> owned = _findOwned(txnId, pending);
+        pending.removeAll(owned);
+        acquiredNow.addAll(owned);
+        if (pending.isEmpty()) {
+          break;
+        }
+        
+        long now = System.currentTimeMillis();
+        if (now >= deadline) {
+          String name = pending.iterator().next();
+          throw new LockException("Timed out after "+timeoutMillis
+              + " ms waiting for "+pending.size()+" locks, including: "+name
+              + ", held by transaction: "+_findOwner(name));
+        }
+        Thread.sleep(Math.min(retryDelay, deadline - now));
+        retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+      }
+      success = true;
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LockException("Interrupted while waiting for locks for transaction: "+txnId, e);
+    }
+    finally {
+      if (!success && !acquiredNow.isEmpty()) {
+        _release(txnId, acquiredNow);
+      }
+    }
+  }
+  
+  private Date _leaseExpiry()
+  {
+    return new Date(System.currentTimeMillis() + leaseMillis);
+  }
+  
+  private void _renew(String txnId)
+      throws LockException
+  {
+    DBObject query = new BasicDBObject(FIELD_TXN_UID, txnId);
+    DBObject update = new BasicDBObject("$set", 
+        new BasicDBObject(FIELD_EXPIRES, _leaseExpiry()));
+    try {
+      col.update(query, update, false, true, WriteConcern.SAFE);
+    }
+    catch(Exception e) {
+      throw new LockException("Failed to perform database operation:\n"
+          + "Query: "+query+"\nUpdate: "+update, e);
+    }
+  }
+  
+  private Set<String> _findOwned(String txnId, Collection<String> lockNames)
+      throws LockException
+  {
+    DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", lockNames))
+        .append(FIELD_TXN_UID, txnId);
+    Set<String> owned = new HashSet<>();
+    try (DBCursor cursor = col.find(query, ID_ONLY)) {
+      for (DBObject obj : cursor) {
+        owned.add((String) obj.get("_id"));
+      }
+      return owned;
+    }
+    catch(Exception e) {
+      throw new LockException("Failed to perform database operation:\n"
+          + "Query: "+query, e);
+    }
+  }
+  
+  private String _findOwner(String lockName)
+      throws LockException
+  {
+    DBObject query = new BasicDBObject("_id", lockName);
+    try {
+      DBObject obj = col.findOne(query);
+      return obj == null ? null : (String) obj.get(FIELD_TXN_UID);
+    }
+    catch(Exception e) {
+      throw new LockException("Failed to perform database operation:\n"
+          + "Query: "+query, e);
+    }
+  }
+  
+  /**
+   * Takes over any of the named locks whose leases have expired.
+   */
+  private void _takeExpired(String txnId, Collection<String> lockNames)
+      throws LockException
+  {
+    DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", lockNames))
+        .append(FIELD_EXPIRES, new BasicDBObject("$lt", new Date()));
+    DBObject update = new BasicDBObject("$set", 
+        new BasicDBObject(FIELD_TXN_UID, txnId).append(FIELD_EXPIRES, _leaseExpiry()));
+    try {
+      col.update(query, update, false, true, WriteConcern.SAFE);
+    }
+    catch(Exception e) {
+      throw new LockException("Failed to perform database operation:\n"
+          + "Query: "+query+"\nUpdate: "+update, e);
+    }
+  }
+  
+  /**
+   * Creates the named locks that don't exist yet. Locks that already exist 
+   * cause a duplicate key error, which is expected; the caller then checks 
+   * which locks it owns.
+   */
+  private void _insertFree(String txnId, Collection<String> lockNames)
+      throws LockException
+  {
+    Date expires = _leaseExpiry();
+    List<DBObject> docs = new ArrayList<>(lockNames.size());
+    for (String name : lockNames) {
+      docs.add(new BasicDBObject("_id", name)
+          .append(FIELD_TXN_UID, txnId).append(FIELD_EXPIRES, expires));
+    }
+    try {
+      col.insert(docs, WriteConcern.SAFE);
+    }
+    catch(MongoException.DuplicateKey e) {
+      /*
+       * Inserts stop at the first lock that exists, so any free locks after
+       * it are picked up on the next attempt.
+       */
+      _insertFreeIndividually(txnId, lockNames, expires);
+    }
+    catch(Exception e) {
+      throw new LockException("Failed to create "+lockNames.size()+" locks", e);
+    }
+  }
+  
+  private void _insertFreeIndividually(String txnId, Collection<String> lockNames, Date expires)
+      throws LockException
+  {
+    // Only locks that don't already exist need inserting
+    DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", lockNames));
+    Set<String> existing = new HashSet<>();
+    try (DBCursor cursor = col.find(query, ID_ONLY)) {
+      for (DBObject obj : cursor) {
+        existing.add((String) obj.get("_id"));
+      }
+    }
+    catch(Exception e) {
+      throw new LockException("Failed to perform database operation:\n"
+          + "Query: "+query, e);
+    }
+    for (String name : lockNames) {
+      if (existing.contains(name)) {
+        continue;
+      }
+      try {
+        col.insert(Arrays.<DBObject>asList(new BasicDBObject("_id", name)
+            .append(FIELD_TXN_UID, txnId).append(FIELD_EXPIRES, expires)), WriteConcern.SAFE);
+      }
+      catch(MongoException.DuplicateKey e) {
+        // Taken by another transaction in the meantime
+      }
+      catch(Exception e) {
+        throw new LockException("Failed to create lock: "+name, e);
+      }
+    }
+  }
+  
+  private void _release(String txnId, Collection<String> lockNames)
+      throws LockException
+  {
+    DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", lockNames))
+        .append(FIELD_TXN_UID, txnId);
+    try {
+      col.remove(query);
+    }
+    catch(Exception e) {
+      throw new LockException("Failed to perform database operation:\n"
+          + "Query: "+query, e);
+    }
+  }
+
+  @Override
+  public void releaseAll(String txnId)
+      throws LockException
+  {
+    DBObject query = new BasicDBObject(FIELD_TXN_UID, txnId);
+    try {
+      col.remove(query);
+    }
+    catch(Exception e) {
+      throw new LockException("Failed to perform database operation:\n"
+          + "Query: "+query, e);
+    }
+  }
+
+  @Override
+  public List<TransactionLocks> listLocks(String txnId)
+      throws LockException
+  {
+    DBObject query = new BasicDBObject(FIELD_TXN_UID, txnId);
+    List<TransactionLocks> locks = new ArrayList<>();
+    try (DBCursor cursor = col.find(query, ID_ONLY)) {
+      for (DBObject obj : cursor) {
+        locks.add(new TransactionLocks(txnId, (String) obj.get("_id")));
+      }
+      return locks;
+    }
+    catch(Exception e) {
+      throw new LockException("Failed to perform database operation:\n"
+          + "Query: "+query, e);
+    }
+  }
+
+  public DBCollection getCollection() {
+    return col;
+  }
+
+  public long getLeaseMillis() {
+    return leaseMillis;
+  }
+
+  public void setLeaseMillis(long leaseMillis) {
+    this.leaseMillis = leaseMillis;
+  }
+}
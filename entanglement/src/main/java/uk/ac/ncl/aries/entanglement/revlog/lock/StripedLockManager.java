@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.revlog.lock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import uk.ac.ncl.aries.entanglement.revlog.data.TransactionLocks;
+
+/**
+ * A <code>LockManager</code> for writers within a single JVM. The lock table
+ * is split into stripes by the hash of the lock name, each with its own 
+ * monitor, so that writers locking unrelated entities rarely contend.
+ * 
+ * @author Keith Flanagan
+ */
+public class StripedLockManager
+    implements LockManager
+{
+  public static final int DEFAULT_STRIPES = 64;
+  
+  private static class Stripe
+  {
+    // Lock name -> owning transaction
+    private final Map<String, String> owners = new HashMap<>();
+  }
+  
+  private final Stripe[] stripes;
+  
+  // Transaction -> held lock names
+  private final ConcurrentMap<String, Set<String>> heldByTxn;
+
+  public StripedLockManager()
+  {
+    this(DEFAULT_STRIPES);
+  }
+  
+  public StripedLockManager(int stripeCount)
+  {
+    stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new Stripe();
+    }
+    heldByTxn = new ConcurrentHashMap<>();
+  }
+  
+  private Stripe _stripeFor(String lockName)
+  {
+    int h = lockName.hashCode();
+    h ^= (h >>> 16);
+    return stripes[(h & 0x7fffffff) % stripes.length];
+  }
+
+  @Override
+  public void acquire(String txnId, Collection<String> lockNames, long timeoutMillis)
+      throws LockException
+  {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    Set<String> held = _held(txnId);
+    List<String> acquiredNow = new ArrayList<>();
+    boolean success = false;
+    try {
+      // A consistent order avoids deadlocks between batches of a single call
+      for (String name : new TreeSet<>(lockNames)) {
+        Stripe stripe = _stripeFor(name);
+        synchronized(stripe) {
+          String owner = stripe.owners.get(name);
+          while (owner != null && !owner.equals(txnId)) {
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+              throw new LockException("Timed out after "+timeoutMillis
+                  + " ms waiting for lock: "+name+", held by transaction: "+owner);
+            }
+            TimeUnit.NANOSECONDS.timedWait(stripe, remainingNanos);
+            owner = stripe.owners.get(name);
+          }
+          if (owner == null) {
+            stripe.owners.put(name, txnId);
+            held.add(name);
+            acquiredNow.add(name);
+          }
+        }
+      }
+      success = true;
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LockException("Interrupted while waiting for locks for transaction: "+txnId, e);
+    }
+    finally {
+      if (!success) {
+        _release(txnId, acquiredNow);
+        held.removeAll(acquiredNow);
+      }
+    }
+  }
+  
+  private Set<String> _held(String txnId)
+  {
+    Set<String> held = heldByTxn.get(txnId);
+    if (held == null) {
+      held = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+      Set<String> existing = heldByTxn.putIfAbsent(txnId, held);
+      if (existing != null) {
+        held = existing;
+      }
+    }
+    return held;
+  }
+  
+  private void _release(String txnId, Collection<String> lockNames)
+  {
+    for (String name : lockNames) {
+      Stripe stripe = _stripeFor(name);
+      synchronized(stripe) {
+        if (txnId.equals(stripe.owners.get(name))) {
+          stripe.owners.remove(name);
+          stripe.notifyAll();
+        }
+      }
+    }
+  }
+
+  @Override
+  public void releaseAll(String txnId)
+  {
+    Set<String> held = heldByTxn.remove(txnId);
+    if (held != null) {
+      _release(txnId, held);
+    }
+  }
+
+  @Override
+  public List<TransactionLocks> listLocks(String txnId)
+  {
+    List<TransactionLocks> locks = new ArrayList<>();
+    Set<String> held = heldByTxn.get(txnId);
+    if (held != null) {
+      for (String name : held) {
+        locks.add(new TransactionLocks(txnId, name));
+      }
+    }
+    return locks;
+  }
+}
@@ -42,15 +42,21 @@ import java.util.*;
 import java.util.logging.Logger;
 import uk.ac.ncl.aries.entanglement.ObjectMarshallerFactory;
 import uk.ac.ncl.aries.entanglement.cli.export.MongoGraphToGephi;
+import uk.ac.ncl.aries.entanglement.graph.CachingNodeDAO;
 import uk.ac.ncl.aries.entanglement.graph.EdgeDAO;
 import uk.ac.ncl.aries.entanglement.player.GraphCheckoutNamingScheme;
 import uk.ac.ncl.aries.entanglement.graph.InsertMode;
+import uk.ac.ncl.aries.entanglement.metrics.InMemoryMetricsRegistry;
+import uk.ac.ncl.aries.entanglement.metrics.Metrics;
+import uk.ac.ncl.aries.entanglement.metrics.MetricsRegistry;
 import uk.ac.ncl.aries.entanglement.player.LogPlayer;
 import uk.ac.ncl.aries.entanglement.player.LogPlayerMongoDbImpl;
 import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
 import uk.ac.ncl.aries.entanglement.graph.GraphDAOFactory;
 import uk.ac.ncl.aries.entanglement.graph.GraphModelException;
 import uk.ac.ncl.aries.entanglement.player.LogPlayerException;
+import uk.ac.ncl.aries.entanglement.player.RevisionLogTailer;
+import uk.ac.ncl.aries.entanglement.revlog.ContainerEncoding;
 import uk.ac.ncl.aries.entanglement.revlog.RevisionLog;
 import uk.ac.ncl.aries.entanglement.revlog.RevisionLogDirectToMongoDbImpl;
 import uk.ac.ncl.aries.entanglement.revlog.RevisionLogException;
@@ -81,6 +87,7 @@ public class EntanglementShell
   private static RevisionLog revLog;
   private static NodeDAO nodeDao;
   private static EdgeDAO edgeDao;
+  private static RevisionLogTailer tailer;
 
   private final ClassLoader classLoader;
   private final DbObjectMarshaller marshaller;
@@ -180,7 +187,8 @@ public class EntanglementShell
     GraphCheckoutNamingScheme collectionNamer = new GraphCheckoutNamingScheme(graphName, branchName);
     DBCollection nodeCol = db.getCollection(collectionNamer.getNodeCollectionName());
     DBCollection edgeCol = db.getCollection(collectionNamer.getEdgeCollectionName());
-    nodeDao = GraphDAOFactory.createDefaultNodeDAO(classLoader, mongo, db, nodeCol, edgeCol);
+    nodeDao = GraphDAOFactory.createCachingNodeDAO(classLoader, mongo, db, nodeCol, edgeCol,
+        CachingNodeDAO.DEFAULT_MAX_CACHE_BYTES);
     edgeDao = GraphDAOFactory.createDefaultEdgeDAO(classLoader, mongo, db, nodeCol, edgeCol);
     
     if (insertMode != null && insertMode.equals(InsertMode.INSERT_CONSISTENCY.name())) {
@@ -196,6 +204,52 @@ public class EntanglementShell
     logger.info("Connected!");
   }
   
+  @Command
+  public void printNodeCacheStats()
+  {
+    if (!(nodeDao instanceof CachingNodeDAO)) {
+      System.out.println("The current node DAO does not cache name lookups.");
+      return;
+    }
+    CachingNodeDAO cache = (CachingNodeDAO) nodeDao;
+    System.out.println("Name lookup cache: "+cache.getCacheSize()+" entries, approx. "
+        + cache.getEstimatedCacheBytes()+" of "+cache.getMaxCacheBytes()+" bytes");
+    System.out.println("  Hits: "+cache.getHitCount()+", misses: "+cache.getMissCount()
+        + ", evictions: "+cache.getEvictionCount());
+  }
+  
+  @Command
+  public void setRevisionEncoding(String encoding)
+  {
+    if (!(revLog instanceof RevisionLogDirectToMongoDbImpl)) {
+      System.out.println("The current revision log does not support alternative encodings.");
+      return;
+    }
+    ContainerEncoding value = ContainerEncoding.valueOf(encoding.toUpperCase());
+    ((RevisionLogDirectToMongoDbImpl) revLog).setContainerEncoding(value);
+    System.out.println("New revisions will be stored using encoding: "+value);
+  }
+  
+  @Command
+  public void printMetrics()
+  {
+    MetricsRegistry registry = Metrics.getRegistry();
+    if (!(registry instanceof InMemoryMetricsRegistry)) {
+      System.out.println("Metrics are being sent to: "+registry.getClass().getName());
+      return;
+    }
+    System.out.println(((InMemoryMetricsRegistry) registry).formatReport());
+  }
+  
+  @Command
+  public void clearMetrics()
+  {
+    MetricsRegistry registry = Metrics.getRegistry();
+    if (registry instanceof InMemoryMetricsRegistry) {
+      ((InMemoryMetricsRegistry) registry).clear();
+    }
+  }
+  
   @Command
   public void startNavigator(String nodeUid)
           throws IOException, GraphModelException {
@@ -350,6 +404,37 @@ public class EntanglementShell
     System.out.println("Done.");
   }
   
+  @Command
+  public void startTailingRevisions()
+      throws LogPlayerException, RevisionLogException {
+    if (tailer != null) {
+      System.out.println("Already following the revision log. Stop first.");
+      return;
+    }
+    String graphName = state.getProperties().get(PROP_GRAPH_NAME);
+    String branchName = state.getProperties().get(PROP_GRAPH_BRANCH_NAME);
+    
+    System.out.println("Bringing the working copy of "+graphName+"/"+branchName
+            + " up to date and following new commits");
+    LogPlayer player = new LogPlayerMongoDbImpl(classLoader, marshaller,
+            graphName, branchName, revLog, nodeDao, edgeDao);
+    RevisionLogTailer newTailer = new RevisionLogTailer(revLog, player, graphName, branchName);
+    newTailer.start();
+    tailer = newTailer;
+    System.out.println("Following from commit sequence: "+tailer.getLastPlayedSeq());
+  }
+  
+  @Command
+  public void stopTailingRevisions() {
+    if (tailer == null) {
+      System.out.println("Not following the revision log.");
+      return;
+    }
+    tailer.stop();
+    System.out.println("Stopped at commit sequence: "+tailer.getLastPlayedSeq());
+    tailer = null;
+  }
+  
  
   
   /*
@@ -26,12 +26,12 @@ import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import uk.ac.ncl.aries.entanglement.cli.export.StreamingGdfExporter;
 import uk.ac.ncl.aries.entanglement.graph.EdgeDAO;
 import uk.ac.ncl.aries.entanglement.graph.GraphModelException;
 import uk.ac.ncl.aries.entanglement.player.LogPlayerException;
@@ -73,11 +73,16 @@ public class GraphToGDFExporter
       nodeColorMappings.putAll(loadColorMappings(colorPropsFile));
     }
     
-    BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile));
-    exportToGdf(nodeColorMappings, bw);
+    StreamingGdfExporter exporter = new StreamingGdfExporter(nodeDao, edgeDao);
+    exporter.setNodeColorMappings(nodeColorMappings);
+    exporter.export(outputFile);
   }
 
   
+  /**
+   * Builds the whole GDF document in memory. Use <code>writeToFile</code> for
+   * anything but small graphs.
+   */
   public String writeToString() throws IOException, GraphModelException, RevisionLogException
   {
     Map<String, Color> nodeColorMappings = new HashMap<>();
@@ -107,7 +112,7 @@ public class GraphToGDFExporter
       }
       
       writer.writeEdgeDef();
-      Iterable<Edge> edgeItr = new DeserialisingIterable<>(nodeDao.iterateAll(), marshaller, Edge.class);
+      Iterable<Edge> edgeItr = new DeserialisingIterable<>(edgeDao.iterateAll(), marshaller, Edge.class);
       for (Edge edge : edgeItr) {
         writer.writeEdge(edge);
       }
@@ -18,13 +18,17 @@
 package uk.ac.ncl.aries.entanglement.shell.navigator;
 
 import com.mongodb.DBObject;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.Stack;
 import java.util.TreeMap;
 import uk.ac.ncl.aries.entanglement.graph.EdgeDAO;
+import uk.ac.ncl.aries.entanglement.graph.EdgeTopology;
+import uk.ac.ncl.aries.entanglement.graph.EdgeTopologyIterable;
 import uk.ac.ncl.aries.entanglement.graph.GraphModelException;
 import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
 import uk.ac.ncl.aries.entanglement.graph.data.Edge;
@@ -84,11 +88,9 @@ public class Navigator
   private void configure(DBObject node) throws GraphModelException
   {
     setCurrentNode(node);
-    edgeDao.countEdgesByTypeFromNode((String) node.get(NodeDAO.FIELD_UID));
-    getOutgoingEdgeTypeToCount().putAll(
-          edgeDao.countEdgesByTypeFromNode((String) node.get(NodeDAO.FIELD_UID)));
-    getIncomingEdgeTypeToCount().putAll(
-          edgeDao.countEdgesByTypeToNode((String) node.get(NodeDAO.FIELD_UID)));
+    String nodeUid = (String) node.get(NodeDAO.FIELD_UID);
+    setOutgoingEdgeTypeToCount(new TreeMap<>(edgeDao.countEdgesByTypeFromNode(nodeUid)));
+    setIncomingEdgeTypeToCount(new TreeMap<>(edgeDao.countEdgesByTypeToNode(nodeUid)));
 
     
     long incomingCount = 0;
@@ -146,17 +148,42 @@ public class Navigator
 //  {
 //    return null;
 //  }
-//  
-//  public Navigator stepViaEdgeType(Class<? extends Edge> edgeType)
-//  {
-//    return null;
-//  }
-//  
-//  public Navigator stepViaEdgeTypeToNodeType(Class<? extends Edge> edgeType, Class<? extends Node> nodeType)
-//  {
-//    return null;
-//  }
-//  
+  
+  /**
+   * Steps along the first outgoing edge of the specified type.
+   */
+  public Navigator stepViaEdgeType(String edgeType)
+          throws NavigatorException
+  {
+    return stepViaEdgeTypeToNodeType(edgeType, null);
+  }
+  
+  /**
+   * Steps along the first outgoing edge of the specified type that leads to
+   * a node of the specified type.
+   * 
+   * @param nodeType the type of the destination node, or null for any type
+   */
+  public Navigator stepViaEdgeTypeToNodeType(String edgeType, String nodeType)
+          throws NavigatorException
+  {
+    String nodeUid = (String) currentNode.get(NodeDAO.FIELD_UID);
+    try {
+      EdgeTopologyIterable edges = edgeDao.iterateTopologyFromNodes(
+          Collections.singletonList(nodeUid), edgeType, nodeType);
+      Iterator<EdgeTopology> itr = edges.iterator();
+      if (!itr.hasNext()) {
+        throw new NavigatorException("Node: "+nodeUid+" has no outgoing edge of type: "
+            + edgeType+" to a node of type: "+nodeType);
+      }
+      EdgeTopology edge = itr.next();
+      edges.close();
+      return new Navigator(nodeDao, edgeDao, history, edge.getToUid());
+    } catch(GraphModelException e) {
+      throw new NavigatorException("Failed to perform navigator operation", e);
+    }
+  }
+  
 //  public Navigator stepViaEdgeId(Class<? extends Edge> edgeType)
 //  {
 //    return null;
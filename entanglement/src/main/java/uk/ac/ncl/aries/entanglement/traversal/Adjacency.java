@@ -0,0 +1,41 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.traversal;
+
+import uk.ac.ncl.aries.entanglement.graph.EdgeTopology;
+
+/**
+ * An edge found while expanding a frontier, oriented in the direction of 
+ * travel: <code>source</code> is the frontier node and <code>target</code> 
+ * the node at the other end.
+ * 
+ * @author Keith Flanagan
+ */
+class Adjacency
+{
+  final String source;
+  final EdgeTopology edge;
+  final String target;
+
+  Adjacency(String source, EdgeTopology edge, String target)
+  {
+    this.source = source;
+    this.edge = edge;
+    this.target = target;
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.traversal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import uk.ac.ncl.aries.entanglement.graph.GraphModelException;
+
+/**
+ * Lazily performs a breadth-first traversal. Each level's frontier is 
+ * expanded one chunk of <code>maxUidsPerQuery</code> nodes at a time, and 
+ * only when the nodes already found have been consumed.
+ * 
+ * @author Keith Flanagan
+ */
+class BreadthFirstIterator
+    implements Iterator<TraversalStep>
+{
+  private final TraversalEngine engine;
+  private final Direction direction;
+  private final String edgeType;
+  private final int maxDepth;
+  private final int limit;
+  
+  private final Set<String> visited;
+  private final Queue<TraversalStep> pending;
+  
+  private List<String> frontier;
+  private int frontierPos;
+  private List<String> nextFrontier;
+  private int depth;
+  private int returned;
+
+  BreadthFirstIterator(TraversalEngine engine, Collection<String> startUids,
+      Direction direction, String edgeType, int maxDepth, int limit)
+  {
+    this.engine = engine;
+    this.direction = direction;
+    this.edgeType = edgeType;
+    this.maxDepth = maxDepth;
+    this.limit = limit;
+    
+    this.visited = new HashSet<>();
+    this.pending = new ArrayDeque<>();
+    this.frontier = TraversalEngine.distinct(startUids);
+    this.nextFrontier = new ArrayList<>();
+    for (String uid : frontier) {
+      visited.add(uid);
+      pending.add(new TraversalStep(uid, 0, null));
+    }
+  }
+  
+  @Override
+  public boolean hasNext()
+  {
+    if (limit > 0 && returned >= limit) {
+      return false;
+    }
+    while (pending.isEmpty()) {
+      if (frontierPos >= frontier.size()) {
+        if (nextFrontier.isEmpty() || depth >= maxDepth) {
+          return false;
+        }
+        frontier = nextFrontier;
+        frontierPos = 0;
+        nextFrontier = new ArrayList<>();
+      }
+      if (depth >= maxDepth) {
+        return false;
+      }
+      expandNextChunk();
+    }
+    return true;
+  }
+  
+  private void expandNextChunk()
+  {
+    int end = Math.min(frontier.size(), frontierPos + engine.getMaxUidsPerQuery());
+    List<String> chunk = frontier.subList(frontierPos, end);
+    frontierPos = end;
+    try {
+      for (Adjacency adj : engine.expand(chunk, direction, edgeType, null)) {
+        if (visited.add(adj.target)) {
+          pending.add(new TraversalStep(adj.target, depth + 1, adj.edge));
+          nextFrontier.add(adj.target);
+        }
+      }
+    }
+    catch(GraphModelException e) {
+      throw new TraversalException("Failed to expand a frontier of "
+          + chunk.size()+" nodes at depth "+depth, e);
+    }
+    if (frontierPos >= frontier.size()) {
+      depth++;
+    }
+  }
+
+  @Override
+  public TraversalStep next()
+  {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    returned++;
+    return pending.remove();
+  }
+
+  @Override
+  public void remove()
+  {
+    throw new UnsupportedOperationException("Not supported.");
+  }
+}
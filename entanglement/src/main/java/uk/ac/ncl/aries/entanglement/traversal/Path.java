@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.traversal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import uk.ac.ncl.aries.entanglement.graph.EdgeTopology;
+
+/**
+ * An immutable sequence of nodes and the edges between them. A path with 
+ * <i>n</i> edges has <i>n + 1</i> nodes.
+ * 
+ * @author Keith Flanagan
+ */
+public class Path
+{
+  private final List<String> nodeUids;
+  private final List<EdgeTopology> edges;
+
+  public Path(String startNodeUid)
+  {
+    this(Collections.singletonList(startNodeUid), Collections.<EdgeTopology>emptyList());
+  }
+  
+  public Path(List<String> nodeUids, List<EdgeTopology> edges)
+  {
+    if (nodeUids.size() != edges.size() + 1) {
+      throw new IllegalArgumentException("A path with "+edges.size()
+          + " edges must have "+(edges.size() + 1)+" nodes");
+    }
+    this.nodeUids = Collections.unmodifiableList(nodeUids);
+    this.edges = Collections.unmodifiableList(edges);
+  }
+  
+  /**
+   * @return a new path that follows this one with an extra edge and node
+   */
+  public Path extend(EdgeTopology edge, String nodeUid)
+  {
+    List<String> newNodes = new ArrayList<>(nodeUids.size() + 1);
+    newNodes.addAll(nodeUids);
+    newNodes.add(nodeUid);
+    List<EdgeTopology> newEdges = new ArrayList<>(edges.size() + 1);
+    newEdges.addAll(edges);
+    newEdges.add(edge);
+    return new Path(newNodes, newEdges);
+  }
+  
+  public String getStartNodeUid() {
+    return nodeUids.get(0);
+  }
+  
+  public String getEndNodeUid() {
+    return nodeUids.get(nodeUids.size() - 1);
+  }
+  
+  public int getLength() {
+    return edges.size();
+  }
+
+  public List<String> getNodeUids() {
+    return nodeUids;
+  }
+
+  public List<EdgeTopology> getEdges() {
+    return edges;
+  }
+
+  @Override
+  public String toString() {
+    return "Path{" + "nodeUids=" + nodeUids + '}';
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.traversal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import uk.ac.ncl.aries.entanglement.graph.GraphModelException;
+
+/**
+ * Lazily matches a <code>PathPattern</code>. Start nodes are taken in chunks
+ * of <code>maxUidsPerQuery</code>. All partial paths from one chunk are 
+ * extended a hop at a time, with one query per chunk of distinct path end 
+ * points per hop, and the next chunk of start nodes is only read once the
+ * matches from the previous one have been consumed.
+ * 
+ * @author Keith Flanagan
+ */
+class PathMatchIterator
+    implements Iterator<Path>
+{
+  private final TraversalEngine engine;
+  private final PathPattern pattern;
+  private final Iterator<String> startUids;
+  private final int limit;
+  
+  private final Queue<Path> matches;
+  private int returned;
+
+  PathMatchIterator(TraversalEngine engine, PathPattern pattern, 
+      Iterator<String> startUids, int limit)
+  {
+    this.engine = engine;
+    this.pattern = pattern;
+    this.startUids = startUids;
+    this.limit = limit;
+    this.matches = new ArrayDeque<>();
+  }
+
+  @Override
+  public boolean hasNext()
+  {
+    if (limit > 0 && returned >= limit) {
+      return false;
+    }
+    while (matches.isEmpty()) {
+      if (!startUids.hasNext()) {
+        return false;
+      }
+      List<Path> paths = new ArrayList<>();
+      while (startUids.hasNext() && paths.size() < engine.getMaxUidsPerQuery()) {
+        paths.add(new Path(startUids.next()));
+      }
+      matches.addAll(matchFrom(paths));
+    }
+    return true;
+  }
+  
+  private List<Path> matchFrom(List<Path> paths)
+  {
+    for (PathPattern.Hop hop : pattern.getHops()) {
+      Map<String, List<Path>> byEnd = new LinkedHashMap<>();
+      for (Path path : paths) {
+        List<Path> group = byEnd.get(path.getEndNodeUid());
+        if (group == null) {
+          group = new ArrayList<>(1);
+          byEnd.put(path.getEndNodeUid(), group);
+        }
+        group.add(path);
+      }
+      
+      List<String> ends = new ArrayList<>(byEnd.keySet());
+      List<Path> extended = new ArrayList<>();
+      int chunkSize = engine.getMaxUidsPerQuery();
+      for (int start = 0; start < ends.size(); start += chunkSize) {
+        List<String> chunk = ends.subList(start, Math.min(ends.size(), start + chunkSize));
+        List<Adjacency> adjacencies;
+        try {
+          adjacencies = engine.expand(chunk, hop.getDirection(), 
+              hop.getEdgeType(), hop.getNodeType());
+        }
+        catch(GraphModelException e) {
+          throw new TraversalException("Failed to match pattern: "+pattern, e);
+        }
+        for (Adjacency adj : adjacencies) {
+          for (Path path : byEnd.get(adj.source)) {
+            extended.add(path.extend(adj.edge, adj.target));
+          }
+        }
+      }
+      paths = extended;
+      if (paths.isEmpty()) {
+        break;
+      }
+    }
+    return paths;
+  }
+
+  @Override
+  public Path next()
+  {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    returned++;
+    return matches.remove();
+  }
+
+  @Override
+  public void remove()
+  {
+    throw new UnsupportedOperationException("Not supported.");
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.traversal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A typed path pattern of the form 
+ * <i>node type</i> &rarr; <i>edge type</i> &rarr; <i>node type</i> ... 
+ * Patterns are built by chaining calls, for example:
+ * <pre>
+ * new PathPattern("gene").out("located-on", "chromosome")
+ * </pre>
+ * A null edge or node type matches any type.
+ * 
+ * @author Keith Flanagan
+ */
+public class PathPattern
+{
+  private final String startNodeType;
+  private final List<Hop> hops;
+
+  public PathPattern(String startNodeType)
+  {
+    this.startNodeType = startNodeType;
+    this.hops = new ArrayList<>();
+  }
+  
+  public PathPattern out(String edgeType, String nodeType)
+  {
+    return step(Direction.OUTGOING, edgeType, nodeType);
+  }
+  
+  public PathPattern in(String edgeType, String nodeType)
+  {
+    return step(Direction.INCOMING, edgeType, nodeType);
+  }
+  
+  public PathPattern step(Direction direction, String edgeType, String nodeType)
+  {
+    hops.add(new Hop(direction, edgeType, nodeType));
+    return this;
+  }
+
+  public String getStartNodeType() {
+    return startNodeType;
+  }
+
+  public List<Hop> getHops() {
+    return Collections.unmodifiableList(hops);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("(").append(startNodeType).append(")");
+    for (Hop hop : hops) {
+      sb.append(hop.direction == Direction.INCOMING ? " <-[" : " -[")
+          .append(hop.edgeType)
+          .append(hop.direction == Direction.OUTGOING ? "]-> (" : "]- (")
+          .append(hop.nodeType).append(")");
+    }
+    return sb.toString();
+  }
+  
+  /**
+   * One edge and the node at its far end.
+   */
+  public static class Hop
+  {
+    private final Direction direction;
+    private final String edgeType;
+    private final String nodeType;
+
+    public Hop(Direction direction, String edgeType, String nodeType)
+    {
+      this.direction = direction;
+      this.edgeType = edgeType;
+      this.nodeType = nodeType;
+    }
+
+    public Direction getDirection() {
+      return direction;
+    }
+
+    public String getEdgeType() {
+      return edgeType;
+    }
+
+    public String getNodeType() {
+      return nodeType;
+    }
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.traversal;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import uk.ac.ncl.aries.entanglement.graph.EdgeDAO;
+import uk.ac.ncl.aries.entanglement.graph.EdgeTopology;
+import uk.ac.ncl.aries.entanglement.graph.GraphModelException;
+import uk.ac.ncl.aries.entanglement.graph.NodeDAO;
+
+/**
+ * Multi-hop queries over a graph checkout: k-hop breadth-first traversals, 
+ * typed path pattern matching, and shortest paths.
+ * 
+ * Frontiers are expanded a level at a time, with one <code>$in</code> query
+ * per <code>maxUidsPerQuery</code> frontier nodes rather than one query per
+ * node. Only edge topology (UID, type and end points) is fetched. Edge type
+ * and far-end node type constraints are evaluated by the database, using the
+ * denormalised node types stored on each edge.
+ * 
+ * Traversals and pattern matches are returned as lazy <code>Iterable</code>s.
+ * Each call to <code>iterator()</code> starts a new traversal, and no query 
+ * is made until results are requested, so a caller that stops iterating 
+ * stops the traversal. Database errors during iteration are thrown as 
+ * <code>TraversalException</code>s.
+ * 
+ * @author Keith Flanagan
+ */
+public class TraversalEngine
+{
+  public static final int DEFAULT_MAX_UIDS_PER_QUERY = 2000;
+  
+  private final NodeDAO nodeDao;
+  private final EdgeDAO edgeDao;
+  private int maxUidsPerQuery;
+
+  public TraversalEngine(NodeDAO nodeDao, EdgeDAO edgeDao)
+  {
+    this.nodeDao = nodeDao;
+    this.edgeDao = edgeDao;
+    this.maxUidsPerQuery = DEFAULT_MAX_UIDS_PER_QUERY;
+  }
+  
+  /**
+   * Returns every node within <code>maxDepth</code> hops of the start nodes,
+   * in breadth-first order. Each node is returned once, at the depth at which
+   * it was first reached. The start nodes themselves are returned first, at
+   * depth 0.
+   * 
+   * @param startUids the nodes to start from
+   * @param direction the direction in which to follow edges
+   * @param edgeType only follow edges of this type, or null for any type
+   * @param maxDepth the maximum number of hops
+   * @param limit the maximum number of nodes to return, or 0 for no limit
+   */
+  public Iterable<TraversalStep> breadthFirst(final Collection<String> startUids,
+      final Direction direction, final String edgeType, final int maxDepth, final int limit)
+  {
+    return new Iterable<TraversalStep>() {
+      @Override
+      public Iterator<TraversalStep> iterator() {
+        return new BreadthFirstIterator(TraversalEngine.this, startUids, 
+            direction, edgeType, maxDepth, limit);
+      }
+    };
+  }
+  
+  /**
+   * Returns the paths that match a pattern, starting at the given nodes. The
+   * start nodes are assumed to be of the pattern's start node type. Paths 
+   * may visit the same node more than once if the pattern allows it.
+   * 
+   * @param limit the maximum number of paths to return, or 0 for no limit
+   */
+  public Iterable<Path> match(final PathPattern pattern, 
+      final Collection<String> startUids, final int limit)
+  {
+    return new Iterable<Path>() {
+      @Override
+      public Iterator<Path> iterator() {
+        return new PathMatchIterator(TraversalEngine.this, pattern, 
+            startUids.iterator(), limit);
+      }
+    };
+  }
+  
+  /**
+   * Returns the paths that match a pattern, starting at every node of the 
+   * pattern's start node type. Start nodes are read and matched in batches, 
+   * so results are returned before the whole graph has been searched.
+   * 
+   * @param limit the maximum number of paths to return, or 0 for no limit
+   */
+  public Iterable<Path> match(final PathPattern pattern, final int limit)
+  {
+    return new Iterable<Path>() {
+      @Override
+      public Iterator<Path> iterator() {
+        final Iterator<DBObject> nodes;
+        try {
+          nodes = nodeDao.iterateByType(pattern.getStartNodeType(), 
+              new BasicDBObject(NodeDAO.FIELD_UID, 1)).iterator();
+        }
+        catch(GraphModelException e) {
+          throw new TraversalException("Failed to list start nodes for: "+pattern, e);
+        }
+        Iterator<String> startUids = new Iterator<String>() {
+          @Override
+          public boolean hasNext() {
+            return nodes.hasNext();
+          }
+
+          @Override
+          public String next() {
+            return (String) nodes.next().get(NodeDAO.FIELD_UID);
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+          }
+        };
+        return new PathMatchIterator(TraversalEngine.this, pattern, startUids, limit);
+      }
+    };
+  }
+  
+  /**
+   * Finds a shortest path between two nodes, searching from both ends at 
+   * once and always expanding the smaller frontier.
+   * 
+   * @param direction the direction in which edges may be followed from 
+   * <code>fromUid</code> towards <code>toUid</code>
+   * @param maxDepth the maximum number of edges in the path
+   * @return a shortest path, or null if there is no path of at most 
+   * <code>maxDepth</code> edges
+   */
+  public Path findShortestPath(String fromUid, String toUid, Direction direction, int maxDepth)
+      throws GraphModelException
+  {
+    if (fromUid.equals(toUid)) {
+      return new Path(fromUid);
+    }
+    Map<String, Adjacency> forwardParents = new HashMap<>();
+    Map<String, Adjacency> backwardParents = new HashMap<>();
+    forwardParents.put(fromUid, null);
+    backwardParents.put(toUid, null);
+    List<String> forwardFrontier = Collections.singletonList(fromUid);
+    List<String> backwardFrontier = Collections.singletonList(toUid);
+    
+    for (int depth = 0; depth < maxDepth; depth++) {
+      boolean forward = forwardFrontier.size() <= backwardFrontier.size();
+      List<String> frontier = forward ? forwardFrontier : backwardFrontier;
+      Map<String, Adjacency> parents = forward ? forwardParents : backwardParents;
+      Map<String, Adjacency> otherParents = forward ? backwardParents : forwardParents;
+      Direction dir = forward ? direction : direction.reverse();
+      
+      List<String> next = new ArrayList<>();
+      String meeting = null;
+      for (int start = 0; start < frontier.size() && meeting == null; start += maxUidsPerQuery) {
+        List<String> chunk = frontier.subList(start, Math.min(frontier.size(), start + maxUidsPerQuery));
+        for (Adjacency adj : expand(chunk, dir, null, null)) {
+          if (parents.containsKey(adj.target)) {
+            continue;
+          }
+          parents.put(adj.target, adj);
+          next.add(adj.target);
+          if (otherParents.containsKey(adj.target)) {
+            meeting = adj.target;
+            break;
+          }
+        }
+      }
+      if (meeting != null) {
+        return joinPath(meeting, forwardParents, backwardParents);
+      }
+      if (next.isEmpty()) {
+        return null;
+      }
+      if (forward) {
+        forwardFrontier = next;
+      }
+      else {
+        backwardFrontier = next;
+      }
+    }
+    return null;
+  }
+  
+  private static Path joinPath(String meeting, 
+      Map<String, Adjacency> forwardParents, Map<String, Adjacency> backwardParents)
+  {
+    List<String> nodes = new ArrayList<>();
+    List<EdgeTopology> edges = new ArrayList<>();
+    nodes.add(meeting);
+    for (Adjacency adj = forwardParents.get(meeting); adj != null; 
+        adj = forwardParents.get(adj.source)) {
+      edges.add(adj.edge);
+      nodes.add(adj.source);
+    }
+    Collections.reverse(nodes);
+    Collections.reverse(edges);
+    for (Adjacency adj = backwardParents.get(meeting); adj != null; 
+        adj = backwardParents.get(adj.source)) {
+      edges.add(adj.edge);
+      nodes.add(adj.source);
+    }
+    return new Path(nodes, edges);
+  }
+  
+  /**
+   * Finds the edges adjacent to a set of nodes. Callers are responsible for
+   * keeping <code>uids</code> within <code>maxUidsPerQuery</code>.
+   * 
+   * @param edgeType only follow edges of this type, or null for any type
+   * @param targetNodeType only follow edges whose far end is of this type,
+   * or null for any type
+   */
+  List<Adjacency> expand(Collection<String> uids, Direction direction, 
+      String edgeType, String targetNodeType)
+      throws GraphModelException
+  {
+    List<Adjacency> result = new ArrayList<>();
+    if (uids.isEmpty()) {
+      return result;
+    }
+    if (direction != Direction.INCOMING) {
+      for (EdgeTopology edge : edgeDao.iterateTopologyFromNodes(uids, edgeType, targetNodeType)) {
+        result.add(new Adjacency(edge.getFromUid(), edge, edge.getToUid()));
+      }
+    }
+    if (direction != Direction.OUTGOING) {
+      for (EdgeTopology edge : edgeDao.iterateTopologyToNodes(uids, edgeType, targetNodeType)) {
+        result.add(new Adjacency(edge.getToUid(), edge, edge.getFromUid()));
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * Removes duplicates while keeping order.
+   */
+  static List<String> distinct(Collection<String> uids)
+  {
+    Set<String> seen = new HashSet<>(uids.size());
+    List<String> result = new ArrayList<>(uids.size());
+    for (String uid : uids) {
+      if (seen.add(uid)) {
+        result.add(uid);
+      }
+    }
+    return result;
+  }
+
+  public int getMaxUidsPerQuery() {
+    return maxUidsPerQuery;
+  }
+
+  public void setMaxUidsPerQuery(int maxUidsPerQuery) {
+    this.maxUidsPerQuery = maxUidsPerQuery;
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.traversal;
+
+import uk.ac.ncl.aries.entanglement.graph.EdgeTopology;
+
+/**
+ * A node reached by a breadth-first traversal.
+ * 
+ * @author Keith Flanagan
+ */
+public class TraversalStep
+{
+  private final String nodeUid;
+  private final int depth;
+  private final EdgeTopology via;
+
+  public TraversalStep(String nodeUid, int depth, EdgeTopology via)
+  {
+    this.nodeUid = nodeUid;
+    this.depth = depth;
+    this.via = via;
+  }
+
+  public String getNodeUid() {
+    return nodeUid;
+  }
+
+  /**
+   * @return the number of edges between this node and the nearest start node
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * @return the edge by which this node was first reached, or null for a 
+   * start node
+   */
+  public EdgeTopology getVia() {
+    return via;
+  }
+
+  @Override
+  public String toString() {
+    return "TraversalStep{" + "nodeUid=" + nodeUid + ", depth=" + depth 
+        + ", via=" + via + '}';
+  }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2013 Keith Flanagan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ncl.aries.entanglement.util;
+
+import com.torrenttamer.util.UidGenerator;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.ncl.aries.entanglement.ObjectMarshallerFactory;
+import uk.ac.ncl.aries.entanglement.revlog.RevisionLog;
+import uk.ac.ncl.aries.entanglement.revlog.RevisionLogException;
+import uk.ac.ncl.aries.entanglement.revlog.codec.CompactRevisionItemCodec;
+import uk.ac.ncl.aries.entanglement.revlog.codec.RevisionItemCodecException;
+import uk.ac.ncl.aries.entanglement.revlog.commands.GraphOperation;
+import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionBegin;
+import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionCommit;
+import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionRollback;
+import uk.ac.ncl.aries.entanglement.revlog.data.RevisionItem;
+
+/**
+ * Stages a transaction on the client and writes it to the revision log only
+ * when it is committed. This is an alternative to <code>TxnUtils</code> plus 
+ * <code>RevisionLog.submitRevisions</code> for large imports. Submitting 
+ * revisions as they are created writes each container twice: once when it 
+ * is submitted, and again when the commit marks it as committed. A session 
+ * writes each container once, already committed, using 
+ * <code>RevisionLog.submitCommittedTransaction</code>. Rolling back just 
+ * discards the staged operations, without touching the database.
+ * 
+ * Operations are grouped into containers of <code>containerSize</code> 
+ * operations. Once more than <code>maxBufferedOps</code> operations are 
+ * held in memory, full containers are spilled to a temporary file in the
+ * compact binary encoding, so the size of a transaction is limited by local
+ * disk rather than heap.
+ * 
+ * Sessions are not thread safe. Nothing is visible to other clients until
+ * <code>commit</code> returns.
+ * 
+ * @author Keith Flanagan
+ */
+public class TransactionSession
+    implements Closeable
+{
+  private static final Logger logger =
+      Logger.getLogger(TransactionSession.class.getName());
+  
+  public static final int DEFAULT_CONTAINER_SIZE = 1000;
+  public static final int DEFAULT_MAX_BUFFERED_OPS = 100000;
+  
+  private enum State { OPEN, COMMITTED, ROLLED_BACK }
+  
+  private final RevisionLog revLog;
+  private final String graphId;
+  private final String branchId;
+  private final String txnId;
+  private final CompactRevisionItemCodec spillCodec;
+  
+  private int containerSize;
+  private int maxBufferedOps;
+  private File spillDirectory;
+  
+  private State state;
+  private List<GraphOperation> current;
+  private final List<List<GraphOperation>> buffered;
+  private int bufferedOps;
+  private long totalOps;
+  
+  private File spillFile;
+  private DataOutputStream spillOut;
+  private int spilledContainers;
+
+  public TransactionSession(ClassLoader classLoader, RevisionLog revLog, 
+      String graphId, String branchId)
+  {
+    this.revLog = revLog;
+    this.graphId = graphId;
+    this.branchId = branchId;
+    this.txnId = UidGenerator.generateUid();
+    this.spillCodec = new CompactRevisionItemCodec(
+        classLoader, ObjectMarshallerFactory.create(classLoader));
+    
+    this.containerSize = DEFAULT_CONTAINER_SIZE;
+    this.maxBufferedOps = DEFAULT_MAX_BUFFERED_OPS;
+    
+    this.state = State.OPEN;
+    this.current = new ArrayList<>();
+    this.buffered = new ArrayList<>();
+  }
+  
+  /**
+   * Stages an operation. Transaction begin, commit and rollback operations 
+   * can't be staged; use <code>commit</code> and <code>rollback</code>.
+   */
+  public void submit(GraphOperation op)
+      throws RevisionLogException
+  {
+    _checkOpen();
+    if (op instanceof TransactionBegin ||
+        op instanceof TransactionCommit ||
+        op instanceof TransactionRollback) {
+      throw new RevisionLogException("Transaction operations can't be staged: "+op);
+    }
+    current.add(op);
+    totalOps++;
+    if (current.size() >= containerSize) {
+      _endContainer();
+    }
+  }
+  
+  public void submit(List<GraphOperation> ops)
+      throws RevisionLogException
+  {
+    for (GraphOperation op : ops) {
+      submit(op);
+    }
+  }
+  
+  /**
+   * Writes the staged transaction to the revision log and commits it. The
+   * session can't be used afterwards. If the commit fails, nothing is left
+   * in the revision log and the staged operations are discarded.
+   */
+  public void commit()
+      throws RevisionLogException
+  {
+    _checkOpen();
+    try {
+      _endContainer();
+      Iterable<List<GraphOperation>> containers = buffered;
+      if (spillFile != null) {
+        spillOut.close();
+        containers = new SpilledThenBuffered();
+      }
+      logger.log(Level.INFO, "Committing staged transaction: {0} ({1} operations)", 
+          new Object[] { txnId, totalOps });
+      revLog.submitCommittedTransaction(graphId, branchId, txnId, containers);
+      state = State.COMMITTED;
+    }
+    catch(IOException e) {
+      throw new RevisionLogException("Failed to read staged operations for transaction: "+txnId, e);
+    }
+    finally {
+      if (state != State.COMMITTED) {
+        state = State.ROLLED_BACK;
+      }
+      _discard();
+    }
+  }
+  
+  /**
+   * Discards the staged operations. Nothing has been written to the 
+   * revision log, so this is a purely local operation.
+   */
+  public void rollback()
+  {
+    if (state == State.OPEN) {
+      state = State.ROLLED_BACK;
+      _discard();
+    }
+  }
+  
+  /**
+   * Rolls back the transaction if it hasn't been committed.
+   */
+  @Override
+  public void close()
+  {
+    rollback();
+  }
+  
+  private void _checkOpen()
+      throws RevisionLogException
+  {
+    if (state != State.OPEN) {
+      throw new RevisionLogException("Transaction: "+txnId+" has already been "
+          + (state == State.COMMITTED ? "committed" : "rolled back"));
+    }
+  }
+  
+  private void _endContainer()
+      throws RevisionLogException
+  {
+    if (current.isEmpty()) {
+      return;
+    }
+    buffered.add(current);
+    bufferedOps = bufferedOps + current.size();
+    current = new ArrayList<>();
+    if (bufferedOps > maxBufferedOps) {
+      _spill();
+    }
+  }
+  
+  private void _spill()
+      throws RevisionLogException
+  {
+    try {
+      if (spillFile == null) {
+        spillFile = File.createTempFile("txn-"+txnId+"-", ".staged", spillDirectory);
+        spillFile.deleteOnExit();
+        spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+        logger.log(Level.INFO, "Transaction: {0} exceeded {1} buffered operations; "
+            + "spilling to: {2}", new Object[] { txnId, maxBufferedOps, spillFile });
+      }
+      for (List<GraphOperation> ops : buffered) {
+        List<RevisionItem> items = new ArrayList<>(ops.size());
+        for (GraphOperation op : ops) {
+          RevisionItem item = new RevisionItem();
+          item.setOp(op);
+          item.setType(op.getClass().getSimpleName());
+          items.add(item);
+        }
+        byte[] encoded = spillCodec.encode(items, false);
+        spillOut.writeInt(encoded.length);
+        spillOut.write(encoded);
+        spilledContainers++;
+      }
+      buffered.clear();
+      bufferedOps = 0;
+    }
+    catch(RevisionItemCodecException e) {
+      throw new RevisionLogException("Failed to spill staged operations of transaction: "
+          + txnId+". Some operation can't be encoded; increase maxBufferedOps.", e);
+    }
+    catch(IOException e) {
+      throw new RevisionLogException("Failed to spill staged operations of transaction: "
+          + txnId+" to: "+spillFile, e);
+    }
+  }
+  
+  private void _discard()
+  {
+    current = new ArrayList<>();
+    buffered.clear();
+    bufferedOps = 0;
+    if (spillFile != null) {
+      try {
+        spillOut.close();
+      }
+      catch(IOException e) {
+        logger.log(Level.FINE, "Failed to close spill file: "+spillFile, e);
+      }
+      if (!spillFile.delete()) {
+        logger.log(Level.WARNING, "Failed to delete spill file: {0}", spillFile);
+      }
+      spillFile = null;
+    }
+  }
+
+  public String getTxnId() {
+    return txnId;
+  }
+
+  public String getGraphId() {
+    return graphId;
+  }
+
+  public String getBranchId() {
+    return branchId;
+  }
+  
+  /**
+   * @return the number of operations staged so far
+   */
+  public long getOperationCount() {
+    return totalOps;
+  }
+
+  public int getContainerSize() {
+    return containerSize;
+  }
+
+  public void setContainerSize(int containerSize) {
+    this.containerSize = containerSize;
+  }
+
+  public int getMaxBufferedOps() {
+    return maxBufferedOps;
+  }
+
+  public void setMaxBufferedOps(int maxBufferedOps) {
+    this.maxBufferedOps = maxBufferedOps;
+  }
+
+  public File getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  /**
+   * Sets the directory for spill files, or null for the system default 
+   * temporary directory.
+   */
+  public void setSpillDirectory(File spillDirectory) {
+    this.spillDirectory = spillDirectory;
+  }
+  
+  /**
+   * Reads the spilled containers back from the spill file, followed by those
+   * still in memory. Read errors are thrown as 
+   * <code>IllegalStateException</code>s.
+   */
+  private class SpilledThenBuffered
+      implements Iterable<List<GraphOperation>>
+  {
+    @Override
+    public Iterator<List<GraphOperation>> iterator()
+    {
+      final DataInputStream in;
+      try {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+      }
+      catch(IOException e) {
+        throw new IllegalStateException("Failed to open spill file: "+spillFile, e);
+      }
+      final Iterator<List<GraphOperation>> inMemory = buffered.iterator();
+      return new Iterator<List<GraphOperation>>() {
+        private int read = 0;
+        
+        @Override
+        public boolean hasNext() {
+          return read < spilledContainers || inMemory.hasNext();
+        }
+
+        @Override
+        public List<GraphOperation> next() {
+          if (read >= spilledContainers) {
+            return inMemory.next();
+          }
+          try {
+            byte[] encoded = new byte[in.readInt()];
+            in.readFully(encoded);
+            read++;
+            if (read == spilledContainers) {
+              in.close();
+            }
+            List<RevisionItem> items = spillCodec.decode(encoded);
+            List<GraphOperation> ops = new ArrayList<>(items.size());
+            for (RevisionItem item : items) {
+              ops.add(item.getOp());
+            }
+            return ops;
+          }
+          catch(IOException | RevisionItemCodecException e) {
+            throw new IllegalStateException("Failed to read spill file: "+spillFile, e);
+          }
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException("Not supported.");
+        }
+      };
+    }
+  }
+}
@@ -32,6 +32,14 @@ import uk.ac.ncl.aries.entanglement.revlog.commands.TransactionRollback;
  * better solution - if the post-commit graph update fails, then the graph will 
  * be inconsistent! We don't do any error correction here.
  * 
+ * With <code>RevisionLogDirectToMongoDbImpl</code>, notifications arrive on 
+ * a dispatcher thread, so the working copy lags slightly behind commits. 
+ * Transactions are still played one at a time, in commit sequence order,
+ * because the revision log holds back a post-commit event until every 
+ * earlier commit made through it has completed. Only commits made through
+ * the same revision log instance are seen; use a 
+ * <code>RevisionLogTailer</code> to follow commits from other processes.
+ * 
  * @author Keith Flanagan
  */
 public class GraphOpPostCommitPlayer